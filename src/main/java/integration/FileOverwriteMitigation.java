@@ -1,6 +1,7 @@
 package integration;
 
 import java.io.File;
+import java.io.IOException;
 
 public class FileOverwriteMitigation {
 
@@ -43,6 +44,23 @@ public class FileOverwriteMitigation {
         return findFreeFileName(split[0], split[1]);
     }
 
+    /**
+     * Finds an unused file name like {@link #findFreeFileName(File)} and
+     * atomically creates the (empty) file, so that concurrent writers never
+     * get the same name.
+     * @param filepath    Preferred file
+     * @return  Created file
+     * @throws IOException if the file couldn't be created
+     */
+    public static File claimFreeFileName(File filepath) throws IOException {
+        while (true) {
+            File file = findFreeFileName(filepath);
+            if (file.createNewFile()) {
+                return file;
+            }
+        }
+    }
+
     /**
      * Splits a given file path into its file path without the extension and a
      * separate extension. The pair is returned as array. If the second element
@@ -0,0 +1,195 @@
+package integration.crypto;
+
+import trabe.policy.PolicyParsing;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plans which dynamic attributes have to be retrieved to satisfy a policy.
+ * The policy tree (threshold gates over attributes) is evaluated against the
+ * attributes the private key already holds and those that are known to be
+ * unavailable. Held attributes cost nothing, unavailable ones can't be used
+ * and every other attribute costs one lookup. The planner returns the
+ * cheapest set of attributes whose retrieval would satisfy the policy, so
+ * that all of them can be looked up in parallel.
+ *
+ * <p>For a threshold gate the <code>k</code> cheapest children are chosen,
+ * which is exact for AND and OR gates and a good approximation for
+ * thresholds with overlapping attributes.</p>
+ */
+public class AttributeRetrievalPlanner {
+    private static final Pattern ofPattern = Pattern.compile("^([0-9]+)of([0-9]+)$");
+
+    private final Node root;
+
+    private static class Node {
+        final String attribute; // leaf
+        final int k;            // gate
+        final List<Node> children;
+
+        Node(String attribute) {
+            this.attribute = attribute;
+            this.k = 0;
+            this.children = Collections.emptyList();
+        }
+
+        Node(int k, List<Node> children) {
+            this.attribute = null;
+            this.k = k;
+            this.children = children;
+        }
+    }
+
+    private static class Plan {
+        static final Plan IMPOSSIBLE = new Plan(null);
+
+        final Set<String> fetch;
+
+        Plan(Set<String> fetch) {
+            this.fetch = fetch;
+        }
+
+        boolean possible() {
+            return fetch != null;
+        }
+
+        int cost() {
+            return fetch == null ? Integer.MAX_VALUE : fetch.size();
+        }
+    }
+
+    /**
+     * @param policy    Policy in the infix syntax of the containers
+     * @throws trabe.policyparser.ParseException if the policy can't be parsed
+     */
+    public AttributeRetrievalPlanner(String policy) throws trabe.policyparser.ParseException {
+        this(parsePostfix(PolicyParsing.parsePolicy(policy)));
+    }
+
+    private AttributeRetrievalPlanner(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param postfixPolicy    Policy in postfix notation, e.g. <code>"a b c 2of3"</code>
+     * @return  Planner for the policy
+     */
+    public static AttributeRetrievalPlanner fromPostfix(String postfixPolicy) {
+        return new AttributeRetrievalPlanner(parsePostfix(postfixPolicy));
+    }
+
+    private static Node parsePostfix(String postfixPolicy) {
+        Deque<Node> stack = new ArrayDeque<Node>();
+        for (String token : postfixPolicy.trim().split("\\s+")) {
+            Matcher m = ofPattern.matcher(token);
+            if (m.matches()) {
+                int k = Integer.parseInt(m.group(1));
+                int n = Integer.parseInt(m.group(2));
+                if (n > stack.size() || k < 1 || k > n) {
+                    throw new IllegalArgumentException("Malformed threshold gate " + token + " in " + postfixPolicy);
+                }
+                LinkedList<Node> children = new LinkedList<Node>();
+                for (int i = 0; i < n; i++) {
+                    children.addFirst(stack.pop());
+                }
+                stack.push(new Node(k, new ArrayList<Node>(children)));
+            } else {
+                stack.push(new Node(token));
+            }
+        }
+        if (stack.size() != 1) {
+            throw new IllegalArgumentException("Malformed policy " + postfixPolicy);
+        }
+        return stack.pop();
+    }
+
+    /**
+     * @return  All attributes that occur in the policy (in policy order)
+     */
+    public Set<String> getAttributes() {
+        Set<String> attributes = new LinkedHashSet<String>();
+        collect(root, attributes);
+        return attributes;
+    }
+
+    private static void collect(Node node, Set<String> attributes) {
+        if (node.attribute != null) {
+            attributes.add(node.attribute);
+        }
+        for (Node child : node.children) {
+            collect(child, attributes);
+        }
+    }
+
+    /**
+     * @param attributes    Attributes of a key
+     * @return  Whether the attributes satisfy the policy
+     */
+    public boolean isSatisfiedBy(Set<String> attributes) {
+        return satisfied(root, attributes);
+    }
+
+    private static boolean satisfied(Node node, Set<String> attributes) {
+        if (node.attribute != null) {
+            return attributes.contains(node.attribute);
+        }
+        int count = 0;
+        for (Node child : node.children) {
+            if (satisfied(child, attributes) && ++count >= node.k) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cheapest set of attributes to retrieve.
+     * @param held           Attributes the private key already has
+     * @param unavailable    Attributes which couldn't be retrieved before
+     * @return  Attributes to look up (empty if <code>held</code> satisfies
+     *          the policy) or <code>null</code> if the policy can't be
+     *          satisfied anymore
+     */
+    public Set<String> plan(Set<String> held, Set<String> unavailable) {
+        Plan plan = plan(root, held, unavailable);
+        return plan.fetch;
+    }
+
+    private static Plan plan(Node node, Set<String> held, Set<String> unavailable) {
+        if (node.attribute != null) {
+            if (held.contains(node.attribute)) {
+                return new Plan(Collections.<String>emptySet());
+            }
+            if (unavailable.contains(node.attribute)) {
+                return Plan.IMPOSSIBLE;
+            }
+            return new Plan(Collections.singleton(node.attribute));
+        }
+
+        List<Plan> childPlans = new ArrayList<Plan>(node.children.size());
+        for (Node child : node.children) {
+            Plan childPlan = plan(child, held, unavailable);
+            if (childPlan.possible()) {
+                childPlans.add(childPlan);
+            }
+        }
+        if (childPlans.size() < node.k) {
+            return Plan.IMPOSSIBLE;
+        }
+
+        // stable sort keeps the policy order for equal costs
+        Collections.sort(childPlans, new Comparator<Plan>() {
+            @Override
+            public int compare(Plan o1, Plan o2) {
+                return o1.cost() - o2.cost();
+            }
+        });
+        Set<String> fetch = new LinkedHashSet<String>();
+        for (int i = 0; i < node.k; i++) {
+            fetch.addAll(childPlans.get(i).fetch);
+        }
+        return new Plan(fetch);
+    }
+}
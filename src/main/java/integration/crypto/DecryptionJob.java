@@ -0,0 +1,228 @@
+package integration.crypto;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.apache.log4j.Logger;
+import rest.Storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Decryption of a container as a job with a persistent record of the
+ * <code>DecryptionJob</code> database class. The record goes through the
+ * same states as a <code>Container</code> during encryption (plus
+ * <code>queued</code>) and keeps the progress and the outcome of every file.
+ * The keys of the user are never written to the record.
+ */
+public class DecryptionJob implements Callable<Boolean>, Decryptor.ProgressListener {
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_PROCESSING = "processing";
+    public static final String STATUS_SUCCESS = "success";
+    public static final String STATUS_FAILED = "failed";
+
+    private static final String jobIdStr = "jid";
+    private static final String statusStr = "status";
+    private static final String failMsgStr = "failMsg";
+    private static final String filesTotalStr = "filesTotal";
+    private static final String filesDoneStr = "filesDone";
+    private static final String filesStr = "files";
+    private static final String finishedStr = "finished";
+
+    private static final Logger logger = Logger.getLogger(DecryptionJob.class);
+
+    /* the records of all jobs are written through the same database connection */
+    private static final Object dbLock = new Object();
+
+    private final int jobId;
+    private final Decryptor decryptor;
+
+    private int filesDone;
+
+    /**
+     * @param jobId        ID of the job record (see {@link #create(int, String, String)})
+     * @param decryptor    Decryptor of the container
+     */
+    public DecryptionJob(int jobId, Decryptor decryptor) {
+        this.jobId = jobId;
+        this.decryptor = decryptor;
+    }
+
+    public int getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Create the record of a new job or reset the record of a finished job
+     * with the same ID.
+     * @param jobId              Job ID
+     * @param containerPath      Container to decrypt
+     * @param outputDirectory    Output directory
+     * @return  <code>false</code> if a job with this ID is still queued or processing
+     */
+    public static boolean create(int jobId, String containerPath, String outputDirectory) {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            storage.db.begin();
+            ODocument job = find(storage, jobId);
+            if (job == null) {
+                job = new ODocument("DecryptionJob");
+                job.field(jobIdStr, jobId);
+            } else if (STATUS_QUEUED.equals(job.field(statusStr)) || STATUS_PROCESSING.equals(job.field(statusStr))) {
+                storage.db.rollback();
+                return false;
+            }
+            job.field(statusStr, STATUS_QUEUED);
+            job.field(failMsgStr, (String) null);
+            job.field("container", containerPath);
+            job.field("outputDirectory", outputDirectory);
+            job.field(filesTotalStr, 0);
+            job.field(filesDoneStr, 0);
+            job.field(filesStr, new ArrayList<ODocument>());
+            job.field("created", new Date());
+            job.field(finishedStr, (Date) null);
+            job.save();
+            storage.db.commit();
+            return true;
+        }
+    }
+
+    /**
+     * @param jobId    Job ID
+     * @return  Record of the job or <code>null</code> if there is none
+     */
+    public static ODocument getRecord(int jobId) {
+        synchronized (dbLock) {
+            return find(Storage.getInstance(), jobId);
+        }
+    }
+
+    private static ODocument find(Storage storage, int jobId) {
+        List<ODocument> jobs = storage.getByQuery("select * from DecryptionJob where jid = " + jobId);
+        return jobs.size() == 0 ? null : jobs.get(0);
+    }
+
+    /**
+     * Mark all jobs that were queued or processing as failed, because their
+     * decryption was interrupted by a restart.
+     */
+    static void failUnfinishedJobs() {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            List<ODocument> jobs = storage.getByQuery("select * from DecryptionJob where status in ['" +
+                    STATUS_QUEUED + "', '" + STATUS_PROCESSING + "']");
+            if (jobs.size() == 0) {
+                return;
+            }
+            storage.db.begin();
+            for (ODocument job : jobs) {
+                job.field(statusStr, STATUS_FAILED);
+                job.field(failMsgStr, "Interrupted by a restart of the server");
+                job.field(finishedStr, new Date());
+                job.save();
+            }
+            storage.db.commit();
+            logger.info("#failUnfinishedJobs: " + jobs.size() + " decryption job(s) were interrupted");
+        }
+    }
+
+    /**
+     * Mark a job as failed before it was started.
+     * @param jobId      Job ID
+     * @param message    Reason
+     */
+    static void fail(int jobId, String message) {
+        finish(jobId, false, message);
+    }
+
+    @Override
+    public Boolean call() {
+        update(STATUS_PROCESSING);
+
+        boolean success = false;
+        String message = null;
+        try {
+            success = decryptor.setProgressListener(this).decrypt();
+            if (!success) {
+                message = "Something went wrong (Not enough attributes or something like that)";
+            }
+        } catch (RuntimeException e) {
+            logger.error("#call: Decryption job " + jobId + " failed", e);
+            message = "Decryption failed: " + e.getMessage();
+        }
+        finish(jobId, success, message);
+        return success;
+    }
+
+    @Override
+    public void started(int fileCount) {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            storage.db.begin();
+            ODocument job = find(storage, jobId);
+            if (job != null) {
+                job.field(filesTotalStr, fileCount);
+                job.save();
+            }
+            storage.db.commit();
+        }
+    }
+
+    @Override
+    public void fileDecrypted(int index, String name, File output, boolean success) {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            storage.db.begin();
+            ODocument job = find(storage, jobId);
+            if (job != null) {
+                ODocument file = new ODocument();
+                file.field("index", index);
+                file.field("name", name);
+                file.field("output", success ? output.getAbsolutePath() : null);
+                file.field("success", success);
+
+                List<ODocument> files = job.field(filesStr);
+                if (files == null) {
+                    files = new ArrayList<ODocument>();
+                }
+                files.add(file);
+                job.field(filesStr, files);
+                job.field(filesDoneStr, ++filesDone);
+                job.save();
+            }
+            storage.db.commit();
+        }
+    }
+
+    private void update(String status) {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            storage.db.begin();
+            ODocument job = find(storage, jobId);
+            if (job != null) {
+                job.field(statusStr, status);
+                job.save();
+            }
+            storage.db.commit();
+        }
+    }
+
+    private static void finish(int jobId, boolean success, String message) {
+        synchronized (dbLock) {
+            Storage storage = Storage.getInstance();
+            storage.db.begin();
+            ODocument job = find(storage, jobId);
+            if (job != null) {
+                job.field(statusStr, success ? STATUS_SUCCESS : STATUS_FAILED);
+                if (message != null) {
+                    job.field(failMsgStr, message);
+                }
+                job.field(finishedStr, new Date());
+                job.save();
+            }
+            storage.db.commit();
+        }
+    }
+}
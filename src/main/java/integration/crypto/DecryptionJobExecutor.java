@@ -0,0 +1,133 @@
+package integration.crypto;
+
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool for {@link DecryptionJob}s. At most
+ * {@link ServerConfigDefaults#DECRYPTION_JOB_THREADS} containers are decrypted
+ * at the same time and at most {@link ServerConfigDefaults#DECRYPTION_JOB_QUEUE}
+ * further jobs wait. Additional jobs are rejected instead of piling up.
+ *
+ * <p>Streamed decryptions run on the request thread, but they take a permit
+ * from the same limit with {@link #tryAcquire()}, so that jobs and streams
+ * together never exceed the number of threads plus the queue size.</p>
+ */
+public class DecryptionJobExecutor {
+    private static DecryptionJobExecutor decryptionJobExecutor;
+    private static final Logger logger = Logger.getLogger(DecryptionJobExecutor.class);
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+
+    /**
+     * @param threads      Number of concurrently decrypted containers
+     * @param queueSize    Number of waiting jobs
+     */
+    public DecryptionJobExecutor(int threads, int queueSize) {
+        threads = Math.max(1, threads);
+        queueSize = Math.max(1, queueSize);
+        permits = new Semaphore(threads + queueSize);
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DecryptionJob-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Fail the jobs that were interrupted by the last shutdown.
+     */
+    public void init() {
+        DecryptionJob.failUnfinishedJobs();
+    }
+
+    /**
+     * Queue a job whose record was already created.
+     * @param job    Job
+     * @return  Future result of the job
+     * @throws RejectedExecutionException if the queue is full (the job
+     *          record is marked as failed)
+     */
+    public Future<Boolean> submit(final DecryptionJob job) {
+        try {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many decryptions");
+            }
+            try {
+                return pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            return job.call();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        } catch (RejectedExecutionException e) {
+            logger.warn("#submit: Rejected decryption job " + job.getJobId() + "; " + pool.getQueue().size() + " jobs are waiting");
+            DecryptionJob.fail(job.getJobId(), "Too many decryption jobs");
+            throw e;
+        }
+    }
+
+    /**
+     * Take a permit for a decryption outside of the pool, e.g. a streamed one.
+     * @return  <code>false</code> if the limit is reached; otherwise the
+     *          permit has to be returned with {@link #release()}
+     */
+    public boolean tryAcquire() {
+        if (!permits.tryAcquire()) {
+            logger.warn("#tryAcquire: Rejected streamed decryption; " + pool.getQueue().size() + " jobs are waiting");
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return  Number of jobs waiting for a worker
+     */
+    public int getQueuedJobs() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return  Number of jobs that are currently decrypted
+     */
+    public int getActiveJobs() {
+        return pool.getActiveCount();
+    }
+
+    public static synchronized DecryptionJobExecutor getInstance() {
+        if (decryptionJobExecutor == null) {
+            decryptionJobExecutor = new DecryptionJobExecutor(ServerConfigDefaults.DECRYPTION_JOB_THREADS,
+                    ServerConfigDefaults.DECRYPTION_JOB_QUEUE);
+        }
+        return decryptionJobExecutor;
+    }
+
+    public static synchronized DecryptionJobExecutor setInstance(DecryptionJobExecutor decryptionJobExecutorNew) {
+        decryptionJobExecutor = decryptionJobExecutorNew;
+        return decryptionJobExecutor;
+    }
+}
@@ -2,7 +2,11 @@ package integration.crypto;
 
 import com.tiemens.secretshare.exceptions.SecretShareException;
 import integration.FileOverwriteMitigation;
+import integration.envelope.ChunkedEnvelopeOutputStream;
+import integration.envelope.CompressedEntryOutputStream;
+import integration.envelope.PreparedEntry;
 import integration.external.ExternalKeyDistributionStorage;
+import integration.io.ContainerIO;
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
@@ -14,12 +18,12 @@ import org.bouncycastle.util.encoders.Base64;
 import rest.ServerConfigDefaults;
 import snet.entrance.*;
 import trabe.AbeInputStream;
+import trabe.AbeOutputStream;
 import trabe.AbePrivateKey;
 import trabe.aes.AesDecryptionException;
 import trabe.aes.AesEncryption;
 import trabe.lw14.Lw14PrivateKeyComponent;
 import trabe.lw14.Lw14Util;
-import trabe.policy.PolicyParsing;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -28,15 +32,41 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Decryptor extends Thread {
     private String containerPath;
     private String outputPath;
     private String privateKey;
+    private KeySource keySource;
     private String secretSeed;
     private boolean overwriteFiles;
     private boolean checkExternal;
+    private ProgressListener progressListener;
+
+    /* files requested with selectFile(); all files if both are empty */
+    private final List<Integer> selectedIndices = new ArrayList<Integer>();
+    private final List<String> selectedNames = new ArrayList<String>();
+
+    /* results of prepare() */
+    private AbePrivateKey preparedKey;
+    /* the key doesn't go back to the key source, because dynamic attributes
+       were added or an interrupted worker may still use it */
+    private boolean keyRetained;
+    private List<String> fileNames;
+    private int[] selection;
+    private byte[][] dataEncryptionKeys;
+    /* readers of the planning pass which continue with the second step of
+       their TYPE2 file (by index, null if the file isn't planned) */
+    private PlannedFile[] plannedFiles;
+
+    /**
+     * Number of readers that are kept open from the planning pass until their
+     * file is decrypted. The first step of further TYPE2 files is repeated
+     * when they are decrypted.
+     */
+    private static final int MAX_PLANNED_FILES = 256;
 
     private static final Logger logger = Logger.getLogger(Decryptor.class);
 
@@ -57,8 +87,111 @@ public class Decryptor extends Thread {
         this.checkExternal = checkExternal;
     }
 
+    /**
+     * Decrypt the passed container with already deserialized private keys.
+     * Each worker of the decryption takes its own key from the source, and
+     * the keys are released when the files are decrypted, unless dynamic
+     * attributes were added to them.
+     * @param containerPath    Container to load from
+     * @param outputPath       Resulting files to write to
+     * @param keySource        Source of the user private key (incl. attribute keys)
+     * @param secretSeed       User secret seed as Base 64 encoded string
+     * @param checkExternal    Require to always check if there are attribute secret keys available
+     */
+    public Decryptor(String containerPath, String outputPath, KeySource keySource, String secretSeed, boolean overwriteFiles, boolean checkExternal) {
+        this(containerPath, outputPath, (String) null, secretSeed, overwriteFiles, checkExternal);
+        this.keySource = keySource;
+    }
+
+    /**
+     * Hands out deserialized private keys of a user. A key isn't safe to use
+     * from several threads at once, so every acquired key is used by a
+     * single thread until it is released.
+     */
+    public interface KeySource {
+        /**
+         * @return  Key for the exclusive use of the caller
+         * @throws IOException if the key couldn't be deserialized
+         */
+        AbePrivateKey acquire() throws IOException;
+
+        /**
+         * @param key    Unmodified key which isn't used anymore
+         */
+        void release(AbePrivateKey key);
+    }
+
+    /**
+     * Receives the progress of a decryption. The methods may be called from
+     * different threads.
+     */
+    public interface ProgressListener {
+        /**
+         * @param fileCount    Number of files that are decrypted
+         */
+        void started(int fileCount);
+
+        /**
+         * @param index      Index of the file in the container
+         * @param name       Name of the file in the container
+         * @param output     Output file (deleted if the decryption failed) or
+         *                   <code>null</code> if the file was streamed
+         * @param success    Whether the file was decrypted
+         */
+        void fileDecrypted(int index, String name, File output, boolean success);
+    }
+
+    public Decryptor setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Decrypt only the selected files instead of the whole container. Only
+     * their policies are evaluated and only their shares are retrieved.
+     * @param index    Index of the file in the container
+     * @return  this
+     */
+    public Decryptor selectFile(int index) {
+        selectedIndices.add(index);
+        return this;
+    }
+
+    /**
+     * Decrypt only the selected files instead of the whole container. The
+     * first file with this name is selected.
+     * @param name    Name of the file in the container
+     * @return  this
+     */
+    public Decryptor selectFile(String name) {
+        selectedNames.add(name);
+        return this;
+    }
+
+    /**
+     * Receives the plaintext of the decrypted files in container order
+     * instead of files in the output directory.
+     */
+    public interface StreamTarget {
+        /**
+         * @param index    Index of the file in the container
+         * @param name     Name of the file in the container
+         * @return  Stream for the plaintext of the file
+         * @throws IOException if the target can't take the file
+         */
+        OutputStream beginFile(int index, String name) throws IOException;
+
+        /**
+         * @param index      Index of the file in the container
+         * @param name       Name of the file in the container
+         * @param success    Whether the file was decrypted completely; parts
+         *                   of the plaintext may already be written otherwise
+         * @throws IOException if the target can't take the file
+         */
+        void endFile(int index, String name, boolean success) throws IOException;
+    }
+
     public boolean decrypt() {
-        File containerFile = new File(containerPath);
         File outputDirFile = new File(outputPath);
 
         if (!outputDirFile.exists() && !outputDirFile.mkdirs()) {
@@ -66,19 +199,173 @@ public class Decryptor extends Thread {
             return false;
         }
 
+        if (!prepare()) {
+            return false;
+        }
+
+        final File containerFile = new File(containerPath);
+
+        // output names are claimed in container order, so they don't depend on the scheduling
+        final File[] outputFiles = new File[fileNames.size()];
+        for (int i : selection) {
+            File file = new File(outputDirFile, fileNames.get(i));
+            if (!overwriteFiles) {
+                file = FileOverwriteMitigation.claimFreeFileName(file);
+            }
+            outputFiles[i] = file;
+        }
+
+        try {
+            return forEachFile(null, containerFile, preparedKey, selection, Math.min(selection.length, getParallelism()), new FileTask() {
+                @Override
+                public void run(ContainerReader fileReader, AbePrivateKey key, int i) throws IOException, ParseException {
+                    boolean success = decryptFile(fileReader, i, outputFiles[i], dataEncryptionKeys[i]);
+                    if (progressListener != null) {
+                        progressListener.fileDecrypted(i, fileNames.get(i), outputFiles[i], success);
+                    }
+                }
+            });
+        } catch (ParseException e) {
+            logger.error("#dec: Couldn't parse some policy", e);
+            return false;
+        } catch (IOException e) {
+            logger.error("#dec: Couldn't read the container", e);
+            return false;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Decrypt the files of the container into <code>target</code> one after
+     * the other without writing any plaintext to disk. {@link #prepare()}
+     * has to be called first, and the private key and the readers of the
+     * planning pass are released afterwards, so this can only be called once.
+     * @param indices    Indices of the files to decrypt in container order
+     *                   (see {@link #getSelection()})
+     * @param target     Receiver of the plaintext
+     * @return  Whether all files were decrypted
+     * @throws IOException if the container couldn't be read or the target failed
+     */
+    public boolean decryptTo(final int[] indices, final StreamTarget target) throws IOException {
+        if (preparedKey == null) {
+            throw new IllegalStateException("Decryptor wasn't prepared");
+        }
+
+        boolean success = true;
+        InputStream in = ContainerIO.openInput(new File(containerPath));
+        try {
+            ContainerReader reader = new ContainerReader(in)
+                    .setDecryptor(preparedKey);
+            for (int i : indices) {
+                String name = fileNames.get(i);
+                OutputStream out = target.beginFile(i, name);
+                boolean fileSuccess = decryptFile(reader, i, out, dataEncryptionKeys[i]);
+                target.endFile(i, name, fileSuccess);
+                if (progressListener != null) {
+                    progressListener.fileDecrypted(i, name, null, fileSuccess);
+                }
+                success &= fileSuccess;
+            }
+        } catch (ParseException e) {
+            logger.error("#dec: Couldn't parse some policy", e);
+            return false;
+        } finally {
+            try {
+                in.close();
+            } finally {
+                release();
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Names of the files in the container. {@link #prepare()} has to be
+     * called first.
+     * @return  File names in container order
+     */
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    /**
+     * Files which are decrypted. {@link #prepare()} has to be called first.
+     * @return  Indices of the selected files (or all files) in container order
+     */
+    public int[] getSelection() {
+        return selection.clone();
+    }
+
+    /**
+     * Everything that comes before the decryption of the file contents:
+     * read the private key and the container header, retrieve dynamic
+     * attributes and fetch the external shares of all files. This doesn't
+     * produce any output, so it can happen before a response is committed.
+     * The first decryption step of the files with external shares runs here
+     * on a reader per file, which is kept, so that the decryption of the
+     * file continues with the second step.
+     * @return  Success
+     */
+    public boolean prepare() {
+        File containerFile = new File(containerPath);
+
         if (!containerFile.exists()) {
             logger.error("#dec: Container file doesn't exist");
             return false;
         }
 
-        AbePrivateKey privateKey = null;
+        AbePrivateKey privateKey;
         try {
-            privateKey = AbePrivateKey.readFromByteArray(Base64.decode(this.privateKey));
+            if (keySource != null) {
+                privateKey = keySource.acquire();
+            } else {
+                privateKey = AbePrivateKey.readFromByteArray(Base64.decode(this.privateKey));
+            }
         } catch (IOException e) {
             logger.error("#dec: Private key couldn't be read", e);
             return false;
         }
+        this.preparedKey = privateKey;
+        this.keyRetained = false;
 
+        boolean prepared = false;
+        try {
+            prepared = prepare(containerFile, privateKey);
+            return prepared;
+        } finally {
+            if (!prepared) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Close the readers of the planning pass whose files weren't decrypted
+     * and give the private key of this decryption back to the key source,
+     * unless it has to be retained.
+     */
+    private void release() {
+        if (plannedFiles != null) {
+            for (int i = 0; i < plannedFiles.length; i++) {
+                if (plannedFiles[i] != null) {
+                    plannedFiles[i].close();
+                    plannedFiles[i] = null;
+                }
+            }
+        }
+        if (keySource != null && preparedKey != null && !keyRetained) {
+            keySource.release(preparedKey);
+        }
+        preparedKey = null;
+    }
+
+    /**
+     * @param containerFile    Container
+     * @param privateKey       Private key of this decryption
+     * @return  Success
+     */
+    private boolean prepare(final File containerFile, AbePrivateKey privateKey) {
         Signature signatureVerify = null;
         PublicKey pk = null;
         byte[] pkBytes = privateKey.getAdditionalData("authorityVerifyKey");
@@ -98,8 +385,6 @@ public class Decryptor extends Thread {
             }
         }
 
-        Set<String> notAvailableAttributes = new HashSet<String>();
-
         ExternalKeyDistributionStorage dht = ExternalKeyDistributionStorage.getInstance();
 
         final Mac hmac;
@@ -114,104 +399,112 @@ public class Decryptor extends Thread {
         }
 
         SecretKey secretSeedAsKey = null;
+        String user = null;
         if (this.secretSeed != null && !this.secretSeed.isEmpty()) {
             byte[] secretSeed = org.apache.commons.codec.binary.Base64.decodeBase64(this.secretSeed);
             secretSeed = Arrays.copyOf(secretSeed, 32);
             secretSeedAsKey = new SecretKeySpec(secretSeed, "HmacSha256");
+            user = DynamicAttributeCache.userKey(secretSeed);
         }
 
         try {
-            FileInputStream fin = new FileInputStream(containerFile);
-            ContainerReader reader = new ContainerReader(fin)
-                    .setDecryptor(privateKey);
-
-            for (int i = 0; i < reader.files.size(); i++) {
-                FileContainer container = reader.files.get(i);
-                String fileName = container.getName();
-                logger.info("#dec: file with policy: '" + container.getPolicy() + "', expiration type: " + container.getExpirationType());
-
-                File file = new File(outputDirFile, fileName);
-                if (!overwriteFiles) {
-                    file = FileOverwriteMitigation.findFreeFileName(file);
+            InputStream fin = ContainerIO.openInput(containerFile);
+            try {
+                ContainerReader reader = new ContainerReader(fin)
+                        .setDecryptor(privateKey);
+                int fileCount = reader.files.size();
+                List<String> names = new ArrayList<String>(fileCount);
+                for (FileContainer container : reader.files) {
+                    names.add(PreparedEntry.originalName(container.getName()));
                 }
-                FileOutputStream fos = new FileOutputStream(file);
-
-                boolean failed = true;
-
-                String policy = container.getPolicy();
-                if (checkExternal && policy != null && !policy.isEmpty() && this.secretSeed != null) {
-                    // check externally if secret attribute key updates are available
-
-                    if (container.getType() == DataType.PABE14 && container.getPublicPABEKey() != null) {
-                        includeAttributeInPrivateKeyForPABE14(policy, privateKey, notAvailableAttributes,
-                                hmac, secretSeedAsKey, signatureVerify, pk, dht);
-                    } else {
-                        logger.error("#dec: DataType " + container.getType().name() + " is not implemented or Public key not available");
-                    }
+                final int[] selected = resolveSelection(names);
+                if (selected == null) {
+                    return false;
+                }
+                if (progressListener != null) {
+                    progressListener.started(selected.length);
                 }
 
-                if (container.getExpirationType().needsExternalData()) {
-                    // needs external data in order to do the two-step decryption
-
-                    try {
-                        // first step
-                        byte[] ctPart = reader.tryDecrypt(i);
-
-                        if (ctPart == null) {
-                            logger.error("#dec: Couldn't decrypt the ctPart");
-                            continue;
-                        }
-                        byte[] dataEncryptionKey = null;
-
-                        if (container.getExpirationType() == ExpirationType.TYPE1) {
-                            // TODO: implement (or maybe not)
-                            logger.warn("#dec: TYPE1 expiration is not yet implemented");
+                if (checkExternal && this.secretSeed != null) {
+                    // check externally if secret attribute key updates are available; this
+                    // happens before any file is decrypted, because it modifies the private key
+                    for (int i : selected) {
+                        FileContainer container = reader.files.get(i);
+                        String policy = container.getPolicy();
+                        if (policy == null || policy.isEmpty()) {
                             continue;
-                        } else if (container.getExpirationType() == ExpirationType.TYPE2) {
-                            dataEncryptionKey = retrieveExternalSharesCipherTextExpirationType2(ctPart, signatureVerify, pk, dht);
                         }
-
-                        if (dataEncryptionKey != null && reader.finalizeDecrypt(dataEncryptionKey, fos)) {
-                            failed = false;
-                            logger.info("#dec: SUCCESS: '" + fileName + "'");
+                        if (container.getType() == DataType.PABE14 && container.getPublicPABEKey() != null) {
+                            if (!satisfies(policy, privateKey)) {
+                                // the key of this decryption gets the dynamic attributes, so it
+                                // can't be given back to the key source afterwards
+                                keyRetained = true;
+                            }
+                            includeAttributeInPrivateKeyForPABE14(policy, privateKey, user,
+                                    hmac, secretSeedAsKey, signatureVerify, pk, dht);
                         } else {
-                            logger.info("#dec: FAILURE (not enough attributes or no key): '" + fileName + "'");
-                        }
-                        fos.close();
-                    } catch (IOException e) {
-                        try {
-                            fos.close();
-                        } catch (IOException e1) {
-                            logger.error("Couldn't close FileOutputStream (double-step)", e1);
+                            logger.error("#dec: DataType " + container.getType().name() + " is not implemented or Public key not available");
                         }
                     }
-                } else {
-                    // decrypt directly without reliance on external data (ciphertext expiration)
+                }
 
-                    try {
-                        if (reader.decrypt(i, fos)) {
-                            failed = false;
-                            logger.info("#dec: SUCCESS: '" + fileName + "'");
-                        } else {
-                            logger.warn("#dec: FAILURE (not enough attributes or no key): '" + fileName + "'");
-                        }
-                        fos.close();
-                    } catch (IOException e) {
-                        try {
-                            fos.close();
-                        } catch (IOException e1) {
-                            logger.error("#dec: Couldn't close FileOutputStream (single-step)", e1);
-                        }
+                List<Integer> type2Files = new ArrayList<Integer>();
+                for (int i : selected) {
+                    if (reader.files.get(i).getExpirationType() == ExpirationType.TYPE2) {
+                        type2Files.add(i);
                     }
                 }
-                if (failed && file.exists()) {
-                    if (!file.delete()) {
-                        logger.error("#dec: Couldn't clean up file after failed decryption");
+                final PlannedFile[] planned = new PlannedFile[fileCount];
+                this.fileNames = names;
+                this.selection = selected;
+                this.plannedFiles = planned;
+                this.dataEncryptionKeys = new byte[fileCount][];
+                if (type2Files.isEmpty()) {
+                    return true;
+                }
+
+                int[] type2Indices = new int[type2Files.size()];
+                for (int j = 0; j < type2Indices.length; j++) {
+                    type2Indices[j] = type2Files.get(j);
+                }
+                int parallelism = Math.min(type2Indices.length, getParallelism());
+
+                // planning pass: first decryption step of every file that needs external shares; each
+                // file gets its own reader, which is kept for the second step of the decryption
+                final byte[][] ctParts = new byte[fileCount][];
+                final AtomicInteger keptReaders = new AtomicInteger();
+                boolean plannedAll = forEachFile(reader, containerFile, privateKey, type2Indices, parallelism, new FileTask() {
+                    @Override
+                    public void run(ContainerReader fileReader, AbePrivateKey key, int i) throws IOException, ParseException {
+                        String name = fileNames.get(i);
+                        PlannedFile plannedFile = new PlannedFile(containerFile, key);
+                        boolean keep = false;
+                        try {
+                            ctParts[i] = plannedFile.reader.tryDecrypt(i);
+                            keep = ctParts[i] != null && keptReaders.incrementAndGet() <= MAX_PLANNED_FILES;
+                        } catch (IOException e) {
+                            logger.error("#dec: Couldn't read the ctPart of '" + name + "'", e);
+                        } finally {
+                            if (keep) {
+                                planned[i] = plannedFile;
+                            } else {
+                                plannedFile.close();
+                            }
+                        }
+                        if (ctParts[i] == null) {
+                            logger.error("#dec: Couldn't decrypt the ctPart of '" + name + "'");
+                        }
                     }
+                });
+                if (!plannedAll) {
+                    return false;
                 }
-            }
 
-            fin.close();
+                // shares of all files in a single round trip
+                this.dataEncryptionKeys = retrieveDataEncryptionKeys(ctParts, signatureVerify, pk, dht);
+            } finally {
+                fin.close();
+            }
         } catch (ParseException e) {
             logger.error("#dec: Couldn't parse some policy", e);
             return false;
@@ -227,28 +520,476 @@ public class Decryptor extends Thread {
         return true;
     }
 
-    private static final String of = "^([0-9]+)of([0-9]+)$";
-    private static final Pattern ofPattern = Pattern.compile(of);
+    /**
+     * Indices of the selected files in ascending order, because the reader
+     * moves forward through the container.
+     * @param names    Names of all files in the container
+     * @return  Selected indices or <code>null</code> if a selected file doesn't exist
+     */
+    private int[] resolveSelection(List<String> names) {
+        if (selectedIndices.isEmpty() && selectedNames.isEmpty()) {
+            int[] all = new int[names.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        SortedSet<Integer> indices = new TreeSet<Integer>();
+        for (int index : selectedIndices) {
+            if (index < 0 || index >= names.size()) {
+                logger.error("#dec: Container doesn't have a file with index " + index);
+                return null;
+            }
+            indices.add(index);
+        }
+        for (String name : selectedNames) {
+            int index = names.indexOf(name);
+            if (index < 0) {
+                logger.error("#dec: Container doesn't have a file named '" + name + "'");
+                return null;
+            }
+            indices.add(index);
+        }
+
+        int[] selected = new int[indices.size()];
+        int j = 0;
+        for (int index : indices) {
+            selected[j++] = index;
+        }
+        return selected;
+    }
+
+    private static boolean satisfies(String policy, AbePrivateKey privateKey) {
+        try {
+            return Lw14Util.satisfies(policy, privateKey);
+        } catch (trabe.policyparser.ParseException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService decryptionPool;
+
+    private static int getParallelism() {
+        int threads = ServerConfigDefaults.DECRYPT_THREADS;
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Pool which is shared by all requests, so the number of decrypting
+     * threads stays bounded.
+     */
+    private static synchronized ExecutorService getDecryptionPool() {
+        if (decryptionPool == null) {
+            decryptionPool = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Decryptor-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return decryptionPool;
+    }
+
+    /**
+     * Work on a single file of a container.
+     */
+    private interface FileTask {
+        /**
+         * @param reader    Reader of the worker
+         * @param key       Private key of the worker (also set on <code>reader</code>)
+         * @param i         Index of the file in the container
+         */
+        void run(ContainerReader reader, AbePrivateKey key, int i) throws IOException, ParseException;
+    }
+
+    /**
+     * Reader of a single TYPE2 file which ran the first decryption step in
+     * the planning pass. The second step ({@link ContainerReader#finalizeDecrypt})
+     * only needs the data encryption key from the shares, not the private
+     * key of the reader, so the file can be finished on any thread.
+     */
+    private static class PlannedFile {
+        final InputStream in;
+        final ContainerReader reader;
+
+        PlannedFile(File containerFile, AbePrivateKey key) throws IOException, ParseException {
+            in = ContainerIO.openInput(containerFile);
+            boolean opened = false;
+            try {
+                reader = new ContainerReader(in)
+                        .setDecryptor(key);
+                opened = true;
+            } finally {
+                if (!opened) {
+                    in.close();
+                }
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.warn("#dec: Couldn't close a reader of the planning pass", e);
+            }
+        }
+    }
+
+    /**
+     * Run <code>task</code> for every file of the container. With more than
+     * one worker, each worker has its own {@link ContainerReader}, because
+     * the reader is stateful, and its own private key: the first worker uses
+     * the key of this decryption, the others take one from the key source
+     * or, without one or if dynamic attributes were added, a copy. The
+     * workers take contiguous ranges of the files, so every reader only skips
+     * over the files of the other workers instead of reading the container
+     * up to the last file.
+     * @param reader         Reader which is used if there is only one worker
+     *                       (a new one is opened if <code>null</code>)
+     * @param containerFile  Container for the readers of the workers
+     * @param privateKey     Private key of this decryption (read-only at
+     *                       this point and not used by the caller meanwhile)
+     * @param indices        Indices of the files in ascending order
+     * @param parallelism    Number of workers
+     * @param task           Work for a single file
+     * @return  Whether all workers finished without an exception
+     * @throws IOException if the task failed (sequential only)
+     * @throws ParseException if the task failed (sequential only)
+     */
+    private boolean forEachFile(ContainerReader reader, final File containerFile, final AbePrivateKey privateKey,
+                                final int[] indices, int parallelism, final FileTask task)
+            throws IOException, ParseException
+    {
+        if (parallelism <= 1) {
+            InputStream in = null;
+            try {
+                if (reader == null) {
+                    in = ContainerIO.openInput(containerFile);
+                    reader = new ContainerReader(in)
+                            .setDecryptor(privateKey);
+                }
+                for (int i : indices) {
+                    task.run(reader, privateKey, i);
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+            return true;
+        }
+
+        final boolean fromSource = keySource != null && !keyRetained;
+        final byte[] keyBytes = fromSource ? null : privateKey.getAsByteArray();
+        List<Future<Boolean>> workers = new ArrayList<Future<Boolean>>(parallelism);
+        for (int w = 0; w < parallelism; w++) {
+            final boolean first = w == 0;
+            final int from = indices.length * w / parallelism;
+            final int to = indices.length * (w + 1) / parallelism;
+            workers.add(getDecryptionPool().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    // the key isn't safe to use from several threads at once
+                    AbePrivateKey workerKey;
+                    if (first) {
+                        workerKey = privateKey;
+                    } else if (fromSource) {
+                        workerKey = keySource.acquire();
+                    } else {
+                        workerKey = AbePrivateKey.readFromByteArray(keyBytes);
+                    }
+                    InputStream in = null;
+                    try {
+                        in = ContainerIO.openInput(containerFile);
+                        ContainerReader workerReader = new ContainerReader(in)
+                                .setDecryptor(workerKey);
+
+                        for (int i = from; i < to; i++) {
+                            task.run(workerReader, workerKey, indices[i]);
+                        }
+                        return true;
+                    } finally {
+                        try {
+                            if (in != null) {
+                                in.close();
+                            }
+                        } finally {
+                            if (!first && fromSource) {
+                                keySource.release(workerKey);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+
+        boolean success = true;
+        for (Future<Boolean> worker : workers) {
+            try {
+                success &= worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("#dec: Interrupted while waiting for decryption workers", e);
+                keyRetained = true;
+                return false;
+            } catch (ExecutionException e) {
+                logger.error("#dec: Decryption worker failed", e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Fetch the shares of all TYPE2 files with a single bulk request and
+     * reconstruct their data encryption keys. A single file uses the
+     * threshold-aware retrieval instead.
+     * @param ctParts            Ciphertext parts (<code>null</code> for files without external shares)
+     * @param signatureVerify    Signature verifier
+     * @param pk                 Verification key
+     * @param ekds               External key distribution storage
+     * @return  Data encryption key per file (<code>null</code> if not available)
+     * @throws IOException
+     */
+    private byte[][] retrieveDataEncryptionKeys(byte[][] ctParts, Signature signatureVerify, PublicKey pk,
+                                                ExternalKeyDistributionStorage ekds) throws IOException
+    {
+        byte[][] keys = new byte[ctParts.length][];
+
+        ExpirationType2Utils.CiphertextPart[] parsed = new ExpirationType2Utils.CiphertextPart[ctParts.length];
+        Map<String, Integer> locationIndex = new LinkedHashMap<String, Integer>();
+        List<byte[]> locations = new ArrayList<byte[]>();
+        int files = 0;
+        int lastFile = -1;
+        for (int i = 0; i < ctParts.length; i++) {
+            if (ctParts[i] == null) {
+                continue;
+            }
+            parsed[i] = ExpirationType2Utils.parseCiphertextPart(ctParts[i]);
+            if (parsed[i] == null) {
+                logger.error("#dec: Couldn't parse TYPE2 ctPart");
+                continue;
+            }
+            files++;
+            lastFile = i;
+            for (byte[] location : parsed[i].locations) {
+                String key = Hex.encodeHexString(location);
+                if (!locationIndex.containsKey(key)) {
+                    locationIndex.put(key, locations.size());
+                    locations.add(location);
+                }
+            }
+        }
+
+        if (files == 0) {
+            return keys;
+        }
+        if (files == 1) {
+            keys[lastFile] = retrieveExternalSharesCipherTextExpirationType2(ctParts[lastFile], signatureVerify, pk, ekds);
+            return keys;
+        }
+
+        logger.debug("#dec: Fetching " + locations.size() + " shares for " + files + " files at once");
+        byte[][] allShares = ekds.getBulkData(locations.toArray(new byte[locations.size()][]));
+        if (allShares == null) {
+            logger.error("#dec: couldn't recover necessary shares");
+            return keys;
+        }
+
+        for (int i = 0; i < ctParts.length; i++) {
+            if (parsed[i] == null) {
+                continue;
+            }
+            byte[][] shares = new byte[parsed[i].locations.length][];
+            for (int j = 0; j < shares.length; j++) {
+                shares[j] = allShares[locationIndex.get(Hex.encodeHexString(parsed[i].locations[j]))];
+            }
+            verifyShares(shares, signatureVerify, pk);
+            keys[i] = combineShares(parsed[i], shares, ctParts[i]);
+        }
+        return keys;
+    }
+
+    /**
+     * Decrypt a single file of the container. The output file is deleted if
+     * the decryption failed.
+     * @param reader               Reader of the container (not shared between threads)
+     * @param i                    Index of the file in the container
+     * @param file                 Output file
+     * @param dataEncryptionKey    Key from the external shares (TYPE2 only)
+     * @return  Success
+     * @throws ParseException
+     */
+    private boolean decryptFile(ContainerReader reader, int i, File file, byte[] dataEncryptionKey)
+            throws ParseException
+    {
+        boolean failed = true;
+        OutputStream fos = null;
+        try {
+            fos = ContainerIO.openOutput(file);
+            failed = !decryptFile(reader, i, fos, dataEncryptionKey);
+        } catch (IOException e) {
+            logger.error("#dec: Couldn't write '" + file + "'", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    logger.error("#dec: Couldn't close the output file", e);
+                }
+            }
+        }
 
-    private List<String> getPolicyAttributes(String policy) throws trabe.policyparser.ParseException {
-        ArrayList<String> attributes = new ArrayList<String>(10);
-        for(String token : PolicyParsing.parsePolicy(policy).split("\\s+")) {
-            if (!ofPattern.matcher(token).matches()) {
-                attributes.add(token);
+        if (failed && file.exists()) {
+            if (!file.delete()) {
+                logger.error("#dec: Couldn't clean up file after failed decryption");
             }
         }
-        return attributes;
+        return !failed;
+    }
+
+    /**
+     * Decrypt a single file of the container into a stream.
+     * @param reader               Reader of the container (not shared between threads)
+     * @param i                    Index of the file in the container
+     * @param out                  Receiver of the plaintext (not closed)
+     * @param dataEncryptionKey    Key from the external shares (TYPE2 only)
+     * @return  Success
+     * @throws ParseException
+     */
+    private boolean decryptFile(ContainerReader reader, int i, OutputStream out, byte[] dataEncryptionKey)
+            throws ParseException
+    {
+        FileContainer container = reader.files.get(i);
+        String fileName = PreparedEntry.originalName(container.getName());
+        logger.info("#dec: file with policy: '" + container.getPolicy() + "', expiration type: " + container.getExpirationType());
+
+        // verifies entries in the chunked envelope format and decompresses
+        // compressed entries; only entries of the entry preparer can be in
+        // one of these formats, all others (like every entry of an older
+        // container) are passed through, even if they start with a magic
+        CompressedEntryOutputStream decompressedOut = null;
+        ChunkedEnvelopeOutputStream envelopeOut = null;
+        OutputStream entryOut = out;
+        if (PreparedEntry.isPrepared(container.getName())) {
+            decompressedOut = new CompressedEntryOutputStream(out);
+            envelopeOut = new ChunkedEnvelopeOutputStream(decompressedOut);
+            entryOut = envelopeOut;
+        }
+
+        boolean failed = true;
+        try {
+            if (container.getExpirationType().needsExternalData()) {
+                // needs external data in order to do the two-step decryption
+
+                if (container.getExpirationType() == ExpirationType.TYPE1) {
+                    // TODO: implement (or maybe not)
+                    logger.warn("#dec: TYPE1 expiration is not yet implemented");
+                } else if (dataEncryptionKey == null) {
+                    logger.info("#dec: FAILURE (not enough attributes or no key): '" + fileName + "'");
+                } else {
+                    boolean finalized;
+                    PlannedFile plannedFile = plannedFiles == null ? null : plannedFiles[i];
+                    if (plannedFile != null) {
+                        // continues from the first step of the planning pass
+                        plannedFiles[i] = null;
+                        try {
+                            finalized = plannedFile.reader.finalizeDecrypt(dataEncryptionKey, entryOut);
+                        } finally {
+                            plannedFile.close();
+                        }
+                    } else {
+                        // finalizeDecrypt continues from the reader's last first step, which
+                        // has to be repeated if the reader of the planning pass wasn't kept
+                        finalized = reader.tryDecrypt(i) != null
+                                && reader.finalizeDecrypt(dataEncryptionKey, entryOut);
+                    }
+
+                    if (finalized) {
+                        finishEntry(envelopeOut, decompressedOut);
+                        failed = false;
+                        logger.info("#dec: SUCCESS: '" + fileName + "'");
+                    } else {
+                        logger.info("#dec: FAILURE (not enough attributes or no key): '" + fileName + "'");
+                    }
+                }
+            } else {
+                // decrypt directly without reliance on external data (ciphertext expiration)
+
+                if (reader.decrypt(i, entryOut)) {
+                    finishEntry(envelopeOut, decompressedOut);
+                    failed = false;
+                    logger.info("#dec: SUCCESS: '" + fileName + "'");
+                } else {
+                    logger.warn("#dec: FAILURE (not enough attributes or no key): '" + fileName + "'");
+                }
+            }
+        } catch (IOException e) {
+            logger.error("#dec: Couldn't decrypt '" + fileName + "'", e);
+        }
+        return !failed;
+    }
+
+    /**
+     * Check the end of a prepared entry (see {@link #decryptFile}).
+     * @param envelopeOut        Envelope stage or <code>null</code> for a plain entry
+     * @param decompressedOut    Decompression stage or <code>null</code> for a plain entry
+     * @throws IOException if the entry is truncated
+     */
+    private static void finishEntry(ChunkedEnvelopeOutputStream envelopeOut,
+                                    CompressedEntryOutputStream decompressedOut) throws IOException
+    {
+        if (envelopeOut != null) {
+            envelopeOut.finish();
+        }
+        if (decompressedOut != null) {
+            decompressedOut.finish();
+        }
+    }
+
+    private static ExecutorService attributeLookupPool;
+
+    /**
+     * Pool for the lookups of dynamic attributes which is shared by all
+     * requests. It is separate from the decryption pool, because the lookups
+     * mostly wait for the external storage.
+     */
+    private static synchronized ExecutorService getAttributeLookupPool() {
+        if (attributeLookupPool == null) {
+            attributeLookupPool = Executors.newFixedThreadPool(Math.max(1, ServerConfigDefaults.ATTRIBUTE_LOOKUP_THREADS),
+                    new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "AttributeLookup-" + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return attributeLookupPool;
     }
 
     /**
      * Retrieves possibly necessary secret attribute components and includes
-     * them in the passed private key. If the components couldn't be retrieved,
-     * adds the unretrievable attribute name to the <code>notAvailableAttributes</code>
-     * set.
+     * them in the passed private key. Retrieved and unretrievable attributes
+     * are remembered in the {@link DynamicAttributeCache}, so that later file
+     * bags and requests of the same user don't need the external storage.
+     *
+     * <p>The {@link AttributeRetrievalPlanner} chooses the smallest set of
+     * missing attributes that would satisfy the policy and all of them are
+     * looked up in parallel. Only if some of them aren't available, another
+     * round with the next best set is done.</p>
      *
      * @param policy                    Policy with additional attributes
      * @param privateKey                Mutable private key
-     * @param notAvailableAttributes    Mutable set of irretrievable attributes
+     * @param user                      User key of the {@link DynamicAttributeCache}
      * @param hmac                      HMAC
      * @param secretSeedAsKey           HMAC key
      * @param signatureVerify           Signature verifier
@@ -257,176 +998,418 @@ public class Decryptor extends Thread {
      * @throws IOException
      */
     private void includeAttributeInPrivateKeyForPABE14(String policy, AbePrivateKey privateKey,
-                                                       Set<String> notAvailableAttributes,
+                                                       String user,
                                                        Mac hmac, SecretKey secretSeedAsKey,
                                                        Signature signatureVerify, PublicKey pk,
                                                        ExternalKeyDistributionStorage ekds)
             throws IOException
     {
         try {
-            if (!Lw14Util.satisfies(policy, privateKey)) {
-                // TODO: add a more clever way of retrieving dynamic attributes, because
-                //       (cont) this just tries to get attributes until a set satifies the
-                //       (cont) policy. It can be improved by changing the order to try
-                //       (cont) smaller sets first.
+            if (Lw14Util.satisfies(policy, privateKey)) {
+                return;
+            }
+            AttributeRetrievalPlanner planner = new AttributeRetrievalPlanner(policy);
+            DynamicAttributeCache cache = DynamicAttributeCache.getInstance();
 
-                List<String> policyAttributes = getPolicyAttributes(policy);
-                List<String> missingAttributes = new ArrayList<String>(10);
+            // attributes that were already looked up for this policy
+            Set<String> retrieved = new HashSet<String>();
+            Set<String> excluded = new HashSet<String>();
 
+            while (!Lw14Util.satisfies(policy, privateKey)) {
+                Set<String> held = new HashSet<String>(retrieved);
                 for (Lw14PrivateKeyComponent component : privateKey.getComponents()) {
-                    if (!policyAttributes.contains(component.attribute)) {
-                        missingAttributes.add(component.attribute);
-                    }
+                    held.add(component.attribute);
                 }
-
-                for (int j = 0; j < missingAttributes.size(); j++) {
-                    String attributeName = missingAttributes.get(j);
-                    if (notAvailableAttributes.contains(attributeName)) {
-                        // No need to do all the communication if it weren't available in a previous iteration
+                boolean cachedComponentAdded = false;
+                for (String attributeName : planner.getAttributes()) {
+                    if (held.contains(attributeName) || excluded.contains(attributeName)) {
                         continue;
                     }
+                    DynamicAttributeCache.State state = cache.getState(user, attributeName);
+                    byte[] cached = state == DynamicAttributeCache.State.AVAILABLE ?
+                            cache.getComponent(user, attributeName) : null;
+                    if (cached != null) {
+                        // a component of its own, the cache is shared with concurrent decryptions
+                        privateKey.getComponents().add(readComponent(cached, privateKey));
+                        retrieved.add(attributeName);
+                        held.add(attributeName);
+                        cachedComponentAdded = true;
+                    } else if (state == DynamicAttributeCache.State.UNAVAILABLE) {
+                        excluded.add(attributeName);
+                    }
+                }
+                if (cachedComponentAdded && Lw14Util.satisfies(policy, privateKey)) {
+                    break;
+                }
+
+                Set<String> plan = planner.plan(held, excluded);
+                if (plan == null || plan.isEmpty()) {
+                    // either impossible or the key components don't match the planned attributes
+                    break;
+                }
+                logger.debug("#dec: Looking up " + plan.size() + " attribute(s) in parallel: " + plan);
+
+                List<String> attributeNames = new ArrayList<String>(plan);
+                long generation = cache.getGeneration();
+                List<AttributeLookup> lookups = new ArrayList<AttributeLookup>(attributeNames.size());
+                for (String attributeName : attributeNames) {
+                    lookups.add(new AttributeLookup(attributeName, privateKey, hmac, secretSeedAsKey,
+                            signatureVerify != null, pk, ekds));
+                }
 
-                    // TODO: adapt how many attribute positions to try, because the number is
-                    //       (cont) written to the value (see `replicated` value further down)
-
-                    hmac.init(secretSeedAsKey);
-                    hmac.update(attributeName.getBytes("UTF-8"));
-                    hmac.update(ekds.getIdentifier().getBytes("UTF-8"));
-                    byte[] attributeBasedKeyBytes = hmac.doFinal();
-                    Key attributeBasedKey = new SecretKeySpec(attributeBasedKeyBytes, hmac.getAlgorithm());
-
-                    byte[][] locations = new byte[ServerConfigDefaults.EXP_ATTRIBUTE_REPLICATE_N][];
-                    byte[] previous = new byte[0];
-                    for (int k = 0; k < ServerConfigDefaults.EXP_ATTRIBUTE_REPLICATE_N; k++) {
-                        hmac.init(attributeBasedKey);
-                        hmac.update(previous);
-                        hmac.update("location".getBytes("UTF-8"));
-                        hmac.update((byte) k);
-                        previous = hmac.doFinal();
-                        locations[k] = Arrays.copyOf(previous, ekds.getItemIdentifierSize()); // truncate or pad with 0x00
+                List<Future<Lw14PrivateKeyComponent>> results;
+                if (lookups.size() == 1) {
+                    results = Collections.singletonList(runInline(lookups.get(0)));
+                } else {
+                    results = getAttributeLookupPool().invokeAll(lookups);
+                }
+
+                for (int j = 0; j < attributeNames.size(); j++) {
+                    String attributeName = attributeNames.get(j);
+                    Lw14PrivateKeyComponent component = null;
+                    try {
+                        component = results.get(j).get();
+                    } catch (ExecutionException e) {
+                        logger.warn("#dec: Lookup of attribute " + attributeName + " failed", e.getCause());
+                    }
+                    excluded.add(attributeName);
+                    if (component != null) {
+                        privateKey.getComponents().add(component);
+                        retrieved.add(attributeName);
                     }
+                    if (lookups.get(j).isVerified()) {
+                        // no need to check again for later file bags and requests
+                        cache.put(user, attributeName, component == null ? null : writeComponent(component, privateKey),
+                                generation);
+                    }
+                }
+            }
+        } catch (trabe.policyparser.ParseException e) {
+            logger.warn("#dec: Couldn't parse policy", e);
+        } catch (InterruptedException e) {
+            logger.warn("#dec: Interrupted while looking up attributes");
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    boolean componentRetrieved = false;
-                    byte[][] results = ekds.getBulkData(locations);
-                    for (byte[] result : results) {
-                        if (result == null) {
-                            logger.debug("#dec: Result missing");
-                            continue;
-                        }
+    /**
+     * @param component     Attribute component
+     * @param privateKey    Private key (only used for its public key)
+     * @return  Serialized component for the {@link DynamicAttributeCache}
+     * @throws IOException
+     */
+    private static byte[] writeComponent(Lw14PrivateKeyComponent component, AbePrivateKey privateKey) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+        AbeOutputStream aos = new AbeOutputStream(baos, privateKey.getPublicKey());
+        component.writeToStream(aos);
+        aos.close();
+        return baos.toByteArray();
+    }
 
-                        ByteArrayInputStream resultBAIS = new ByteArrayInputStream(result);
-                        int dataType = resultBAIS.read(); // only a byte
-                        if (dataType == 1) {
-                            int replicated = resultBAIS.read();
-                            if (replicated == -1) {
-                                logger.error("#dec: Wrong data format: end before replicated");
-                                continue;
-                            }
-                            int serializedVersion = resultBAIS.read();
-                            if (serializedVersion == -1) {
-                                logger.error("#dec: Wrong data format: end before serializedVersion");
-                                continue;
-                            }
+    /**
+     * @param component     Serialized component from the {@link DynamicAttributeCache}
+     * @param privateKey    Private key (only used for its public key)
+     * @return  New instance of the component
+     * @throws IOException
+     */
+    private static Lw14PrivateKeyComponent readComponent(byte[] component, AbePrivateKey privateKey) throws IOException {
+        AbeInputStream ais = new AbeInputStream(new ByteArrayInputStream(component), privateKey.getPublicKey());
+        return Lw14PrivateKeyComponent.readFromStream(ais, AbePrivateKey.getSerializeVersion());
+    }
 
-                            byte[] iv = new byte[16];
-                            int ivBytes = resultBAIS.read(iv);
-                            if (ivBytes < 16) {
-                                logger.error("#dec: Too few bytes for: iv");
-                                continue;
-                            }
+    private static <T> Future<T> runInline(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        task.run();
+        return task;
+    }
 
-                            byte[] encodedLength = new byte[4];
-                            int encodedLengthBytes = resultBAIS.read(encodedLength);
-                            if (encodedLengthBytes < 4) {
-                                logger.error("#dec: Too few bytes for: encodedLength");
-                                continue;
-                            }
-                            int encodedLengthInt = ByteBuffer.wrap(encodedLength).getInt();
+    /**
+     * Lookup of a single dynamic attribute. Every lookup has its own HMAC and
+     * signature engine, because those aren't thread-safe. Its result may only
+     * be cached if it is {@link #isVerified() verified}.
+     */
+    private class AttributeLookup implements Callable<Lw14PrivateKeyComponent> {
+        private final String attributeName;
+        private final AbePrivateKey privateKey;
+        private final Mac sharedHmac;
+        private final SecretKey secretSeedAsKey;
+        private final boolean verify;
+        private final PublicKey pk;
+        private final ExternalKeyDistributionStorage ekds;
+        private volatile boolean verified;
+
+        AttributeLookup(String attributeName, AbePrivateKey privateKey, Mac sharedHmac,
+                        SecretKey secretSeedAsKey, boolean verify, PublicKey pk,
+                        ExternalKeyDistributionStorage ekds) {
+            this.attributeName = attributeName;
+            this.privateKey = privateKey;
+            this.sharedHmac = sharedHmac;
+            this.secretSeedAsKey = secretSeedAsKey;
+            this.verify = verify;
+            this.pk = pk;
+            this.ekds = ekds;
+        }
 
-                            byte[] encryptedComponent = new byte[encodedLengthInt];
-                            int encryptedComponentBytes = resultBAIS.read(encryptedComponent);
-                            if (encryptedComponentBytes < encodedLengthInt) {
-                                logger.error("#dec: Too few bytes for: encryptedComponent");
-                                continue;
-                            }
+        @Override
+        public Lw14PrivateKeyComponent call() throws Exception {
+            Mac hmac = Mac.getInstance(sharedHmac.getAlgorithm(), sharedHmac.getProvider());
+            Signature signatureVerify = verify ? new EdDSAEngine(MessageDigest.getInstance("SHA-512")) : null;
+
+            // TODO: adapt how many attribute positions to try, because the number is
+            //       (cont) written to the value (see `replicated` value further down)
+
+            hmac.init(secretSeedAsKey);
+            hmac.update(attributeName.getBytes("UTF-8"));
+            hmac.update(ekds.getIdentifier().getBytes("UTF-8"));
+            byte[] attributeBasedKeyBytes = hmac.doFinal();
+            Key attributeBasedKey = new SecretKeySpec(attributeBasedKeyBytes, hmac.getAlgorithm());
+
+            byte[][] locations = new byte[ServerConfigDefaults.EXP_ATTRIBUTE_REPLICATE_N][];
+            byte[] previous = new byte[0];
+            for (int k = 0; k < ServerConfigDefaults.EXP_ATTRIBUTE_REPLICATE_N; k++) {
+                hmac.init(attributeBasedKey);
+                hmac.update(previous);
+                hmac.update("location".getBytes("UTF-8"));
+                hmac.update((byte) k);
+                previous = hmac.doFinal();
+                locations[k] = Arrays.copyOf(previous, ekds.getItemIdentifierSize()); // truncate or pad with 0x00
+            }
 
-                            int signatureLengthBytes = resultBAIS.read();
-                            if (signatureLengthBytes == -1) {
-                                logger.error("#dec: Wrong data format: end before signatureLengthBytes");
-                                continue;
-                            }
-                            byte[] signature = new byte[signatureLengthBytes];
-                            int signatureBytes = resultBAIS.read(signature);
-                            if (signatureBytes < signatureLengthBytes) {
-                                logger.error("#dec: Too few bytes for: signature");
-                                continue;
-                            }
+            // a single valid replica is enough
+            boolean[] rejected = new boolean[1];
+            byte[][] results = ekds.getBulkData(locations, 1);
+            Lw14PrivateKeyComponent component = findAttributeComponent(results, attributeName,
+                    attributeBasedKey, privateKey, hmac, signatureVerify, pk, ekds, rejected);
+            if (component == null && countAvailable(results) < locations.length) {
+                // the replicas that arrived first weren't usable, so ask for all of them
+                results = ekds.getBulkData(locations);
+                component = findAttributeComponent(results, attributeName,
+                        attributeBasedKey, privateKey, hmac, signatureVerify, pk, ekds, rejected);
+            }
+            // a forged replica must not hide the attribute for later requests
+            verified = signatureVerify != null && (component != null || !rejected[0]);
+            return component;
+        }
 
-                            // FINISHED reading; now verification/decryption/deserialization
-
-                            // TODO: check signature
-                            signatureVerify.initVerify(pk);
-                            try {
-                                signatureVerify.update(ekds.getIdentifier().getBytes("UTF-8"));
-                                signatureVerify.update((byte) 0);
-                                signatureVerify.update((byte) replicated);
-                                signatureVerify.update(attributeName.split("=")[0].getBytes("UTF-8"));
-                                signatureVerify.update(iv);
-                                signatureVerify.update(encodedLength);
-                                signatureVerify.update(encryptedComponent);
-                            } catch (SignatureException e) {
-                                e.printStackTrace();
-                            }
+        /**
+         * @return  Whether the signature of the found component was checked,
+         *          or, if none was found, no replica had an invalid signature
+         */
+        boolean isVerified() {
+            return verified;
+        }
+    }
+
+    /**
+     * Parse the retrieved replicas of a dynamic attribute and return the first
+     * one with a valid signature that can be decrypted and deserialized. The
+     * signature is only skipped if there is no <code>signatureVerify</code>.
+     *
+     * @param results              Retrieved replicas (entries may be <code>null</code>)
+     * @param attributeName        Attribute
+     * @param attributeBasedKey    HMAC key derived from the user's secret seed and the attribute
+     * @param privateKey           Private key (only used for its public key)
+     * @param hmac                 HMAC
+     * @param signatureVerify      Signature verifier
+     * @param pk                   Verify key
+     * @param ekds                 External key distribution storage
+     * @param rejected             Output: set if a replica had an invalid signature
+     * @return  Attribute component or <code>null</code> if none of the replicas was usable
+     * @throws IOException
+     * @throws InvalidKeyException
+     */
+    private Lw14PrivateKeyComponent findAttributeComponent(byte[][] results, String attributeName,
+                                                           Key attributeBasedKey, AbePrivateKey privateKey,
+                                                           Mac hmac, Signature signatureVerify, PublicKey pk,
+                                                           ExternalKeyDistributionStorage ekds, boolean[] rejected)
+            throws IOException, InvalidKeyException
+    {
+        if (results == null) {
+            logger.debug("#dec: No results");
+            return null;
+        }
 
+        for (byte[] result : results) {
+            if (result == null) {
+                logger.debug("#dec: Result missing");
+                continue;
+            }
 
-                            // deserialize and decrypt component
-                            hmac.init(attributeBasedKey);
-                            hmac.update((byte) dataType);
-                            byte[] encKey = hmac.doFinal("encryption".getBytes("UTF-8"));
+            ByteArrayInputStream resultBAIS = new ByteArrayInputStream(result);
+            int dataType = resultBAIS.read(); // only a byte
+            if (dataType == 1) {
+                int replicated = resultBAIS.read();
+                if (replicated == -1) {
+                    logger.error("#dec: Wrong data format: end before replicated");
+                    continue;
+                }
+                int serializedVersion = resultBAIS.read();
+                if (serializedVersion == -1) {
+                    logger.error("#dec: Wrong data format: end before serializedVersion");
+                    continue;
+                }
 
-                            byte[] componentBytes = new byte[0];
-                            try {
-                                componentBytes = AesEncryption.decrypt(encKey, null, iv, encryptedComponent);
-                            } catch (AesDecryptionException e) {
-                                logger.error("#dec: Couldn't decrypt component", e);
-                                continue;
-                            }
+                byte[] iv = new byte[16];
+                int ivBytes = resultBAIS.read(iv);
+                if (ivBytes < 16) {
+                    logger.error("#dec: Too few bytes for: iv");
+                    continue;
+                }
 
-                            ByteArrayInputStream componentBAIS = new ByteArrayInputStream(componentBytes);
-                            AbeInputStream componentAIS = new AbeInputStream(componentBAIS, privateKey.getPublicKey());
-                            Lw14PrivateKeyComponent component = Lw14PrivateKeyComponent.readFromStream(componentAIS, serializedVersion);
-                            Arrays.fill(componentBytes, (byte) 0);
+                byte[] encodedLength = new byte[4];
+                int encodedLengthBytes = resultBAIS.read(encodedLength);
+                if (encodedLengthBytes < 4) {
+                    logger.error("#dec: Too few bytes for: encodedLength");
+                    continue;
+                }
+                int encodedLengthInt = ByteBuffer.wrap(encodedLength).getInt();
 
-                            privateKey.getComponents().add(component);
+                byte[] encryptedComponent = new byte[encodedLengthInt];
+                int encryptedComponentBytes = resultBAIS.read(encryptedComponent);
+                if (encryptedComponentBytes < encodedLengthInt) {
+                    logger.error("#dec: Too few bytes for: encryptedComponent");
+                    continue;
+                }
 
-                            componentRetrieved = true;
-                            break;
-                        } else if (dataType == 0) {
-                            logger.debug("#dec: Remote data deleted");
-                            // TODO: check signature
-                        } else {
-                            logger.warn("#dec: Unknown type for remote data: " + dataType);
-                        }
-                    }
+                int signatureLengthBytes = resultBAIS.read();
+                if (signatureLengthBytes == -1) {
+                    logger.error("#dec: Wrong data format: end before signatureLengthBytes");
+                    continue;
+                }
+                byte[] signature = new byte[signatureLengthBytes];
+                int signatureBytes = resultBAIS.read(signature);
+                if (signatureBytes < signatureLengthBytes) {
+                    logger.error("#dec: Too few bytes for: signature");
+                    continue;
+                }
 
-                    if (componentRetrieved && Lw14Util.satisfies(policy, privateKey)) {
-                        // the newly received and added attribute component changed the
-                        // private key so that the policy can now be satisfied.
+                // FINISHED reading; now verification/decryption/deserialization
 
-                        break;
-                    }
+                // same fields as signed by the JobQueue (the serialization version isn't signed)
+                if (signatureVerify != null && !verifyAttributeSignature(signatureVerify, pk, ekds, dataType,
+                        replicated, attributeName, signature, iv, encodedLength, encryptedComponent)) {
+                    logger.warn("#dec: Invalid signature of a replica of attribute " + attributeName);
+                    rejected[0] = true;
+                    continue;
+                }
 
-                    if (!componentRetrieved) {
-                        // no need to check again for later file bags
-                        notAvailableAttributes.add(attributeName);
-                    }
+                // deserialize and decrypt component
+                hmac.init(attributeBasedKey);
+                hmac.update((byte) dataType);
+                byte[] encKey = hmac.doFinal("encryption".getBytes("UTF-8"));
+
+                byte[] componentBytes = new byte[0];
+                try {
+                    componentBytes = AesEncryption.decrypt(encKey, null, iv, encryptedComponent);
+                } catch (AesDecryptionException e) {
+                    logger.error("#dec: Couldn't decrypt component", e);
+                    continue;
                 }
+
+                ByteArrayInputStream componentBAIS = new ByteArrayInputStream(componentBytes);
+                AbeInputStream componentAIS = new AbeInputStream(componentBAIS, privateKey.getPublicKey());
+                Lw14PrivateKeyComponent component = Lw14PrivateKeyComponent.readFromStream(componentAIS, serializedVersion);
+                Arrays.fill(componentBytes, (byte) 0);
+
+                return component;
+            } else if (dataType == 0) {
+                int replicated = resultBAIS.read();
+                int signatureLengthBytes = resultBAIS.read();
+                byte[] signature = new byte[Math.max(0, signatureLengthBytes)];
+                if (replicated == -1 || signatureLengthBytes == -1 || resultBAIS.read(signature) < signature.length) {
+                    logger.error("#dec: Wrong data format of a deletion");
+                    continue;
+                }
+                if (signatureVerify != null && !verifyAttributeSignature(signatureVerify, pk, ekds, dataType,
+                        replicated, attributeName, signature)) {
+                    logger.warn("#dec: Invalid signature of a deleted replica of attribute " + attributeName);
+                    rejected[0] = true;
+                    continue;
+                }
+                logger.debug("#dec: Remote data deleted");
+            } else {
+                logger.warn("#dec: Unknown type for remote data: " + dataType);
             }
-        } catch (trabe.policyparser.ParseException e) {
-            logger.warn("#dec: Couldn't parse policy", e);
-        } catch (InvalidKeyException e) {
-            logger.error("#dec: HmacSha256 key is invalid", e);
         }
+        return null;
+    }
+
+    /**
+     * Verify the signature of a stored attribute value.
+     * @param signatureVerify    Signature verifier
+     * @param pk                 Verify key
+     * @param ekds               External key distribution storage (its identifier is signed)
+     * @param dataType           Type of the value (0: deletion, 1: refresh)
+     * @param replicated         Number of replicas
+     * @param attributeName      Attribute (only the name before '=' is signed)
+     * @param signature          Signature
+     * @param fields             Remaining fields of the value
+     * @return  Whether the signature is valid
+     */
+    private static boolean verifyAttributeSignature(Signature signatureVerify, PublicKey pk,
+                                                    ExternalKeyDistributionStorage ekds, int dataType,
+                                                    int replicated, String attributeName, byte[] signature,
+                                                    byte[]... fields)
+    {
+        try {
+            signatureVerify.initVerify(pk);
+            signatureVerify.update(ekds.getIdentifier().getBytes("UTF-8"));
+            signatureVerify.update((byte) dataType);
+            signatureVerify.update((byte) replicated);
+            signatureVerify.update(attributeName.split("=")[0].trim().getBytes("UTF-8"));
+            for (byte[] field : fields) {
+                signatureVerify.update(field);
+            }
+            return signatureVerify.verify(signature);
+        } catch (Exception e) {
+            logger.info("#dec: Verifying the signature of attribute " + attributeName + " failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param items    Retrieved items (may be <code>null</code>)
+     * @return  Number of items that are not <code>null</code>
+     */
+    private static int countAvailable(byte[][] items) {
+        if (items == null) {
+            return 0;
+        }
+        int available = 0;
+        for (byte[] item : items) {
+            if (item != null) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Reads the secret sharing threshold <i>k</i> from a TYPE2 ciphertext part.
+     * {@link ExpirationType2Utils.CiphertextPart} doesn't expose <i>k</i>, so
+     * it is read from the layout that <code>ExpirationType2Utils</code> of the
+     * container library writes (one byte each for the lengths, <i>n</i> and
+     * <i>k</i>):
+     * <code>len(key) | key | n | k | len(location) | len(mod) | mod | locations</code>.
+     * The value is only an optimization: if it doesn't match the number of
+     * locations (<i>n</i>), all shares are read, and if the shares within it
+     * can't be combined, the caller reads all shares as well.
+     * @param ctPart       Ciphertext part
+     * @param locations    Number of locations of the parsed ciphertext part
+     * @return  Threshold (<code>locations</code> if it couldn't be read)
+     */
+    private static int getShareThreshold(byte[] ctPart, int locations) {
+        if (ctPart.length < 1) {
+            return locations;
+        }
+        int nIndex = 1 + (ctPart[0] & 0xff);
+        int kIndex = nIndex + 1;
+        if (ctPart.length <= kIndex || (ctPart[nIndex] & 0xff) != locations) {
+            logger.debug("#decrypt: Unexpected layout of the ciphertext part; retrieving all shares");
+            return locations;
+        }
+        int k = ctPart[kIndex] & 0xff;
+        return k == 0 || k > locations ? locations : k;
     }
 
     /**
@@ -450,101 +1433,194 @@ public class Decryptor extends Thread {
 
         ExpirationType2Utils.CiphertextPart ctPartObj = ExpirationType2Utils.parseCiphertextPart(ctPart);
         if (ctPartObj != null) {
-            // get secret shares from the DHT
-            byte[][] shares = ekds.getBulkData(ctPartObj.locations);
+            // get secret shares from the DHT, but only as many as are needed to reconstruct the secret
+            int threshold = getShareThreshold(ctPart, ctPartObj.locations.length);
+            byte[][] shares = ekds.getBulkData(ctPartObj.locations, threshold);
+            // a batch read returns every location, even with a threshold; the
+            // shares have to be counted before verifyShares drops invalid ones
+            boolean complete = threshold >= ctPartObj.locations.length
+                    || countAvailable(shares) >= ctPartObj.locations.length;
+
+            if (shares != null && verifyShares(shares, signatureVerify, pk) < threshold && !complete) {
+                // some of the early shares were invalid, so the remaining ones are needed as well
+                logger.debug("#decrypt: Not enough valid shares within the threshold; retrieving all shares");
+                shares = ekds.getBulkData(ctPartObj.locations);
+                complete = true;
+                if (shares != null) {
+                    verifyShares(shares, signatureVerify, pk);
+                }
+            }
 
             if (shares != null) {
-                for (int j = 0; j < shares.length; j++) {
-                    byte[] shareBytes = shares[j];
-                    if (shareBytes == null || shareBytes.length == 0) {
-                        shares[j] = null;
-                        continue;
+                dataEncryptionKey = combineShares(ctPartObj, shares, ctPart);
+                if (dataEncryptionKey == null && !complete) {
+                    // the threshold didn't suffice, so try again with all shares
+                    logger.debug("#decrypt: Shares within the threshold couldn't be combined; retrieving all shares");
+                    shares = ekds.getBulkData(ctPartObj.locations);
+                    if (shares != null) {
+                        verifyShares(shares, signatureVerify, pk);
+                        dataEncryptionKey = combineShares(ctPartObj, shares, ctPart);
                     }
+                }
+            }
+            if (shares == null) {
+                logger.error("#dec: couldn't recover necessary shares");
+            }
+        } else {
+            logger.error("#dec: Couldn't parse TYPE2 ctPart");
+        }
 
-                    // parse shares received from the DHT and verify them if possible
-                    ByteArrayInputStream shareReader = new ByteArrayInputStream(shareBytes);
-                    int type = shareReader.read();
-                    if (type == 1) {
-                        // Type == 1 layout: len(share) + share + len(signature(share)) + signature(share)
+        return dataEncryptionKey;
+    }
 
-                        int lenShare = shareReader.read();
-                        if (lenShare < 8) {
-                            logger.error("#decrypt: Share "+j+" length too short or negative: " + lenShare);
-                            continue;
-                        }
+    /**
+     * Combine the verified shares and XOR them with the key from the
+     * ciphertext part to get the data encryption key.
+     * @param ctPartObj    Parsed ciphertext part
+     * @param shares       Verified shares (entries may be <code>null</code>)
+     * @param ctPart       Ciphertext part
+     * @return  Data encryption key or <code>null</code> if the shares are incomplete
+     */
+    private static byte[] combineShares(ExpirationType2Utils.CiphertextPart ctPartObj, byte[][] shares, byte[] ctPart) {
+        try {
+            return ExpirationType2Utils.xor(
+                    ctPartObj.key3,
+                    ExpirationType2Utils.combineShares(
+                            ExpirationType2Utils.prepareSharesFromArray(shares),
+                            ctPart
+                    )
+            );
+        } catch (SecretShareException e) {
+            logger.debug("#dec: Secret shares incomplete", e);
+            return null;
+        }
+    }
 
-                        byte[] share = new byte[lenShare];
+    /**
+     * Parse the shares received from the DHT and verify them if possible.
+     * Every entry of <code>shares</code> is replaced in place by the plain
+     * share if it is valid or by <code>null</code> if it isn't. The
+     * signatures are checked as one batch (see {@link Ed25519BatchVerifier})
+     * if enabled.
+     *
+     * @param shares             Retrieved values (entries may be <code>null</code>)
+     * @param signatureVerify    Signature verifier
+     * @param pk                 Verification key
+     * @return  Number of valid shares
+     */
+    private int verifyShares(byte[][] shares, Signature signatureVerify, PublicKey pk) {
+        int valid = 0;
 
-                        if (shareReader.read(share) != lenShare) {
-                            logger.error("#decrypt: Incomplete share "+j+" read");
-                            continue;
-                        }
+        Ed25519BatchVerifier batch = null;
+        if (ServerConfigDefaults.ED25519_BATCH_VERIFY && pk instanceof EdDSAPublicKey && signatureVerify != null) {
+            try {
+                batch = new Ed25519BatchVerifier((EdDSAPublicKey) pk);
+            } catch (NoSuchAlgorithmException e) {
+                logger.warn("#decrypt: Batch verification not available", e);
+            }
+        }
+        int[] batchShareIndex = new int[shares.length];
+        byte[][] batchShares = new byte[shares.length][];
+
+        for (int j = 0; j < shares.length; j++) {
+            byte[] shareBytes = shares[j];
+            if (shareBytes == null || shareBytes.length == 0) {
+                shares[j] = null;
+                continue;
+            }
 
-                        int signatureLen = shareReader.read();
-                        if (signatureLen < 20) {
-                            logger.error("#decrypt: Signature "+j+" length too short or negative: " + signatureLen);
-                            continue;
-                        }
+            // parse shares received from the DHT and verify them if possible
+            ByteArrayInputStream shareReader = new ByteArrayInputStream(shareBytes);
+            int type = shareReader.read();
+            if (type == 1) {
+                // Type == 1 layout: len(share) + share + len(signature(share)) + signature(share)
 
-                        byte[] signature = new byte[signatureLen];
+                shares[j] = null;
 
-                        if (shareReader.read(signature) != signatureLen) {
-                            logger.error("#decrypt: Incomplete signature "+j+" read");
-                            continue;
-                        }
+                int lenShare = shareReader.read();
+                if (lenShare < 8) {
+                    logger.error("#decrypt: Share "+j+" length too short or negative: " + lenShare);
+                    continue;
+                }
 
-                        if (pk == null || signatureVerify == null) {
-                            logger.warn("#decrypt: Can't verify the share "+j+", because a verifying key is not available");
-                            shares[j] = share; // set the share correctly for the later stage
-                            continue;
-                        }
+                byte[] share = new byte[lenShare];
 
-                        boolean validSignature = false;
-                        try {
-                            signatureVerify.initVerify(pk);
-                            signatureVerify.update((byte)type);
-
-                            // see that the index is `j+1` by looking into com.tiemens.secretshare.engine.SecretShare#split(BigInteger, Random)
-                            signatureVerify.update(ByteBuffer.allocate(4).putInt(j + 1).array());
-                            signatureVerify.update(share);
-                            validSignature = signatureVerify.verify(signature);
-                        } catch (Exception e) {
-                            logger.info("#decrypt: Verifying signature "+j+" failed", e);
-                        }
+                if (shareReader.read(share, 0, lenShare) != lenShare) {
+                    logger.error("#decrypt: Incomplete share "+j+" read");
+                    continue;
+                }
 
-                        if (validSignature) {
-                            shares[j] = share;
-                        } else {
-                            logger.info("#decrypt: signature for share "+j+" was not valid");
-                            logger.debug("#decrypt: signature " + Hex.encodeHexString(signature) + " for share " + Hex.encodeHexString(share));
-                            shares[j] = null;
-                        }
-                    } else {
-                        logger.error("#decrypt: Unknown share "+j+" layout: " + type);
-                        shares[j] = null;
-                    }
+                int signatureLen = shareReader.read();
+                if (signatureLen < 20) {
+                    logger.error("#decrypt: Signature "+j+" length too short or negative: " + signatureLen);
+                    continue;
+                }
+
+                byte[] signature = new byte[signatureLen];
+
+                if (shareReader.read(signature, 0, signatureLen) != signatureLen) {
+                    logger.error("#decrypt: Incomplete signature "+j+" read");
+                    continue;
                 }
 
-                // combine shares and XOR with the key from the ciphertext to get the data key
+                if (pk == null || signatureVerify == null) {
+                    logger.warn("#decrypt: Can't verify the share "+j+", because a verifying key is not available");
+                    shares[j] = share; // set the share correctly for the later stage
+                    valid++;
+                    continue;
+                }
+
+                if (batch != null) {
+                    ByteArrayOutputStream message = new ByteArrayOutputStream(5 + share.length);
+                    message.write(type);
+                    // see that the index is `j+1` by looking into com.tiemens.secretshare.engine.SecretShare#split(BigInteger, Random)
+                    message.write(ByteBuffer.allocate(4).putInt(j + 1).array(), 0, 4);
+                    message.write(share, 0, share.length);
+
+                    batchShareIndex[batch.add(message.toByteArray(), signature)] = j;
+                    batchShares[j] = share;
+                    continue;
+                }
+
+                boolean validSignature = false;
                 try {
-                    dataEncryptionKey = ExpirationType2Utils.xor(
-                            ctPartObj.key3,
-                            ExpirationType2Utils.combineShares(
-                                    ExpirationType2Utils.prepareSharesFromArray(shares),
-                                    ctPart
-                            )
-                    );
-                } catch (SecretShareException e) {
-                    logger.debug("#dec: Secret shares incomplete", e);
+                    signatureVerify.initVerify(pk);
+                    signatureVerify.update((byte)type);
+
+                    // see that the index is `j+1` by looking into com.tiemens.secretshare.engine.SecretShare#split(BigInteger, Random)
+                    signatureVerify.update(ByteBuffer.allocate(4).putInt(j + 1).array());
+                    signatureVerify.update(share);
+                    validSignature = signatureVerify.verify(signature);
+                } catch (Exception e) {
+                    logger.info("#decrypt: Verifying signature "+j+" failed", e);
+                }
+
+                if (validSignature) {
+                    shares[j] = share;
+                    valid++;
+                } else {
+                    logger.info("#decrypt: signature for share "+j+" was not valid");
+                    logger.debug("#decrypt: signature " + Hex.encodeHexString(signature) + " for share " + Hex.encodeHexString(share));
                 }
             } else {
-                logger.error("#dec: couldn't recover necessary shares");
+                logger.error("#decrypt: Unknown share "+j+" layout: " + type);
+                shares[j] = null;
             }
-        } else {
-            logger.error("#dec: Couldn't parse TYPE2 ctPart");
         }
 
-        return dataEncryptionKey;
+        if (batch != null && batch.size() > 0) {
+            boolean[] validSignatures = batch.verify();
+            for (int k = 0; k < validSignatures.length; k++) {
+                int j = batchShareIndex[k];
+                if (validSignatures[k]) {
+                    shares[j] = batchShares[j];
+                    valid++;
+                } else {
+                    logger.info("#decrypt: signature for share "+j+" was not valid");
+                }
+            }
+        }
+        return valid;
     }
 
     public void run(){
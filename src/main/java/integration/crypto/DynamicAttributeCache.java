@@ -0,0 +1,240 @@
+package integration.crypto;
+
+import integration.engine.JobQueue;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Authority side cache of dynamic attribute components that were retrieved
+ * from the external storage, keyed by user and attribute. A component stays
+ * valid until the next main event of the {@link JobQueue}, because the
+ * external value can only change when the job queue pushes it. The job queue
+ * invalidates the entry whenever it pushes a refresh or a deletion of the
+ * attribute, so revocations take effect immediately.
+ *
+ * <p>Attributes that couldn't be retrieved are cached as well (negative
+ * entries), but only for {@link ServerConfigDefaults#ATTRIBUTE_NEGATIVE_CACHE_TTL}
+ * seconds, since the external storage may have just lost them.</p>
+ *
+ * <p>Components are kept serialized and every caller gets its own copy,
+ * because a deserialized component becomes part of the private key of a
+ * single decryption and mustn't be shared with the keys of concurrent
+ * decryptions.</p>
+ *
+ * <p>Users are identified by a digest of their secret seed, so the seed
+ * itself is never kept.</p>
+ */
+public class DynamicAttributeCache {
+    private static DynamicAttributeCache dynamicAttributeCache;
+    private static final Logger logger = Logger.getLogger(DynamicAttributeCache.class);
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+
+    /* incremented by every invalidation, lookups that overlap an invalidation aren't cached */
+    private long generation;
+
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        /* serialized component, null for a negative entry */
+        final byte[] component;
+        final long expires;
+
+        Entry(byte[] component, long expires) {
+            this.component = component;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Result of a cache lookup.
+     */
+    public enum State {
+        /** Nothing known, the attribute has to be looked up */
+        UNKNOWN,
+        /** Component is available */
+        AVAILABLE,
+        /** Attribute is known to be unavailable */
+        UNAVAILABLE
+    }
+
+    /**
+     * @param maxEntries    Maximum number of cached (user, attribute) pairs;
+     *                      the least recently used ones are evicted
+     */
+    public DynamicAttributeCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > DynamicAttributeCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param secretSeed    Secret seed of the user (the first 32 bytes are used
+     *                      as HMAC key)
+     * @return  Identifier of the user for this cache
+     */
+    public static String userKey(byte[] secretSeed) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update("DynamicAttributeCache".getBytes("UTF-8"));
+            return Hex.encodeHexString(md.digest(secretSeed));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    private static String key(String user, String attribute) {
+        return user + "|" + attribute;
+    }
+
+    /**
+     * @param user         User key (see {@link #userKey(byte[])})
+     * @param attribute    Attribute
+     * @return  Whether the attribute is cached and if it is available
+     */
+    public synchronized State getState(String user, String attribute) {
+        Entry entry = get(user, attribute);
+        if (entry == null) {
+            misses++;
+            return State.UNKNOWN;
+        }
+        hits++;
+        return entry.component == null ? State.UNAVAILABLE : State.AVAILABLE;
+    }
+
+    /**
+     * @param user         User key (see {@link #userKey(byte[])})
+     * @param attribute    Attribute
+     * @return  Copy of the serialized component or <code>null</code> if it
+     *          isn't cached or known to be unavailable
+     */
+    public synchronized byte[] getComponent(String user, String attribute) {
+        Entry entry = get(user, attribute);
+        return entry == null || entry.component == null ? null : entry.component.clone();
+    }
+
+    private Entry get(String user, String attribute) {
+        String key = key(user, attribute);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return  Current generation which has to be passed to
+     *          {@link #put(String, String, byte[], long)}
+     *          after the lookup
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache the result of a lookup. It is dropped if an invalidation happened
+     * since <code>generation</code> was obtained.
+     *
+     * @param user          User key (see {@link #userKey(byte[])})
+     * @param attribute     Attribute
+     * @param component     Serialized component (copied) or <code>null</code>
+     *                      if it wasn't available
+     * @param generation    Generation before the lookup started
+     */
+    public synchronized void put(String user, String attribute, byte[] component, long generation) {
+        if (generation != this.generation) {
+            logger.debug("#put: Dropping lookup result of " + attribute + " which overlapped an invalidation");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expires = nextRefresh(now);
+        if (component == null) {
+            expires = Math.min(expires, now + ServerConfigDefaults.ATTRIBUTE_NEGATIVE_CACHE_TTL * 1000L);
+        }
+        entries.put(key(user, attribute), new Entry(component == null ? null : component.clone(), expires));
+    }
+
+    /**
+     * @return  Time of the next main event of the job queue at which all
+     *          attributes are refreshed
+     */
+    private static long nextRefresh(long now) {
+        Date next = JobQueue.getInstance().getNextMainEvent();
+        if (next == null || next.getTime() <= now) {
+            return now + ServerConfigDefaults.JQ_MAIN_EVENT_INTERVAL * 60 * 1000L;
+        }
+        return next.getTime();
+    }
+
+    /**
+     * Remove an attribute of a user, because it was refreshed or revoked.
+     * @param user         User key (see {@link #userKey(byte[])})
+     * @param attribute    Attribute
+     */
+    public synchronized void invalidate(String user, String attribute) {
+        generation++;
+        entries.remove(key(user, attribute));
+    }
+
+    /**
+     * Remove all attributes of a user.
+     * @param user    User key (see {@link #userKey(byte[])})
+     */
+    public synchronized void invalidateUser(String user) {
+        generation++;
+        String prefix = user + "|";
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized DynamicAttributeCache getInstance() {
+        if (dynamicAttributeCache == null) {
+            dynamicAttributeCache = new DynamicAttributeCache(ServerConfigDefaults.ATTRIBUTE_CACHE_SIZE);
+        }
+        return dynamicAttributeCache;
+    }
+
+    public static synchronized DynamicAttributeCache setInstance(DynamicAttributeCache dynamicAttributeCacheNew) {
+        dynamicAttributeCache = dynamicAttributeCacheNew;
+        return dynamicAttributeCache;
+    }
+}
@@ -0,0 +1,202 @@
+package integration.crypto;
+
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.math.GroupElement;
+import net.i2p.crypto.eddsa.math.ScalarOps;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import org.apache.log4j.Logger;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Randomized batch verification of Ed25519 signatures of a single signer.
+ * For signatures <code>(R_i, S_i)</code> over messages <code>M_i</code> with
+ * <code>h_i = H(R_i || A || M_i)</code> and random 128 bit scalars
+ * <code>z_i</code> the batch is valid if
+ *
+ * <p><code>(sum z_i S_i) B - (sum z_i h_i) A = sum z_i R_i</code></p>
+ *
+ * <p>Since all signatures are made with the same key, the left side costs a
+ * single double scalar multiplication. The right side is computed with
+ * Straus' method over pairs of <code>R_i</code> which share the doublings and
+ * only need half length scalars, so a batch is roughly twice as fast as the
+ * individual checks. If the batch equation doesn't hold, every signature is
+ * checked individually to find the bad ones.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public class Ed25519BatchVerifier {
+    private static final Logger logger = Logger.getLogger(Ed25519BatchVerifier.class);
+
+    /* smaller batches are verified individually */
+    private static final int MIN_BATCH_SIZE = 4;
+    private static final int SCALAR_LENGTH = 32;
+    private static final int RANDOM_SCALAR_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final EdDSAPublicKey publicKey;
+    private final EdDSAParameterSpec spec;
+    private final MessageDigest digest;
+    private final Signature fallback;
+
+    private final List<byte[]> messages = new ArrayList<byte[]>();
+    private final List<byte[]> signatures = new ArrayList<byte[]>();
+
+    private int batchFailures;
+
+    /**
+     * @param publicKey    Verifying key of all signatures
+     * @throws NoSuchAlgorithmException if the hash of the curve isn't available
+     */
+    public Ed25519BatchVerifier(EdDSAPublicKey publicKey) throws NoSuchAlgorithmException {
+        this.publicKey = publicKey;
+        this.spec = publicKey.getParams();
+        this.digest = MessageDigest.getInstance(spec.getHashAlgorithm());
+        this.fallback = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
+    }
+
+    /**
+     * Queue a signature for verification.
+     * @param message      Signed message
+     * @param signature    Signature
+     * @return  Index of the signature in the result of {@link #verify()}
+     */
+    public int add(byte[] message, byte[] signature) {
+        messages.add(message);
+        signatures.add(signature);
+        return messages.size() - 1;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * @return  Number of batches that failed and were checked individually
+     */
+    public int getBatchFailures() {
+        return batchFailures;
+    }
+
+    /**
+     * Verify all queued signatures and clear the queue.
+     * @return  Validity of every signature in the order they were added
+     */
+    public boolean[] verify() {
+        boolean[] valid;
+        try {
+            if (messages.size() >= MIN_BATCH_SIZE && verifyBatch()) {
+                valid = new boolean[messages.size()];
+                Arrays.fill(valid, true);
+                return valid;
+            }
+            if (messages.size() >= MIN_BATCH_SIZE) {
+                batchFailures++;
+                logger.debug("#verify: Batch of " + messages.size() + " signatures failed; checking individually");
+            }
+
+            valid = new boolean[messages.size()];
+            for (int i = 0; i < valid.length; i++) {
+                valid[i] = verifySingle(messages.get(i), signatures.get(i));
+            }
+            return valid;
+        } finally {
+            messages.clear();
+            signatures.clear();
+        }
+    }
+
+    private boolean verifySingle(byte[] message, byte[] signature) {
+        try {
+            fallback.initVerify(publicKey);
+            fallback.update(message);
+            return fallback.verify(signature);
+        } catch (Exception e) {
+            logger.debug("#verify: Signature couldn't be verified", e);
+            return false;
+        }
+    }
+
+    private boolean verifyBatch() {
+        ScalarOps scalarOps = spec.getScalarOps();
+        byte[] zero = new byte[SCALAR_LENGTH];
+        byte[] s = zero;
+        byte[] c = zero;
+
+        int n = messages.size();
+        GroupElement[] r = new GroupElement[n];
+        byte[][] z = new byte[n][];
+        try {
+            for (int i = 0; i < n; i++) {
+                byte[] signature = signatures.get(i);
+                if (signature == null || signature.length != 2 * SCALAR_LENGTH) {
+                    return false;
+                }
+                byte[] rBytes = Arrays.copyOfRange(signature, 0, SCALAR_LENGTH);
+                byte[] sBytes = Arrays.copyOfRange(signature, SCALAR_LENGTH, 2 * SCALAR_LENGTH);
+
+                digest.reset();
+                digest.update(rBytes);
+                digest.update(publicKey.getAbyte());
+                digest.update(messages.get(i));
+                byte[] h = scalarOps.reduce(digest.digest());
+
+                z[i] = randomScalar();
+                s = scalarOps.multiplyAndAdd(z[i], sBytes, s);
+                c = scalarOps.multiplyAndAdd(z[i], h, c);
+
+                r[i] = new GroupElement(spec.getCurve(), rBytes);
+                r[i].precompute(false);
+            }
+
+            // left side: s B - c A
+            byte[] left = spec.getB().doubleScalarMultiplyVariableTime(publicKey.getNegativeA(), c, s).toByteArray();
+
+            // right side: sum z_i R_i, two points at a time
+            GroupElement sum = null;
+            for (int i = 0; i < n; i += 2) {
+                GroupElement term;
+                if (i + 1 < n) {
+                    term = r[i + 1].doubleScalarMultiplyVariableTime(r[i], z[i], z[i + 1]);
+                } else {
+                    term = r[i].doubleScalarMultiplyVariableTime(r[i], z[i], zero);
+                }
+                // back to the extended representation for the addition
+                term = new GroupElement(spec.getCurve(), term.toByteArray());
+                sum = sum == null ? term : sum.add(term.toCached()).toP3();
+            }
+            return Arrays.equals(left, sum.toByteArray());
+        } catch (RuntimeException e) {
+            // e.g. an R that isn't a valid point encoding
+            logger.debug("#verify: Batch couldn't be evaluated", e);
+            return false;
+        }
+    }
+
+    private static byte[] randomScalar() {
+        byte[] z = new byte[SCALAR_LENGTH];
+        byte[] r = new byte[RANDOM_SCALAR_LENGTH];
+        do {
+            random.nextBytes(r);
+        } while (isZero(r));
+        System.arraycopy(r, 0, z, 0, RANDOM_SCALAR_LENGTH); // little-endian
+        return z;
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) {
+            if (x != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
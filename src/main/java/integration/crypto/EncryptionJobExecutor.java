@@ -0,0 +1,223 @@
+package integration.crypto;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import rest.ServerConfigDefaults;
+import rest.Storage;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded worker pool for {@link Encryptor}s. At most
+ * {@link ServerConfigDefaults#ENCRYPTION_JOB_THREADS} containers are built at
+ * the same time and at most {@link ServerConfigDefaults#ENCRYPTION_JOB_QUEUE}
+ * further containers wait with the status <code>queued</code>. Waiting jobs
+ * with a higher priority are started first, jobs with the same priority in
+ * the order of submission. Additional jobs are rejected instead of piling up
+ * as threads on the shared database connection.
+ */
+public class EncryptionJobExecutor {
+    public static final String STATUS_QUEUED = "queued";
+
+    private static final String containerIdStr = "cid";
+    private static final String statusStr = "status";
+    private static final String failMsgStr = "failMsg";
+
+    private static EncryptionJobExecutor encryptionJobExecutor;
+    private static final Logger logger = Logger.getLogger(EncryptionJobExecutor.class);
+
+    private final ThreadPoolExecutor pool;
+    private final int queueSize;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    /**
+     * @param threads      Number of concurrently built containers
+     * @param queueSize    Number of waiting jobs
+     */
+    public EncryptionJobExecutor(int threads, int queueSize) {
+        threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        // the queue itself is unbounded, the size is checked on submission
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "EncryptionJob-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Fail the containers whose encryption was interrupted by the last
+     * shutdown.
+     */
+    public void init() {
+        synchronized (EncryptionJobExecutor.class) {
+            Storage storage = Storage.getInstance();
+            List<ODocument> containers = storage.getByQuery("select * from Container where status in ['" +
+                    STATUS_QUEUED + "', 'processing']");
+            if (containers.size() == 0) {
+                return;
+            }
+            storage.db.begin();
+            for (ODocument container : containers) {
+                container.field(statusStr, "failed");
+                container.field(failMsgStr, "Interrupted by a restart of the server");
+                container.save();
+            }
+            storage.db.commit();
+            logger.info("#init: " + containers.size() + " encryption(s) were interrupted");
+        }
+    }
+
+    /**
+     * Create the <code>queued</code> record of the container and queue the
+     * encryption.
+     * @param encryptor    Encryptor of the container
+     * @param priority     Jobs with a higher priority are started first
+     * @return  <code>false</code> if a container with this ID already exists
+     * @throws RejectedExecutionException if the queue is full (no record is
+     *          created, so the request can be repeated)
+     */
+    public boolean submit(Encryptor encryptor, int priority) {
+        synchronized (EncryptionJobExecutor.class) {
+            if (pool.getQueue().size() >= queueSize) {
+                rejected.incrementAndGet();
+                logger.warn("#submit: Rejected encryption of container " + encryptor.getContainerId() + "; "
+                        + pool.getQueue().size() + " jobs are waiting");
+                throw new RejectedExecutionException("Too many encryption jobs");
+            }
+
+            Storage storage = Storage.getInstance();
+            if (storage.getByQuery("select * from Container where cid = " + encryptor.getContainerId()).size() != 0) {
+                return false;
+            }
+            storage.db.begin();
+            ODocument container = new ODocument("Container");
+            container.field(statusStr, STATUS_QUEUED);
+            container.field(containerIdStr, encryptor.getContainerId());
+            container.save();
+            storage.db.commit();
+
+            submitted.incrementAndGet();
+            pool.execute(new Job(encryptor, priority, sequence.incrementAndGet()));
+            return true;
+        }
+    }
+
+    /**
+     * Whether a job would be queued now. Uploads check this before they are
+     * spooled; {@link #submit} checks again.
+     * @return  <code>false</code> if the queue is full
+     */
+    public boolean hasCapacity() {
+        return pool.getQueue().size() < queueSize;
+    }
+
+    /**
+     * @return  Number of jobs waiting for a worker
+     */
+    public int getQueuedJobs() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return  Number of containers that are currently built
+     */
+    public int getActiveJobs() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return  Queue depth, job counters and the time that jobs waited in
+     *          the queue
+     * @throws JSONException
+     */
+    public JSONObject getMetrics() throws JSONException {
+        long started = completed.get() + getActiveJobs();
+        JSONObject metrics = new JSONObject();
+        metrics.put("threads", pool.getMaximumPoolSize());
+        metrics.put("queueSize", queueSize);
+        metrics.put("queued", getQueuedJobs());
+        metrics.put("active", getActiveJobs());
+        metrics.put("submitted", submitted.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("completed", completed.get());
+        metrics.put("averageWaitMillis", started == 0 ? 0 : totalWaitMillis.get() / started);
+        metrics.put("maxWaitMillis", maxWaitMillis.get());
+        return metrics;
+    }
+
+    private void started(long waitMillis) {
+        totalWaitMillis.addAndGet(waitMillis);
+        long max;
+        while (waitMillis > (max = maxWaitMillis.get()) && !maxWaitMillis.compareAndSet(max, waitMillis)) {
+            // retry
+        }
+    }
+
+    public static synchronized EncryptionJobExecutor getInstance() {
+        if (encryptionJobExecutor == null) {
+            encryptionJobExecutor = new EncryptionJobExecutor(ServerConfigDefaults.ENCRYPTION_JOB_THREADS,
+                    ServerConfigDefaults.ENCRYPTION_JOB_QUEUE);
+        }
+        return encryptionJobExecutor;
+    }
+
+    public static synchronized EncryptionJobExecutor setInstance(EncryptionJobExecutor encryptionJobExecutorNew) {
+        encryptionJobExecutor = encryptionJobExecutorNew;
+        return encryptionJobExecutor;
+    }
+
+    /**
+     * Queue entry which is ordered by priority and submission.
+     */
+    private class Job implements Runnable, Comparable<Job> {
+        private final Encryptor encryptor;
+        private final int priority;
+        private final long sequence;
+        private final long queuedAt = System.currentTimeMillis();
+
+        Job(Encryptor encryptor, int priority, long sequence) {
+            this.encryptor = encryptor;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            started(System.currentTimeMillis() - queuedAt);
+            try {
+                encryptor.run();
+            } catch (RuntimeException e) {
+                logger.error("#run: Encryption of container " + encryptor.getContainerId() + " failed", e);
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -2,7 +2,10 @@ package integration.crypto;
 
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import integration.FileOverwriteMitigation;
+import integration.envelope.EntryPreparer;
+import integration.io.ContainerIO;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -10,6 +13,7 @@ import org.json.JSONObject;
 import integration.engine.JobQueue;
 import trabe.AbePublicKey;
 import trabe.AbeSecretMasterKey;
+import rest.ServerConfigDefaults;
 import rest.Storage;
 import snet.entrance.*;
 
@@ -19,6 +23,8 @@ import java.util.*;
 public class Encryptor extends Thread {
     private JSONObject manifest;
     private int containerId;
+    private File inputSpool;
+    private final EntryPreparer entryPreparer = new EntryPreparer();
 
     private static final Logger logger = Logger.getLogger(Encryptor.class);
 
@@ -31,6 +37,21 @@ public class Encryptor extends Thread {
         this.containerId = containerId;
     }
 
+    public int getContainerId() {
+        return containerId;
+    }
+
+    /**
+     * Delete the directory with the uploaded input files after the
+     * container was built (or failed).
+     * @param inputSpool    Spool directory of the upload
+     * @return  this
+     */
+    public Encryptor setInputSpool(File inputSpool) {
+        this.inputSpool = inputSpool;
+        return this;
+    }
+
     private boolean encrypt(){
         // TODO: add proper transaction management
         Storage storage = Storage.getInstance();
@@ -47,6 +68,8 @@ public class Encryptor extends Thread {
         final String spanStr = "span";
         final String timezoneStr = "timezone";
         final String hidePolicyStr = "hidePolicy";
+        final String chunkedEntriesStr = "chunkedEntries";
+        final String compressStr = "compress";
         final String expirTypeStr = "expirationType";
         final String expirDataStr = "expirationData";
 
@@ -54,7 +77,9 @@ public class Encryptor extends Thread {
 
         storage.db.begin();
 
-        ODocument container = new ODocument("Container");
+        // the record was created as queued by the EncryptionJobExecutor
+        List<ODocument> queued = storage.getByQuery("select * from Container where cid = " + containerId);
+        ODocument container = queued.size() != 0 ? queued.get(0) : new ODocument("Container");
         container.field(containerStatusStr, statusProcessingStr);
         container.field(containerIdStr, containerId);
 
@@ -88,6 +113,15 @@ public class Encryptor extends Thread {
             return false;
         }
 
+        boolean chunkedEntries = ServerConfigDefaults.ENVELOPE_CHUNKED;
+        try {
+            if (manifest.has(chunkedEntriesStr)) {
+                chunkedEntries = manifest.getBoolean(chunkedEntriesStr);
+            }
+        } catch (JSONException e) {
+            logger.warn("Something went wrong with the chunkedEntries flag", e);
+        }
+
         AbePublicKey abePub = msk.getPublicKey();
 
         JSONArray files;
@@ -139,6 +173,22 @@ public class Encryptor extends Thread {
         int len = files.length();
         List<ODocument> fileBags = new ArrayList<ODocument>(len);
 
+        // compress and seal all files in parallel, while the container
+        // builder below adds them in manifest order; the ABE key
+        // encapsulation and the AES encryption stay sequential, since the
+        // builder is neither thread-safe nor takes precomputed keys (see
+        // EncryptorBenchmark for the share of each part)
+        for (int i = 0; i < len; i++) {
+            JSONObject file = files.optJSONObject(i);
+            if (file == null || !file.has(policyStr) || !(file.opt(pathStr) instanceof String)) {
+                continue; // reported by the loop below
+            }
+            boolean compress = file.optBoolean(compressStr, false);
+            if (compress || chunkedEntries) {
+                entryPreparer.submit(i, new File(file.optString(pathStr)), compress, chunkedEntries);
+            }
+        }
+
         for (int i = 0; i < len; i++) {
             JSONObject file = null;
             try {
@@ -223,7 +273,7 @@ public class Encryptor extends Thread {
                     if (expires) {
                         cb.setExpirationType(EXPIRATION_TYPE);
                     }
-                    cb.addFile(new File(filePath), policy, abePub, abeEndpoint);
+                    cb.addFile(entryPreparer.get(i, new File(filePath)), policy, abePub, abeEndpoint);
                     cb.setExpirationType(ExpirationType.NONE);
                 } catch (JSONException e) {
                     storage.db.rollback();
@@ -232,6 +282,16 @@ public class Encryptor extends Thread {
                     container.field(containerStatusStr, statusFailStr);
                     container.field(containerFailStr, "File problem: " + e.getMessage());
 
+                    container.save();
+                    storage.db.commit();
+                    return false;
+                } catch (IOException e) {
+                    storage.db.rollback();
+
+                    storage.db.begin();
+                    container.field(containerStatusStr, statusFailStr);
+                    container.field(containerFailStr, "File couldn't be prepared: " + e.getMessage());
+
                     container.save();
                     storage.db.commit();
                     return false;
@@ -252,13 +312,13 @@ public class Encryptor extends Thread {
             fileBag.save();
         }
 
-        FileOutputStream out = null;
+        OutputStream out = null;
         Throwable exception = null;
         try {
             if (!overwriteFiles) {
-                out = new FileOutputStream(FileOverwriteMitigation.findFreeFileName(new File(outfile)));
+                out = ContainerIO.openOutput(FileOverwriteMitigation.findFreeFileName(new File(outfile)));
             } else {
-                out = new FileOutputStream(outfile);
+                out = ContainerIO.openOutput(new File(outfile));
             }
             cb.buildIntoStream(out);
         } catch (IOException e) {
@@ -320,6 +380,13 @@ public class Encryptor extends Thread {
     }
 
     public void run(){
-        encrypt();
+        try {
+            encrypt();
+        } finally {
+            if (inputSpool != null) {
+                FileUtils.deleteQuietly(inputSpool);
+            }
+            entryPreparer.close();
+        }
     }
 }
@@ -1,6 +1,7 @@
 package integration.engine;
 
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import integration.crypto.DynamicAttributeCache;
 import integration.external.ExternalKeyDistributionStorage;
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import org.apache.commons.codec.binary.Hex;
@@ -475,6 +476,10 @@ public class JobQueue {
                     success = ekds.pushBulkData(locations, values);
                     i--;
                 }
+
+                // the decryptors must not use a cached component after a refresh or revocation
+                DynamicAttributeCache.getInstance().invalidate(DynamicAttributeCache.userKey(secretSeed),
+                        attributeSecretKeyObj.attribute);
                 if (!success) {
                     logger.warn("#runUpdate: Updates couldn't be pushed for " +
                             doc.getClassName() + "@" + doc.getIdentity().toString());
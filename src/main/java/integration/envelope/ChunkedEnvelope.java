@@ -0,0 +1,288 @@
+package integration.envelope;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import rest.ServerConfigDefaults;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chunked AEAD format for the plaintext of a container entry, so large
+ * files can be verified while they are decrypted. The entry starts with a
+ * header and is followed by chunks of a fixed plaintext size which are
+ * sealed with AES-256-GCM on their own:
+ *
+ * <pre>
+ * header = MAGIC (8) | chunk size (4) | key (32) | nonce prefix (7)
+ * chunk  = ciphertext (chunk size, shorter for the last chunk) | tag (16)
+ * nonce  = nonce prefix (7) | chunk index (4) | last chunk flag (1)
+ * </pre>
+ *
+ * <p>The header is the associated data of every chunk. Since the index and
+ * the last chunk flag are part of the nonce, reordered, dropped or
+ * appended chunks fail like modified ones (STREAM construction). The key
+ * is protected by the encryption of the container entry, the envelope adds
+ * the integrity per chunk.</p>
+ *
+ * <p>Chunks are sealed and opened on a shared pool, while the caller reads
+ * and writes them in order. At most a few chunks per thread are in flight,
+ * so memory doesn't depend on the size of the file.</p>
+ */
+public final class ChunkedEnvelope {
+    static final byte[] MAGIC = { 'S', 'N', 'E', 'T', 'C', 'A', 'E', '1' };
+    static final int KEY_LENGTH = 32;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int HEADER_LENGTH = MAGIC.length + 4 + KEY_LENGTH + NONCE_PREFIX_LENGTH;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /* chunks in flight per thread of the pool */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static ExecutorService pool;
+
+    private final byte[] header;
+    private final byte[] key;
+    private final byte[] noncePrefix;
+    private final int chunkSize;
+
+    private ChunkedEnvelope(byte[] header) {
+        this.header = header;
+        this.chunkSize = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+        this.key = Arrays.copyOfRange(header, MAGIC.length + 4, MAGIC.length + 4 + KEY_LENGTH);
+        this.noncePrefix = Arrays.copyOfRange(header, MAGIC.length + 4 + KEY_LENGTH, HEADER_LENGTH);
+    }
+
+    /**
+     * @param chunkSize    Plaintext bytes per chunk
+     * @return  Envelope with a fresh key and nonce prefix
+     */
+    static ChunkedEnvelope create(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        ByteBuffer.wrap(header, MAGIC.length, 4).putInt(chunkSize);
+        byte[] secret = new byte[KEY_LENGTH + NONCE_PREFIX_LENGTH];
+        random.nextBytes(secret);
+        System.arraycopy(secret, 0, header, MAGIC.length + 4, secret.length);
+        return new ChunkedEnvelope(header);
+    }
+
+    /**
+     * @param header    Complete header of an entry
+     * @return  Envelope of the entry
+     * @throws IOException if the header is invalid
+     */
+    static ChunkedEnvelope parse(byte[] header) throws IOException {
+        if (header.length != HEADER_LENGTH || !hasMagic(header, HEADER_LENGTH)) {
+            throw new IOException("Not a chunked envelope");
+        }
+        ChunkedEnvelope envelope = new ChunkedEnvelope(header.clone());
+        if (envelope.chunkSize <= 0 || envelope.chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size " + envelope.chunkSize);
+        }
+        return envelope;
+    }
+
+    /**
+     * @param data      Start of an entry
+     * @param length    Number of available bytes
+     * @return  Whether the available bytes match the magic so far
+     */
+    static boolean hasMagic(byte[] data, int length) {
+        for (int i = 0; i < Math.min(length, MAGIC.length); i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] getHeader() {
+        return header.clone();
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    byte[] sealChunk(byte[] plaintext, int length, long index, boolean last) throws IOException {
+        return process(true, plaintext, length, index, last);
+    }
+
+    byte[] openChunk(byte[] sealed, int length, long index, boolean last) throws IOException {
+        if (length < TAG_LENGTH) {
+            throw new IOException("Chunk " + index + " is truncated");
+        }
+        return process(false, sealed, length, index, last);
+    }
+
+    private byte[] process(boolean seal, byte[] input, int length, long index, boolean last) throws IOException {
+        if (index > 0xFFFFFFFFL) {
+            throw new IOException("Too many chunks");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt((int) index);
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(seal, new AEADParameters(new KeyParameter(key), TAG_LENGTH * 8, nonce, header));
+        byte[] output = new byte[cipher.getOutputSize(length)];
+        int n = cipher.processBytes(input, 0, length, output, 0);
+        try {
+            n += cipher.doFinal(output, n);
+        } catch (InvalidCipherTextException e) {
+            throw new IOException("Chunk " + index + " failed authentication");
+        }
+        return n == output.length ? output : Arrays.copyOf(output, n);
+    }
+
+    /**
+     * Write <code>in</code> as a chunked envelope into <code>out</code>.
+     * Neither stream is closed.
+     * @param in           Plaintext
+     * @param out          Receiver of the envelope
+     * @param chunkSize    Plaintext bytes per chunk
+     * @throws IOException if a stream failed
+     */
+    public static void seal(InputStream in, OutputStream out, int chunkSize) throws IOException {
+        final ChunkedEnvelope envelope = create(chunkSize);
+        out.write(envelope.header);
+
+        ChunkPipeline pipeline = new ChunkPipeline(out);
+        try {
+            byte[] current = readChunk(in, chunkSize);
+            long index = 0;
+            while (true) {
+                // the chunk before the end of the input is the last one, even if it is full
+                byte[] next = current.length < chunkSize ? null : readChunk(in, chunkSize);
+                final boolean last = next == null || next.length == 0;
+                final byte[] chunk = current;
+                final long chunkIndex = index++;
+                pipeline.add(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return envelope.sealChunk(chunk, chunk.length, chunkIndex, last);
+                    }
+                });
+                if (last) {
+                    break;
+                }
+                current = next;
+            }
+            pipeline.drain();
+        } finally {
+            pipeline.cancel();
+        }
+    }
+
+    private static byte[] readChunk(InputStream in, int chunkSize) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        int length = 0;
+        int read;
+        while (length < chunkSize && (read = in.read(chunk, length, chunkSize - length)) >= 0) {
+            length += read;
+        }
+        return length == chunkSize ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    private static int getParallelism() {
+        int threads = ServerConfigDefaults.ENVELOPE_THREADS;
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ChunkedEnvelope-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Runs chunk operations on the pool and writes their results in order.
+     * With a single thread the chunks are processed by the caller.
+     */
+    static class ChunkPipeline {
+        private final OutputStream out;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        private final int window;
+
+        ChunkPipeline(OutputStream out) {
+            this.out = out;
+            int parallelism = getParallelism();
+            this.window = parallelism <= 1 ? 0 : parallelism * CHUNKS_PER_THREAD;
+        }
+
+        void add(Callable<byte[]> task) throws IOException {
+            if (window == 0) {
+                try {
+                    out.write(task.call());
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Chunk couldn't be processed: " + e.getMessage());
+                }
+                return;
+            }
+            pending.add(getPool().submit(task));
+            while (pending.size() >= window) {
+                writeNext();
+            }
+        }
+
+        void drain() throws IOException {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        void cancel() {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+
+        private void writeNext() throws IOException {
+            Future<byte[]> future = pending.poll();
+            try {
+                out.write(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing chunks");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Chunk couldn't be processed: " + e.getCause());
+            }
+        }
+    }
+}
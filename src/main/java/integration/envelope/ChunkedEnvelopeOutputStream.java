@@ -0,0 +1,176 @@
+package integration.envelope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Receives the plaintext of a container entry and writes the content into
+ * the target stream. An entry in the {@link ChunkedEnvelope} format is
+ * verified chunk by chunk and only verified chunks reach the target; the
+ * first chunk that fails stops the output with an {@link IOException}.
+ * Entries without the envelope header are passed through unchanged, so
+ * existing containers stay readable.
+ *
+ * <p>{@link #finish()} has to be called after the whole entry was written,
+ * because the last chunk can only be recognized at the end. The target
+ * stream is not closed.</p>
+ */
+public class ChunkedEnvelopeOutputStream extends OutputStream {
+    private static final int DETECT = 0;
+    private static final int LEGACY = 1;
+    private static final int ENVELOPE = 2;
+
+    private final OutputStream out;
+    private int mode = DETECT;
+
+    private final byte[] header = new byte[ChunkedEnvelope.HEADER_LENGTH];
+    private int headerLength;
+
+    private ChunkedEnvelope envelope;
+    private ChunkedEnvelope.ChunkPipeline pipeline;
+    private byte[] segment;
+    private int segmentLength;
+    private long index;
+
+    private IOException failure;
+    private boolean finished;
+
+    /**
+     * @param out    Receiver of the verified content
+     */
+    public ChunkedEnvelopeOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return  Whether the entry is in the chunked envelope format (known
+     *          after the header was written)
+     */
+    public boolean isEnvelope() {
+        return mode == ENVELOPE;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            throw new IOException("Entry is already finished");
+        }
+        try {
+            while (len > 0) {
+                if (mode == LEGACY) {
+                    out.write(b, off, len);
+                    return;
+                }
+
+                if (mode == DETECT) {
+                    int n = Math.min(len, header.length - headerLength);
+                    System.arraycopy(b, off, header, headerLength, n);
+                    headerLength += n;
+                    off += n;
+                    len -= n;
+
+                    if (!ChunkedEnvelope.hasMagic(header, headerLength)) {
+                        mode = LEGACY;
+                        out.write(header, 0, headerLength);
+                    } else if (headerLength == header.length) {
+                        envelope = ChunkedEnvelope.parse(header);
+                        pipeline = new ChunkedEnvelope.ChunkPipeline(out);
+                        segment = new byte[envelope.getChunkSize() + ChunkedEnvelope.TAG_LENGTH];
+                        mode = ENVELOPE;
+                    }
+                    continue;
+                }
+
+                if (segmentLength == segment.length) {
+                    // more data follows, so this isn't the last chunk
+                    dispatch(false);
+                }
+                int n = Math.min(len, segment.length - segmentLength);
+                System.arraycopy(b, off, segment, segmentLength, n);
+                segmentLength += n;
+                off += n;
+                len -= n;
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Verify and write the rest of the entry.
+     * @throws IOException if the entry is truncated or a chunk failed
+     */
+    public void finish() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            if (mode == DETECT) {
+                // shorter than the header, so it can't be an envelope
+                out.write(header, 0, headerLength);
+            } else if (mode == ENVELOPE) {
+                if (segmentLength < ChunkedEnvelope.TAG_LENGTH) {
+                    throw new IOException("Chunk " + index + " is truncated");
+                }
+                dispatch(true);
+                pipeline.drain();
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Same as {@link #finish()}; the target stream stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void dispatch(final boolean last) throws IOException {
+        final byte[] chunk = segment;
+        final int length = segmentLength;
+        final long chunkIndex = index++;
+        final ChunkedEnvelope chunkEnvelope = envelope;
+        pipeline.add(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return chunkEnvelope.openChunk(chunk, length, chunkIndex, last);
+            }
+        });
+        segment = last ? null : new byte[chunk.length];
+        segmentLength = 0;
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+        if (segment != null) {
+            Arrays.fill(segment, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package integration.envelope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives the plaintext of a container entry and writes the content into
+ * the target stream. Entries which were compressed by
+ * {@link EntryCompression} are decompressed while they are written, other
+ * entries are passed through unchanged.
+ *
+ * <p>{@link #finish()} has to be called after the whole entry was written,
+ * so truncated compressed entries are detected. The target stream is not
+ * closed.</p>
+ */
+public class CompressedEntryOutputStream extends OutputStream {
+    private static final int DETECT = 0;
+    private static final int PLAIN = 1;
+    private static final int COMPRESSED = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private int mode = DETECT;
+
+    private final byte[] header = new byte[EntryCompression.MAGIC.length];
+    private int headerLength;
+
+    private Inflater inflater;
+    private byte[] buffer;
+
+    private IOException failure;
+    private boolean finished;
+
+    /**
+     * @param out    Receiver of the decompressed content
+     */
+    public CompressedEntryOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return  Whether the entry is compressed (known after the header was
+     *          written)
+     */
+    public boolean isCompressed() {
+        return mode == COMPRESSED;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            throw new IOException("Entry is already finished");
+        }
+        try {
+            if (mode == DETECT) {
+                while (len > 0 && mode == DETECT) {
+                    header[headerLength++] = b[off++];
+                    len--;
+                    if (header[headerLength - 1] != EntryCompression.MAGIC[headerLength - 1]) {
+                        mode = PLAIN;
+                        out.write(header, 0, headerLength);
+                    } else if (headerLength == header.length) {
+                        inflater = new Inflater();
+                        buffer = new byte[BUFFER_SIZE];
+                        mode = COMPRESSED;
+                    }
+                }
+            }
+            if (len == 0) {
+                return;
+            }
+
+            if (mode == PLAIN) {
+                out.write(b, off, len);
+            } else {
+                inflate(b, off, len);
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Write the rest of the entry.
+     * @throws IOException if the compressed entry is truncated
+     */
+    public void finish() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            if (mode == DETECT) {
+                // shorter than the header, so it can't be compressed
+                out.write(header, 0, headerLength);
+            } else if (mode == COMPRESSED) {
+                if (!inflater.finished()) {
+                    throw new IOException("Compressed entry is truncated");
+                }
+                inflater.end();
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Same as {@link #finish()}; the target stream stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void inflate(byte[] b, int off, int len) throws IOException {
+        if (inflater.finished()) {
+            throw new IOException("Data after the end of the compressed entry");
+        }
+        inflater.setInput(b, off, len);
+        try {
+            while (!inflater.needsInput()) {
+                int n = inflater.inflate(buffer);
+                if (n > 0) {
+                    out.write(buffer, 0, n);
+                } else if (inflater.finished()) {
+                    if (inflater.getRemaining() > 0) {
+                        throw new IOException("Data after the end of the compressed entry");
+                    }
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed entry needs an unknown dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed entry is corrupt: " + e.getMessage());
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
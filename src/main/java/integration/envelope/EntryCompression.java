@@ -0,0 +1,164 @@
+package integration.envelope;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Optional Deflate stage for the plaintext of a container entry. A
+ * compressed entry starts with {@link #MAGIC} followed by the zlib stream
+ * of the file, so the flag travels with the entry and
+ * {@link CompressedEntryOutputStream} can decompress it without any
+ * change of the container format. The zlib checksum additionally covers
+ * the decompressed content.
+ *
+ * <p>Compression is applied before the {@link ChunkedEnvelope}, because
+ * sealed chunks don't compress. The magic is only honoured in entries
+ * marked by {@link PreparedEntry}. A sealed file that itself starts with
+ * {@link #MAGIC} would be taken for a compressed one when the envelope is
+ * opened, so such files are always compressed, with level 0 if compression
+ * doesn't pay off (see {@link #startsWithMagic(File)}).</p>
+ */
+public final class EntryCompression {
+    static final byte[] MAGIC = { 'S', 'N', 'E', 'T', 'D', 'F', 'L', '1' };
+
+    /* a sample that compresses worse than this isn't worth the CPU time */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int MIN_SIZE = 128;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* file signatures of formats which are already compressed */
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+            { 0x1f, (byte) 0x8b },                                  // gzip
+            { 'P', 'K', 0x03, 0x04 },                               // zip, jar, docx, odt
+            { 'B', 'Z', 'h' },                                      // bzip2
+            { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 },              // xz
+            { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },     // 7z
+            { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },               // zstd
+            { (byte) 0x89, 'P', 'N', 'G' },                         // png
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff },              // jpeg
+            { 'G', 'I', 'F', '8' },                                 // gif
+            { 'O', 'g', 'g', 'S' },                                 // ogg
+            { 'I', 'D', '3' },                                      // mp3
+            { 0x1a, 0x45, (byte) 0xdf, (byte) 0xa3 },               // mkv, webm
+            { 'R', 'a', 'r', '!' },                                 // rar
+            // prepared entries
+            MAGIC,
+            ChunkedEnvelope.MAGIC
+    };
+
+    private EntryCompression() {}
+
+    /**
+     * Heuristic whether compressing the file pays off: small files, known
+     * compressed formats and content of which a sample doesn't shrink by at
+     * least 10% are stored as they are.
+     * @param file    Input file
+     * @return  Whether the file should be compressed
+     * @throws IOException if the file couldn't be read
+     */
+    public static boolean isCompressible(File file) throws IOException {
+        if (file.length() < MIN_SIZE) {
+            return false;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) >= 0) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        return isCompressible(sample, length);
+    }
+
+    /**
+     * Whether the file starts like a compressed entry, so that it has to be
+     * compressed to be read back correctly from a sealed entry.
+     * @param file    Input file
+     * @return  Whether the file starts with {@link #MAGIC}
+     * @throws IOException if the file couldn't be read
+     */
+    public static boolean startsWithMagic(File file) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < start.length && (read = in.read(start, length, start.length - length)) >= 0) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        return startsWith(start, length, MAGIC);
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        return length >= prefix.length && Arrays.equals(prefix, Arrays.copyOf(data, prefix.length));
+    }
+
+    /**
+     * @param sample    Start of the content
+     * @param length    Length of the sample
+     * @return  Whether content which starts like this should be compressed
+     */
+    static boolean isCompressible(byte[] sample, int length) {
+        if (length < MIN_SIZE) {
+            return false;
+        }
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(sample, length, signature)) {
+                return false;
+            }
+        }
+        // the (MP4, MOV) container has its signature at offset 4
+        if (sample[4] == 'f' && sample[5] == 't' && sample[6] == 'y' && sample[7] == 'p') {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[length];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+                if (compressed > length * MAX_SAMPLE_RATIO) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param in       Plaintext of the entry
+     * @param level    Deflate level (0-9 or -1 for the default)
+     * @return  Stream of the compressed entry including the header, which
+     *          closes <code>in</code> on close
+     */
+    public static InputStream compress(InputStream in, int level) {
+        final Deflater deflater = new Deflater(level);
+        InputStream compressed = new DeflaterInputStream(in, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // a passed deflater isn't released by the stream itself
+                    deflater.end();
+                }
+            }
+        };
+        return new SequenceInputStream(new ByteArrayInputStream(MAGIC), compressed);
+    }
+}
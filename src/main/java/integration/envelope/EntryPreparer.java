@@ -0,0 +1,274 @@
+package integration.envelope;
+
+import integration.io.ContainerIO;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Prepares the input files of one container for the container builder:
+ * compression ({@link EntryCompression}) and the chunked envelope
+ * ({@link ChunkedEnvelope}) are written into files in the staging
+ * directory ({@link ServerConfigDefaults#ENTRY_STAGING_PATH}). The files
+ * are submitted up front and prepared on a shared pool, while the builder
+ * takes them one after another in manifest order with {@link #get}. A file
+ * that no worker has started yet is prepared by the caller of
+ * {@link #get}, so the builder never waits behind later files.
+ *
+ * <p>A sealed file carries the key of its envelope in the clear until it
+ * is encrypted into the container, so the staging directory is only
+ * accessible by the server user. {@link #close()} has to be called when
+ * the container is built or failed; it deletes the staged files. Files
+ * left behind by a crashed server are deleted by {@link #cleanStaging()}
+ * on startup.</p>
+ */
+public class EntryPreparer {
+    private static final Logger logger = Logger.getLogger(EntryPreparer.class);
+
+    private static final int NOT_COMPRESSED = Integer.MIN_VALUE;
+
+    private static ExecutorService pool;
+
+    private final int compressionLevel;
+    private final int chunkSize;
+    private final boolean parallel;
+
+    private final Map<Integer, FutureTask<File>> entries = new HashMap<Integer, FutureTask<File>>();
+    private final List<File> directories = Collections.synchronizedList(new ArrayList<File>());
+    private volatile boolean closed;
+
+    public EntryPreparer() {
+        this(ServerConfigDefaults.ENTRY_COMPRESSION_LEVEL, ServerConfigDefaults.ENVELOPE_CHUNK_SIZE,
+                getParallelism() > 1);
+    }
+
+    /**
+     * @param compressionLevel    Deflate level of compressed files
+     * @param chunkSize           Chunk size of the envelope
+     * @param parallel            Prepare files on the shared pool instead
+     *                            of sequentially by the caller of {@link #get}
+     */
+    public EntryPreparer(int compressionLevel, int chunkSize, boolean parallel) {
+        this.compressionLevel = compressionLevel;
+        this.chunkSize = chunkSize;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Start the preparation of a file. A prepared file is named like the
+     * input file with the {@link PreparedEntry} marker, so that decryption
+     * only interprets the content of these entries; a file that is neither
+     * compressed nor sealed stays as it is.
+     * @param index       Position of the file in the manifest
+     * @param file        Input file
+     * @param compress    Compress the content unless
+     *                    {@link EntryCompression#isCompressible(File)} advises
+     *                    against it
+     * @param seal        Write the chunked envelope format
+     */
+    public void submit(int index, final File file, final boolean compress, final boolean seal) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                if (closed) {
+                    return file;
+                }
+                if (compress && EntryCompression.isCompressible(file)) {
+                    return prepare(file, compressionLevel, seal);
+                }
+                if (seal && EntryCompression.startsWithMagic(file)) {
+                    // it would be taken for a compressed entry inside the envelope
+                    return prepare(file, Deflater.NO_COMPRESSION, seal);
+                }
+                return prepare(file, NOT_COMPRESSED, seal);
+            }
+        });
+        entries.put(index, task);
+        if (parallel) {
+            getPool().execute(task);
+        }
+    }
+
+    /**
+     * @param index       Position of the file in the manifest
+     * @param original    Input file
+     * @return  Prepared file or <code>original</code> if it wasn't submitted
+     * @throws IOException if the file couldn't be prepared
+     */
+    public File get(int index, File original) throws IOException {
+        FutureTask<File> task = entries.get(index);
+        if (task == null) {
+            return original;
+        }
+        // prepare it here if no worker has started it yet
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing " + original);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Couldn't prepare " + original + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Skip the files that weren't started, wait for the running ones and
+     * delete all temporary files.
+     */
+    public void close() {
+        closed = true;
+        for (FutureTask<File> task : entries.values()) {
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // already reported by get or not needed anymore
+            }
+        }
+        entries.clear();
+        synchronized (directories) {
+            for (File directory : directories) {
+                FileUtils.deleteQuietly(directory);
+            }
+            directories.clear();
+        }
+    }
+
+    /**
+     * Delete everything in the staging directory. Called on startup, before
+     * any container is built, to remove the files of containers that were
+     * being built when the server stopped.
+     */
+    public static void cleanStaging() {
+        File[] leftovers = new File(ServerConfigDefaults.ENTRY_STAGING_PATH).listFiles();
+        if (leftovers == null) {
+            return;
+        }
+        for (File leftover : leftovers) {
+            if (!FileUtils.deleteQuietly(leftover)) {
+                logger.warn("#cleanStaging: Couldn't delete '" + leftover + "'");
+            }
+        }
+        if (leftovers.length > 0) {
+            logger.info("#cleanStaging: Deleted " + leftovers.length + " staged entries");
+        }
+    }
+
+    /**
+     * @param level    Deflate level or <code>NOT_COMPRESSED</code>
+     */
+    private File prepare(File file, int level, boolean seal) throws IOException {
+        boolean compress = level != NOT_COMPRESSED;
+        if (!compress && !seal) {
+            return file;
+        }
+        long start = System.currentTimeMillis();
+
+        // every file gets its own directory, so the original name can be kept
+        File directory = File.createTempFile("entry", "", getStagingRoot());
+        if (!directory.delete() || !directory.mkdir() || !restrictToOwner(directory)) {
+            FileUtils.deleteQuietly(directory);
+            throw new IOException("Couldn't create " + directory);
+        }
+        directories.add(directory);
+
+        File prepared = new File(directory, PreparedEntry.name(file.getName()));
+        boolean success = false;
+        InputStream in = ContainerIO.openInput(file);
+        try {
+            if (compress) {
+                in = EntryCompression.compress(in, level);
+            }
+            OutputStream out = ContainerIO.openOutput(prepared);
+            try {
+                if (seal) {
+                    ChunkedEnvelope.seal(in, out, chunkSize);
+                } else {
+                    IOUtils.copyLarge(in, out);
+                }
+            } finally {
+                out.close();
+            }
+            success = true;
+        } finally {
+            try {
+                in.close();
+            } finally {
+                if (!success) {
+                    // don't keep a partial entry around until close
+                    FileUtils.deleteQuietly(directory);
+                    directories.remove(directory);
+                }
+            }
+        }
+        logger.info("#prepare: '" + file + "' (compression level: " + (compress ? level : "none")
+                + ", chunked: " + seal + ") "
+                + file.length() + " -> " + prepared.length() + " bytes in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return prepared;
+    }
+
+    /**
+     * @return  Staging directory, created with access for the owner only
+     * @throws IOException if it couldn't be created
+     */
+    private static synchronized File getStagingRoot() throws IOException {
+        File root = new File(ServerConfigDefaults.ENTRY_STAGING_PATH);
+        if ((!root.exists() && !root.mkdirs()) || !restrictToOwner(root)) {
+            throw new IOException("Couldn't create the staging directory " + root);
+        }
+        return root;
+    }
+
+    /**
+     * Revoke all access of other users (the POSIX mode 700 for a directory).
+     * @return  Success
+     */
+    private static boolean restrictToOwner(File file) {
+        return file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true)
+                && file.setExecutable(false, false) && file.setExecutable(true, true);
+    }
+
+    private static int getParallelism() {
+        int threads = ServerConfigDefaults.ENTRY_PREPARATION_THREADS;
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "EntryPreparer-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,49 @@
+package integration.envelope;
+
+/**
+ * Marks the container entries which were written by the
+ * {@link EntryPreparer}. Only the content of a marked entry may start with
+ * {@link EntryCompression#MAGIC} or {@link ChunkedEnvelope#MAGIC}; the
+ * content of any other entry, in particular of every entry of a container
+ * from an older version, is a plain file which happens to start like that.
+ *
+ * <p>The container format has no metadata per entry besides its name, so
+ * the marker is a suffix of the entry name, which is removed again when
+ * the container is read. It also carries the version of the entry format.</p>
+ */
+public final class PreparedEntry {
+    /**
+     * Suffix of the name of a prepared entry (version 1: optional
+     * {@link EntryCompression} inside an optional {@link ChunkedEnvelope}).
+     */
+    public static final String NAME_SUFFIX = ".snetentry1";
+
+    private PreparedEntry() {}
+
+    /**
+     * @param name    Name of the input file
+     * @return  Name of the prepared entry
+     */
+    public static String name(String name) {
+        return name + NAME_SUFFIX;
+    }
+
+    /**
+     * @param entryName    Name of an entry in a container
+     * @return  Whether the entry was written by the {@link EntryPreparer}
+     */
+    public static boolean isPrepared(String entryName) {
+        return entryName != null && entryName.length() > NAME_SUFFIX.length() && entryName.endsWith(NAME_SUFFIX);
+    }
+
+    /**
+     * @param entryName    Name of an entry in a container
+     * @return  Name of the input file
+     */
+    public static String originalName(String entryName) {
+        if (!isPrepared(entryName)) {
+            return entryName;
+        }
+        return entryName.substring(0, entryName.length() - NAME_SUFFIX.length());
+    }
+}
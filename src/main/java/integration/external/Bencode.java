@@ -0,0 +1,151 @@
+package integration.external;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Minimal bencoding as used by the Mainline DHT (BEP 3). Strings are decoded
+ * as <code>byte[]</code>, integers as {@link Long}, lists as {@link List} and
+ * dictionaries as sorted {@link Map} with ISO-8859-1 keys.
+ */
+public class Bencode {
+    private static final String KEY_CHARSET = "ISO-8859-1";
+
+    /**
+     * Maximum nesting of lists and dictionaries. BEP 44 messages need about
+     * four levels; the limit keeps a packet of nested lists from exhausting
+     * the stack of the receiver.
+     */
+    public static final int MAX_DEPTH = 16;
+
+    private Bencode() {}
+
+    public static byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        encode(o, out);
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void encode(Object o, ByteArrayOutputStream out) throws IOException {
+        if (o instanceof byte[]) {
+            byte[] b = (byte[]) o;
+            out.write((b.length + ":").getBytes(KEY_CHARSET));
+            out.write(b);
+        } else if (o instanceof String) {
+            encode(((String) o).getBytes("UTF-8"), out);
+        } else if (o instanceof Number) {
+            out.write(("i" + ((Number) o).longValue() + "e").getBytes(KEY_CHARSET));
+        } else if (o instanceof List) {
+            out.write('l');
+            for (Object item : (List<Object>) o) {
+                encode(item, out);
+            }
+            out.write('e');
+        } else if (o instanceof Map) {
+            out.write('d');
+            TreeMap<String, Object> sorted = new TreeMap<String, Object>((Map<String, Object>) o);
+            for (Map.Entry<String, Object> e : sorted.entrySet()) {
+                encode(e.getKey().getBytes(KEY_CHARSET), out);
+                encode(e.getValue(), out);
+            }
+            out.write('e');
+        } else {
+            throw new IOException("Can't bencode " + (o == null ? "null" : o.getClass().getName()));
+        }
+    }
+
+    public static Object decode(byte[] data) throws IOException {
+        int[] pos = new int[] { 0 };
+        Object result = decode(data, pos, 0);
+        if (pos[0] != data.length) {
+            throw new IOException("Trailing bytes after bencoded value");
+        }
+        return result;
+    }
+
+    private static Object decode(byte[] data, int[] pos, int depth) throws IOException {
+        if (pos[0] >= data.length) {
+            throw new IOException("Unexpected end of bencoded data");
+        }
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Bencoded data is nested too deeply");
+        }
+        byte b = data[pos[0]];
+        if (b == 'i') {
+            pos[0]++;
+            int end = indexOf(data, (byte) 'e', pos[0]);
+            long value = parseLong(data, pos[0], end);
+            pos[0] = end + 1;
+            return value;
+        } else if (b == 'l') {
+            pos[0]++;
+            List<Object> list = new ArrayList<Object>();
+            while (peek(data, pos) != 'e') {
+                list.add(decode(data, pos, depth + 1));
+            }
+            pos[0]++;
+            return list;
+        } else if (b == 'd') {
+            pos[0]++;
+            Map<String, Object> map = new TreeMap<String, Object>();
+            while (peek(data, pos) != 'e') {
+                Object key = decode(data, pos, depth + 1);
+                if (!(key instanceof byte[])) {
+                    throw new IOException("Dictionary key is not a string");
+                }
+                map.put(toKey((byte[]) key), decode(data, pos, depth + 1));
+            }
+            pos[0]++;
+            return map;
+        } else if (b >= '0' && b <= '9') {
+            int colon = indexOf(data, (byte) ':', pos[0]);
+            long length = parseLong(data, pos[0], colon);
+            if (length < 0 || colon + 1 + length > data.length) {
+                throw new IOException("Illegal string length: " + length);
+            }
+            byte[] s = new byte[(int) length];
+            System.arraycopy(data, colon + 1, s, 0, s.length);
+            pos[0] = colon + 1 + s.length;
+            return s;
+        }
+        throw new IOException("Unexpected byte in bencoded data: " + b);
+    }
+
+    private static byte peek(byte[] data, int[] pos) throws IOException {
+        if (pos[0] >= data.length) {
+            throw new IOException("Unexpected end of bencoded data");
+        }
+        return data[pos[0]];
+    }
+
+    private static int indexOf(byte[] data, byte b, int from) throws IOException {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        throw new IOException("Unterminated bencoded value");
+    }
+
+    private static long parseLong(byte[] data, int from, int to) throws IOException {
+        try {
+            return Long.parseLong(new String(data, from, to - from, KEY_CHARSET));
+        } catch (NumberFormatException e) {
+            throw new IOException("Illegal number in bencoded data", e);
+        }
+    }
+
+    private static String toKey(byte[] key) {
+        try {
+            return new String(key, KEY_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // ISO-8859-1 is always available
+        }
+    }
+}
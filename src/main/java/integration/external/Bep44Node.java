@@ -0,0 +1,744 @@
+package integration.external;
+
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small Mainline DHT (KRPC, BEP 5) node which supports the
+ * <code>ping</code>, <code>find_node</code>, <code>get</code> and
+ * <code>put</code> queries for mutable items (BEP 44). It answers queries of
+ * other nodes and performs iterative lookups where <code>alpha</code> queries
+ * are in flight at the same time.
+ *
+ * <p>Only IPv4 contacts are supported. The routing table is a bounded set of
+ * recently seen contacts instead of k-buckets, which is sufficient for the
+ * small number of lookups an attribute authority does. At most
+ * <code>MAX_ITEMS</code> items of other nodes are stored; they expire after
+ * {@link #ITEM_TTL} unless their writer stores them again.</p>
+ */
+public class Bep44Node {
+    private static final Logger logger = Logger.getLogger(Bep44Node.class);
+
+    /** Number of closest nodes a value is stored at (bucket size of BEP 5) */
+    public static final int K = 8;
+
+    /** Maximum length of a bencoded value (BEP 44) */
+    public static final int MAX_VALUE_LENGTH = 1000;
+
+    /** Time after which a stored item expires unless it is stored again (BEP 44) */
+    public static final long ITEM_TTL = 2 * 60 * 60 * 1000L; // 2 hours
+
+    private static final int MAX_CONTACTS = 1024;
+    private static final int MAX_ITEMS = 16384;
+    private static final long ITEM_SWEEP_INTERVAL = 5 * 60 * 1000L;
+    private static final int COMPACT_NODE_LENGTH = 26;
+
+    private static final int ERROR_GENERIC = 201;
+    private static final int ERROR_PROTOCOL = 203;
+    private static final int ERROR_INVALID_SIGNATURE = 206;
+    private static final int ERROR_SEQ_TOO_LOW = 302;
+
+    private final byte[] id = new byte[20];
+    private final byte[] tokenSecret = new byte[20];
+    private final DatagramSocket socket;
+    private final int alpha;
+    private final long queryTimeout;
+
+    private final AtomicInteger transactionCounter = new AtomicInteger();
+    private final ConcurrentHashMap<String, PendingQuery> pending = new ConcurrentHashMap<String, PendingQuery>();
+    private final ConcurrentHashMap<String, Contact> contacts = new ConcurrentHashMap<String, Contact>();
+
+    /** Items stored for other nodes, the least recently used one is dropped when full */
+    private final LinkedHashMap<String, MutableItem> items = new LinkedHashMap<String, MutableItem>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MutableItem> eldest) {
+            return size() > MAX_ITEMS;
+        }
+    };
+    private long lastSweep = System.currentTimeMillis();
+
+    private Thread receiver;
+    private volatile boolean running = false;
+
+    /**
+     * Mutable item (BEP 44)
+     */
+    public static class MutableItem {
+        public final byte[] value;
+        public final byte[] publicKey;
+        public final byte[] salt;
+        public final long seq;
+        public final byte[] signature;
+        private final long stored;
+
+        public MutableItem(byte[] value, byte[] publicKey, byte[] salt, long seq, byte[] signature) {
+            this.value = value;
+            this.publicKey = publicKey;
+            this.salt = salt;
+            this.seq = seq;
+            this.signature = signature;
+            this.stored = System.currentTimeMillis();
+        }
+    }
+
+    private static class Contact {
+        final byte[] id;
+        final InetSocketAddress address;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Contact(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private static class PendingQuery {
+        final String key;
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile Map<String, Object> response;
+        volatile InetSocketAddress from;
+
+        PendingQuery(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param listenIp        IP address to bind to or <code>null</code> for all
+     * @param port            UDP port
+     * @param alpha           Number of parallel queries per lookup
+     * @param queryTimeout    Time in milliseconds to wait for a single response
+     * @throws SocketException if the socket couldn't be bound
+     */
+    public Bep44Node(String listenIp, int port, int alpha, long queryTimeout) throws SocketException {
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(id);
+        random.nextBytes(tokenSecret);
+
+        this.alpha = Math.max(1, alpha);
+        this.queryTimeout = queryTimeout;
+        if (listenIp == null) {
+            socket = new DatagramSocket(port);
+        } else {
+            socket = new DatagramSocket(new InetSocketAddress(listenIp, port));
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        receiver = new Thread("Bep44Node-" + socket.getLocalPort()) {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        socket.close();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public byte[] getId() {
+        return id;
+    }
+
+    public int getContactCount() {
+        return contacts.size();
+    }
+
+    public int getItemCount() {
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    /**
+     * Join the network through a known node by looking up the own id.
+     * @param address    Address of a known node
+     * @return  Whether the known node answered
+     */
+    public boolean bootstrap(InetSocketAddress address) {
+        Map<String, Object> args = new HashMap<String, Object>();
+        args.put("target", id);
+        PendingQuery query = sendQuery(address, "find_node", args);
+        if (query == null || !await(query)) {
+            return false;
+        }
+        handleNodes(query.response);
+
+        // populate the routing table with the nodes close to us
+        lookup(id, "find_node", null, null, null);
+        return true;
+    }
+
+    /**
+     * Target (DHT key) of a mutable item.
+     * @param publicKey    ed25519 public key
+     * @param salt         Salt
+     * @return  SHA-1(publicKey || salt)
+     */
+    public static byte[] mutableTarget(byte[] publicKey, byte[] salt) {
+        MessageDigest sha1 = sha1();
+        sha1.update(publicKey);
+        sha1.update(salt);
+        return sha1.digest();
+    }
+
+    /**
+     * The buffer that is signed for a mutable item (BEP 44):
+     * <code>4:salt{len}:{salt}3:seqi{seq}e1:v{bencoded value}</code>
+     */
+    public static byte[] signatureBuffer(byte[] salt, long seq, byte[] value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 64);
+        if (salt != null && salt.length > 0) {
+            out.write("4:salt".getBytes("ISO-8859-1"));
+            Bencode.encode(salt, out);
+        }
+        out.write(("3:seqi" + seq + "e1:v").getBytes("ISO-8859-1"));
+        Bencode.encode(value, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Iterative lookup of a mutable item.
+     * @param publicKey    Public key of the writer
+     * @param salt         Salt
+     * @return  Valid item with the highest sequence number or <code>null</code>
+     */
+    public MutableItem get(byte[] publicKey, byte[] salt) {
+        byte[] target = mutableTarget(publicKey, salt);
+        MutableItem[] best = new MutableItem[1];
+        lookup(target, "get", null, salt, best);
+
+        MutableItem local = getStoredItem(target);
+        if (local != null && (best[0] == null || local.seq > best[0].seq)) {
+            return local;
+        }
+        return best[0];
+    }
+
+    /**
+     * Store a signed mutable item at the <code>K</code> closest nodes.
+     * @param item    Signed item
+     * @return  Number of nodes that accepted the item
+     */
+    public int put(MutableItem item) {
+        byte[] target = mutableTarget(item.publicKey, item.salt);
+        Map<Contact, byte[]> tokens = new HashMap<Contact, byte[]>();
+        List<Contact> closest = lookup(target, "get", tokens, null, null);
+
+        List<PendingQuery> queries = new ArrayList<PendingQuery>(K);
+        for (Contact contact : closest) {
+            byte[] token = tokens.get(contact);
+            if (token == null) {
+                continue;
+            }
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("token", token);
+            args.put("v", item.value);
+            args.put("k", item.publicKey);
+            args.put("salt", item.salt);
+            args.put("seq", item.seq);
+            args.put("sig", item.signature);
+            PendingQuery query = sendQuery(contact.address, "put", args);
+            if (query != null) {
+                queries.add(query);
+            }
+        }
+
+        int stored = 0;
+        for (PendingQuery query : queries) {
+            if (await(query) && "r".equals(getString(query.response, "y"))) {
+                stored++;
+            }
+        }
+
+        if (closest.isEmpty()) {
+            // no other node known (yet), so keep it at least locally (as a
+            // copy, so a republished item expires from now on)
+            storeItem(target, new MutableItem(item.value, item.publicKey, item.salt, item.seq, item.signature));
+            stored = 1;
+        }
+        return stored;
+    }
+
+    /**
+     * Iterative lookup with <code>alpha</code> parallel queries per round.
+     * @param target    Target id
+     * @param q         Query type ("find_node" or "get")
+     * @param tokens    Output: write tokens of the responding nodes (may be <code>null</code>)
+     * @param salt      Salt of the requested item, which isn't part of the responses
+     * @param best      Output: best mutable item for "get" (may be <code>null</code>)
+     * @return  Up to <code>K</code> closest responding contacts
+     */
+    private List<Contact> lookup(final byte[] target, String q, Map<Contact, byte[]> tokens, byte[] salt, MutableItem[] best) {
+        TreeMap<BigInteger, Contact> shortlist = new TreeMap<BigInteger, Contact>();
+        for (Contact contact : closestContacts(target, K)) {
+            shortlist.put(distance(contact.id, target), contact);
+        }
+        Set<String> queried = new HashSet<String>();
+        TreeMap<BigInteger, Contact> responded = new TreeMap<BigInteger, Contact>();
+
+        while (true) {
+            List<Contact> round = new ArrayList<Contact>(alpha);
+            int considered = 0;
+            for (Contact contact : shortlist.values()) {
+                if (considered++ >= K || round.size() >= alpha) {
+                    break;
+                }
+                if (queried.add(Hex.encodeHexString(contact.id))) {
+                    round.add(contact);
+                }
+            }
+            if (round.isEmpty()) {
+                break;
+            }
+
+            List<PendingQuery> queries = new ArrayList<PendingQuery>(round.size());
+            for (Contact contact : round) {
+                Map<String, Object> args = new HashMap<String, Object>();
+                args.put("target", target);
+                queries.add(sendQuery(contact.address, q, args));
+            }
+
+            for (int i = 0; i < round.size(); i++) {
+                Contact contact = round.get(i);
+                PendingQuery query = queries.get(i);
+                BigInteger d = distance(contact.id, target);
+                if (query == null || !await(query) || !"r".equals(getString(query.response, "y"))) {
+                    shortlist.remove(d);
+                    contacts.remove(Hex.encodeHexString(contact.id));
+                    continue;
+                }
+                responded.put(d, contact);
+
+                Map<String, Object> r = getDict(query.response, "r");
+                for (Contact found : handleNodes(query.response)) {
+                    shortlist.put(distance(found.id, target), found);
+                }
+                if (tokens != null && r.get("token") instanceof byte[]) {
+                    tokens.put(contact, (byte[]) r.get("token"));
+                }
+                if (best != null && r.get("v") instanceof byte[]) {
+                    MutableItem item = parseItem(r, salt);
+                    if (item != null && Arrays.equals(mutableTarget(item.publicKey, item.salt), target) &&
+                            verify(item) && (best[0] == null || item.seq > best[0].seq)) {
+                        best[0] = item;
+                    }
+                }
+            }
+        }
+
+        List<Contact> result = new ArrayList<Contact>(K);
+        for (Contact contact : responded.values()) {
+            if (result.size() >= K) {
+                break;
+            }
+            result.add(contact);
+        }
+        return result;
+    }
+
+    private PendingQuery sendQuery(InetSocketAddress address, String q, Map<String, Object> args) {
+        int counter = transactionCounter.incrementAndGet();
+        byte[] tid = new byte[] { (byte) (counter >> 8), (byte) counter };
+        args.put("id", id);
+
+        Map<String, Object> message = new HashMap<String, Object>();
+        message.put("t", tid);
+        message.put("y", "q");
+        message.put("q", q);
+        message.put("a", args);
+
+        String key = Hex.encodeHexString(tid) + "@" + address;
+        PendingQuery query = new PendingQuery(key);
+        pending.put(key, query);
+        try {
+            send(address, message);
+        } catch (IOException e) {
+            pending.remove(key);
+            logger.debug("#sendQuery: couldn't send " + q + " to " + address, e);
+            return null;
+        }
+        return query;
+    }
+
+    private boolean await(PendingQuery query) {
+        try {
+            return query.latch.await(queryTimeout, TimeUnit.MILLISECONDS) && query.response != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            // lost replies must not pile up until the transaction ID is reused
+            pending.remove(query.key, query);
+        }
+    }
+
+    /**
+     * @return  Number of queries that wait for a reply
+     */
+    public int getPendingQueries() {
+        return pending.size();
+    }
+
+    private void send(InetSocketAddress address, Map<String, Object> message) throws IOException {
+        byte[] data = Bencode.encode(message);
+        socket.send(new DatagramPacket(data, data.length, address));
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[65536];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("#receive: socket error", e);
+                }
+                continue;
+            }
+            // items only arrive with packets, so an idle node needs no sweep
+            sweepItems();
+
+            InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+            try {
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                Object decoded = Bencode.decode(data);
+                if (!(decoded instanceof Map)) {
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> message = (Map<String, Object>) decoded;
+                String y = getString(message, "y");
+                if ("q".equals(y)) {
+                    handleQuery(message, from);
+                } else if ("r".equals(y) || "e".equals(y)) {
+                    Object t = message.get("t");
+                    if (t instanceof byte[]) {
+                        PendingQuery query = pending.remove(Hex.encodeHexString((byte[]) t) + "@" + from);
+                        if (query != null) {
+                            query.from = from;
+                            query.response = message;
+                            query.latch.countDown();
+                        }
+                    }
+                    if ("r".equals(y)) {
+                        Object responderId = getDict(message, "r").get("id");
+                        if (responderId instanceof byte[] && ((byte[]) responderId).length == 20) {
+                            addContact((byte[]) responderId, from);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("#receive: malformed message from " + from, e);
+            } catch (RuntimeException e) {
+                logger.warn("#receive: couldn't handle message from " + from, e);
+            }
+        }
+    }
+
+    private void handleQuery(Map<String, Object> message, InetSocketAddress from) throws IOException {
+        String q = getString(message, "q");
+        Map<String, Object> args = getDict(message, "a");
+
+        Object senderId = args.get("id");
+        if (!(senderId instanceof byte[]) || ((byte[]) senderId).length != 20) {
+            sendError(message, from, ERROR_PROTOCOL, "invalid id");
+            return;
+        }
+        addContact((byte[]) senderId, from);
+
+        Map<String, Object> r = new HashMap<String, Object>();
+        r.put("id", id);
+
+        if ("ping".equals(q)) {
+            // nothing else to do
+        } else if ("find_node".equals(q) || "get".equals(q)) {
+            Object target = args.get("target");
+            if (!(target instanceof byte[]) || ((byte[]) target).length != 20) {
+                sendError(message, from, ERROR_PROTOCOL, "invalid target");
+                return;
+            }
+            r.put("nodes", compactNodes(closestContacts((byte[]) target, K)));
+
+            if ("get".equals(q)) {
+                r.put("token", token(from));
+                MutableItem item = getStoredItem((byte[]) target);
+                if (item != null) {
+                    r.put("v", item.value);
+                    r.put("k", item.publicKey);
+                    r.put("seq", item.seq);
+                    r.put("sig", item.signature);
+                }
+            }
+        } else if ("put".equals(q)) {
+            Object token = args.get("token");
+            if (!(token instanceof byte[]) || !Arrays.equals((byte[]) token, token(from))) {
+                sendError(message, from, ERROR_PROTOCOL, "invalid token");
+                return;
+            }
+            MutableItem item = parseItem(args, (byte[]) args.get("salt"));
+            if (item == null || item.value.length > MAX_VALUE_LENGTH) {
+                sendError(message, from, ERROR_PROTOCOL, "invalid item");
+                return;
+            }
+            if (!verify(item)) {
+                sendError(message, from, ERROR_INVALID_SIGNATURE, "invalid signature");
+                return;
+            }
+            byte[] target = mutableTarget(item.publicKey, item.salt);
+            MutableItem stored = getStoredItem(target);
+            if (stored != null && stored.seq > item.seq) {
+                sendError(message, from, ERROR_SEQ_TOO_LOW, "sequence number less than current");
+                return;
+            }
+            storeItem(target, item);
+        } else {
+            sendError(message, from, ERROR_GENERIC, "unknown method");
+            return;
+        }
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("t", message.get("t"));
+        response.put("y", "r");
+        response.put("r", r);
+        send(from, response);
+    }
+
+    private void sendError(Map<String, Object> message, InetSocketAddress from, int code, String text) throws IOException {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("t", message.get("t"));
+        response.put("y", "e");
+        response.put("e", Arrays.<Object>asList((long) code, text));
+        send(from, response);
+    }
+
+    private MutableItem getStoredItem(byte[] target) {
+        String key = Hex.encodeHexString(target);
+        synchronized (items) {
+            MutableItem item = items.get(key);
+            if (item != null && item.stored + ITEM_TTL < System.currentTimeMillis()) {
+                items.remove(key);
+                return null;
+            }
+            return item;
+        }
+    }
+
+    private void storeItem(byte[] target, MutableItem item) {
+        synchronized (items) {
+            items.put(Hex.encodeHexString(target), item);
+        }
+    }
+
+    /**
+     * Remove the expired items, which are otherwise only removed when they
+     * are requested again. Runs at most every <code>ITEM_SWEEP_INTERVAL</code>.
+     */
+    private void sweepItems() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < ITEM_SWEEP_INTERVAL) {
+            return;
+        }
+        lastSweep = now;
+        int removed = 0;
+        synchronized (items) {
+            Iterator<MutableItem> it = items.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().stored + ITEM_TTL < now) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            logger.debug("#sweepItems: removed " + removed + " expired items");
+        }
+    }
+
+    private static MutableItem parseItem(Map<String, Object> dict, byte[] salt) {
+        Object v = dict.get("v");
+        Object k = dict.get("k");
+        Object seq = dict.get("seq");
+        Object sig = dict.get("sig");
+        if (!(v instanceof byte[]) || !(k instanceof byte[]) || !(seq instanceof Long) || !(sig instanceof byte[])) {
+            return null;
+        }
+        if (salt == null && dict.get("salt") instanceof byte[]) {
+            salt = (byte[]) dict.get("salt");
+        }
+        return new MutableItem((byte[]) v, (byte[]) k, salt == null ? new byte[0] : salt, (Long) seq, (byte[]) sig);
+    }
+
+    private boolean verify(MutableItem item) {
+        if (item.publicKey.length != 32 || item.signature.length != 64) {
+            return false;
+        }
+        try {
+            EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName(ServerConfigDefaults.EDDSA_SPECIFICATION_STRING);
+            EdDSAPublicKey pk = new EdDSAPublicKey(new EdDSAPublicKeySpec(item.publicKey, spec));
+            EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+            engine.initVerify(pk);
+            engine.update(signatureBuffer(item.salt, item.seq, item.value));
+            return engine.verify(item.signature);
+        } catch (Exception e) {
+            logger.debug("#verify: invalid item", e);
+            return false;
+        }
+    }
+
+    private byte[] token(InetSocketAddress address) {
+        MessageDigest sha1 = sha1();
+        sha1.update(tokenSecret);
+        sha1.update(address.getAddress().getAddress());
+        return Arrays.copyOf(sha1.digest(), 8);
+    }
+
+    private void addContact(byte[] contactId, InetSocketAddress address) {
+        if (Arrays.equals(contactId, id)) {
+            return;
+        }
+        String key = Hex.encodeHexString(contactId);
+        Contact contact = contacts.get(key);
+        if (contact != null) {
+            contact.lastSeen = System.currentTimeMillis();
+            return;
+        }
+        if (contacts.size() >= MAX_CONTACTS) {
+            // evict the contact that wasn't seen for the longest time
+            Contact oldest = null;
+            for (Contact c : contacts.values()) {
+                if (oldest == null || c.lastSeen < oldest.lastSeen) {
+                    oldest = c;
+                }
+            }
+            if (oldest != null) {
+                contacts.remove(Hex.encodeHexString(oldest.id));
+            }
+        }
+        contacts.put(key, new Contact(contactId, address));
+    }
+
+    private List<Contact> closestContacts(final byte[] target, int n) {
+        List<Contact> all = new ArrayList<Contact>(contacts.values());
+        Collections.sort(all, new Comparator<Contact>() {
+            @Override
+            public int compare(Contact o1, Contact o2) {
+                return distance(o1.id, target).compareTo(distance(o2.id, target));
+            }
+        });
+        return all.size() > n ? all.subList(0, n) : all;
+    }
+
+    private List<Contact> handleNodes(Map<String, Object> response) {
+        List<Contact> found = new ArrayList<Contact>();
+        Object nodes = getDict(response, "r").get("nodes");
+        if (!(nodes instanceof byte[])) {
+            return found;
+        }
+        byte[] compact = (byte[]) nodes;
+        for (int i = 0; i + COMPACT_NODE_LENGTH <= compact.length; i += COMPACT_NODE_LENGTH) {
+            byte[] nodeId = Arrays.copyOfRange(compact, i, i + 20);
+            if (Arrays.equals(nodeId, id)) {
+                continue;
+            }
+            try {
+                InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(compact, i + 20, i + 24));
+                int port = ((compact[i + 24] & 0xff) << 8) | (compact[i + 25] & 0xff);
+                InetSocketAddress address = new InetSocketAddress(ip, port);
+                found.add(new Contact(nodeId, address));
+                addContact(nodeId, address);
+            } catch (IOException e) {
+                logger.debug("#handleNodes: invalid address", e);
+            }
+        }
+        return found;
+    }
+
+    private static byte[] compactNodes(List<Contact> list) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(list.size() * COMPACT_NODE_LENGTH);
+        for (Contact contact : list) {
+            byte[] ip = contact.address.getAddress().getAddress();
+            if (ip.length != 4) {
+                continue; // IPv4 only
+            }
+            out.write(contact.id, 0, 20);
+            out.write(ip, 0, 4);
+            out.write((contact.address.getPort() >> 8) & 0xff);
+            out.write(contact.address.getPort() & 0xff);
+        }
+        return out.toByteArray();
+    }
+
+    private static BigInteger distance(byte[] a, byte[] b) {
+        byte[] d = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            d[i] = (byte) (a[i] ^ b[i]);
+        }
+        return new BigInteger(1, d);
+    }
+
+    private static String getString(Map<String, Object> dict, String key) {
+        Object o = dict == null ? null : dict.get(key);
+        if (o instanceof byte[]) {
+            try {
+                return new String((byte[]) o, "ISO-8859-1");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getDict(Map<String, Object> dict, String key) {
+        Object o = dict == null ? null : dict.get(key);
+        if (o instanceof Map) {
+            return (Map<String, Object>) o;
+        }
+        return Collections.emptyMap();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package integration.external;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read coalescing in front of another storage. Concurrent reads of the same
+ * location set share a single backend request ("single flight") and the
+ * result is cached for a short time. The cache is bounded by the refresh
+ * interval of the provider, so readers never see a value that outlived an
+ * update. Every push invalidates the cached results of the pushed locations.
+ */
+public class CoalescingStorage extends ExternalKeyDistributionStorage {
+    private static final Logger logger = Logger.getLogger(CoalescingStorage.class);
+
+    private static final int MAX_CACHED_RESULTS = 4096;
+
+    private final ExternalKeyDistributionStorage backend;
+    private final long ttl;
+
+    private final ConcurrentHashMap<String, FutureTask<byte[][]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[][]>>();
+    private final ConcurrentHashMap<String, CachedResult> cache = new ConcurrentHashMap<String, CachedResult>();
+
+    /* incremented by every push, results of reads that overlap a push aren't cached */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong backendRequests = new AtomicLong();
+
+    private static class CachedResult {
+        final byte[][] locations;
+        final byte[][] result;
+        final long expires;
+
+        CachedResult(byte[][] locations, byte[][] result, long expires) {
+            this.locations = locations;
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param backend    Storage to read from
+     * @param ttl        Time in ms a result is cached (<code>0</code> only
+     *                   coalesces concurrent reads)
+     */
+    public CoalescingStorage(ExternalKeyDistributionStorage backend, long ttl) {
+        this.backend = backend;
+        this.ttl = Math.max(0, ttl);
+    }
+
+    public ExternalKeyDistributionStorage getBackend() {
+        return backend;
+    }
+
+    public String getIdentifier() {
+        return backend.getIdentifier();
+    }
+
+    @Override
+    public int getItemIdentifierSize() {
+        return backend.getItemIdentifierSize();
+    }
+
+    public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    @Override
+    public byte[][] getBulkData(final byte[][] locations, final int threshold) {
+        requests.incrementAndGet();
+        final String key = key(locations, threshold);
+
+        CachedResult cached = cache.get(key);
+        if (cached != null) {
+            if (cached.expires > System.currentTimeMillis()) {
+                return copy(cached.result);
+            }
+            cache.remove(key, cached);
+        }
+
+        final long startGeneration = generation.get();
+        FutureTask<byte[][]> task = new FutureTask<byte[][]>(new Callable<byte[][]>() {
+            @Override
+            public byte[][] call() throws Exception {
+                backendRequests.incrementAndGet();
+                byte[][] result = backend.getBulkData(locations, threshold);
+                if (result != null && ttl > 0 && generation.get() == startGeneration) {
+                    if (cache.size() >= MAX_CACHED_RESULTS) {
+                        purgeExpired();
+                    }
+                    cache.put(key, new CachedResult(locations.clone(), result, System.currentTimeMillis() + ttl));
+                }
+                return result;
+            }
+        });
+
+        FutureTask<byte[][]> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return copy(running.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("#getBulkData: interrupted while waiting for shared read", e);
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            logger.error("#getBulkData: shared read failed", e.getCause());
+            return null;
+        }
+    }
+
+    public boolean pushBulkData(byte[][] locations, byte[][] data) {
+        generation.incrementAndGet();
+        invalidate(locations);
+        boolean success = backend.pushBulkData(locations, data);
+        invalidate(locations);
+        return success;
+    }
+
+    private void invalidate(byte[][] locations) {
+        if (cache.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, CachedResult>> it = cache.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (it.hasNext()) {
+            CachedResult cached = it.next().getValue();
+            if (cached.expires <= now || overlaps(cached.locations, locations)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedResult> it = cache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        if (cache.size() >= MAX_CACHED_RESULTS) {
+            cache.clear();
+        }
+    }
+
+    private static boolean overlaps(byte[][] a, byte[][] b) {
+        for (byte[] x : a) {
+            for (byte[] y : b) {
+                if (Arrays.equals(x, y)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String key(byte[][] locations, int threshold) {
+        StringBuilder sb = new StringBuilder(locations.length * 41 + 4);
+        sb.append(threshold);
+        for (byte[] location : locations) {
+            sb.append('/').append(Hex.encodeHexString(location));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Callers may modify the returned arrays (e.g. Decryptor nulls invalid
+     * shares), so every caller gets its own copy.
+     */
+    private static byte[][] copy(byte[][] result) {
+        if (result == null) {
+            return null;
+        }
+        byte[][] copy = new byte[result.length][];
+        for (int i = 0; i < result.length; i++) {
+            copy[i] = result[i] == null ? null : result[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @return  Number of reads requested by callers
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return  Number of reads that went to the backend
+     */
+    public long getBackendRequests() {
+        return backendRequests.get();
+    }
+}
@@ -1,10 +1,27 @@
 package integration.external;
 
+import integration.external.simulation.SimulatedDhtSubsystem;
 import rest.ServerConfigDefaults;
 
 public abstract class ExternalKeyDistributionStorage {
+    private static ExternalKeyDistributionStorage instance;
+    private static ServerConfigDefaults.ExternalKeyDistributionStorageProvider instanceProvider;
+
     public abstract byte[][] getBulkData(byte[][] locations);
 
+    /**
+     * Get multiple data items, but only wait until <code>threshold</code>
+     * items arrived. Items which were not retrieved (yet) are
+     * <code>null</code>. Implementations that can't return early retrieve
+     * all locations (default).
+     * @param locations    Locations to query
+     * @param threshold    Number of items that are sufficient for the caller
+     * @return  Data array or null if there was an error
+     */
+    public byte[][] getBulkData(byte[][] locations, int threshold) {
+        return getBulkData(locations);
+    }
+
     public abstract boolean pushBulkData(byte[][] locations, byte[][] data);
 
     public abstract String getIdentifier();
@@ -17,8 +34,51 @@ public abstract class ExternalKeyDistributionStorage {
         return 20;
     }
 
-    public static ExternalKeyDistributionStorage getInstance() {
-        switch (ServerConfigDefaults.EKDS) {
+    /**
+     * The configured provider, wrapped in a {@link WriteBehindStorage} if
+     * {@link ServerConfigDefaults#EKDS_WRITE_BEHIND_WINDOW} is set and in a
+     * {@link CoalescingStorage} if {@link ServerConfigDefaults#EKDS_READ_COALESCING}
+     * is set. The chain is created once per provider so that all callers
+     * share the queue and the in-flight reads.
+     */
+    public static synchronized ExternalKeyDistributionStorage getInstance() {
+        if (instance == null || instanceProvider != ServerConfigDefaults.EKDS) {
+            ExternalKeyDistributionStorage previous = instance;
+            if (previous instanceof CoalescingStorage) {
+                previous = ((CoalescingStorage) previous).getBackend();
+            }
+            if (previous instanceof WriteBehindStorage) {
+                ((WriteBehindStorage) previous).flush();
+            }
+            ExternalKeyDistributionStorage storage = getInstance(ServerConfigDefaults.EKDS);
+            if (ServerConfigDefaults.EKDS_WRITE_BEHIND_WINDOW > 0 &&
+                    ServerConfigDefaults.EKDS != ServerConfigDefaults.ExternalKeyDistributionStorageProvider.DUMMY) {
+                final WriteBehindStorage writeBehind = new WriteBehindStorage(storage,
+                        ServerConfigDefaults.EKDS_WRITE_BEHIND_WINDOW,
+                        ServerConfigDefaults.EKDS_WRITE_BEHIND_BATCH,
+                        ServerConfigDefaults.JQ_DHT_PUSH_RETRY);
+                Runtime.getRuntime().addShutdownHook(new Thread("WriteBehind-shutdown") {
+                    @Override
+                    public void run() {
+                        writeBehind.flush();
+                    }
+                });
+                storage = writeBehind;
+            }
+            if (ServerConfigDefaults.EKDS_READ_COALESCING) {
+                // cached results must not outlive the next refresh
+                long ttl = Math.min(ServerConfigDefaults.EKDS_READ_CACHE_TTL,
+                        ServerConfigDefaults.JQ_MAIN_EVENT_INTERVAL * 60L * 1000L);
+                storage = new CoalescingStorage(storage, ttl);
+            }
+            instance = storage;
+            instanceProvider = ServerConfigDefaults.EKDS;
+        }
+        return instance;
+    }
+
+    public static ExternalKeyDistributionStorage getInstance(ServerConfigDefaults.ExternalKeyDistributionStorageProvider provider) {
+        switch (provider) {
             case DUMMY:
                 return new DummySubsystem();
             case VUZE:
@@ -27,8 +87,14 @@ public abstract class ExternalKeyDistributionStorage {
                 return JkadSubsystem.getInstance();
             case SHEX:
                 return ShexSubsystem.getInstance();
+            case LOCAL:
+                return LocalSubsystem.getInstance();
+            case REPLICATED:
+                return ReplicatedSubsystem.getInstance();
+            case SIMULATED:
+                return SimulatedDhtSubsystem.getInstance();
             default:
-                throw new RuntimeException("Unknown ExternalKeyDistributionStorage: " + ServerConfigDefaults.EKDS);
+                throw new RuntimeException("Unknown ExternalKeyDistributionStorage: " + provider);
         }
     }
 }
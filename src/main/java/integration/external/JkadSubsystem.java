@@ -6,25 +6,130 @@ import de.uka.tm.jkad.framework.KademliaPeer;
 import de.uka.tm.jkad.framework.exceptions.JKadException;
 import de.uka.tm.jkad.framework.exceptions.NetworkException;
 import de.uka.tm.jkad.framework.transaction.BootstrapTransaction;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.Logger;
 import rest.ServerConfigDefaults;
+import rest.Storage;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
- * Establishes a connection to the Mainline DHT through JKad and provides
- * convenience methods for pushing and querying data. It needs BEP 44
- * in order to store actual data in the DHT.
+ * Establishes a connection to the Mainline DHT and provides convenience
+ * methods for pushing and querying data. JKad doesn't support BEP 44, so the
+ * data is stored as signed mutable items through a {@link Bep44Node}. The
+ * salt of an item is its location and the items are signed with the master
+ * signing key of the authority.
+ *
+ * <p>Bootstrapping happens in the background, so the constructor returns
+ * immediately. The lookups of a bulk operation run in parallel.</p>
  *
- * <strong>JKad is not yet fully implemented</strong>
+ * <p>Stored items expire after {@link Bep44Node#ITEM_TTL}, which is shorter
+ * than the refresh interval of the job queue. Therefore the last pushed item
+ * of every location is stored again every {@link #REPUBLISH_INTERVAL} until
+ * the location wasn't pushed for two main event intervals.</p>
  */
 public class JkadSubsystem extends ExternalKeyDistributionStorage {
     private static JkadSubsystem jkadSubsystem;
     private static final Logger logger = Logger.getLogger(JkadSubsystem.class);
 
+    /** Interval in ms in which the pushed items are stored again */
+    public static final long REPUBLISH_INTERVAL = Bep44Node.ITEM_TTL / 2;
+
     private JKad jKad;
     private KademliaPeer<?> peer;
 
+    private final Bep44Node node;
+    private final EdDSAPrivateKey signingKey;
+    private final ExecutorService lookupExecutor;
+    private final ScheduledExecutorService republishExecutor;
+
+    /** Last pushed item per location (hex) */
+    private final ConcurrentHashMap<String, Published> published = new ConcurrentHashMap<String, Published>();
+
+    private static class Published {
+        final Bep44Node.MutableItem item;
+        final long pushed = System.currentTimeMillis();
+
+        Published(Bep44Node.MutableItem item) {
+            this.item = item;
+        }
+    }
+
     private JkadSubsystem() {
+        this(createNode(), Storage.getInstance().getMasterSigningKey());
+
+        Thread bootstrapThread = new Thread("JKad-bootstrap") {
+            @Override
+            public void run() {
+                startPeer();
+                bootstrapNode();
+            }
+        };
+        bootstrapThread.setDaemon(true);
+        bootstrapThread.start();
+    }
+
+    /**
+     * Use an already started (and bootstrapped) node. The JKad peer is not
+     * created in this case.
+     * @param node          BEP 44 node
+     * @param signingKey    ed25519 key which signs the mutable items
+     */
+    public JkadSubsystem(Bep44Node node, PrivateKey signingKey) {
+        this.node = node;
+        this.signingKey = (EdDSAPrivateKey) signingKey;
+        this.lookupExecutor = Executors.newFixedThreadPool(Math.max(1, ServerConfigDefaults.JKAD_PARALLEL_LOOKUPS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "JKad-lookup");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.republishExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JKad-republish");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        republishExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    republish();
+                } catch (RuntimeException e) {
+                    logger.error("#republish: failed", e);
+                }
+            }
+        }, REPUBLISH_INTERVAL, REPUBLISH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static Bep44Node createNode() {
+        try {
+            Bep44Node node = new Bep44Node(ServerConfigDefaults.JKAD_LISTEN_IP,
+                    ServerConfigDefaults.JKAD_BEP44_PORT,
+                    ServerConfigDefaults.JKAD_ALPHA,
+                    ServerConfigDefaults.JKAD_QUERY_TIMEOUT);
+            node.start();
+            return node;
+        } catch (SocketException e) {
+            throw new RuntimeException("Couldn't bind BEP 44 node to port " + ServerConfigDefaults.JKAD_BEP44_PORT, e);
+        }
+    }
+
+    private void startPeer() {
         logger.info("JKad (Starting...)");
 
         this.jKad = JKad.getInstance();
@@ -60,6 +165,21 @@ public class JkadSubsystem extends ExternalKeyDistributionStorage {
         }
     }
 
+    private void bootstrapNode() {
+        String[] bootstrapServers = ServerConfigDefaults.JKAD_BOOTSTRAP_HOST.split(";");
+        for (String bootstrap : bootstrapServers) {
+            String[] hostPort = bootstrap.split(":");
+            if (hostPort.length != 2) {
+                continue;
+            }
+            logger.info("Bootstrapping BEP 44 node to " + bootstrap + "...");
+            boolean success = node.bootstrap(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+            logger.info("Bootstrapping BEP 44 node " + (success ? "successful (" + node.getContactCount() + " contacts)." : "unsuccessfull!"));
+            if (success)
+                break;
+        }
+    }
+
     public String getIdentifier() {
         return "JKadDHT";
     }
@@ -72,14 +192,69 @@ public class JkadSubsystem extends ExternalKeyDistributionStorage {
      *          to Vanish-Vuze/JKad connection issue)
      */
     public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    /**
+     * Get multiple data items from the DHT and return as soon as
+     * <code>threshold</code> items were found. The remaining lookups are
+     * cancelled.
+     * @param locations    Locations to query
+     * @param threshold    Number of items that are sufficient for the caller
+     * @return  Data array (not found items are <code>null</code>) or null if
+     *          there was an error
+     */
+    @Override
+    public byte[][] getBulkData(final byte[][] locations, int threshold) {
         String s = "";
         for(byte[] loc : locations) {
             s += "\n" + Hex.encodeHexString(loc);
         }
         logger.debug("#getBulkData: " + s);
 
-        logger.error("JKad is not implemented");
-        return null;
+        final byte[] publicKey = signingKey.getAbyte();
+        byte[][] result = new byte[locations.length][];
+
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(lookupExecutor);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(locations.length);
+        final byte[][] values = new byte[locations.length][];
+        for (int i = 0; i < locations.length; i++) {
+            final int index = i;
+            futures.add(completionService.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Bep44Node.MutableItem item = node.get(publicKey, locations[index]);
+                    if (item != null) {
+                        values[index] = item.value;
+                    }
+                    return index;
+                }
+            }));
+        }
+
+        int found = 0;
+        try {
+            for (int i = 0; i < locations.length && found < threshold; i++) {
+                int index = completionService.take().get();
+                if (values[index] != null) {
+                    result[index] = values[index];
+                    found++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("#getBulkData: interrupted", e);
+            return null;
+        } catch (ExecutionException e) {
+            logger.error("#getBulkData: lookup failed", e.getCause());
+            return null;
+        } finally {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+        }
+        logger.debug("#getBulkData: found " + found + "/" + locations.length);
+        return result;
     }
 
     /**
@@ -97,8 +272,89 @@ public class JkadSubsystem extends ExternalKeyDistributionStorage {
         }
         logger.debug("#pushBulkData: " + s);
 
-        logger.error("JKad is not implemented");
-        return false;
+        // the sequence number only needs to increase between updates
+        final long seq = System.currentTimeMillis();
+        final byte[] publicKey = signingKey.getAbyte();
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(locations.length);
+        for (int i = 0; i < locations.length; i++) {
+            if (data[i].length > Bep44Node.MAX_VALUE_LENGTH) {
+                logger.error("#pushBulkData: value of " + data[i].length + " bytes exceeds BEP 44 limit");
+                return false;
+            }
+            final byte[] salt = locations[i];
+            final byte[] value = data[i];
+            futures.add(lookupExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+                    engine.initSign(signingKey);
+                    engine.update(Bep44Node.signatureBuffer(salt, seq, value));
+                    byte[] signature = engine.sign();
+
+                    Bep44Node.MutableItem item = new Bep44Node.MutableItem(value, publicKey, salt, seq, signature);
+                    published.put(Hex.encodeHexString(salt), new Published(item));
+                    return node.put(item) > 0;
+                }
+            }));
+        }
+
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                success &= future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("#pushBulkData: interrupted", e);
+                return false;
+            } catch (ExecutionException e) {
+                logger.error("#pushBulkData: put failed", e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Store the pushed items again before they expire at the other nodes.
+     * Locations that weren't pushed for two main event intervals are no
+     * longer maintained by the job queue and are dropped.
+     * @return  Number of items that were stored again
+     */
+    public int republish() {
+        long now = System.currentTimeMillis();
+        long maxAge = Math.max(2L * 60 * 1000 * ServerConfigDefaults.JQ_MAIN_EVENT_INTERVAL, Bep44Node.ITEM_TTL);
+
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(published.size());
+        for (Map.Entry<String, Published> entry : published.entrySet()) {
+            if (entry.getValue().pushed + maxAge < now) {
+                published.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+            final Bep44Node.MutableItem item = entry.getValue().item;
+            futures.add(lookupExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return node.put(item);
+                }
+            }));
+        }
+
+        int republished = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                if (future.get() > 0) {
+                    republished++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                logger.warn("#republish: put failed", e.getCause());
+            }
+        }
+        logger.info("#republish: stored " + republished + "/" + futures.size() + " items again");
+        return republished;
     }
 
     public static JkadSubsystem getInstance() {
@@ -0,0 +1,72 @@
+package integration.external;
+
+/**
+ * Latency histogram with logarithmic buckets (about 10% resolution) between
+ * 1 ms and roughly 2 minutes. Old samples lose weight: when the histogram
+ * holds <code>maxSamples</code> samples, all counts are halved, so the
+ * percentiles follow changes of a backend within a few hundred operations.
+ */
+public class LatencyHistogram {
+    private static final double BASE = 1.1;
+    private static final int BUCKETS = 125; // 1.1^124 ms ~ 135 s
+
+    private final long[] counts = new long[BUCKETS];
+    private final long maxSamples;
+    private long total;
+
+    public LatencyHistogram() {
+        this(1000);
+    }
+
+    public LatencyHistogram(long maxSamples) {
+        this.maxSamples = Math.max(2, maxSamples);
+    }
+
+    private static int bucket(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        int b = (int) Math.ceil(Math.log(millis) / Math.log(BASE));
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(BASE, bucket));
+    }
+
+    public synchronized void record(long millis) {
+        if (total >= maxSamples) {
+            total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] /= 2;
+                total += counts[i];
+            }
+        }
+        counts[bucket(millis)]++;
+        total++;
+    }
+
+    /**
+     * @param percentile    Percentile between 0 and 100
+     * @return  Upper bound of the bucket which contains the percentile in ms
+     *          or -1 if there are no samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public synchronized long getCount() {
+        return total;
+    }
+}
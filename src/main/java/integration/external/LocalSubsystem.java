@@ -0,0 +1,451 @@
+package integration.external;
+
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded key value store for single node deployments and benchmarks. The
+ * items are appended to a memory mapped log file and found through an open
+ * addressing hash index which lives off-heap.
+ *
+ * <p>Log file layout: an 8 byte file header (magic and version) followed by
+ * records of the form
+ * <code>crc32(4) | length(4) | expires(8) | location(20) | value(length)</code>.
+ * The CRC covers everything after itself, so a record that was only partially
+ * written when the process died is detected on startup and the log is
+ * truncated there.</p>
+ *
+ * <p>Items expire after a fixed time to live. Expired and overwritten
+ * records are dropped by a compaction, which writes the live records into a
+ * new file and replaces the log with it. A compaction runs when the log is
+ * full or more than half of it is dead.</p>
+ */
+public class LocalSubsystem extends ExternalKeyDistributionStorage {
+    private static LocalSubsystem localSubsystem;
+    private static final Logger logger = Logger.getLogger(LocalSubsystem.class);
+
+    private static final String LOG_NAME = "ekds.log";
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private static final int MAGIC = 0x454b4453; // "EKDS"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final int LOCATION_SIZE = 20;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + LOCATION_SIZE;
+
+    /* index slot: location(20) | record offset + 1 (8), offset 0 marks an empty slot */
+    private static final int SLOT_SIZE = LOCATION_SIZE + 8;
+    private static final int INITIAL_SLOTS = 1 << 14;
+
+    private final File directory;
+    private final long ttl;
+    private final boolean sync;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long capacity;
+    private RandomAccessFile file;
+    private MappedByteBuffer log;
+    private long writePosition;
+    private long liveBytes;
+
+    private ByteBuffer index;
+    private int slots;
+    private int usedSlots;
+
+    private LocalSubsystem() throws IOException {
+        this(new File(ServerConfigDefaults.LOCAL_PATH),
+                ServerConfigDefaults.LOCAL_CAPACITY * 1024L * 1024L,
+                ServerConfigDefaults.LOCAL_TTL * 60L * 1000L,
+                ServerConfigDefaults.LOCAL_SYNC);
+    }
+
+    /**
+     * Open (or create) the store in <code>directory</code> and recover the
+     * index from the log.
+     * @param directory    Directory of the log file
+     * @param capacity     Initial size of the log file in bytes
+     * @param ttl          Time to live of an item in milliseconds
+     * @param sync         Force every bulk push to disk
+     * @throws IOException if the log couldn't be opened or has a wrong format
+     */
+    public LocalSubsystem(File directory, long capacity, long ttl, boolean sync) throws IOException {
+        this.directory = directory;
+        this.ttl = ttl;
+        this.sync = sync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create directory " + directory);
+        }
+
+        // a compaction which didn't finish leaves the old log intact
+        File unfinished = new File(directory, LOG_NAME + COMPACT_SUFFIX);
+        if (unfinished.exists() && !unfinished.delete()) {
+            logger.warn("Couldn't delete unfinished compaction " + unfinished);
+        }
+
+        File logFile = new File(directory, LOG_NAME);
+        boolean exists = logFile.exists() && logFile.length() >= FILE_HEADER_SIZE;
+        this.capacity = Math.max(capacity, exists ? logFile.length() : 0);
+        if (this.capacity > Integer.MAX_VALUE) {
+            throw new IOException("Log capacity must not exceed " + Integer.MAX_VALUE + " bytes");
+        }
+        open(logFile, exists);
+        recover(exists);
+    }
+
+    private void open(File logFile, boolean exists) throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        file.setLength(capacity);
+        log = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (exists) {
+            if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION) {
+                throw new IOException("Not a local key storage log: " + logFile);
+            }
+        } else {
+            log.putInt(0, MAGIC);
+            log.putInt(4, VERSION);
+        }
+    }
+
+    /**
+     * Rebuild the index by scanning the log until the first record that is
+     * incomplete or corrupted.
+     */
+    private void recover(boolean exists) {
+        initIndex(INITIAL_SLOTS);
+        liveBytes = 0;
+
+        long position = FILE_HEADER_SIZE;
+        int records = 0;
+        if (exists) {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[256];
+            while (position + RECORD_HEADER_SIZE <= capacity) {
+                int length = log.getInt((int) position + 4);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > capacity) {
+                    break;
+                }
+                int checked = RECORD_HEADER_SIZE - 4 + length;
+                if (buffer.length < checked) {
+                    buffer = new byte[checked];
+                }
+                ByteBuffer record = log.duplicate();
+                record.position((int) position + 4);
+                record.get(buffer, 0, checked);
+                crc.reset();
+                crc.update(buffer, 0, checked);
+                if ((int) crc.getValue() != log.getInt((int) position)) {
+                    break;
+                }
+
+                indexPut(Arrays.copyOfRange(buffer, 12, 12 + LOCATION_SIZE), position);
+                position += RECORD_HEADER_SIZE + length;
+                records++;
+            }
+        }
+        writePosition = position;
+        logger.info("Local key storage: recovered " + records + " records, " + usedSlots + " locations, " +
+                writePosition + "/" + capacity + " bytes used");
+    }
+
+    public String getIdentifier() {
+        return "Local";
+    }
+
+    /**
+     * Get multiple data items as a bulk operation. Each element from the
+     * resulting array corresponds to each element from the given array.
+     * @param locations    Locations to read
+     * @return  Data array, unknown or expired items are <code>null</code>
+     */
+    public byte[][] getBulkData(byte[][] locations) {
+        byte[][] result = new byte[locations.length][];
+        long now = System.currentTimeMillis();
+
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < locations.length; i++) {
+                if (locations[i].length != LOCATION_SIZE) {
+                    continue;
+                }
+                long offset = indexGet(locations[i]);
+                if (offset < 0) {
+                    continue;
+                }
+                int position = (int) offset;
+                if (log.getLong(position + 8) < now) {
+                    continue; // expired
+                }
+                byte[] value = new byte[log.getInt(position + 4)];
+                ByteBuffer record = log.duplicate();
+                record.position(position + RECORD_HEADER_SIZE);
+                record.get(value);
+                result[i] = value;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Push multiple data items as a bulk operation. Each element from the
+     * <code>locations</code> array corresponds to each element from the
+     * <code>data</code> array.
+     * @param locations    Locations to push the data to
+     * @param data         Data array that needs to be pushed
+     * @return Success operation
+     */
+    public boolean pushBulkData(byte[][] locations, byte[][] data) {
+        long needed = 0;
+        for (int i = 0; i < locations.length; i++) {
+            if (locations[i].length != LOCATION_SIZE || data[i] == null || data[i].length == 0) {
+                logger.error("#pushBulkData: invalid location or empty value at " + i);
+                return false;
+            }
+            needed += RECORD_HEADER_SIZE + data[i].length;
+        }
+        long expires = System.currentTimeMillis() + ttl;
+
+        lock.writeLock().lock();
+        try {
+            ensureSpace(needed);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer out = log.duplicate();
+            out.position((int) writePosition);
+            for (int i = 0; i < locations.length; i++) {
+                byte[] record = new byte[RECORD_HEADER_SIZE + data[i].length];
+                ByteBuffer r = ByteBuffer.wrap(record);
+                r.putInt(0);
+                r.putInt(data[i].length);
+                r.putLong(expires);
+                r.put(locations[i]);
+                r.put(data[i]);
+                crc.reset();
+                crc.update(record, 4, record.length - 4);
+                r.putInt(0, (int) crc.getValue());
+
+                out.put(record);
+                indexPut(locations[i], writePosition);
+                writePosition += record.length;
+            }
+            if (sync) {
+                log.force();
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("#pushBulkData: couldn't write log", e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make room for <code>needed</code> bytes by compacting and, if that is
+     * not enough, growing the log.
+     */
+    private void ensureSpace(long needed) throws IOException {
+        boolean full = writePosition + needed > capacity;
+        boolean mostlyDead = writePosition - FILE_HEADER_SIZE > 2 * liveBytes;
+        if (!full && !mostlyDead) {
+            return;
+        }
+        if (full || writePosition > capacity / 2) {
+            compact(Math.max(capacity, 2 * (liveBytes + needed) + FILE_HEADER_SIZE));
+        }
+    }
+
+    /**
+     * Drop expired and overwritten records.
+     * @throws IOException if the new log couldn't be written
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            compact(capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compact(long newCapacity) throws IOException {
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IOException("Log capacity must not exceed " + Integer.MAX_VALUE + " bytes");
+        }
+        long start = System.currentTimeMillis();
+        File logFile = new File(directory, LOG_NAME);
+        File compactFile = new File(directory, LOG_NAME + COMPACT_SUFFIX);
+
+        RandomAccessFile target = new RandomAccessFile(compactFile, "rw");
+        int copied = 0;
+        try {
+            target.setLength(newCapacity);
+            MappedByteBuffer out = target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+
+            long now = System.currentTimeMillis();
+            ByteBuffer in = log.duplicate();
+            for (int slot = 0; slot < slots; slot++) {
+                long offset = index.getLong(slot * SLOT_SIZE + LOCATION_SIZE) - 1;
+                if (offset < 0 || log.getLong((int) offset + 8) < now) {
+                    continue;
+                }
+                int length = RECORD_HEADER_SIZE + log.getInt((int) offset + 4);
+                in.limit((int) offset + length);
+                in.position((int) offset);
+                out.put(in);
+                in.limit(in.capacity());
+                copied++;
+            }
+            out.force();
+        } finally {
+            target.close();
+        }
+
+        file.close();
+        if (!compactFile.renameTo(logFile)) {
+            // not atomic on every platform, the old log is already complete on disk
+            if (!logFile.delete() || !compactFile.renameTo(logFile)) {
+                throw new IOException("Couldn't replace " + logFile + " with compacted log");
+            }
+        }
+
+        capacity = newCapacity;
+        open(logFile, true);
+        recover(true);
+        logger.info("#compact: kept " + copied + " records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void initIndex(int slotCount) {
+        slots = slotCount;
+        usedSlots = 0;
+        index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+    }
+
+    private static int hash(byte[] location) {
+        int h = (location[0] & 0xff) | (location[1] & 0xff) << 8 | (location[2] & 0xff) << 16 | (location[3] & 0xff) << 24;
+        // murmur3 finalizer, locations are not necessarily uniformly distributed
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Linear probing for the slot of <code>location</code>.
+     * @return  Slot of the location or the empty slot where it belongs
+     */
+    private int findSlot(byte[] location) {
+        int mask = slots - 1;
+        int slot = hash(location) & mask;
+        while (true) {
+            int base = slot * SLOT_SIZE;
+            if (index.getLong(base + LOCATION_SIZE) == 0) {
+                return slot;
+            }
+            boolean equal = true;
+            for (int i = 0; i < LOCATION_SIZE; i++) {
+                if (index.get(base + i) != location[i]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long indexGet(byte[] location) {
+        return index.getLong(findSlot(location) * SLOT_SIZE + LOCATION_SIZE) - 1;
+    }
+
+    private void indexPut(byte[] location, long offset) {
+        if ((usedSlots + 1) * 2 > slots) {
+            growIndex();
+        }
+        int base = findSlot(location) * SLOT_SIZE;
+        long previous = index.getLong(base + LOCATION_SIZE) - 1;
+        if (previous < 0) {
+            usedSlots++;
+            for (int i = 0; i < LOCATION_SIZE; i++) {
+                index.put(base + i, location[i]);
+            }
+        } else {
+            liveBytes -= RECORD_HEADER_SIZE + log.getInt((int) previous + 4);
+        }
+        index.putLong(base + LOCATION_SIZE, offset + 1);
+        liveBytes += RECORD_HEADER_SIZE + log.getInt((int) offset + 4);
+    }
+
+    private void growIndex() {
+        ByteBuffer old = index;
+        int oldSlots = slots;
+        initIndex(slots * 2);
+
+        byte[] location = new byte[LOCATION_SIZE];
+        for (int slot = 0; slot < oldSlots; slot++) {
+            int base = slot * SLOT_SIZE;
+            long stored = old.getLong(base + LOCATION_SIZE);
+            if (stored == 0) {
+                continue;
+            }
+            for (int i = 0; i < LOCATION_SIZE; i++) {
+                location[i] = old.get(base + i);
+            }
+            int newBase = findSlot(location) * SLOT_SIZE;
+            for (int i = 0; i < LOCATION_SIZE; i++) {
+                index.put(newBase + i, location[i]);
+            }
+            index.putLong(newBase + LOCATION_SIZE, stored);
+            usedSlots++;
+        }
+    }
+
+    /**
+     * Flush and close the log file.
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.force();
+            file.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static LocalSubsystem getInstance() {
+        if (localSubsystem == null) {
+            try {
+                localSubsystem = new LocalSubsystem();
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't open local key storage in " + ServerConfigDefaults.LOCAL_PATH, e);
+            }
+        }
+        return localSubsystem;
+    }
+
+    public static LocalSubsystem setInstance(LocalSubsystem localSubsystemNew) {
+        localSubsystem = localSubsystemNew;
+        return localSubsystem;
+    }
+}
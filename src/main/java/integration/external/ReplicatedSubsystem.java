@@ -0,0 +1,309 @@
+package integration.external;
+
+import org.apache.log4j.Logger;
+import rest.ServerConfigDefaults;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Composite storage which replicates every item to several backends. Pushes
+ * go to all backends in parallel and succeed if at least
+ * {@link ServerConfigDefaults#REPLICATED_WRITE_QUORUM} backends accepted the
+ * data.
+ *
+ * <p>Reads are hedged: the backend with the lowest median latency is asked
+ * first. If it didn't answer within its own
+ * {@link ServerConfigDefaults#REPLICATED_HEDGE_PERCENTILE} latency (or gave
+ * an unusable answer), the next backend is asked as well. The first answer
+ * which contains enough items wins. Backends without latency samples are
+ * preferred, so every backend gets measured. A failed read counts like a
+ * read that timed out, so a backend which fails fast isn't taken for the
+ * fastest one.</p>
+ *
+ * <p>All backends use the same identifier, so the locations (which are
+ * derived from it) don't depend on the backend.</p>
+ */
+public class ReplicatedSubsystem extends ExternalKeyDistributionStorage {
+    private static ReplicatedSubsystem replicatedSubsystem;
+    private static final Logger logger = Logger.getLogger(ReplicatedSubsystem.class);
+
+    /** Hedging delay for a backend without latency samples in ms */
+    private static final long DEFAULT_HEDGE_DELAY = 500;
+
+    /** Latency that is recorded for a failed read in ms */
+    private static final long FAILED_READ_LATENCY = 30000;
+
+    private final List<ExternalKeyDistributionStorage> backends;
+    private final Map<ExternalKeyDistributionStorage, LatencyHistogram> readLatency;
+    private final Map<ExternalKeyDistributionStorage, LatencyHistogram> writeLatency;
+    private final double hedgePercentile;
+    private final int writeQuorum;
+    private final ExecutorService executor;
+
+    private ReplicatedSubsystem() {
+        this(createBackends(ServerConfigDefaults.REPLICATED_PROVIDERS), ServerConfigDefaults.REPLICATED_HEDGE_PERCENTILE,
+                ServerConfigDefaults.REPLICATED_WRITE_QUORUM);
+    }
+
+    /**
+     * Pushes have to be accepted by every backend.
+     * @param backends           Storage backends (at least one)
+     * @param hedgePercentile    Latency percentile of a backend after which
+     *                           the next backend is asked
+     */
+    public ReplicatedSubsystem(List<ExternalKeyDistributionStorage> backends, double hedgePercentile) {
+        this(backends, hedgePercentile, 0);
+    }
+
+    /**
+     * @param backends           Storage backends (at least one)
+     * @param hedgePercentile    Latency percentile of a backend after which
+     *                           the next backend is asked
+     * @param writeQuorum        Number of backends that have to accept a
+     *                           push (0 for all)
+     */
+    public ReplicatedSubsystem(List<ExternalKeyDistributionStorage> backends, double hedgePercentile, int writeQuorum) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is needed");
+        }
+        this.backends = new ArrayList<ExternalKeyDistributionStorage>(backends);
+        this.hedgePercentile = hedgePercentile;
+        this.writeQuorum = writeQuorum <= 0 || writeQuorum > backends.size() ? backends.size() : writeQuorum;
+        this.readLatency = new HashMap<ExternalKeyDistributionStorage, LatencyHistogram>();
+        this.writeLatency = new HashMap<ExternalKeyDistributionStorage, LatencyHistogram>();
+        for (ExternalKeyDistributionStorage backend : backends) {
+            readLatency.put(backend, new LatencyHistogram());
+            writeLatency.put(backend, new LatencyHistogram());
+        }
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Replicated-EKDS");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static List<ExternalKeyDistributionStorage> createBackends(String providers) {
+        List<ExternalKeyDistributionStorage> backends = new ArrayList<ExternalKeyDistributionStorage>();
+        for (String name : providers.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            ServerConfigDefaults.ExternalKeyDistributionStorageProvider provider =
+                    ServerConfigDefaults.ExternalKeyDistributionStorageProvider.valueOf(name);
+            if (provider == ServerConfigDefaults.ExternalKeyDistributionStorageProvider.REPLICATED) {
+                throw new RuntimeException("REPLICATED can't be a backend of itself");
+            }
+            backends.add(ExternalKeyDistributionStorage.getInstance(provider));
+        }
+        logger.info("Replicating to " + providers);
+        return backends;
+    }
+
+    public String getIdentifier() {
+        return "Replicated";
+    }
+
+    @Override
+    public int getItemIdentifierSize() {
+        int size = Integer.MAX_VALUE;
+        for (ExternalKeyDistributionStorage backend : backends) {
+            size = Math.min(size, backend.getItemIdentifierSize());
+        }
+        return size;
+    }
+
+    public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    /**
+     * Hedged read over the backends.
+     * @param locations    Locations to query
+     * @param threshold    Number of items that make an answer usable
+     * @return  First usable answer, otherwise the answer with the most items
+     *          or null if every backend failed
+     */
+    @Override
+    public byte[][] getBulkData(final byte[][] locations, final int threshold) {
+        final int needed = Math.max(0, Math.min(threshold, locations.length));
+        List<ExternalKeyDistributionStorage> order = readOrder();
+
+        CompletionService<byte[][]> completionService = new ExecutorCompletionService<byte[][]>(executor);
+        int started = 0;
+        int finished = 0;
+        byte[][] best = null;
+        int bestCount = -1;
+
+        try {
+            while (finished < order.size()) {
+                if (started == finished && started < order.size()) {
+                    submitRead(completionService, order.get(started++), locations, needed);
+                }
+
+                Future<byte[][]> done;
+                if (started < order.size()) {
+                    long delay = hedgeDelay(order.get(started - 1));
+                    done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        logger.debug("#getBulkData: hedging to " + order.get(started).getIdentifier() + " after " + delay + " ms");
+                        submitRead(completionService, order.get(started++), locations, needed);
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
+                finished++;
+
+                byte[][] result;
+                try {
+                    result = done.get();
+                } catch (ExecutionException e) {
+                    logger.warn("#getBulkData: backend failed", e.getCause());
+                    continue;
+                }
+                if (result == null) {
+                    continue;
+                }
+                int count = countItems(result);
+                if (count >= needed) {
+                    return result;
+                }
+                if (count > bestCount) {
+                    best = result;
+                    bestCount = count;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("#getBulkData: interrupted", e);
+        }
+        return best;
+    }
+
+    private void submitRead(CompletionService<byte[][]> completionService, final ExternalKeyDistributionStorage backend,
+                            final byte[][] locations, final int threshold) {
+        completionService.submit(new Callable<byte[][]>() {
+            @Override
+            public byte[][] call() throws Exception {
+                long start = System.currentTimeMillis();
+                byte[][] result = null;
+                try {
+                    result = backend.getBulkData(locations, threshold);
+                    return result;
+                } finally {
+                    long latency = System.currentTimeMillis() - start;
+                    readLatency.get(backend).record(result == null ? Math.max(latency, FAILED_READ_LATENCY) : latency);
+                }
+            }
+        });
+    }
+
+    /**
+     * Push the data to all backends in parallel.
+     * @param locations    Locations to push the data to
+     * @param data         Data array that needs to be pushed
+     * @return  Whether at least the write quorum of backends stored the data
+     */
+    public boolean pushBulkData(final byte[][] locations, final byte[][] data) {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(backends.size());
+        for (final ExternalKeyDistributionStorage backend : backends) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    long start = System.currentTimeMillis();
+                    boolean success = backend.pushBulkData(locations, data);
+                    writeLatency.get(backend).record(System.currentTimeMillis() - start);
+                    if (!success) {
+                        logger.warn("#pushBulkData: " + backend.getIdentifier() + " failed");
+                    }
+                    return success;
+                }
+            }));
+        }
+
+        int accepted = 0;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (future.get()) {
+                    accepted++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("#pushBulkData: interrupted", e);
+                return false;
+            } catch (ExecutionException e) {
+                logger.error("#pushBulkData: backend failed", e.getCause());
+            }
+        }
+        if (accepted < writeQuorum) {
+            logger.warn("#pushBulkData: only " + accepted + " of " + backends.size() + " backends stored the data, "
+                    + writeQuorum + " are needed");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return  Backends ordered by median read latency, unmeasured first
+     */
+    private List<ExternalKeyDistributionStorage> readOrder() {
+        final Map<ExternalKeyDistributionStorage, Long> median = new HashMap<ExternalKeyDistributionStorage, Long>();
+        for (ExternalKeyDistributionStorage backend : backends) {
+            median.put(backend, readLatency.get(backend).percentile(50));
+        }
+        List<ExternalKeyDistributionStorage> order = new ArrayList<ExternalKeyDistributionStorage>(backends);
+        Collections.sort(order, new Comparator<ExternalKeyDistributionStorage>() {
+            @Override
+            public int compare(ExternalKeyDistributionStorage o1, ExternalKeyDistributionStorage o2) {
+                return median.get(o1).compareTo(median.get(o2));
+            }
+        });
+        return order;
+    }
+
+    private long hedgeDelay(ExternalKeyDistributionStorage backend) {
+        long delay = readLatency.get(backend).percentile(hedgePercentile);
+        return delay < 0 ? DEFAULT_HEDGE_DELAY : delay;
+    }
+
+    private static int countItems(byte[][] result) {
+        int count = 0;
+        for (byte[] item : result) {
+            if (item != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return  Read latency histogram of the backend or <code>null</code>
+     */
+    public LatencyHistogram getReadLatency(ExternalKeyDistributionStorage backend) {
+        return readLatency.get(backend);
+    }
+
+    /**
+     * @return  Write latency histogram of the backend or <code>null</code>
+     */
+    public LatencyHistogram getWriteLatency(ExternalKeyDistributionStorage backend) {
+        return writeLatency.get(backend);
+    }
+
+    public static ReplicatedSubsystem getInstance() {
+        if (replicatedSubsystem == null) {
+            replicatedSubsystem = new ReplicatedSubsystem();
+        }
+        return replicatedSubsystem;
+    }
+
+    public static ReplicatedSubsystem setInstance(ReplicatedSubsystem replicatedSubsystemNew) {
+        replicatedSubsystem = replicatedSubsystemNew;
+        return replicatedSubsystem;
+    }
+}
@@ -0,0 +1,219 @@
+package integration.external;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary frame layout of the Shex batch endpoint (<code>POST {SHEX_URI}batch</code>).
+ * A single frame carries all locations (and values) of a bulk call, so that
+ * a bulk operation costs exactly one round trip.
+ *
+ * <p>Request:</p>
+ * <pre>
+ * magic(2) | version(1) | op(1) | count(4) | item*
+ *   GET item:  len(location)(1) | location
+ *   PUT item:  len(location)(1) | location | len(value)(4) | value
+ * </pre>
+ *
+ * <p>Response:</p>
+ * <pre>
+ * magic(2) | version(1) | count(4) | item*
+ *   item: status(1) [| len(value)(4) | value]    value only for GET with status OK
+ * </pre>
+ *
+ * All integers are big-endian.
+ */
+public class ShexBatchFrame {
+    public static final int MAGIC = 0x5342; // "SB"
+    public static final int VERSION = 1;
+
+    public static final int OP_GET = 1;
+    public static final int OP_PUT = 2;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_NOT_FOUND = 1;
+    public static final int STATUS_ERROR = 2;
+
+    /**
+     * Upper bound for the number of items of a frame so that a corrupt count
+     * field can't trigger a huge allocation. Larger bulk calls fall back to
+     * single requests.
+     */
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /**
+     * Upper bound for a single value so that a corrupt length field can't
+     * trigger a huge allocation.
+     */
+    private static final int MAX_VALUE_LENGTH = 1 << 20;
+
+    public final int op;
+    public final byte[][] locations;
+    public final byte[][] values;
+
+    public ShexBatchFrame(int op, byte[][] locations, byte[][] values) {
+        this.op = op;
+        this.locations = locations;
+        this.values = values;
+    }
+
+    /**
+     * Serialize a request frame.
+     * @param op           {@link #OP_GET} or {@link #OP_PUT}
+     * @param locations    Locations (each at most 255 bytes long)
+     * @param values       Values for {@link #OP_PUT} (ignored for {@link #OP_GET})
+     * @return  Request frame
+     * @throws IOException if a location is too long or there are more than
+     *          {@link #MAX_BATCH_SIZE} locations
+     */
+    public static byte[] encodeRequest(int op, byte[][] locations, byte[][] values) throws IOException {
+        if (locations.length > MAX_BATCH_SIZE) {
+            throw new IOException("Too many batch items: " + locations.length);
+        }
+        int size = 8;
+        for (int i = 0; i < locations.length; i++) {
+            size += 1 + locations[i].length;
+            if (op == OP_PUT) {
+                size += 4 + values[i].length;
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(op);
+        out.writeInt(locations.length);
+        for (int i = 0; i < locations.length; i++) {
+            if (locations[i].length > 255) {
+                throw new IOException("Location " + i + " is too long: " + locations[i].length);
+            }
+            out.writeByte(locations[i].length);
+            out.write(locations[i]);
+            if (op == OP_PUT) {
+                out.writeInt(values[i].length);
+                out.write(values[i]);
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Parse a request frame (server side).
+     * @param in    Request body
+     * @return  Parsed frame; <code>values</code> is <code>null</code> for GET frames
+     * @throws IOException if the frame is malformed
+     */
+    public static ShexBatchFrame decodeRequest(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        readHeader(din);
+        int op = din.readUnsignedByte();
+        if (op != OP_GET && op != OP_PUT) {
+            throw new IOException("Unknown batch operation: " + op);
+        }
+        int count = readCount(din);
+
+        byte[][] locations = new byte[count][];
+        byte[][] values = op == OP_PUT ? new byte[count][] : null;
+        for (int i = 0; i < count; i++) {
+            locations[i] = new byte[din.readUnsignedByte()];
+            din.readFully(locations[i]);
+            if (op == OP_PUT) {
+                values[i] = new byte[readValueLength(din)];
+                din.readFully(values[i]);
+            }
+        }
+        return new ShexBatchFrame(op, locations, values);
+    }
+
+    /**
+     * Serialize a response frame (server side).
+     * @param op          Operation of the corresponding request
+     * @param statuses    Status per item
+     * @param values      Values per item for {@link #OP_GET} (only written
+     *                    for items with {@link #STATUS_OK})
+     * @return  Response frame
+     */
+    public static byte[] encodeResponse(int op, int[] statuses, byte[][] values) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(7 + statuses.length * 64);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            out.writeByte(statuses[i]);
+            if (op == OP_GET && statuses[i] == STATUS_OK) {
+                out.writeInt(values[i].length);
+                out.write(values[i]);
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Parse a response frame (client side).
+     * @param op          Operation of the request that was sent
+     * @param expected    Number of items that were sent
+     * @param in          Response body
+     * @param statuses    Output: status per item
+     * @return  Values per item (<code>null</code> entries if the item had no
+     *          value or the operation was not {@link #OP_GET})
+     * @throws IOException if the frame is malformed or the item count doesn't match
+     */
+    public static byte[][] decodeResponse(int op, int expected, InputStream in, int[] statuses) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        readHeader(din);
+        int count = readCount(din);
+        if (count != expected) {
+            throw new IOException("Batch response has " + count + " items, but " + expected + " were requested");
+        }
+
+        byte[][] values = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            statuses[i] = din.readUnsignedByte();
+            if (op == OP_GET && statuses[i] == STATUS_OK) {
+                values[i] = new byte[readValueLength(din)];
+                din.readFully(values[i]);
+            }
+        }
+        return values;
+    }
+
+    private static void readHeader(DataInputStream din) throws IOException {
+        int magic;
+        try {
+            magic = din.readUnsignedShort();
+        } catch (EOFException e) {
+            throw new IOException("Empty batch frame", e);
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a batch frame (magic " + Integer.toHexString(magic) + ")");
+        }
+        int version = din.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported batch frame version: " + version);
+        }
+    }
+
+    private static int readCount(DataInputStream din) throws IOException {
+        int count = din.readInt();
+        if (count < 0 || count > MAX_BATCH_SIZE) {
+            throw new IOException("Illegal item count: " + count);
+        }
+        return count;
+    }
+
+    private static int readValueLength(DataInputStream din) throws IOException {
+        int length = din.readInt();
+        if (length < 0 || length > MAX_VALUE_LENGTH) {
+            throw new IOException("Illegal value length: " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,166 @@
+package integration.external;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.restlet.Application;
+import org.restlet.Component;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Protocol;
+import org.restlet.data.Status;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.Put;
+import org.restlet.resource.ServerResource;
+import org.restlet.routing.Router;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory reference implementation of the Shex protocol which is spoken by
+ * {@link ShexSubsystem}. It is meant as a stand-in for local testing and
+ * benchmarking and doesn't persist anything.
+ *
+ * <ul>
+ *     <li><code>GET /{base64url(location)}</code> returns <code>base64url(value)</code></li>
+ *     <li><code>PUT /{base64url(location)}</code> stores <code>base64url(value)</code></li>
+ *     <li><code>GET|PUT /x/{hex(location)}</code> with raw
+ *     <code>application/octet-stream</code> values</li>
+ *     <li><code>POST /batch</code> handles a {@link ShexBatchFrame}</li>
+ *     <li><code>GET /capabilities</code> lists the supported extensions</li>
+ * </ul>
+ */
+public class ShexStandInServer extends Application {
+    private static final Logger logger = Logger.getLogger(ShexStandInServer.class);
+
+    /* hex(location) -> value */
+    private static final ConcurrentHashMap<String, byte[]> store = new ConcurrentHashMap<String, byte[]>();
+
+    @Override
+    public synchronized Restlet createInboundRoot() {
+        Router router = new Router(getContext());
+        router.setRoutingMode(Router.MODE_FIRST_MATCH);
+        router.attach("/capabilities", CapabilitiesResource.class);
+        router.attach("/batch", BatchResource.class);
+        router.attach("/x/{location}", BinaryItemResource.class);
+        router.attach("/{location}", ItemResource.class);
+        return router;
+    }
+
+    /**
+     * Start a stand-in server on the given port.
+     * @param port    HTTP port to listen on
+     * @return  Started component (call {@link Component#stop()} to shut it down)
+     * @throws Exception if the server couldn't be started
+     */
+    public static Component start(int port) throws Exception {
+        Component component = new Component();
+        component.getServers().add(Protocol.HTTP, "127.0.0.1", port);
+        component.getDefaultHost().attach(new ShexStandInServer());
+        component.start();
+        return component;
+    }
+
+    /**
+     * Remove all stored values.
+     */
+    public static void clear() {
+        store.clear();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        start(port);
+        logger.info("Shex stand-in listening on port " + port);
+    }
+
+    public static class ItemResource extends ServerResource {
+        private String getKey() {
+            String location = "" + getRequest().getAttributes().get("location");
+            return Hex.encodeHexString(Base64.decodeBase64(location));
+        }
+
+        @Get
+        public Representation read() {
+            byte[] value = store.get(getKey());
+            if (value == null) {
+                setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+                return null;
+            }
+            return new StringRepresentation(Base64.encodeBase64URLSafeString(value));
+        }
+
+        @Put
+        public Representation write(Representation entity) throws IOException {
+            store.put(getKey(), Base64.decodeBase64(entity.getText()));
+            return new StringRepresentation("OK");
+        }
+    }
+
+    public static class BinaryItemResource extends ServerResource {
+        private String getKey() {
+            return ("" + getRequest().getAttributes().get("location")).toLowerCase();
+        }
+
+        @Get
+        public Representation read() {
+            byte[] value = store.get(getKey());
+            if (value == null) {
+                setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+                return null;
+            }
+            return new InputRepresentation(new ByteArrayInputStream(value), MediaType.APPLICATION_OCTET_STREAM, value.length);
+        }
+
+        @Put
+        public Representation write(Representation entity) throws IOException {
+            store.put(getKey(), IOUtils.toByteArray(entity.getStream()));
+            return new StringRepresentation("OK");
+        }
+    }
+
+    public static class CapabilitiesResource extends ServerResource {
+        @Get
+        public Representation capabilities() {
+            return new StringRepresentation(ShexSubsystem.CAPABILITY_BATCH + " " + ShexSubsystem.CAPABILITY_BINARY);
+        }
+    }
+
+    public static class BatchResource extends ServerResource {
+        @Post
+        public Representation batch(Representation entity) throws IOException {
+            ShexBatchFrame frame;
+            try {
+                frame = ShexBatchFrame.decodeRequest(entity.getStream());
+            } catch (IOException e) {
+                logger.warn("#batch: malformed request frame", e);
+                setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+                return null;
+            }
+
+            int count = frame.locations.length;
+            int[] statuses = new int[count];
+            byte[][] values = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                String key = Hex.encodeHexString(frame.locations[i]);
+                if (frame.op == ShexBatchFrame.OP_PUT) {
+                    store.put(key, frame.values[i]);
+                    statuses[i] = ShexBatchFrame.STATUS_OK;
+                } else {
+                    values[i] = store.get(key);
+                    statuses[i] = values[i] == null ? ShexBatchFrame.STATUS_NOT_FOUND : ShexBatchFrame.STATUS_OK;
+                }
+            }
+
+            byte[] response = ShexBatchFrame.encodeResponse(frame.op, statuses, values);
+            return new InputRepresentation(new ByteArrayInputStream(response), MediaType.APPLICATION_OCTET_STREAM, response.length);
+        }
+    }
+}
@@ -2,51 +2,305 @@ package integration.external;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.restlet.Client;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.data.MediaType;
 import org.restlet.data.Method;
+import org.restlet.data.Status;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ResourceException;
 import rest.ServerConfigDefaults;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * Shex is a lightweight storage system
+ * Shex is a lightweight storage system.
+ *
+ * <p>Before the first request the subsystem asks the server for its
+ * capabilities (<code>GET {SHEX_URI}capabilities</code>, a whitespace
+ * separated list of tokens):</p>
+ * <ul>
+ *     <li><code>batch</code>: bulk calls are sent as a single
+ *     {@link ShexBatchFrame} to the batch endpoint</li>
+ *     <li><code>binary</code>: single requests use
+ *     <code>{SHEX_URI}x/{hex(location)}</code> with raw
+ *     <code>application/octet-stream</code> values instead of Base64 text</li>
+ * </ul>
+ * <p>Servers without the capabilities endpoint are spoken to with Base64
+ * text. The batch endpoint is still tried once and remembered as
+ * unsupported if the server doesn't know it.</p>
+ *
+ * @see ShexStandInServer
  */
 public class ShexSubsystem extends ExternalKeyDistributionStorage {
     private static final Logger logger = Logger.getLogger(ShexSubsystem.class);
     private static ShexSubsystem shexSubsystem;
 
+    private static final String BATCH_PATH = "batch";
+    private static final String CAPABILITIES_PATH = "capabilities";
+    private static final String BINARY_PATH = "x/";
+
+    public static final String CAPABILITY_BATCH = "batch";
+    public static final String CAPABILITY_BINARY = "binary";
+
+    private Client client;
+
+    /**
+     * <code>null</code> as long as it is unknown whether the server supports
+     * the batch endpoint
+     */
+    private volatile Boolean batchSupported = null;
+
+    private volatile boolean binarySupported = false;
+    private volatile boolean negotiated = false;
+
+    private synchronized Client getClient() {
+        if (client == null) {
+            client = new Client(ServerConfigDefaults.SHEX_URI.split(":")[0]);
+        }
+        return client;
+    }
+
+    /**
+     * Ask the server once which transport features it supports. A server
+     * that doesn't know the capabilities endpoint is treated as a plain
+     * Base64 text server.
+     */
+    private void negotiate() {
+        if (negotiated) {
+            return;
+        }
+        synchronized (this) {
+            if (negotiated) {
+                return;
+            }
+            try {
+                Response response = getClient().handle(new Request(
+                        Method.GET,
+                        new URI(ServerConfigDefaults.SHEX_URI + CAPABILITIES_PATH).toString()
+                ));
+                if (response == null || response.getStatus() == null) {
+                    logger.warn("#negotiate: no response or status");
+                    return;
+                }
+
+                if (response.getStatus().isSuccess()) {
+                    String text = response.getEntityAsText();
+                    List<String> capabilities = Arrays.asList(text == null ? new String[0] : text.trim().split("\\s+"));
+                    binarySupported = capabilities.contains(CAPABILITY_BINARY);
+                    batchSupported = capabilities.contains(CAPABILITY_BATCH);
+                } else {
+                    binarySupported = false;
+                }
+                negotiated = true;
+                logger.info("#negotiate: batch = " + batchSupported + ", binary = " + binarySupported);
+            } catch (ResourceException e) {
+                logger.error("#negotiate: resource error", e);
+            } catch (URISyntaxException e) {
+                logger.error("#negotiate: URI invalid", e);
+            }
+        }
+    }
+
+    private boolean useBatch(byte[][] locations) {
+        return ServerConfigDefaults.SHEX_BATCH && !Boolean.FALSE.equals(batchSupported)
+                && locations.length <= ShexBatchFrame.MAX_BATCH_SIZE;
+    }
+
+    private boolean useBinary() {
+        return ServerConfigDefaults.SHEX_BINARY && binarySupported;
+    }
+
+    /**
+     * URI of a single item depending on the negotiated path encoding.
+     */
+    private String getItemUri(byte[] location) throws URISyntaxException {
+        if (useBinary()) {
+            return new URI(ServerConfigDefaults.SHEX_URI + BINARY_PATH + Hex.encodeHexString(location)).toString();
+        }
+        return new URI(ServerConfigDefaults.SHEX_URI + Base64.encodeBase64URLSafeString(location)).toString();
+    }
+
     public byte[][] getBulkData(byte[][] locations) {
-        logger.info("#getBulk: " + locations.length);
+        return getBulkData(locations, locations.length);
+    }
+
+    /**
+     * A batch request always returns every location in one round trip.
+     * Single requests stop as soon as <code>threshold</code> items were
+     * retrieved.
+     */
+    @Override
+    public byte[][] getBulkData(byte[][] locations, int threshold) {
+        logger.info("#getBulk: " + locations.length + " (threshold " + threshold + ")");
+
+        negotiate();
+        if (useBatch(locations)) {
+            byte[][] responses = getBatch(locations);
+            if (responses != null) {
+                return responses;
+            }
+        }
+
+        return getSingle(locations, threshold);
+    }
+
+    public boolean pushBulkData(byte[][] locations, byte[][] data) {
+        logger.info("#pushBulk: " + locations.length);
+
+        negotiate();
+        if (useBatch(locations)) {
+            Boolean result = pushBatch(locations, data);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        return pushSingle(locations, data);
+    }
+
+    /**
+     * Retrieve all locations in a single batch request.
+     * @param locations    Locations to query
+     * @return  Values or <code>null</code> if the batch request couldn't be
+     *          completed and the caller should fall back to single requests
+     */
+    private byte[][] getBatch(byte[][] locations) {
+        int[] statuses = new int[locations.length];
+        byte[][] responses = executeBatch(ShexBatchFrame.OP_GET, locations, null, statuses);
+        if (responses == null) {
+            return null;
+        }
+
+        int succeeded = 0;
+        for (int i = 0; i < locations.length; i++) {
+            if (statuses[i] == ShexBatchFrame.STATUS_OK) {
+                logger.debug("#getBulk: Response " + i + ": " + Hex.encodeHexString(responses[i]) + "@" + Hex.encodeHexString(locations[i]));
+                succeeded++;
+            } else {
+                logger.debug("#getBulk: Batch item " + i + " failed with status " + statuses[i]);
+            }
+        }
+
+        logger.info("#getBulk: batch done, succeeded = " + succeeded + "/" + locations.length);
+        return responses;
+    }
+
+    /**
+     * Store all locations in a single batch request.
+     * @param locations    Locations to push the data to
+     * @param data         Data array that needs to be pushed
+     * @return  Success or <code>null</code> if the batch request couldn't be
+     *          completed and the caller should fall back to single requests
+     */
+    private Boolean pushBatch(byte[][] locations, byte[][] data) {
+        int[] statuses = new int[locations.length];
+        if (executeBatch(ShexBatchFrame.OP_PUT, locations, data, statuses) == null) {
+            return null;
+        }
 
-        byte[][] responses = new byte[locations.length][];
         int succeeded = 0;
-        String protocol = ServerConfigDefaults.SHEX_URI.split(":")[0];
         for (int i = 0; i < locations.length; i++) {
+            if (statuses[i] == ShexBatchFrame.STATUS_OK) {
+                succeeded++;
+            } else {
+                logger.debug("#pushBulk: Batch item " + i + " failed with status " + statuses[i]);
+            }
+        }
+
+        logger.info("#pushBulk: batch done, succeeded = " + succeeded + "/" + locations.length);
+        return succeeded == locations.length;
+    }
+
+    /**
+     * Send a batch frame and parse the response frame. Marks the batch
+     * endpoint as unsupported if the server doesn't know it.
+     * @param op          Batch operation
+     * @param locations   Locations
+     * @param values      Values for PUT
+     * @param statuses    Output: status per item
+     * @return  Values (entries may be <code>null</code>) or <code>null</code>
+     *          if the request failed as a whole
+     */
+    private byte[][] executeBatch(int op, byte[][] locations, byte[][] values, int[] statuses) {
+        try {
+            byte[] frame = ShexBatchFrame.encodeRequest(op, locations, values);
+            Response response = getClient().handle(new Request(
+                    Method.POST,
+                    new URI(ServerConfigDefaults.SHEX_URI + BATCH_PATH).toString(),
+                    new InputRepresentation(new ByteArrayInputStream(frame), MediaType.APPLICATION_OCTET_STREAM, frame.length)
+            ));
+
+            if (response == null || response.getStatus() == null) {
+                logger.warn("#batch: no response or status");
+                return null;
+            }
+
+            Status status = response.getStatus();
+            if (status.equals(Status.CLIENT_ERROR_NOT_FOUND) ||
+                    status.equals(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED) ||
+                    status.equals(Status.SERVER_ERROR_NOT_IMPLEMENTED)) {
+                logger.info("#batch: server doesn't support batch requests (" + status.getCode() + "), falling back to single requests");
+                batchSupported = Boolean.FALSE;
+                return null;
+            }
+            InputStream body = status.isSuccess() && response.getEntity() != null ? response.getEntity().getStream() : null;
+            if (body == null) {
+                logger.warn("#batch: request failed with status " + status.getCode() + " or has no content");
+                return null;
+            }
+
+            byte[][] result = ShexBatchFrame.decodeResponse(op, locations.length, body, statuses);
+            batchSupported = Boolean.TRUE;
+            return result;
+        } catch (IOException e) {
+            logger.error("#batch: malformed frame", e);
+        } catch (ResourceException e) {
+            logger.error("#batch: resource error", e);
+        } catch (URISyntaxException e) {
+            logger.error("#batch: URI invalid", e);
+        }
+        return null;
+    }
+
+    private byte[][] getSingle(byte[][] locations, int threshold) {
+        byte[][] responses = new byte[locations.length][];
+        int succeeded = 0;
+        boolean binary = useBinary();
+        Base64 base64 = binary ? null : new Base64(true);
+        for (int i = 0; i < locations.length && succeeded < threshold; i++) {
             try {
-                Client c = new Client(protocol);
-                Response response = c.handle(new Request(
-                        Method.GET,
-                        new URI(ServerConfigDefaults.SHEX_URI + Base64.encodeBase64URLSafeString(locations[i])).toString()
-                ));
+                Response response = getClient().handle(new Request(Method.GET, getItemUri(locations[i])));
 
                 if (response == null || response.getStatus() == null) {
                     logger.warn("#getBulk: no response or status");
                 } else {
                     int statusCode = response.getStatus().getCode();
                     if (statusCode == 200) {
-                        responses[i] = (new Base64(true)).decode(response.getEntityAsText());
-                        logger.debug("#getBulk: Response " + i + ": " + Hex.encodeHexString(responses[i]) + "@" + Hex.encodeHexString(locations[i]));
-                        succeeded++;
+                        responses[i] = readItem(response, base64);
+                        if (responses[i] == null) {
+                            logger.debug("#getBulk: Response " + i + " has no content");
+                        } else {
+                            logger.debug("#getBulk: Response " + i + ": " + Hex.encodeHexString(responses[i]) + "@" + Hex.encodeHexString(locations[i]));
+                            succeeded++;
+                        }
                     } else {
                         logger.debug("#getBulk: Request for " + i + " failed with status " + statusCode);
                     }
                 }
+            } catch (IOException e) {
+                logger.error("#getBulk: couldn't read response", e);
             } catch (ResourceException e) {
                 logger.error("#getBulk: resource error", e);
             } catch (URISyntaxException e) {
@@ -58,20 +312,35 @@ public class ShexSubsystem extends ExternalKeyDistributionStorage {
         return responses;
     }
 
-    public boolean pushBulkData(byte[][] locations, byte[][] data) {
-        logger.info("#pushBulk: " + locations.length);
+    /**
+     * @param base64    Decoder of text responses or <code>null</code> in binary mode
+     * @return  Content of a single item response or <code>null</code> if it has none
+     */
+    private static byte[] readItem(Response response, Base64 base64) throws IOException {
+        if (response.getEntity() == null) {
+            return null;
+        }
+        if (base64 == null) {
+            InputStream in = response.getEntity().getStream();
+            return in == null ? null : IOUtils.toByteArray(in);
+        }
+        String text = response.getEntityAsText();
+        return text == null ? null : base64.decode(text);
+    }
 
+    private boolean pushSingle(byte[][] locations, byte[][] data) {
         int succeeded = 0;
-        String protocol = ServerConfigDefaults.SHEX_URI.split(":")[0];
+        boolean binary = useBinary();
         for (int i = 0; i < locations.length; i++) {
             try {
                 logger.debug("#pushBulk: Data " + i + ": " + Hex.encodeHexString(data[i]) + "@" + Hex.encodeHexString(locations[i]));
-                Client c = new Client(protocol);
-                Response response = c.handle(new Request(
-                        Method.PUT,
-                        new URI(ServerConfigDefaults.SHEX_URI + Base64.encodeBase64URLSafeString(locations[i])).toString(),
-                        new StringRepresentation(Base64.encodeBase64URLSafeString(data[i]))
-                ));
+                Representation entity;
+                if (binary) {
+                    entity = new InputRepresentation(new ByteArrayInputStream(data[i]), MediaType.APPLICATION_OCTET_STREAM, data[i].length);
+                } else {
+                    entity = new StringRepresentation(Base64.encodeBase64URLSafeString(data[i]));
+                }
+                Response response = getClient().handle(new Request(Method.PUT, getItemUri(locations[i]), entity));
 
                 if (response == null || response.getStatus() == null) {
                     logger.warn("#pushBulk: no response or status");
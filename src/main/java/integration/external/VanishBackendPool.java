@@ -0,0 +1,158 @@
+package integration.external;
+
+import edu.washington.cs.vanish.conf.VanishConfiguration;
+import edu.washington.cs.vanish.internal.VanishException;
+import edu.washington.cs.vanish.internal.backend.VanishBackendInterface;
+import edu.washington.cs.vanish.internal.backend.rpcimpl.RPCVanishBackendImpl;
+import edu.washington.cs.vanish.logging.VanishLogger;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size pool of initialized Vanish backends. Each backend is used by at
+ * most one thread at a time, so independent bulk operations run in parallel
+ * instead of queueing behind a single backend. Waiting threads are served in
+ * FIFO order.
+ *
+ * <p>Backends are only (re-)initialized when they are handed out or the
+ * health is checked, so a connection failure doesn't block the thread that
+ * returns the failed backend.</p>
+ */
+public class VanishBackendPool {
+    private static final Logger logger = Logger.getLogger(VanishBackendPool.class);
+
+    /**
+     * Creates backends which aren't initialized yet.
+     */
+    public interface BackendFactory {
+        VanishBackendInterface create();
+    }
+
+    private final BackendFactory factory;
+    private final int size;
+
+    /* fair queue: the longest waiting thread gets the next free backend */
+    private final ArrayBlockingQueue<VanishBackendInterface> idle;
+
+    /**
+     * Create and initialize <code>size</code> RPC backends. Backends that fail
+     * to initialize are retried when they are handed out.
+     * @param configuration    Vanish configuration (backend URL, timeouts)
+     * @param size             Number of backends
+     */
+    public VanishBackendPool(final VanishConfiguration configuration, int size) {
+        this(new BackendFactory() {
+            @Override
+            public VanishBackendInterface create() {
+                return new RPCVanishBackendImpl(configuration, VanishLogger.getLogger(VanishBackendPool.class.toString()));
+            }
+        }, size);
+    }
+
+    /**
+     * Create and initialize <code>size</code> backends. Backends that fail to
+     * initialize are retried when they are handed out.
+     * @param factory    Creates the backends
+     * @param size       Number of backends
+     */
+    public VanishBackendPool(BackendFactory factory, int size) {
+        this.factory = factory;
+        this.size = Math.max(1, size);
+        this.idle = new ArrayBlockingQueue<VanishBackendInterface>(this.size, true);
+
+        int initialized = 0;
+        for (int i = 0; i < this.size; i++) {
+            VanishBackendInterface backend = factory.create();
+            if (initBackend(backend)) {
+                initialized++;
+            }
+            idle.add(backend);
+        }
+        logger.info("Vanish backend pool: " + initialized + "/" + this.size + " backends initialized");
+    }
+
+    private boolean initBackend(VanishBackendInterface backend) {
+        try {
+            backend.init();
+            return backend.isInitialized();
+        } catch (VanishException e) {
+            logger.error("failed to init Vanish backend", e);
+            return false;
+        }
+    }
+
+    /**
+     * Take a backend out of the pool. It must be returned with
+     * {@link #release(VanishBackendInterface, boolean)}.
+     * @param timeoutMillis    Maximum waiting time for a free backend
+     * @return  Initialized backend or <code>null</code> if none became
+     *          available in time or it couldn't be initialized
+     * @throws InterruptedException
+     */
+    public VanishBackendInterface acquire(long timeoutMillis) throws InterruptedException {
+        VanishBackendInterface backend = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (backend == null) {
+            logger.warn("#acquire: no backend available after " + timeoutMillis + " ms");
+            return null;
+        }
+
+        if (!backend.isInitialized() && !initBackend(backend)) {
+            idle.add(backend);
+            return null;
+        }
+        return backend;
+    }
+
+    /**
+     * Return a backend to the pool. A backend which had a connection issue is
+     * replaced by a fresh instance, which is initialized when it is handed
+     * out the next time.
+     * @param backend    Backend from {@link #acquire(long)}
+     * @param failed     Whether the last operation failed due to the connection
+     */
+    public void release(VanishBackendInterface backend, boolean failed) {
+        if (backend == null) {
+            return;
+        }
+        if (failed) {
+            try {
+                backend.stop();
+            } catch (VanishException e) {
+                logger.debug("#release: couldn't stop failed backend", e);
+            }
+            backend = factory.create();
+        }
+        idle.add(backend);
+    }
+
+    /**
+     * Check whether the pool can serve requests: an idle backend which isn't
+     * initialized (e.g. the replacement of a failed one) is initialized now.
+     * If all backends are in use, the pool is considered alive.
+     * @return  Whether an idle backend is initialized or none is idle
+     */
+    public boolean alive() {
+        VanishBackendInterface backend = idle.poll();
+        if (backend == null) {
+            return true;
+        }
+        try {
+            return backend.isInitialized() || initBackend(backend);
+        } finally {
+            idle.add(backend);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return  Number of backends which are currently not in use
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+}
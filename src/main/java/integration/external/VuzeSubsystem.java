@@ -4,39 +4,51 @@ import edu.washington.cs.vanish.conf.VanishConfiguration;
 import edu.washington.cs.vanish.internal.backend.TooManySharesLostVanishException;
 import edu.washington.cs.vanish.internal.backend.VanishBackendException;
 import edu.washington.cs.vanish.internal.backend.VanishBackendInterface;
-import edu.washington.cs.vanish.internal.backend.rpcimpl.RPCVanishBackendImpl;
-import edu.washington.cs.vanish.logging.VanishLogger;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.Logger;
-
-import java.util.concurrent.locks.ReentrantLock;
+import rest.ServerConfigDefaults;
 
 /**
  * Establishes a connection to the VuzeDHT and provides convenience methods for
- * pushing and querying data.
+ * pushing and querying data. Bulk operations are dispatched to a
+ * {@link VanishBackendPool}, so that independent operations don't wait for
+ * each other.
  */
 public class VuzeSubsystem extends ExternalKeyDistributionStorage {
     private static VuzeSubsystem vuzeSubsystem;
     private static final Logger logger = Logger.getLogger(VuzeSubsystem.class);
 
-    private VanishBackendInterface vanishBackend;
+    private final VanishBackendPool pool;
 
     private VuzeSubsystem() {
-        logger.info("Vuze (Starting...)");
+        this(new VanishConfiguration(), ServerConfigDefaults.VUZE_POOL_SIZE);
+    }
 
-        try {
-            vanishBackend = new RPCVanishBackendImpl(new VanishConfiguration(), VanishLogger.getLogger(VuzeSubsystem.class.toString()));
-            vanishBackend.init();
-        } catch (edu.washington.cs.vanish.internal.VanishException e) {
-            logger.error("failed to instantiate/init RPCVanishBackendImpl", e);
-        }
+    /**
+     * Create a subsystem with its own backend pool (e.g. for testing against
+     * a local Vanish service).
+     * @param configuration    Vanish configuration
+     * @param poolSize         Number of parallel backends
+     */
+    public VuzeSubsystem(VanishConfiguration configuration, int poolSize) {
+        logger.info("Vuze (Starting " + poolSize + " backends...)");
+
+        pool = new VanishBackendPool(configuration, poolSize);
     }
 
     public String getIdentifier() {
         return "VuzeDHT";
     }
 
-    private final ReentrantLock vanishLock = new ReentrantLock();
+    private VanishBackendInterface acquireBackend() {
+        try {
+            return pool.acquire(ServerConfigDefaults.VUZE_POOL_ACQUIRE_TIMEOUT * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for a Vanish backend");
+            return null;
+        }
+    }
 
     /**
      * Get multiple data items from the DHT as a bulk operation. Each element
@@ -46,21 +58,40 @@ public class VuzeSubsystem extends ExternalKeyDistributionStorage {
      *          to Vanish-Vuze/JKad connection issue)
      */
     public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    /**
+     * Get multiple data items from the DHT as a bulk operation, but return as
+     * soon as <code>threshold</code> items were found.
+     * @param locations    hashes to push the data to
+     * @param threshold    Number of items that are sufficient
+     * @return  Data array or null if there was an error or too few items
+     *          were found
+     */
+    @Override
+    public byte[][] getBulkData(byte[][] locations, int threshold) {
         String s = "";
         for(byte[] loc : locations) {
             s += "\n" + Hex.encodeHexString(loc);
         }
         logger.debug("#getBulkData: " + s);
 
-        vanishLock.lock();
+        VanishBackendInterface vanishBackend = acquireBackend();
+        if (vanishBackend == null) {
+            return null;
+        }
+
+        boolean failed = false;
         try {
-            return vanishBackend.getShares(locations, locations.length); // TODO: proper threshold
+            return vanishBackend.getShares(locations, Math.max(1, Math.min(threshold, locations.length)));
         } catch (VanishBackendException e) {
+            failed = true;
             logger.error("Connection issue during getShares (Vanish-Vuze)", e);
         } catch (TooManySharesLostVanishException e) {
             logger.error("Too many shares lost (Vanish-Vuze)", e);
         } finally {
-            vanishLock.unlock();
+            pool.release(vanishBackend, failed);
         }
         return null;
     }
@@ -80,21 +111,29 @@ public class VuzeSubsystem extends ExternalKeyDistributionStorage {
         }
         logger.debug("#pushBulkData: " + s);
 
-        vanishLock.lock();
+        VanishBackendInterface vanishBackend = acquireBackend();
+        if (vanishBackend == null) {
+            return false;
+        }
+
+        boolean failed = false;
         try {
             vanishBackend.pushShares(data, locations);
         } catch (VanishBackendException e) {
+            failed = true;
             logger.error("Couldn't push to Vanish-Vuze", e);
             return false;
         } finally {
-            vanishLock.unlock();
+            pool.release(vanishBackend, failed);
         }
         return true;
     }
 
+    /**
+     * @return  Whether at least one backend of the pool is initialized
+     */
     public boolean alive() {
-        // TODO: extend to see if a connection is available
-        return vanishBackend != null && vanishBackend.isInitialized();
+        return pool.alive();
     }
 
     public static VuzeSubsystem getInstance() {
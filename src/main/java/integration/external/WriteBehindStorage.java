@@ -0,0 +1,337 @@
+package integration.external;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind layer in front of another storage. Pushes are only queued and
+ * {@link #pushBulkData(byte[][], byte[][])} returns immediately. After a
+ * short window the queue is flushed to the backend in batches.
+ *
+ * <p>Only the latest value per location is kept in the queue, with one
+ * exception: a signed deletion (first byte <code>0</code>) wins over any
+ * value that is pushed after it for the same location in the same window.
+ * Reads see the queued values (read-your-writes). Failed batches are queued
+ * again up to <code>retries</code> times unless a newer value arrived in the
+ * meantime.</p>
+ *
+ * <p>Pushes that contain a deletion are not queued: the job queue deletes
+ * its records once a deletion was pushed, so they are written before
+ * {@link #pushBulkData(byte[][], byte[][])} returns and report the result of
+ * the backend.</p>
+ */
+public class WriteBehindStorage extends ExternalKeyDistributionStorage {
+    private static final Logger logger = Logger.getLogger(WriteBehindStorage.class);
+
+    private static final byte TYPE_DELETION = 0;
+
+    private final ExternalKeyDistributionStorage backend;
+    private final long window;
+    private final int batchSize;
+    private final int retries;
+
+    private final Object lock = new Object();
+    private LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+    private Map<String, Pending> flushing = Collections.emptyMap();
+    /** Locations that were deleted in the current window */
+    private Set<String> deleted = new HashSet<String>();
+    private boolean flushScheduled = false;
+
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private static class Pending {
+        final byte[] location;
+        final byte[] value;
+        final int attempts;
+
+        Pending(byte[] location, byte[] value, int attempts) {
+            this.location = location;
+            this.value = value;
+            this.attempts = attempts;
+        }
+
+        boolean isDeletion() {
+            return value.length > 0 && value[0] == TYPE_DELETION;
+        }
+    }
+
+    /**
+     * @param backend      Storage the queued values are written to
+     * @param window       Time in ms between the first queued write and the flush
+     * @param batchSize    Maximum number of items per backend push
+     * @param retries      Number of flush attempts per item
+     */
+    public WriteBehindStorage(ExternalKeyDistributionStorage backend, long window, int batchSize, int retries) {
+        this.backend = backend;
+        this.window = window;
+        this.batchSize = Math.max(1, batchSize);
+        this.retries = Math.max(1, retries);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "WriteBehind-" + WriteBehindStorage.this.backend.getIdentifier());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public ExternalKeyDistributionStorage getBackend() {
+        return backend;
+    }
+
+    public String getIdentifier() {
+        return backend.getIdentifier();
+    }
+
+    @Override
+    public int getItemIdentifierSize() {
+        return backend.getItemIdentifierSize();
+    }
+
+    /**
+     * Queue the items for the next flush. Items that contain a deletion are
+     * written immediately.
+     * @param locations    Locations to push the data to
+     * @param data         Data array that needs to be pushed
+     * @return  True if the items were queued; the result of the backend if
+     *          they contain a deletion
+     */
+    public boolean pushBulkData(byte[][] locations, byte[][] data) {
+        synchronized (lock) {
+            received.addAndGet(locations.length);
+            if (!containsDeletion(data)) {
+                for (int i = 0; i < locations.length; i++) {
+                    merge(new Pending(locations[i], data[i], 0), false);
+                }
+                scheduleFlush();
+                return true;
+            }
+            // the pushed values replace the queued ones
+            for (int i = 0; i < locations.length; i++) {
+                String key = Hex.encodeHexString(locations[i]);
+                pending.remove(key);
+                if (data[i].length > 0 && data[i][0] == TYPE_DELETION) {
+                    deleted.add(key);
+                }
+            }
+        }
+        return write(locations, data);
+    }
+
+    private static boolean containsDeletion(byte[][] data) {
+        for (byte[] value : data) {
+            if (value.length > 0 && value[0] == TYPE_DELETION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the items on the flusher thread, so that a running flush can't
+     * overwrite them with older values, and wait for the result.
+     */
+    private boolean write(final byte[][] locations, final byte[][] data) {
+        try {
+            return flusher.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    boolean success = backend.pushBulkData(locations, data);
+                    if (success) {
+                        written.addAndGet(locations.length);
+                    }
+                    return success;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("#write: interrupted", e);
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("#write: backend failed", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Put an item into the queue. Must be called with the lock held.
+     * @param item       Item to queue
+     * @param requeue    Item is a failed write which is older than anything
+     *                   that is currently queued for its location
+     */
+    private void merge(Pending item, boolean requeue) {
+        String key = Hex.encodeHexString(item.location);
+        Pending queued = pending.get(key);
+        if (queued != null) {
+            if (requeue) {
+                // the queued value is newer, only a deletion may replace it
+                if (!item.isDeletion() || queued.isDeletion()) {
+                    return;
+                }
+            } else if (queued.isDeletion() && !item.isDeletion()) {
+                return;
+            }
+        }
+        if (!requeue && !item.isDeletion() && deleted.contains(key)) {
+            return;
+        }
+        pending.put(key, item);
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled && !pending.isEmpty()) {
+            flushScheduled = true;
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushQueue();
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write everything that is queued now and wait until it is done.
+     */
+    public void flush() {
+        try {
+            flusher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushQueue();
+                }
+            }).get();
+        } catch (Exception e) {
+            logger.error("#flush: failed", e);
+        }
+    }
+
+    /**
+     * Runs on the flusher thread only.
+     */
+    private void flushQueue() {
+        Map<String, Pending> batch;
+        synchronized (lock) {
+            batch = pending;
+            pending = new LinkedHashMap<String, Pending>();
+            deleted = new HashSet<String>();
+            flushScheduled = false;
+            flushing = batch;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<Pending> failed = new ArrayList<Pending>();
+        List<Pending> items = new ArrayList<Pending>(batch.values());
+        for (int start = 0; start < items.size(); start += batchSize) {
+            List<Pending> chunk = items.subList(start, Math.min(items.size(), start + batchSize));
+            byte[][] locations = new byte[chunk.size()][];
+            byte[][] values = new byte[chunk.size()][];
+            for (int i = 0; i < chunk.size(); i++) {
+                locations[i] = chunk.get(i).location;
+                values[i] = chunk.get(i).value;
+            }
+
+            boolean success;
+            try {
+                success = backend.pushBulkData(locations, values);
+            } catch (RuntimeException e) {
+                logger.error("#flush: backend failed", e);
+                success = false;
+            }
+            if (success) {
+                written.addAndGet(chunk.size());
+            } else {
+                failed.addAll(chunk);
+            }
+        }
+
+        synchronized (lock) {
+            for (Pending item : failed) {
+                if (item.attempts + 1 < retries) {
+                    merge(new Pending(item.location, item.value, item.attempts + 1), true);
+                } else {
+                    logger.error("#flush: giving up on location " + Hex.encodeHexString(item.location) +
+                            " after " + retries + " attempts");
+                }
+            }
+            flushing = Collections.emptyMap();
+            scheduleFlush();
+        }
+        logger.debug("#flush: " + (items.size() - failed.size()) + "/" + items.size() + " items written; " +
+                received.get() + " received, " + written.get() + " written in total");
+    }
+
+    public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    /**
+     * Read the items, queued values take precedence over the backend.
+     */
+    @Override
+    public byte[][] getBulkData(byte[][] locations, int threshold) {
+        byte[][] result = new byte[locations.length][];
+        List<Integer> missing = new ArrayList<Integer>(locations.length);
+        synchronized (lock) {
+            Map<String, Pending> inFlight = flushing;
+            for (int i = 0; i < locations.length; i++) {
+                String key = Hex.encodeHexString(locations[i]);
+                Pending item = pending.get(key);
+                if (item == null) {
+                    item = inFlight.get(key);
+                }
+                if (item != null) {
+                    result[i] = item.value;
+                } else {
+                    missing.add(i);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        byte[][] missingLocations = new byte[missing.size()][];
+        for (int i = 0; i < missingLocations.length; i++) {
+            missingLocations[i] = locations[missing.get(i)];
+        }
+        int found = locations.length - missing.size();
+        byte[][] backendResult = backend.getBulkData(missingLocations, Math.max(0, threshold - found));
+        if (backendResult == null) {
+            return found > 0 ? result : null;
+        }
+        for (int i = 0; i < missingLocations.length; i++) {
+            result[missing.get(i)] = backendResult[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return  Number of items which were pushed by callers
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return  Number of items which were actually written to the backend
+     */
+    public long getWritten() {
+        return written.get();
+    }
+}
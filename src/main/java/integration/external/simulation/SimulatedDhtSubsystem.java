@@ -0,0 +1,291 @@
+package integration.external.simulation;
+
+import integration.external.ExternalKeyDistributionStorage;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * In-process DHT made of virtual nodes for offline measurements of the job
+ * queue, the decryptor and the storage layers. Latency (log-normal per hop),
+ * message loss, churn and expiry of stored values are drawn from a single
+ * seeded random number generator and time only passes on a
+ * {@link VirtualClock}, so a run is fully reproducible.
+ *
+ * <p>Every bulk operation performs one lookup per location in parallel and
+ * advances the clock by the simulated duration of the slowest lookup (or,
+ * for threshold reads, of the lookup that completed the threshold). Calls
+ * are serialized to keep the random sequence deterministic. The instance of
+ * the server uses a clock that also follows the wall time, so churn and
+ * expiry happen between the refreshes of the job queue.</p>
+ */
+public class SimulatedDhtSubsystem extends ExternalKeyDistributionStorage {
+    private static SimulatedDhtSubsystem simulatedDhtSubsystem;
+    private static final Logger logger = Logger.getLogger(SimulatedDhtSubsystem.class);
+
+    private final SimulationParameters parameters;
+    private final VirtualClock clock;
+    private final Random random;
+    private final List<SimulatedNode> nodes;
+    private final int hops;
+
+    private long messages;
+    private long lostMessages;
+    private long gets;
+    private long hits;
+    private long puts;
+    private long failedPuts;
+
+    private SimulatedDhtSubsystem() {
+        // the job queue of the server runs in wall time
+        this(SimulationParameters.fromConfig(), new VirtualClock(0, true));
+    }
+
+    public SimulatedDhtSubsystem(SimulationParameters parameters, VirtualClock clock) {
+        this.parameters = parameters;
+        this.clock = clock;
+        this.random = new Random(parameters.seed);
+        this.nodes = new ArrayList<SimulatedNode>(parameters.nodes);
+        for (int i = 0; i < parameters.nodes; i++) {
+            SimulatedNode node = new SimulatedNode(randomId());
+            node.nextChurnEvent = nextSession();
+            nodes.add(node);
+        }
+        // lookups need about log_(2 alpha)(N) hops
+        this.hops = Math.max(1, (int) Math.ceil(Math.log(Math.max(2, parameters.nodes)) / Math.log(2 * Math.max(1, parameters.alpha))));
+        logger.info("Simulated DHT: " + parameters.nodes + " nodes, " + hops + " hops per lookup, seed " + parameters.seed);
+    }
+
+    public String getIdentifier() {
+        return "SimulatedDHT";
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public byte[][] getBulkData(byte[][] locations) {
+        return getBulkData(locations, locations.length);
+    }
+
+    @Override
+    public synchronized byte[][] getBulkData(byte[][] locations, int threshold) {
+        long start = clock.now();
+        processChurn(start);
+
+        byte[][] values = new byte[locations.length][];
+        long[] latency = new long[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            gets++;
+            latency[i] = lookupLatency();
+
+            List<SimulatedNode> closest = closestOnline(locations[i]);
+            String key = Hex.encodeHexString(locations[i]);
+            long slowest = 0;
+            long firstHit = -1;
+            for (SimulatedNode node : closest) {
+                long rtt = messageLatency();
+                if (rtt < 0) {
+                    slowest = Math.max(slowest, parameters.timeout);
+                    continue;
+                }
+                slowest = Math.max(slowest, rtt);
+                SimulatedNode.StoredValue stored = node.values.get(key);
+                if (stored != null && stored.stored + parameters.expiry > start + latency[i] + rtt) {
+                    if (firstHit < 0 || rtt < firstHit) {
+                        firstHit = rtt;
+                        values[i] = stored.value;
+                    }
+                }
+            }
+            if (values[i] != null) {
+                hits++;
+                latency[i] += firstHit;
+            } else {
+                latency[i] += slowest;
+            }
+        }
+
+        // the caller can continue once enough values arrived
+        int needed = Math.max(0, Math.min(threshold, locations.length));
+        long duration = 0;
+        if (needed == locations.length) {
+            for (long l : latency) {
+                duration = Math.max(duration, l);
+            }
+        } else {
+            List<Long> found = new ArrayList<Long>();
+            for (int i = 0; i < locations.length; i++) {
+                if (values[i] != null) {
+                    found.add(latency[i]);
+                }
+            }
+            Collections.sort(found);
+            if (found.size() >= needed && needed > 0) {
+                duration = found.get(needed - 1);
+                for (int i = 0; i < locations.length; i++) {
+                    if (values[i] != null && latency[i] > duration) {
+                        values[i] = null; // not arrived yet
+                    }
+                }
+            } else {
+                for (long l : latency) {
+                    duration = Math.max(duration, l);
+                }
+            }
+        }
+        clock.advance(duration);
+        return values;
+    }
+
+    public synchronized boolean pushBulkData(byte[][] locations, byte[][] data) {
+        long start = clock.now();
+        processChurn(start);
+
+        boolean success = true;
+        long duration = 0;
+        for (int i = 0; i < locations.length; i++) {
+            puts++;
+            long latency = lookupLatency();
+            long slowest = 0;
+            int stored = 0;
+            String key = Hex.encodeHexString(locations[i]);
+            for (SimulatedNode node : closestOnline(locations[i])) {
+                long rtt = messageLatency();
+                if (rtt < 0) {
+                    slowest = Math.max(slowest, parameters.timeout);
+                    continue;
+                }
+                slowest = Math.max(slowest, rtt);
+                node.values.put(key, new SimulatedNode.StoredValue(data[i], start + latency + rtt));
+                stored++;
+            }
+            if (stored == 0) {
+                failedPuts++;
+                success = false;
+            }
+            duration = Math.max(duration, latency + slowest);
+        }
+        clock.advance(duration);
+        return success;
+    }
+
+    /**
+     * @return  Time of the iterative routing part of a lookup
+     */
+    private long lookupLatency() {
+        long total = 0;
+        for (int hop = 0; hop < hops; hop++) {
+            // a hop finishes with the first of the alpha parallel responses
+            long fastest = parameters.timeout;
+            for (int i = 0; i < parameters.alpha; i++) {
+                long rtt = messageLatency();
+                if (rtt >= 0) {
+                    fastest = Math.min(fastest, rtt);
+                }
+            }
+            total += fastest;
+        }
+        return total;
+    }
+
+    /**
+     * @return  Round trip time of a single message or -1 if it was lost
+     */
+    private long messageLatency() {
+        messages++;
+        if (random.nextDouble() < parameters.loss) {
+            lostMessages++;
+            return -1;
+        }
+        double latency = parameters.latencyMedian * Math.exp(parameters.latencySigma * random.nextGaussian());
+        return Math.min(parameters.timeout, Math.max(1, Math.round(latency)));
+    }
+
+    private List<SimulatedNode> closestOnline(final byte[] location) {
+        List<SimulatedNode> online = new ArrayList<SimulatedNode>(nodes.size());
+        for (SimulatedNode node : nodes) {
+            if (node.online) {
+                online.add(node);
+            }
+        }
+        Collections.sort(online, new Comparator<SimulatedNode>() {
+            @Override
+            public int compare(SimulatedNode o1, SimulatedNode o2) {
+                return SimulatedNode.compareDistance(o1.id, o2.id, location);
+            }
+        });
+        return online.size() > parameters.replication ? online.subList(0, parameters.replication) : online;
+    }
+
+    /**
+     * Apply all churn events up to <code>now</code>.
+     */
+    private void processChurn(long now) {
+        if (parameters.meanSession <= 0) {
+            return;
+        }
+        for (SimulatedNode node : nodes) {
+            while (node.nextChurnEvent <= now) {
+                if (node.online) {
+                    node.online = false;
+                    node.nextChurnEvent += exponential(parameters.meanDowntime);
+                } else {
+                    node.online = true;
+                    node.id = randomId();
+                    node.values.clear();
+                    node.nextChurnEvent += exponential(parameters.meanSession);
+                }
+            }
+        }
+    }
+
+    private long nextSession() {
+        return parameters.meanSession <= 0 ? Long.MAX_VALUE : clock.now() + exponential(parameters.meanSession);
+    }
+
+    private long exponential(long mean) {
+        return Math.max(1, Math.round(-mean * Math.log(1 - random.nextDouble())));
+    }
+
+    private byte[] randomId() {
+        byte[] id = new byte[20];
+        random.nextBytes(id);
+        return id;
+    }
+
+    /**
+     * @return  Number of nodes which are currently online
+     */
+    public synchronized int getOnlineNodes() {
+        processChurn(clock.now());
+        int online = 0;
+        for (SimulatedNode node : nodes) {
+            if (node.online) {
+                online++;
+            }
+        }
+        return online;
+    }
+
+    /**
+     * @return  Summary of the counters since the start of the simulation
+     */
+    public synchronized String getStatistics() {
+        return "t=" + clock.now() + "ms, messages=" + messages + " (lost " + lostMessages + "), gets=" + gets +
+                " (hits " + hits + "), puts=" + puts + " (failed " + failedPuts + ")";
+    }
+
+    public static SimulatedDhtSubsystem getInstance() {
+        if (simulatedDhtSubsystem == null) {
+            simulatedDhtSubsystem = new SimulatedDhtSubsystem();
+        }
+        return simulatedDhtSubsystem;
+    }
+
+    public static SimulatedDhtSubsystem setInstance(SimulatedDhtSubsystem simulatedDhtSubsystemNew) {
+        simulatedDhtSubsystem = simulatedDhtSubsystemNew;
+        return simulatedDhtSubsystem;
+    }
+}
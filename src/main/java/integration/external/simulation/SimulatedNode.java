@@ -0,0 +1,47 @@
+package integration.external.simulation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Virtual DHT node. A node that comes back after churn has a new id and an
+ * empty store, like a freshly started client.
+ */
+class SimulatedNode {
+    byte[] id;
+    boolean online = true;
+    long nextChurnEvent;
+
+    /** hex location to stored item */
+    final Map<String, StoredValue> values = new HashMap<String, StoredValue>();
+
+    static class StoredValue {
+        final byte[] value;
+        final long stored;
+
+        StoredValue(byte[] value, long stored) {
+            this.value = value;
+            this.stored = stored;
+        }
+    }
+
+    SimulatedNode(byte[] id) {
+        this.id = id;
+    }
+
+    /**
+     * XOR distance comparison of two nodes to a target
+     * @return  negative if <code>a</code> is closer than <code>b</code>
+     */
+    static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        int length = Math.min(target.length, Math.min(a.length, b.length));
+        for (int i = 0; i < length; i++) {
+            int da = (a[i] ^ target[i]) & 0xff;
+            int db = (b[i] ^ target[i]) & 0xff;
+            if (da != db) {
+                return da - db;
+            }
+        }
+        return 0;
+    }
+}
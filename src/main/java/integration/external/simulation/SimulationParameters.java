@@ -0,0 +1,58 @@
+package integration.external.simulation;
+
+import rest.ServerConfigDefaults;
+
+/**
+ * Parameters of a {@link SimulatedDhtSubsystem}. All durations are in
+ * virtual milliseconds.
+ */
+public class SimulationParameters {
+    /** Number of virtual nodes */
+    public int nodes = 1000;
+
+    /** Number of closest nodes an item is stored at */
+    public int replication = 20;
+
+    /** Parallel queries per lookup (determines the number of hops) */
+    public int alpha = 3;
+
+    /** Median latency of a single hop (log-normal distribution) */
+    public double latencyMedian = 80;
+
+    /** Shape of the log-normal latency distribution */
+    public double latencySigma = 0.6;
+
+    /** Timeout after a lost message */
+    public long timeout = 2000;
+
+    /** Probability that a single message is lost */
+    public double loss = 0.02;
+
+    /** Mean time a node stays online, 0 disables churn (exponential) */
+    public long meanSession = 60 * 60 * 1000L;
+
+    /** Mean time a node stays offline (exponential) */
+    public long meanDowntime = 30 * 60 * 1000L;
+
+    /** Time after which a node drops a stored item */
+    public long expiry = 8 * 60 * 60 * 1000L;
+
+    /** Seed of the random number generator */
+    public long seed = 1;
+
+    public static SimulationParameters fromConfig() {
+        SimulationParameters p = new SimulationParameters();
+        p.nodes = ServerConfigDefaults.SIM_NODES;
+        p.replication = ServerConfigDefaults.SIM_REPLICATION;
+        p.alpha = ServerConfigDefaults.SIM_ALPHA;
+        p.latencyMedian = ServerConfigDefaults.SIM_LATENCY_MEDIAN;
+        p.latencySigma = ServerConfigDefaults.SIM_LATENCY_SIGMA;
+        p.loss = ServerConfigDefaults.SIM_LOSS;
+        p.timeout = ServerConfigDefaults.SIM_TIMEOUT;
+        p.meanSession = ServerConfigDefaults.SIM_MEAN_SESSION * 60L * 1000L;
+        p.meanDowntime = ServerConfigDefaults.SIM_MEAN_DOWNTIME * 60L * 1000L;
+        p.expiry = ServerConfigDefaults.SIM_EXPIRY * 60L * 1000L;
+        p.seed = ServerConfigDefaults.SIM_SEED;
+        return p;
+    }
+}
@@ -0,0 +1,57 @@
+package integration.external.simulation;
+
+/**
+ * Simulated time in milliseconds. It only moves when the simulation or the
+ * benchmark advances it, so runs don't depend on the wall clock.
+ *
+ * <p>A clock that follows the wall time additionally never falls behind the
+ * time that passed since its creation. The server uses such a clock, because
+ * the job queue schedules its refreshes in wall time and stored values have
+ * to expire between them.</p>
+ */
+public class VirtualClock {
+    private final long start;
+    private final long wallStart;
+    private long now;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long start) {
+        this(start, false);
+    }
+
+    /**
+     * @param start       Initial time
+     * @param wallTime    Follow the wall time
+     */
+    public VirtualClock(long start, boolean wallTime) {
+        this.start = start;
+        this.now = start;
+        this.wallStart = wallTime ? System.currentTimeMillis() : -1;
+    }
+
+    public synchronized long now() {
+        follow();
+        return now;
+    }
+
+    /**
+     * @param millis    Time to advance (negative values are ignored)
+     * @return  New time
+     */
+    public synchronized long advance(long millis) {
+        follow();
+        if (millis > 0) {
+            now += millis;
+        }
+        return now;
+    }
+
+    private void follow() {
+        if (wallStart >= 0) {
+            now = Math.max(now, start + System.currentTimeMillis() - wallStart);
+        }
+    }
+}
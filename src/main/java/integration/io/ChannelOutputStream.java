@@ -0,0 +1,150 @@
+package integration.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Output stream into a file channel through a large direct buffer. Small
+ * writes are collected in the buffer and written with a single system
+ * call; writes that are larger than the buffer go to the channel directly.
+ * Regions of other files can be appended with {@link #transferFrom} without
+ * copying them through the Java heap. Direct buffers of the default size
+ * are reused after {@link #close()}, because allocating them is expensive
+ * and they are only freed by the garbage collector.
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public class ChannelOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    private int writes;
+
+    /**
+     * @param file    File to create or overwrite
+     * @throws IOException if the file couldn't be opened
+     */
+    public ChannelOutputStream(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param file          File to create or overwrite
+     * @param bufferSize    Size of the direct buffer
+     * @throws IOException if the file couldn't be opened
+     */
+    public ChannelOutputStream(File file, int bufferSize) throws IOException {
+        this.out = new FileOutputStream(file);
+        this.channel = out.getChannel();
+        ByteBuffer pooled = bufferSize == DEFAULT_BUFFER_SIZE ? bufferPool.poll() : null;
+        this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len >= buffer.capacity()) {
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (len > buffer.remaining()) {
+            flushBuffer();
+        }
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Append a region of another file with <code>transferTo</code>, which
+     * lets the kernel copy the data.
+     * @param source      Channel of the source file
+     * @param position    Start of the region
+     * @param count       Length of the region
+     * @throws IOException if the region couldn't be copied
+     */
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        flushBuffer();
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, channel);
+            if (transferred <= 0) {
+                throw new IOException("Source file ended before the region was copied");
+            }
+            writes++;
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    /**
+     * @return  Number of writes into the channel
+     */
+    public int getWrites() {
+        return writes;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+            buffer.clear();
+            if (buffer.capacity() == DEFAULT_BUFFER_SIZE && bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.offer(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        ensureOpen();
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+            writes++;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package integration.io;
+
+import rest.ServerConfigDefaults;
+
+import java.io.*;
+
+/**
+ * Opens containers and output files either through the NIO path
+ * ({@link MappedFileInputStream}, {@link ChannelOutputStream}) or through
+ * plain file streams, depending on {@link ServerConfigDefaults#CONTAINER_NIO}.
+ */
+public class ContainerIO {
+    private ContainerIO() {
+    }
+
+    /**
+     * @param file    File to read
+     * @return  Stream over the file
+     * @throws IOException if the file couldn't be opened
+     */
+    public static InputStream openInput(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file + " doesn't exist or isn't a file");
+        }
+        if (ServerConfigDefaults.CONTAINER_NIO) {
+            return new MappedFileInputStream(file);
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * @param file    File to create or overwrite
+     * @return  Stream into the file
+     * @throws IOException if the file couldn't be opened
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        if (ServerConfigDefaults.CONTAINER_NIO) {
+            return new ChannelOutputStream(file);
+        }
+        return new FileOutputStream(file);
+    }
+}
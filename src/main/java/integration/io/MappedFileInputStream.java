@@ -0,0 +1,141 @@
+package integration.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a memory mapped file. The file is mapped in windows,
+ * so files larger than 2 GB can be read and only the part of the file
+ * that is read occupies address space. Reads are copies from the page
+ * cache without a system call per read, and {@link #skip(long)} only moves
+ * the position, so skipping entries of a container doesn't touch their
+ * data.
+ *
+ * <p>Mapped windows are released by the garbage collector. Instances are
+ * not thread-safe.</p>
+ */
+public class MappedFileInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+
+    private long position;
+    private long mark;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private int mappings;
+
+    /**
+     * @param file    File to read
+     * @throws IOException if the file couldn't be opened
+     */
+    public MappedFileInputStream(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        moveWindow();
+        int b = window.get((int) (position - windowStart)) & 0xff;
+        position++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        moveWindow();
+        int n = (int) Math.min(len, windowStart + window.capacity() - position);
+        window.position((int) (position - windowStart));
+        window.get(b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, size - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * @return  Current position in the file
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @param position    New position in the file
+     */
+    public void seek(long position) {
+        this.position = Math.max(0, Math.min(position, size));
+    }
+
+    /**
+     * @return  Number of windows that were mapped
+     */
+    public int getMappings() {
+        return mappings;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * Map the window that contains the current position.
+     */
+    private void moveWindow() throws IOException {
+        if (window != null && position >= windowStart && position < windowStart + window.capacity()) {
+            return;
+        }
+        windowStart = position - position % WINDOW_SIZE;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+        mappings++;
+    }
+}
@@ -0,0 +1,319 @@
+package integration.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming reader of a <code>multipart/*</code> body (RFC 2046). The parts
+ * are read one after the other directly from the underlying stream through
+ * a fixed buffer, so the size of a part doesn't influence the memory use.
+ *
+ * <p>The content of a part has to be consumed before the next part is
+ * requested; whatever is left is skipped. Instances are not
+ * thread-safe.</p>
+ */
+public class MultipartReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int end;
+    private boolean eof;
+
+    private boolean finished;
+    private PartInputStream current;
+
+    /**
+     * A single part with its headers.
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+        private final InputStream content;
+
+        Part(Map<String, String> headers, InputStream content) {
+            this.headers = headers;
+            this.content = content;
+        }
+
+        /**
+         * @param name    Header name (case-insensitive)
+         * @return  Header value or <code>null</code>
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ENGLISH));
+        }
+
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return  Form field name from the <code>Content-Disposition</code> header
+         */
+        public String getName() {
+            return getDispositionParameter("name");
+        }
+
+        /**
+         * @return  File name from the <code>Content-Disposition</code> header
+         */
+        public String getFilename() {
+            return getDispositionParameter("filename");
+        }
+
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        /**
+         * @return  Content of the part; ends at the next boundary
+         */
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        private String getDispositionParameter(String parameter) {
+            String disposition = getHeader("Content-Disposition");
+            if (disposition == null) {
+                return null;
+            }
+
+            int i = disposition.indexOf(';');
+            while (i >= 0 && i < disposition.length()) {
+                int eq = disposition.indexOf('=', i);
+                if (eq < 0) {
+                    return null;
+                }
+                String key = disposition.substring(i + 1, eq).trim();
+                String value;
+                int next;
+                if (eq + 1 < disposition.length() && disposition.charAt(eq + 1) == '"') {
+                    StringBuilder sb = new StringBuilder();
+                    int j = eq + 2;
+                    for (; j < disposition.length() && disposition.charAt(j) != '"'; j++) {
+                        char c = disposition.charAt(j);
+                        if (c == '\\' && j + 1 < disposition.length()) {
+                            c = disposition.charAt(++j);
+                        }
+                        sb.append(c);
+                    }
+                    value = sb.toString();
+                    next = disposition.indexOf(';', j);
+                } else {
+                    next = disposition.indexOf(';', eq);
+                    value = disposition.substring(eq + 1, next < 0 ? disposition.length() : next).trim();
+                }
+                if (key.equalsIgnoreCase(parameter)) {
+                    return value;
+                }
+                i = next;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param in          Multipart body
+     * @param boundary    Boundary from the <code>Content-Type</code> header
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        if (boundary == null || boundary.length() == 0 || boundary.length() > 70) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(ASCII);
+        this.buf = new byte[BUFFER_SIZE];
+
+        // the first delimiter isn't preceded by a line break
+        buf[end++] = '\r';
+        buf[end++] = '\n';
+    }
+
+    /**
+     * Skip the rest of the current part and read the headers of the next one.
+     * @return  Next part or <code>null</code> after the last one
+     * @throws IOException if the body couldn't be read or is malformed
+     */
+    public Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current == null) {
+            // preamble
+            current = new PartInputStream();
+        }
+        current.skipRest();
+
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        // transport padding after the boundary
+        readLine();
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        int headerSize = 0;
+        String line;
+        while ((line = readLine()).length() > 0) {
+            headerSize += line.length();
+            if (headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart headers are too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        current = new PartInputStream();
+        return new Part(headers, current);
+    }
+
+    private String readLine() throws IOException {
+        int start = pos;
+        int i = pos;
+        while (true) {
+            if (i + 1 >= end) {
+                if (end - start >= MAX_HEADER_SIZE) {
+                    throw new IOException("Multipart header line is too long");
+                }
+                int offset = i - start;
+                if (eof) {
+                    throw new IOException("Unexpected end of multipart body");
+                }
+                fill();
+                start = pos;
+                i = pos + offset;
+                continue;
+            }
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                String line = new String(buf, start, i - start, UTF8);
+                pos = i + 2;
+                return line;
+            }
+            i++;
+        }
+    }
+
+    private boolean ensure(int n) throws IOException {
+        while (end - pos < n) {
+            if (eof) {
+                return false;
+            }
+            fill();
+        }
+        return true;
+    }
+
+    /**
+     * Move the unread bytes to the front of the buffer and read more.
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+        }
+        int read = in.read(buf, end, buf.length - end);
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = end - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            if (buf[i] != delimiter[0]) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Content of a part up to the next delimiter. Bytes at the end of the
+     * buffer which could be the start of the delimiter are held back until
+     * more data is read.
+     */
+    private class PartInputStream extends InputStream {
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done || current != this) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int delimiterIndex = indexOfDelimiter();
+                int available;
+                if (delimiterIndex >= 0) {
+                    available = delimiterIndex - pos;
+                } else {
+                    available = Math.max(0, end - pos - (delimiter.length - 1));
+                }
+
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                if (delimiterIndex >= 0) {
+                    pos = delimiterIndex + delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                if (eof) {
+                    throw new IOException("Unexpected end of multipart body");
+                }
+                fill();
+            }
+        }
+
+        void skipRest() throws IOException {
+            byte[] skip = new byte[4096];
+            while (read(skip, 0, skip.length) >= 0) {
+                // discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // the underlying stream belongs to the reader
+        }
+    }
+}
@@ -15,6 +15,9 @@ import org.restlet.engine.Engine;
 import org.restlet.ext.json.JsonConverter;
 import trabe.AbeSecretMasterKey;
 import trabe.Cpabe;
+import integration.crypto.DecryptionJobExecutor;
+import integration.crypto.EncryptionJobExecutor;
+import integration.envelope.EntryPreparer;
 import integration.engine.JobQueue;
 import rest.resources.databaseViewApi.DatabaseViewResource;
 
@@ -59,6 +62,9 @@ public class AttributeAuthorityServer extends Application {
             }
         });
 
+        // staged entries of containers that were being built when the server stopped
+        EntryPreparer.cleanStaging();
+
         Storage storage = Storage.getInstance();
         AbeSecretMasterKey msk = storage.getMSK();
         if (msk == null) {
@@ -107,6 +113,8 @@ public class AttributeAuthorityServer extends Application {
         Engine.getInstance().getRegisteredConverters().add(new JsonConverter());
 
         JobQueue.getInstance().init();
+        DecryptionJobExecutor.getInstance().init();
+        EncryptionJobExecutor.getInstance().init();
 
         // Start the component.
         component.start();
@@ -6,6 +6,7 @@ import org.restlet.routing.Router;
 import org.restlet.routing.TemplateRoute;
 import org.restlet.routing.Variable;
 import rest.resources.encryptionApi.DecryptionResource;
+import rest.resources.encryptionApi.DecryptionStreamResource;
 
 import java.util.Map;
 
@@ -22,6 +23,8 @@ public class DecryptionAPI extends Application {
         Map<String, Variable> routeVariables = route.getTemplate().getVariables();
         routeVariables.put("containerId", new Variable(Variable.TYPE_DIGIT));
 
+        router.attach("/stream", DecryptionStreamResource.class);
+
         return router;
     }
 }
@@ -5,7 +5,9 @@ import org.restlet.Restlet;
 import org.restlet.routing.Router;
 import org.restlet.routing.TemplateRoute;
 import org.restlet.routing.Variable;
+import rest.resources.encryptionApi.EncryptionQueueResource;
 import rest.resources.encryptionApi.EncryptionResource;
+import rest.resources.encryptionApi.EncryptionUploadResource;
 
 import java.util.Map;
 
@@ -18,10 +20,16 @@ public class EncryptionAPI extends Application {
     public synchronized Restlet createInboundRoot() {
         Router router = new Router(getContext());
 
+        router.attach("/queue", EncryptionQueueResource.class);
+
         TemplateRoute route = router.attach("/{containerId}", EncryptionResource.class);
         Map<String, Variable> routeVariables = route.getTemplate().getVariables();
         routeVariables.put("containerId", new Variable(Variable.TYPE_DIGIT));
 
+        route = router.attach("/{containerId}/upload", EncryptionUploadResource.class);
+        routeVariables = route.getTemplate().getVariables();
+        routeVariables.put("containerId", new Variable(Variable.TYPE_DIGIT));
+
         return router;
     }
 }
@@ -0,0 +1,209 @@
+package rest;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import integration.crypto.Decryptor;
+import org.apache.log4j.Logger;
+import trabe.AbePrivateKey;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Bounded cache of deserialized private keys of stored users. An entry is
+ * only used while the record identity and version of the user document are
+ * the same as when the key was parsed, so a changed <code>privatekey</code>
+ * field is never missed. Attribute grants and revocations additionally
+ * invalidate the user explicitly.
+ *
+ * <p>The keys returned by {@link #get} are shared between requests and must
+ * not be modified or used for a decryption. Decryptions take keys from a
+ * {@link #getKeySource key source} instead: every acquired key is a copy for
+ * the exclusive use of one thread, and released copies are kept for later
+ * requests of the user. A key is therefore only parsed again when more
+ * decryptions of the same user run at once than before.</p>
+ */
+public class PrivateKeyCache {
+    private static PrivateKeyCache privateKeyCache;
+    private static final Logger logger = Logger.getLogger(PrivateKeyCache.class);
+
+    private static final String PRIVATE_KEY_FIELD = "privatekey";
+
+    /** Released copies that are kept per user */
+    private static final int MAX_IDLE_KEYS = 8;
+
+    private final int maxEntries;
+    private final Map<Integer, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        final String identity;
+        final int version;
+        final byte[] keyBytes;
+        /* parsed on the first call of get */
+        AbePrivateKey sharedKey;
+        /* released copies for decryptions */
+        final LinkedList<AbePrivateKey> idle = new LinkedList<AbePrivateKey>();
+
+        Entry(String identity, int version, byte[] keyBytes) {
+            this.identity = identity;
+            this.version = version;
+            this.keyBytes = keyBytes;
+        }
+    }
+
+    /**
+     * @param maxEntries    Maximum number of cached users; the least recently
+     *                      used ones are evicted
+     */
+    public PrivateKeyCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > PrivateKeyCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Parsed private key of the user document.
+     * @param uid     User ID
+     * @param user    User document
+     * @return  Shared private key or <code>null</code> if the user has none
+     * @throws IOException if the stored key couldn't be deserialized
+     */
+    public AbePrivateKey get(int uid, ODocument user) throws IOException {
+        Entry entry = getEntry(uid, user);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (entry.sharedKey != null) {
+                hits++;
+                return entry.sharedKey;
+            }
+            misses++;
+        }
+        // parsed outside of the lock, a concurrent miss of the same user just parses twice
+        AbePrivateKey key = AbePrivateKey.readFromByteArray(entry.keyBytes);
+        synchronized (this) {
+            if (entry.sharedKey == null) {
+                entry.sharedKey = key;
+            }
+            logger.debug("#get: Parsed private key of user " + uid + " (version " + entry.version + ")");
+            return entry.sharedKey;
+        }
+    }
+
+    /**
+     * Private keys of the user document for a decryption.
+     * @param uid     User ID
+     * @param user    User document
+     * @return  Source of copies of the key or <code>null</code> if the user
+     *          has none
+     */
+    public Decryptor.KeySource getKeySource(final int uid, ODocument user) {
+        final Entry entry = getEntry(uid, user);
+        if (entry == null) {
+            return null;
+        }
+        return new Decryptor.KeySource() {
+            @Override
+            public AbePrivateKey acquire() throws IOException {
+                synchronized (PrivateKeyCache.this) {
+                    if (!entry.idle.isEmpty()) {
+                        hits++;
+                        return entry.idle.removeFirst();
+                    }
+                    misses++;
+                }
+                logger.debug("#acquire: Parsing a copy of the private key of user " + uid);
+                return AbePrivateKey.readFromByteArray(entry.keyBytes);
+            }
+
+            @Override
+            public void release(AbePrivateKey key) {
+                synchronized (PrivateKeyCache.this) {
+                    // copies of an outdated key are dropped
+                    if (entries.get(uid) == entry && entry.idle.size() < MAX_IDLE_KEYS) {
+                        entry.idle.addFirst(key);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return  Current entry of the user document or <code>null</code> if
+     *          the user has no key
+     */
+    private Entry getEntry(int uid, ODocument user) {
+        String identity = user.getIdentity().toString();
+        int version = user.getVersion();
+
+        synchronized (this) {
+            Entry entry = entries.get(uid);
+            if (entry != null && entry.version == version && entry.identity.equals(identity)) {
+                return entry;
+            }
+        }
+
+        byte[] privateKeyBytes = user.field(PRIVATE_KEY_FIELD);
+        if (privateKeyBytes == null || privateKeyBytes.length == 0) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(uid);
+            if (entry != null && entry.version == version && entry.identity.equals(identity)) {
+                return entry;
+            }
+            Entry created = new Entry(identity, version, privateKeyBytes);
+            if (entry == null || entry.version <= version || !entry.identity.equals(identity)) {
+                entries.put(uid, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Remove the key of a user, because its attributes changed or the user
+     * was deleted.
+     * @param uid    User ID
+     */
+    public synchronized void invalidate(int uid) {
+        entries.remove(uid);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized PrivateKeyCache getInstance() {
+        if (privateKeyCache == null) {
+            privateKeyCache = new PrivateKeyCache(ServerConfigDefaults.PRIVATE_KEY_CACHE_SIZE);
+        }
+        return privateKeyCache;
+    }
+
+    public static synchronized PrivateKeyCache setInstance(PrivateKeyCache privateKeyCacheNew) {
+        privateKeyCache = privateKeyCacheNew;
+        return privateKeyCache;
+    }
+}
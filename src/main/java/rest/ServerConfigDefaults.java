@@ -14,8 +14,11 @@ public class ServerConfigDefaults {
     public enum ExternalKeyDistributionStorageProvider {
         DUMMY,
         VUZE,
-        JKAD /* cannot be used without BEP 44 and not implemented */,
-        SHEX
+        JKAD,
+        SHEX,
+        LOCAL,
+        REPLICATED,
+        SIMULATED
     }
 
     /**
@@ -60,10 +63,41 @@ public class ServerConfigDefaults {
      *     <li>"VUZE"</li>
      *     <li>"JKAD"</li>
      *     <li>"SHEX"</li>
+     *     <li>"LOCAL"</li>
+     *     <li>"REPLICATED"</li>
+     *     <li>"SIMULATED"</li>
      * </ul>
      */
     public static ExternalKeyDistributionStorageProvider EKDS = ExternalKeyDistributionStorageProvider.DUMMY;
 
+    /**
+     * Time window in milliseconds in which pushes to the external key
+     * storage are queued and coalesced (latest value per location, deletions
+     * win) before they are written in batches. <code>0</code> writes
+     * directly. Deletions are always written directly, but failed refreshes
+     * are only retried by the queue and not rescheduled by the job queue,
+     * so it is off by default.
+     */
+    public static int EKDS_WRITE_BEHIND_WINDOW = 0;
+
+    /**
+     * Maximum number of items per batch when the write-behind queue is
+     * flushed.
+     */
+    public static int EKDS_WRITE_BEHIND_BATCH = 256;
+
+    /**
+     * Concurrent reads of the same locations from the external key storage
+     * share a single request.
+     */
+    public static boolean EKDS_READ_COALESCING = true;
+
+    /**
+     * Time in milliseconds a read result of the external key storage is
+     * cached. It is never longer than the main update interval.
+     */
+    public static int EKDS_READ_CACHE_TTL = 5000;
+
     /**
      * <strong>Job Queue:</strong> Time interval between two main update
      * events in minutes
@@ -107,6 +141,265 @@ public class ServerConfigDefaults {
      */
     public static int JKAD_PORT = 8097; // TODO: load/store
 
+    /**
+     * <strong>JKad DHT:</strong> UDP Port of the BEP 44 node which stores
+     * and retrieves the actual data.
+     */
+    public static int JKAD_BEP44_PORT = 8098;
+
+    /**
+     * <strong>JKad DHT:</strong> Number of parallel queries of a single
+     * iterative lookup (alpha).
+     */
+    public static int JKAD_ALPHA = 3;
+
+    /**
+     * <strong>JKad DHT:</strong> Number of lookups of a bulk operation that
+     * run in parallel.
+     */
+    public static int JKAD_PARALLEL_LOOKUPS = 16;
+
+    /**
+     * <strong>JKad DHT:</strong> Time in milliseconds to wait for the response
+     * of a single node.
+     */
+    public static int JKAD_QUERY_TIMEOUT = 2000;
+
+    /**
+     * <strong>Vuze DHT:</strong> Number of Vanish backends which are used in
+     * parallel for independent bulk operations.
+     */
+    public static int VUZE_POOL_SIZE = 4;
+
+    /**
+     * <strong>Vuze DHT:</strong> Maximum time in seconds a bulk operation
+     * waits for a free Vanish backend.
+     */
+    public static int VUZE_POOL_ACQUIRE_TIMEOUT = 60;
+
+    /**
+     * <strong>Local storage:</strong> Directory of the log file of
+     * {@link integration.external.LocalSubsystem}.
+     */
+    public static String LOCAL_PATH = "localKeyStorage";
+
+    /**
+     * <strong>Local storage:</strong> Initial size of the memory mapped log
+     * in MB. The log grows if compaction doesn't free enough space.
+     */
+    public static int LOCAL_CAPACITY = 64;
+
+    /**
+     * <strong>Local storage:</strong> Time to live of an item in minutes
+     * (defaults to two main update intervals).
+     */
+    public static int LOCAL_TTL = 2 * 60 * 4;
+
+    /**
+     * <strong>Local storage:</strong> Force the log to disk after every bulk
+     * push. Without it, records survive a process crash, but not necessarily
+     * a power loss.
+     */
+    public static boolean LOCAL_SYNC = false;
+
+    /**
+     * <strong>Replicated storage:</strong> Comma separated list of the
+     * providers which {@link integration.external.ReplicatedSubsystem}
+     * writes to.
+     */
+    public static String REPLICATED_PROVIDERS = "SHEX,VUZE";
+
+    /**
+     * <strong>Replicated storage:</strong> Latency percentile of the fastest
+     * backend after which a read is also sent to the next backend.
+     */
+    public static double REPLICATED_HEDGE_PERCENTILE = 95;
+
+    /**
+     * <strong>Replicated storage:</strong> Number of backends that have to
+     * accept a push for it to succeed. A value of 0 (or more than the number
+     * of backends) requires every backend.
+     */
+    public static int REPLICATED_WRITE_QUORUM = 1;
+
+    /**
+     * <strong>Simulated DHT:</strong> Number of virtual nodes of
+     * {@link integration.external.simulation.SimulatedDhtSubsystem}.
+     */
+    public static int SIM_NODES = 1000;
+
+    /**
+     * <strong>Simulated DHT:</strong> Number of nodes an item is stored at.
+     */
+    public static int SIM_REPLICATION = 20;
+
+    /**
+     * <strong>Simulated DHT:</strong> Parallel queries per lookup, which
+     * determines the number of hops.
+     */
+    public static int SIM_ALPHA = 3;
+
+    /**
+     * <strong>Simulated DHT:</strong> Median latency of a hop in ms.
+     */
+    public static double SIM_LATENCY_MEDIAN = 80;
+
+    /**
+     * <strong>Simulated DHT:</strong> Shape (sigma) of the log-normal hop
+     * latency distribution.
+     */
+    public static double SIM_LATENCY_SIGMA = 0.6;
+
+    /**
+     * <strong>Simulated DHT:</strong> Probability that a message is lost.
+     */
+    public static double SIM_LOSS = 0.02;
+
+    /**
+     * <strong>Simulated DHT:</strong> Time in milliseconds after which a lost
+     * message times out.
+     */
+    public static int SIM_TIMEOUT = 2000;
+
+    /**
+     * <strong>Simulated DHT:</strong> Mean online time of a node in minutes
+     * (<code>0</code> disables churn).
+     */
+    public static int SIM_MEAN_SESSION = 60;
+
+    /**
+     * <strong>Simulated DHT:</strong> Mean offline time of a node in minutes.
+     */
+    public static int SIM_MEAN_DOWNTIME = 30;
+
+    /**
+     * <strong>Simulated DHT:</strong> Time in minutes after which a node
+     * drops a stored value.
+     */
+    public static int SIM_EXPIRY = 8 * 60;
+
+    /**
+     * <strong>Simulated DHT:</strong> Seed of the simulation.
+     */
+    public static long SIM_SEED = 1;
+
+    /**
+     * <strong>Decryption:</strong> Number of threads which decrypt the files
+     * of a container in parallel (shared by all requests). <code>0</code>
+     * uses one thread per core and <code>1</code> decrypts sequentially.
+     */
+    public static int DECRYPT_THREADS = 0;
+
+    /**
+     * Maximum number of dynamic attributes that are looked up in the
+     * external storage at the same time (shared by all requests).
+     */
+    public static int ATTRIBUTE_LOOKUP_THREADS = 8;
+
+    /**
+     * Maximum number of retrieved dynamic attribute components (per user and
+     * attribute) that are cached until the next main event.
+     */
+    public static int ATTRIBUTE_CACHE_SIZE = 10000;
+
+    /**
+     * Time in seconds an attribute that couldn't be retrieved from the
+     * external storage is not looked up again.
+     */
+    public static int ATTRIBUTE_NEGATIVE_CACHE_TTL = 300;
+
+    /**
+     * Maximum number of users whose deserialized private key is kept in
+     * memory.
+     */
+    public static int PRIVATE_KEY_CACHE_SIZE = 256;
+
+    /**
+     * Verify the signatures of the retrieved shares of a file as one batch
+     * instead of one by one.
+     */
+    public static boolean ED25519_BATCH_VERIFY = true;
+
+    /**
+     * Number of containers that are decrypted at the same time by the
+     * decryption jobs.
+     */
+    public static int DECRYPTION_JOB_THREADS = 2;
+
+    /**
+     * Number of decryption jobs that may wait for a worker before new jobs
+     * are rejected.
+     */
+    public static int DECRYPTION_JOB_QUEUE = 64;
+
+    /**
+     * Number of containers that are encrypted at the same time.
+     */
+    public static int ENCRYPTION_JOB_THREADS = 2;
+
+    /**
+     * Number of encryptions that wait for a worker. Further requests are
+     * rejected with the status 429.
+     */
+    public static int ENCRYPTION_JOB_QUEUE = 256;
+
+    /**
+     * Directory in which uploaded files are kept until they are encrypted.
+     */
+    public static String UPLOAD_SPOOL_PATH = "uploadSpool";
+
+    /**
+     * Maximum size in MB of all files of one upload (<code>0</code>: unlimited).
+     * Larger uploads are rejected with 413 (Request Entity Too Large).
+     */
+    public static int UPLOAD_MAX_SIZE = 1024;
+
+    /**
+     * Read containers through memory mapped windows and write containers and
+     * decrypted files through large direct buffers instead of plain file streams.
+     */
+    public static boolean CONTAINER_NIO = true;
+
+    /**
+     * Write the files of new containers in the chunked envelope format
+     * ({@link integration.envelope.ChunkedEnvelope}), so they are verified per
+     * chunk during decryption. Can be set per container with the
+     * <code>chunkedEntries</code> flag of the manifest.
+     */
+    public static boolean ENVELOPE_CHUNKED = false;
+
+    /**
+     * Plaintext bytes per chunk of the chunked envelope format.
+     */
+    public static int ENVELOPE_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of threads which seal and open chunks of the envelope format
+     * (0 = number of processors).
+     */
+    public static int ENVELOPE_THREADS = 0;
+
+    /**
+     * Deflate level (1-9) of files which are compressed before the
+     * encryption (<code>compress</code> flag of a file in the manifest).
+     */
+    public static int ENTRY_COMPRESSION_LEVEL = 6;
+
+    /**
+     * Number of files of a container that are compressed and sealed in
+     * parallel before they are added to the container (0 = number of
+     * processors).
+     */
+    public static int ENTRY_PREPARATION_THREADS = 0;
+
+    /**
+     * Directory in which compressed and sealed files are kept until they
+     * are added to a container. Only the server user can access it, since
+     * a sealed file contains the key of its envelope. Leftovers of an
+     * interrupted run are deleted on startup.
+     */
+    public static String ENTRY_STAGING_PATH = "entryStaging";
+
     /**
      * <strong>Signature:</strong> Signature definition (non-changeable)
      */
@@ -123,6 +416,19 @@ public class ServerConfigDefaults {
      */
     public static String SHEX_URI = "http://localhost:5000/";
 
+    /**
+     * <strong>Shex:</strong> Allow sending bulk calls as a single batch
+     * request if the server supports it.
+     */
+    public static boolean SHEX_BATCH = true;
+
+    /**
+     * <strong>Shex:</strong> Allow raw <code>application/octet-stream</code>
+     * values and hex encoded locations instead of Base64 text if the server
+     * supports it.
+     */
+    public static boolean SHEX_BINARY = true;
+
 
 
     private static final String CONFIG_FILE = "config.properties";
@@ -132,11 +438,60 @@ public class ServerConfigDefaults {
     private static final String DB_VIEW_KEY = "dbView";
     private static final String ABE_MAX_USERS_KEY = "abeMaxUsers";
     private static final String EKDS_KEY = "externalKeyStorageProvider";
+    private static final String EKDS_WRITE_BEHIND_WINDOW_KEY = "ekdsWriteBehindWindow";
+    private static final String EKDS_WRITE_BEHIND_BATCH_KEY = "ekdsWriteBehindBatch";
+    private static final String EKDS_READ_COALESCING_KEY = "ekdsReadCoalescing";
+    private static final String EKDS_READ_CACHE_TTL_KEY = "ekdsReadCacheTtl";
     private static final String JQ_MAIN_EVENT_INTERVAL_KEY = "mainEventInterval";
     private static final String JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY_KEY = "betweenMainEventGranularity";
     private static final String JQ_DHT_PUSH_RETRY_KEY = "jqPushRetry";
+    private static final String JKAD_BEP44_PORT_KEY = "jkadBep44Port";
+    private static final String JKAD_ALPHA_KEY = "jkadAlpha";
+    private static final String JKAD_PARALLEL_LOOKUPS_KEY = "jkadParallelLookups";
+    private static final String JKAD_QUERY_TIMEOUT_KEY = "jkadQueryTimeout";
+    private static final String VUZE_POOL_SIZE_KEY = "vuzePoolSize";
+    private static final String VUZE_POOL_ACQUIRE_TIMEOUT_KEY = "vuzePoolAcquireTimeout";
+    private static final String LOCAL_PATH_KEY = "localPath";
+    private static final String LOCAL_CAPACITY_KEY = "localCapacity";
+    private static final String LOCAL_TTL_KEY = "localTtl";
+    private static final String LOCAL_SYNC_KEY = "localSync";
+    private static final String REPLICATED_PROVIDERS_KEY = "replicatedProviders";
+    private static final String REPLICATED_HEDGE_PERCENTILE_KEY = "replicatedHedgePercentile";
+    private static final String REPLICATED_WRITE_QUORUM_KEY = "replicatedWriteQuorum";
+    private static final String SIM_NODES_KEY = "simNodes";
+    private static final String SIM_REPLICATION_KEY = "simReplication";
+    private static final String SIM_ALPHA_KEY = "simAlpha";
+    private static final String SIM_LATENCY_MEDIAN_KEY = "simLatencyMedian";
+    private static final String SIM_LATENCY_SIGMA_KEY = "simLatencySigma";
+    private static final String SIM_LOSS_KEY = "simLoss";
+    private static final String SIM_TIMEOUT_KEY = "simTimeout";
+    private static final String SIM_MEAN_SESSION_KEY = "simMeanSession";
+    private static final String SIM_MEAN_DOWNTIME_KEY = "simMeanDowntime";
+    private static final String SIM_EXPIRY_KEY = "simExpiry";
+    private static final String SIM_SEED_KEY = "simSeed";
+    private static final String DECRYPT_THREADS_KEY = "decryptThreads";
+    private static final String ATTRIBUTE_LOOKUP_THREADS_KEY = "attributeLookupThreads";
+    private static final String ATTRIBUTE_CACHE_SIZE_KEY = "attributeCacheSize";
+    private static final String ATTRIBUTE_NEGATIVE_CACHE_TTL_KEY = "attributeNegativeCacheTtl";
+    private static final String PRIVATE_KEY_CACHE_SIZE_KEY = "privateKeyCacheSize";
+    private static final String ED25519_BATCH_VERIFY_KEY = "ed25519BatchVerify";
+    private static final String DECRYPTION_JOB_THREADS_KEY = "decryptionJobThreads";
+    private static final String DECRYPTION_JOB_QUEUE_KEY = "decryptionJobQueue";
+    private static final String ENCRYPTION_JOB_THREADS_KEY = "encryptionJobThreads";
+    private static final String ENCRYPTION_JOB_QUEUE_KEY = "encryptionJobQueue";
+    private static final String UPLOAD_SPOOL_PATH_KEY = "uploadSpoolPath";
+    private static final String UPLOAD_MAX_SIZE_KEY = "uploadMaxSize";
+    private static final String CONTAINER_NIO_KEY = "containerNio";
+    private static final String ENVELOPE_CHUNKED_KEY = "envelopeChunked";
+    private static final String ENVELOPE_CHUNK_SIZE_KEY = "envelopeChunkSize";
+    private static final String ENVELOPE_THREADS_KEY = "envelopeThreads";
+    private static final String ENTRY_COMPRESSION_LEVEL_KEY = "entryCompressionLevel";
+    private static final String ENTRY_PREPARATION_THREADS_KEY = "entryPreparationThreads";
+    private static final String ENTRY_STAGING_PATH_KEY = "entryStagingPath";
     private static final String EXP_ATTRIBUTE_REPLICATE_N_KEY = "replicateAttributeNTimes";
     private static final String SHEX_URI_KEY = "shexUri";
+    private static final String SHEX_BATCH_KEY = "shexBatch";
+    private static final String SHEX_BINARY_KEY = "shexBinary";
 
     /**
      * Write the configuration to a file <i>config.properties</i>.
@@ -154,11 +509,60 @@ public class ServerConfigDefaults {
         prop.setProperty(DB_VIEW_KEY, ""+DB_VIEW);
         prop.setProperty(ABE_MAX_USERS_KEY, ""+ABE_MAX_USERS);
         prop.setProperty(EKDS_KEY, EKDS.name());
+        prop.setProperty(EKDS_WRITE_BEHIND_WINDOW_KEY, ""+EKDS_WRITE_BEHIND_WINDOW);
+        prop.setProperty(EKDS_WRITE_BEHIND_BATCH_KEY, ""+EKDS_WRITE_BEHIND_BATCH);
+        prop.setProperty(EKDS_READ_COALESCING_KEY, ""+EKDS_READ_COALESCING);
+        prop.setProperty(EKDS_READ_CACHE_TTL_KEY, ""+EKDS_READ_CACHE_TTL);
         prop.setProperty(JQ_MAIN_EVENT_INTERVAL_KEY, ""+JQ_MAIN_EVENT_INTERVAL);
         prop.setProperty(JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY_KEY, ""+JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY);
         prop.setProperty(JQ_DHT_PUSH_RETRY_KEY, ""+JQ_DHT_PUSH_RETRY);
+        prop.setProperty(JKAD_BEP44_PORT_KEY, ""+JKAD_BEP44_PORT);
+        prop.setProperty(JKAD_ALPHA_KEY, ""+JKAD_ALPHA);
+        prop.setProperty(JKAD_PARALLEL_LOOKUPS_KEY, ""+JKAD_PARALLEL_LOOKUPS);
+        prop.setProperty(JKAD_QUERY_TIMEOUT_KEY, ""+JKAD_QUERY_TIMEOUT);
+        prop.setProperty(VUZE_POOL_SIZE_KEY, ""+VUZE_POOL_SIZE);
+        prop.setProperty(VUZE_POOL_ACQUIRE_TIMEOUT_KEY, ""+VUZE_POOL_ACQUIRE_TIMEOUT);
+        prop.setProperty(LOCAL_PATH_KEY, LOCAL_PATH);
+        prop.setProperty(LOCAL_CAPACITY_KEY, ""+LOCAL_CAPACITY);
+        prop.setProperty(LOCAL_TTL_KEY, ""+LOCAL_TTL);
+        prop.setProperty(LOCAL_SYNC_KEY, ""+LOCAL_SYNC);
+        prop.setProperty(REPLICATED_PROVIDERS_KEY, REPLICATED_PROVIDERS);
+        prop.setProperty(REPLICATED_HEDGE_PERCENTILE_KEY, ""+REPLICATED_HEDGE_PERCENTILE);
+        prop.setProperty(REPLICATED_WRITE_QUORUM_KEY, ""+REPLICATED_WRITE_QUORUM);
+        prop.setProperty(SIM_NODES_KEY, ""+SIM_NODES);
+        prop.setProperty(SIM_REPLICATION_KEY, ""+SIM_REPLICATION);
+        prop.setProperty(SIM_ALPHA_KEY, ""+SIM_ALPHA);
+        prop.setProperty(SIM_LATENCY_MEDIAN_KEY, ""+SIM_LATENCY_MEDIAN);
+        prop.setProperty(SIM_LATENCY_SIGMA_KEY, ""+SIM_LATENCY_SIGMA);
+        prop.setProperty(SIM_LOSS_KEY, ""+SIM_LOSS);
+        prop.setProperty(SIM_TIMEOUT_KEY, ""+SIM_TIMEOUT);
+        prop.setProperty(SIM_MEAN_SESSION_KEY, ""+SIM_MEAN_SESSION);
+        prop.setProperty(SIM_MEAN_DOWNTIME_KEY, ""+SIM_MEAN_DOWNTIME);
+        prop.setProperty(SIM_EXPIRY_KEY, ""+SIM_EXPIRY);
+        prop.setProperty(SIM_SEED_KEY, ""+SIM_SEED);
+        prop.setProperty(DECRYPT_THREADS_KEY, ""+DECRYPT_THREADS);
+        prop.setProperty(ATTRIBUTE_LOOKUP_THREADS_KEY, ""+ATTRIBUTE_LOOKUP_THREADS);
+        prop.setProperty(ATTRIBUTE_CACHE_SIZE_KEY, ""+ATTRIBUTE_CACHE_SIZE);
+        prop.setProperty(ATTRIBUTE_NEGATIVE_CACHE_TTL_KEY, ""+ATTRIBUTE_NEGATIVE_CACHE_TTL);
+        prop.setProperty(PRIVATE_KEY_CACHE_SIZE_KEY, ""+PRIVATE_KEY_CACHE_SIZE);
+        prop.setProperty(ED25519_BATCH_VERIFY_KEY, ""+ED25519_BATCH_VERIFY);
+        prop.setProperty(DECRYPTION_JOB_THREADS_KEY, ""+DECRYPTION_JOB_THREADS);
+        prop.setProperty(DECRYPTION_JOB_QUEUE_KEY, ""+DECRYPTION_JOB_QUEUE);
+        prop.setProperty(ENCRYPTION_JOB_THREADS_KEY, ""+ENCRYPTION_JOB_THREADS);
+        prop.setProperty(ENCRYPTION_JOB_QUEUE_KEY, ""+ENCRYPTION_JOB_QUEUE);
+        prop.setProperty(UPLOAD_SPOOL_PATH_KEY, UPLOAD_SPOOL_PATH);
+        prop.setProperty(UPLOAD_MAX_SIZE_KEY, ""+UPLOAD_MAX_SIZE);
+        prop.setProperty(CONTAINER_NIO_KEY, ""+CONTAINER_NIO);
+        prop.setProperty(ENVELOPE_CHUNKED_KEY, ""+ENVELOPE_CHUNKED);
+        prop.setProperty(ENVELOPE_CHUNK_SIZE_KEY, ""+ENVELOPE_CHUNK_SIZE);
+        prop.setProperty(ENVELOPE_THREADS_KEY, ""+ENVELOPE_THREADS);
+        prop.setProperty(ENTRY_COMPRESSION_LEVEL_KEY, ""+ENTRY_COMPRESSION_LEVEL);
+        prop.setProperty(ENTRY_PREPARATION_THREADS_KEY, ""+ENTRY_PREPARATION_THREADS);
+        prop.setProperty(ENTRY_STAGING_PATH_KEY, ENTRY_STAGING_PATH);
         prop.setProperty(EXP_ATTRIBUTE_REPLICATE_N_KEY, ""+EXP_ATTRIBUTE_REPLICATE_N);
         prop.setProperty(SHEX_URI_KEY, ""+SHEX_URI);
+        prop.setProperty(SHEX_BATCH_KEY, ""+SHEX_BATCH);
+        prop.setProperty(SHEX_BINARY_KEY, ""+SHEX_BINARY);
 
         try {
             prop.store(new FileOutputStream(new File(CONFIG_FILE)), "");
@@ -198,16 +602,114 @@ public class ServerConfigDefaults {
             ABE_MAX_USERS = Integer.parseInt(prop.getProperty(ABE_MAX_USERS_KEY));
         if (prop.containsKey(EKDS_KEY))
             EKDS = ExternalKeyDistributionStorageProvider.valueOf(prop.getProperty(EKDS_KEY));
+        if (prop.containsKey(EKDS_WRITE_BEHIND_WINDOW_KEY))
+            EKDS_WRITE_BEHIND_WINDOW = Integer.parseInt(prop.getProperty(EKDS_WRITE_BEHIND_WINDOW_KEY));
+        if (prop.containsKey(EKDS_WRITE_BEHIND_BATCH_KEY))
+            EKDS_WRITE_BEHIND_BATCH = Integer.parseInt(prop.getProperty(EKDS_WRITE_BEHIND_BATCH_KEY));
+        if (prop.containsKey(EKDS_READ_COALESCING_KEY))
+            EKDS_READ_COALESCING = Boolean.parseBoolean(prop.getProperty(EKDS_READ_COALESCING_KEY));
+        if (prop.containsKey(EKDS_READ_CACHE_TTL_KEY))
+            EKDS_READ_CACHE_TTL = Integer.parseInt(prop.getProperty(EKDS_READ_CACHE_TTL_KEY));
         if (prop.containsKey(JQ_MAIN_EVENT_INTERVAL_KEY))
             JQ_MAIN_EVENT_INTERVAL = Integer.parseInt(prop.getProperty(JQ_MAIN_EVENT_INTERVAL_KEY));
         if (prop.containsKey(JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY_KEY))
             JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY = Integer.parseInt(prop.getProperty(JQ_BETWEEN_EVENT_SCHEDULING_GRANULARITY_KEY));
         if (prop.containsKey(JQ_DHT_PUSH_RETRY_KEY))
             JQ_DHT_PUSH_RETRY = Integer.parseInt(prop.getProperty(JQ_DHT_PUSH_RETRY_KEY));
+        if (prop.containsKey(JKAD_BEP44_PORT_KEY))
+            JKAD_BEP44_PORT = Integer.parseInt(prop.getProperty(JKAD_BEP44_PORT_KEY));
+        if (prop.containsKey(JKAD_ALPHA_KEY))
+            JKAD_ALPHA = Integer.parseInt(prop.getProperty(JKAD_ALPHA_KEY));
+        if (prop.containsKey(JKAD_PARALLEL_LOOKUPS_KEY))
+            JKAD_PARALLEL_LOOKUPS = Integer.parseInt(prop.getProperty(JKAD_PARALLEL_LOOKUPS_KEY));
+        if (prop.containsKey(JKAD_QUERY_TIMEOUT_KEY))
+            JKAD_QUERY_TIMEOUT = Integer.parseInt(prop.getProperty(JKAD_QUERY_TIMEOUT_KEY));
+        if (prop.containsKey(VUZE_POOL_SIZE_KEY))
+            VUZE_POOL_SIZE = Integer.parseInt(prop.getProperty(VUZE_POOL_SIZE_KEY));
+        if (prop.containsKey(VUZE_POOL_ACQUIRE_TIMEOUT_KEY))
+            VUZE_POOL_ACQUIRE_TIMEOUT = Integer.parseInt(prop.getProperty(VUZE_POOL_ACQUIRE_TIMEOUT_KEY));
+        if (prop.containsKey(LOCAL_PATH_KEY))
+            LOCAL_PATH = prop.getProperty(LOCAL_PATH_KEY);
+        if (prop.containsKey(LOCAL_CAPACITY_KEY))
+            LOCAL_CAPACITY = Integer.parseInt(prop.getProperty(LOCAL_CAPACITY_KEY));
+        if (prop.containsKey(LOCAL_TTL_KEY))
+            LOCAL_TTL = Integer.parseInt(prop.getProperty(LOCAL_TTL_KEY));
+        if (prop.containsKey(LOCAL_SYNC_KEY))
+            LOCAL_SYNC = Boolean.parseBoolean(prop.getProperty(LOCAL_SYNC_KEY));
+        if (prop.containsKey(REPLICATED_PROVIDERS_KEY))
+            REPLICATED_PROVIDERS = prop.getProperty(REPLICATED_PROVIDERS_KEY);
+        if (prop.containsKey(REPLICATED_HEDGE_PERCENTILE_KEY))
+            REPLICATED_HEDGE_PERCENTILE = Double.parseDouble(prop.getProperty(REPLICATED_HEDGE_PERCENTILE_KEY));
+        if (prop.containsKey(REPLICATED_WRITE_QUORUM_KEY))
+            REPLICATED_WRITE_QUORUM = Integer.parseInt(prop.getProperty(REPLICATED_WRITE_QUORUM_KEY));
+        if (prop.containsKey(SIM_NODES_KEY))
+            SIM_NODES = Integer.parseInt(prop.getProperty(SIM_NODES_KEY));
+        if (prop.containsKey(SIM_REPLICATION_KEY))
+            SIM_REPLICATION = Integer.parseInt(prop.getProperty(SIM_REPLICATION_KEY));
+        if (prop.containsKey(SIM_ALPHA_KEY))
+            SIM_ALPHA = Integer.parseInt(prop.getProperty(SIM_ALPHA_KEY));
+        if (prop.containsKey(SIM_LATENCY_MEDIAN_KEY))
+            SIM_LATENCY_MEDIAN = Double.parseDouble(prop.getProperty(SIM_LATENCY_MEDIAN_KEY));
+        if (prop.containsKey(SIM_LATENCY_SIGMA_KEY))
+            SIM_LATENCY_SIGMA = Double.parseDouble(prop.getProperty(SIM_LATENCY_SIGMA_KEY));
+        if (prop.containsKey(SIM_LOSS_KEY))
+            SIM_LOSS = Double.parseDouble(prop.getProperty(SIM_LOSS_KEY));
+        if (prop.containsKey(SIM_TIMEOUT_KEY))
+            SIM_TIMEOUT = Integer.parseInt(prop.getProperty(SIM_TIMEOUT_KEY));
+        if (prop.containsKey(SIM_MEAN_SESSION_KEY))
+            SIM_MEAN_SESSION = Integer.parseInt(prop.getProperty(SIM_MEAN_SESSION_KEY));
+        if (prop.containsKey(SIM_MEAN_DOWNTIME_KEY))
+            SIM_MEAN_DOWNTIME = Integer.parseInt(prop.getProperty(SIM_MEAN_DOWNTIME_KEY));
+        if (prop.containsKey(SIM_EXPIRY_KEY))
+            SIM_EXPIRY = Integer.parseInt(prop.getProperty(SIM_EXPIRY_KEY));
+        if (prop.containsKey(SIM_SEED_KEY))
+            SIM_SEED = Long.parseLong(prop.getProperty(SIM_SEED_KEY));
+        if (prop.containsKey(DECRYPT_THREADS_KEY))
+            DECRYPT_THREADS = Integer.parseInt(prop.getProperty(DECRYPT_THREADS_KEY));
+        if (prop.containsKey(ATTRIBUTE_LOOKUP_THREADS_KEY))
+            ATTRIBUTE_LOOKUP_THREADS = Integer.parseInt(prop.getProperty(ATTRIBUTE_LOOKUP_THREADS_KEY));
+        if (prop.containsKey(ATTRIBUTE_CACHE_SIZE_KEY))
+            ATTRIBUTE_CACHE_SIZE = Integer.parseInt(prop.getProperty(ATTRIBUTE_CACHE_SIZE_KEY));
+        if (prop.containsKey(ATTRIBUTE_NEGATIVE_CACHE_TTL_KEY))
+            ATTRIBUTE_NEGATIVE_CACHE_TTL = Integer.parseInt(prop.getProperty(ATTRIBUTE_NEGATIVE_CACHE_TTL_KEY));
+        if (prop.containsKey(PRIVATE_KEY_CACHE_SIZE_KEY))
+            PRIVATE_KEY_CACHE_SIZE = Integer.parseInt(prop.getProperty(PRIVATE_KEY_CACHE_SIZE_KEY));
+        if (prop.containsKey(ED25519_BATCH_VERIFY_KEY))
+            ED25519_BATCH_VERIFY = Boolean.parseBoolean(prop.getProperty(ED25519_BATCH_VERIFY_KEY));
+        if (prop.containsKey(DECRYPTION_JOB_THREADS_KEY))
+            DECRYPTION_JOB_THREADS = Integer.parseInt(prop.getProperty(DECRYPTION_JOB_THREADS_KEY));
+        if (prop.containsKey(DECRYPTION_JOB_QUEUE_KEY))
+            DECRYPTION_JOB_QUEUE = Integer.parseInt(prop.getProperty(DECRYPTION_JOB_QUEUE_KEY));
+        if (prop.containsKey(ENCRYPTION_JOB_THREADS_KEY))
+            ENCRYPTION_JOB_THREADS = Integer.parseInt(prop.getProperty(ENCRYPTION_JOB_THREADS_KEY));
+        if (prop.containsKey(ENCRYPTION_JOB_QUEUE_KEY))
+            ENCRYPTION_JOB_QUEUE = Integer.parseInt(prop.getProperty(ENCRYPTION_JOB_QUEUE_KEY));
+        if (prop.containsKey(UPLOAD_SPOOL_PATH_KEY))
+            UPLOAD_SPOOL_PATH = prop.getProperty(UPLOAD_SPOOL_PATH_KEY);
+        if (prop.containsKey(UPLOAD_MAX_SIZE_KEY))
+            UPLOAD_MAX_SIZE = Integer.parseInt(prop.getProperty(UPLOAD_MAX_SIZE_KEY));
+        if (prop.containsKey(CONTAINER_NIO_KEY))
+            CONTAINER_NIO = Boolean.parseBoolean(prop.getProperty(CONTAINER_NIO_KEY));
+        if (prop.containsKey(ENVELOPE_CHUNKED_KEY))
+            ENVELOPE_CHUNKED = Boolean.parseBoolean(prop.getProperty(ENVELOPE_CHUNKED_KEY));
+        if (prop.containsKey(ENVELOPE_CHUNK_SIZE_KEY))
+            ENVELOPE_CHUNK_SIZE = Integer.parseInt(prop.getProperty(ENVELOPE_CHUNK_SIZE_KEY));
+        if (prop.containsKey(ENVELOPE_THREADS_KEY))
+            ENVELOPE_THREADS = Integer.parseInt(prop.getProperty(ENVELOPE_THREADS_KEY));
+        if (prop.containsKey(ENTRY_COMPRESSION_LEVEL_KEY))
+            ENTRY_COMPRESSION_LEVEL = Integer.parseInt(prop.getProperty(ENTRY_COMPRESSION_LEVEL_KEY));
+        if (prop.containsKey(ENTRY_PREPARATION_THREADS_KEY))
+            ENTRY_PREPARATION_THREADS = Integer.parseInt(prop.getProperty(ENTRY_PREPARATION_THREADS_KEY));
+        if (prop.containsKey(ENTRY_STAGING_PATH_KEY))
+            ENTRY_STAGING_PATH = prop.getProperty(ENTRY_STAGING_PATH_KEY);
         if (prop.containsKey(EXP_ATTRIBUTE_REPLICATE_N_KEY))
             EXP_ATTRIBUTE_REPLICATE_N = Integer.parseInt(prop.getProperty(EXP_ATTRIBUTE_REPLICATE_N_KEY));
         if (prop.containsKey(SHEX_URI_KEY))
             SHEX_URI = prop.getProperty(SHEX_URI_KEY);
+        if (prop.containsKey(SHEX_BATCH_KEY))
+            SHEX_BATCH = Boolean.parseBoolean(prop.getProperty(SHEX_BATCH_KEY));
+        if (prop.containsKey(SHEX_BINARY_KEY))
+            SHEX_BINARY = Boolean.parseBoolean(prop.getProperty(SHEX_BINARY_KEY));
 
         return true;
     }
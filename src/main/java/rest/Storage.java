@@ -40,8 +40,11 @@ public class Storage {
     *   added container to FileBag class as a Link to the parent Container
     *   added delete to FileBag and Attribute
     *   made secretSeed of User obligatory
+    *
+    * Version 4:
+    *   added DecryptionJob class
     * */
-    private static final int SCHEMA_VERSION = 3; // CHANGE THIS VERSION IF THE SCHEMA CHANGES AND ADD APPROPRIATE DATA MIGRATION CODE
+    private static final int SCHEMA_VERSION = 4; // CHANGE THIS VERSION IF THE SCHEMA CHANGES AND ADD APPROPRIATE DATA MIGRATION CODE
 
     private static final Logger logger = Logger.getLogger(Storage.class);
 
@@ -209,6 +212,30 @@ public class Storage {
             mskClass.createProperty("sk", OType.BINARY).setMandatory(true).setNotNull(true);
             mskClass.createProperty("pk", OType.BINARY).setMandatory(true).setNotNull(true);
         }
+
+        if (!db.getMetadata().getSchema().existsClass("DecryptionJob")) {
+            logger.info("Create new DB class 'DecryptionJob'");
+
+            OClass decryptionJobClass = db.getMetadata().getSchema().createClass("DecryptionJob");
+            decryptionJobClass.createProperty("jid", OType.INTEGER).setMandatory(true).setNotNull(true);
+            decryptionJobClass.createIndex("jidIdx", OClass.INDEX_TYPE.UNIQUE, "jid");
+
+            decryptionJobClass.createProperty("status", OType.STRING).setMandatory(true).setNotNull(true);
+            decryptionJobClass.createProperty("failMsg", OType.STRING);
+            decryptionJobClass.createProperty("container", OType.STRING);
+            decryptionJobClass.createProperty("outputDirectory", OType.STRING);
+            decryptionJobClass.createProperty("filesTotal", OType.INTEGER);
+            decryptionJobClass.createProperty("filesDone", OType.INTEGER);
+            decryptionJobClass.createProperty("files", OType.EMBEDDEDLIST, OType.EMBEDDED);
+            decryptionJobClass.createProperty("created", OType.DATETIME);
+            decryptionJobClass.createProperty("finished", OType.DATETIME);
+        }
+
+        if (schemaVersion < SCHEMA_VERSION) {
+            logger.info("Migrated DB schema from version " + schemaVersion + " to " + SCHEMA_VERSION);
+            baseDataShema.field("version", SCHEMA_VERSION);
+            baseDataShema.save();
+        }
     }
 
     /**
@@ -5,9 +5,13 @@ import com.github.fge.jackson.JsonLoader;
 import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import integration.crypto.DecryptionJob;
+import integration.crypto.DecryptionJobExecutor;
 import integration.crypto.Decryptor;
 import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.Request;
@@ -15,13 +19,18 @@ import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.Post;
 import org.restlet.resource.ServerResource;
+import rest.PrivateKeyCache;
 import rest.Storage;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class DecryptionResource extends ServerResource {
+    private static final Logger logger = Logger.getLogger(DecryptionResource.class);
 
     private static String DECRYPTION_MANIFEST = null;
 
@@ -36,15 +45,20 @@ public class DecryptionResource extends ServerResource {
         return DECRYPTION_MANIFEST;
     }
 
+    /**
+     * Decrypt a container as a {@link DecryptionJob}. The ID in the path
+     * identifies the job. Without <code>"async": true</code> in the manifest
+     * the request waits for the job to finish.
+     */
     @Post
-    public synchronized JSONObject decrypt(StringRepresentation r) throws JSONException, IOException {
-        // FIXME: properly check concurrent requests
+    public JSONObject decrypt(StringRepresentation r) throws JSONException, IOException {
         final Request req = getRequest();
         final String successStr = "success";
         final String msgStr = "msg";
+        final String statusStr = "status";
         final String requestContent = r.getText();
 
-        int cid = Integer.parseInt(""+req.getAttributes().get("containerId"));
+        int jid = Integer.parseInt(""+req.getAttributes().get("containerId"));
 
         JSONObject result = new JSONObject();
 
@@ -64,16 +78,74 @@ public class DecryptionResource extends ServerResource {
 
         JSONObject input = new JSONObject(requestContent);
 
+        boolean async = input.optBoolean("async", false);
+
+        Decryptor decryptor = createDecryptor(input, input.getString("outputDirectory"), result);
+        if (decryptor == null) {
+            return result;
+        }
+
+        if (!DecryptionJob.create(jid, input.getString("container"), input.getString("outputDirectory"))) {
+            result.put(successStr, false);
+            result.put(msgStr, "Decryption job with this ID is still running");
+            return result;
+        }
+
+        Future<Boolean> job;
+        try {
+            job = DecryptionJobExecutor.getInstance().submit(new DecryptionJob(jid, decryptor));
+        } catch (RejectedExecutionException e) {
+            result.put(successStr, false);
+            result.put(msgStr, "Too many decryption jobs, try again later");
+            return result;
+        }
+
+        if (async) {
+            result.put(successStr, true);
+            result.put(statusStr, DecryptionJob.STATUS_QUEUED);
+            return result;
+        }
+
+        boolean success = false;
+        try {
+            success = job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("#decrypt: Decryption job " + jid + " failed", e.getCause());
+        }
+
+        result.put(successStr, success);
+        result.put(statusStr, success ? DecryptionJob.STATUS_SUCCESS : DecryptionJob.STATUS_FAILED);
+        if (!success) {
+            result.put(msgStr, "Something went wrong (Not enough attributes or something like that)");
+        }
+        return result;
+    }
+
+    /**
+     * Create the decryptor for a validated manifest with either the key
+     * material or the ID of a stored user and the selected files.
+     * @param input              Decryption manifest
+     * @param outputDirectory    Output directory (<code>null</code> when streaming)
+     * @param result             Receives the error if the decryptor can't be created
+     * @return  Decryptor or <code>null</code>
+     * @throws JSONException
+     */
+    static Decryptor createDecryptor(JSONObject input, String outputDirectory, JSONObject result) throws JSONException {
+        final String successStr = "success";
+        final String msgStr = "msg";
+
         Storage storage = Storage.getInstance();
 
         String privateKey = null;
+        Decryptor.KeySource keySource = null;
         String secretSeed = null;
         boolean overwriteFiles = true;
         boolean checkExternal = false;
 
-        try {
-            JSONObject userData = input.getJSONObject("user");
-
+        JSONObject userData = input.optJSONObject("user");
+        if (userData != null) {
             privateKey = userData.getString("privateKey");
             if (userData.has("secretSeed")) {
                 secretSeed = userData.getString("secretSeed");
@@ -86,82 +158,100 @@ public class DecryptionResource extends ServerResource {
             if (input.has("checkExternal")) {
                 checkExternal = input.getBoolean("checkExternal");
             }
-        } catch (JSONException e) {
+        } else {
             Integer uid = input.getInt("user");
 
             List<ODocument> matchedUser = storage.getByQuery("select * from User where uid = " + uid);
             if (matchedUser.size() != 1) {
                 result.put(successStr, false);
                 result.put(msgStr, "User with this ID doesn't exist");
-                return result;
+                return null;
             }
 
-            byte[] privKey = matchedUser.get(0).field("privatekey");
-            if (privKey == null || privKey.length == 0) {
+            keySource = PrivateKeyCache.getInstance().getKeySource(uid, matchedUser.get(0));
+            if (keySource == null) {
                 result.put(successStr, false);
                 result.put(msgStr, "Private key for use doesn't exist");
-                return result;
+                return null;
             }
 
-            privateKey = Base64.toBase64String(privKey);
-
             byte[] secSeed = matchedUser.get(0).field("secretSeed");
             if (secSeed != null && secSeed.length > 0) {
                 secretSeed = Base64.toBase64String(secSeed);
             }
         }
 
-        boolean success = new Decryptor(input.getString("container"),
-                input.getString("outputDirectory"), privateKey,
-                secretSeed, overwriteFiles, checkExternal).decrypt();
+        Decryptor decryptor;
+        if (keySource != null) {
+            decryptor = new Decryptor(input.getString("container"), outputDirectory, keySource,
+                    secretSeed, overwriteFiles, checkExternal);
+        } else {
+            decryptor = new Decryptor(input.getString("container"), outputDirectory, privateKey,
+                    secretSeed, overwriteFiles, checkExternal);
+        }
 
-        result.put(successStr, success);
-        if (!success) {
-            result.put(msgStr, "Something went wrong (Not enough attributes or something like that)");
+        // optional selection of files by index or name
+        JSONArray files = input.optJSONArray("files");
+        if (files != null) {
+            for (int i = 0; i < files.length(); i++) {
+                Object file = files.get(i);
+                if (file instanceof Number) {
+                    decryptor.selectFile(((Number) file).intValue());
+                } else {
+                    decryptor.selectFile(file.toString());
+                }
+            }
         }
-        return result;
+        return decryptor;
     }
 
     @Get
     public JSONObject getFileInfo() throws JSONException, IOException {
-        // copied from EncryptionResource
-//        final Request req = getRequest();
+        final Request req = getRequest();
         final String successStr = "success";
-//        final String failedStr = "failed";
-//        final String failedMsgStr = "failMsg";
-//        final String msgStr = "msg";
-//        final String containerStatusStr = "status";
-//
-//        int cid = Integer.parseInt(""+req.getAttributes().get("containerId"));
+        final String msgStr = "msg";
+        final String statusStr = "status";
+        final String failMsgStr = "failMsg";
+
+        int jid = Integer.parseInt(""+req.getAttributes().get("containerId"));
 
         JSONObject result = new JSONObject();
 
-//        Storage storage = Storage.getInstance();
-//
-//        List<ODocument> availableContainers = storage.getByQuery("select * from Container where cid = " + cid);
-//        if (availableContainers.size() == 0) {
-//            result.put(successStr, false);
-//            result.put(msgStr, "Container with this ID not found");
-//            return result;
-//        }
-//
-//        ODocument container = availableContainers.get(0);
-//        if (!container.containsField(containerStatusStr)) {
-//            result.put(successStr, false);
-//            result.put(msgStr, "Container with this ID doesn't have a status");
-//            return result;
-//        }
-//
-//        String status = (String)container.field(containerStatusStr);
-//        result.put(containerStatusStr, status);
-//        System.out.println("### INFO status: " + status);
-//        if (failedStr.equals(status)) {
-//            result.put(failedMsgStr, container.getOriginalValue(failedMsgStr));
-//        }
-
-        result.put(successStr, false);
-        result.put("implemented", false);
-        result.put("todo", "The encryption is currently not asynchronous, because there are no decryption jobs in the database");
+        ODocument job = DecryptionJob.getRecord(jid);
+        if (job == null) {
+            result.put(successStr, false);
+            result.put(msgStr, "Decryption job with this ID not found");
+            return result;
+        }
+
+        String status = job.field(statusStr);
+        result.put(statusStr, status);
+        if (DecryptionJob.STATUS_FAILED.equals(status) && job.field(failMsgStr) != null) {
+            result.put(failMsgStr, (String) job.field(failMsgStr));
+        }
+
+        Integer filesTotal = job.field("filesTotal");
+        Integer filesDone = job.field("filesDone");
+        result.put("filesTotal", filesTotal == null ? 0 : filesTotal);
+        result.put("filesDone", filesDone == null ? 0 : filesDone);
+
+        JSONArray filesArray = new JSONArray();
+        List<ODocument> files = job.field("files");
+        if (files != null) {
+            for (ODocument file : files) {
+                JSONObject fileObj = new JSONObject();
+                fileObj.put("index", (Integer) file.field("index"));
+                fileObj.put("name", (String) file.field("name"));
+                fileObj.put("success", (Boolean) file.field("success"));
+                if (file.field("output") != null) {
+                    fileObj.put("output", (String) file.field("output"));
+                }
+                filesArray.put(fileObj);
+            }
+        }
+        result.put("files", filesArray);
+
+        result.put(successStr, true);
         return result;
     }
 }
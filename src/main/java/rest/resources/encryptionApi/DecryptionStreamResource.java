@@ -0,0 +1,303 @@
+package rest.resources.encryptionApi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fge.jackson.JsonLoader;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import integration.crypto.DecryptionJobExecutor;
+import integration.crypto.Decryptor;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Disposition;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.ext.json.JsonRepresentation;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decrypts a container straight into the response instead of an output
+ * directory, so no plaintext is written to the disk of the server.
+ *
+ * <p>The manifest may select files by index or name. A single file is
+ * returned as <code>application/octet-stream</code>. Several files are
+ * returned as <code>multipart/mixed</code> with one part per file and a
+ * final <code>application/json</code> part which contains the outcome of
+ * every file.</p>
+ *
+ * <p>Keys and shares are retrieved before the response is committed, so
+ * errors up to that point are returned as JSON like in the other
+ * resources. A file that fails while it is streamed can't be taken back:
+ * a single file aborts the response, several files are reported in the
+ * status part.</p>
+ *
+ * <p>A stream holds a permit of the {@link DecryptionJobExecutor} from the
+ * preparation until the response is written. If none is left, the request
+ * is answered with 429 (Too Many Requests).</p>
+ */
+public class DecryptionStreamResource extends ServerResource {
+    private static final Logger logger = Logger.getLogger(DecryptionStreamResource.class);
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static String DECRYPTION_STREAM_MANIFEST = null;
+
+    private static String getDecryptionStreamManifest() throws IOException {
+        if (DECRYPTION_STREAM_MANIFEST == null) {
+            InputStream is = Thread.currentThread()
+                    .getContextClassLoader()
+                    .getResourceAsStream("decryptionStreamManifest.schema.json");
+            DECRYPTION_STREAM_MANIFEST = IOUtils.toString(is, "UTF-8");
+        }
+
+        return DECRYPTION_STREAM_MANIFEST;
+    }
+
+    @Post
+    public Representation decrypt(StringRepresentation r) throws JSONException, IOException {
+        final String successStr = "success";
+        final String msgStr = "msg";
+        final String requestContent = r.getText();
+
+        JSONObject result = new JSONObject();
+
+        // input validation of the partial manifest
+        try {
+            JsonNode manifestSchemaNode = JsonLoader.fromString(getDecryptionStreamManifest());
+            final JsonSchemaFactory factory = JsonSchemaFactory.byDefault();
+            JsonSchema manifestSchema = factory.getJsonSchema(manifestSchemaNode);
+            if (!manifestSchema.validInstance(JsonLoader.fromString(requestContent))) {
+                throw new Exception("Failed validation");
+            }
+        } catch (Exception e) {
+            result.put(successStr, false);
+            result.put(msgStr, "Invalid decryption manifest");
+            return new JsonRepresentation(result);
+        }
+
+        JSONObject input = new JSONObject(requestContent);
+
+        Decryptor decryptor = DecryptionResource.createDecryptor(input, null, result);
+        if (decryptor == null) {
+            return new JsonRepresentation(result);
+        }
+
+        // the decryption runs on this thread, but counts against the limit of the decryption jobs
+        DecryptionJobExecutor executor = DecryptionJobExecutor.getInstance();
+        if (!executor.tryAcquire()) {
+            getResponse().setStatus(Status.valueOf(TOO_MANY_REQUESTS));
+            result.put(successStr, false);
+            result.put(msgStr, "Too many decryptions, try again later");
+            return new JsonRepresentation(result);
+        }
+
+        boolean streaming = false;
+        try {
+            if (!decryptor.prepare()) {
+                result.put(successStr, false);
+                result.put(msgStr, "Container couldn't be prepared for decryption (or a selected file doesn't exist)");
+                return new JsonRepresentation(result);
+            }
+
+            List<String> fileNames = decryptor.getFileNames();
+            int[] indices = decryptor.getSelection();
+            if (indices.length == 0) {
+                result.put(successStr, false);
+                result.put(msgStr, "Container doesn't contain any files");
+                return new JsonRepresentation(result);
+            }
+
+            streaming = true;
+            if (indices.length == 1) {
+                return new SingleFileRepresentation(executor, decryptor, indices[0], fileNames.get(indices[0]));
+            }
+            return new MultipartRepresentation(executor, decryptor, indices);
+        } finally {
+            if (!streaming) {
+                executor.release();
+            }
+        }
+    }
+
+    /**
+     * Response that returns the permit of the stream once it is written or
+     * discarded.
+     */
+    private static abstract class StreamRepresentation extends OutputRepresentation {
+        private final DecryptionJobExecutor executor;
+        private final AtomicBoolean permitReleased = new AtomicBoolean();
+
+        StreamRepresentation(MediaType mediaType, DecryptionJobExecutor executor) {
+            super(mediaType);
+            this.executor = executor;
+        }
+
+        @Override
+        public final void write(OutputStream outputStream) throws IOException {
+            try {
+                writeFiles(outputStream);
+            } finally {
+                releasePermit();
+            }
+        }
+
+        protected abstract void writeFiles(OutputStream outputStream) throws IOException;
+
+        @Override
+        public void release() {
+            releasePermit();
+            super.release();
+        }
+
+        private void releasePermit() {
+            if (permitReleased.compareAndSet(false, true)) {
+                executor.release();
+            }
+        }
+    }
+
+    /**
+     * Plaintext of a single file as the whole response.
+     */
+    private static class SingleFileRepresentation extends StreamRepresentation {
+        private final Decryptor decryptor;
+        private final int index;
+
+        SingleFileRepresentation(DecryptionJobExecutor executor, Decryptor decryptor, int index, String name) {
+            super(MediaType.APPLICATION_OCTET_STREAM, executor);
+            this.decryptor = decryptor;
+            this.index = index;
+
+            Disposition disposition = new Disposition(Disposition.TYPE_ATTACHMENT);
+            disposition.setFilename(name);
+            setDisposition(disposition);
+        }
+
+        @Override
+        protected void writeFiles(OutputStream outputStream) throws IOException {
+            final BufferedOutputStream out = new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+            boolean success = decryptor.decryptTo(new int[] { index }, new Decryptor.StreamTarget() {
+                @Override
+                public OutputStream beginFile(int index, String name) {
+                    return out;
+                }
+
+                @Override
+                public void endFile(int index, String name, boolean success) {
+                }
+            });
+            if (!success) {
+                // the status is already sent, so the client has to see a broken response
+                throw new IOException("Decryption of the streamed file failed");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Plaintext of every file as a part of a <code>multipart/mixed</code>
+     * response followed by the status part.
+     */
+    private static class MultipartRepresentation extends StreamRepresentation {
+        private final Decryptor decryptor;
+        private final int[] indices;
+        private final String boundary;
+
+        MultipartRepresentation(DecryptionJobExecutor executor, Decryptor decryptor, int[] indices) {
+            super(MediaType.MULTIPART_ALL, executor);
+            this.decryptor = decryptor;
+            this.indices = indices;
+
+            byte[] boundaryBytes = new byte[16];
+            random.nextBytes(boundaryBytes);
+            this.boundary = "decrypted-" + Hex.encodeHexString(boundaryBytes);
+
+            Form parameters = new Form();
+            parameters.add("boundary", boundary);
+            setMediaType(new MediaType("multipart/mixed", parameters));
+        }
+
+        @Override
+        protected void writeFiles(OutputStream outputStream) throws IOException {
+            final BufferedOutputStream out = new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+            final JSONArray files = new JSONArray();
+
+            boolean success = decryptor.decryptTo(indices, new Decryptor.StreamTarget() {
+                @Override
+                public OutputStream beginFile(int index, String name) throws IOException {
+                    writeHeader(out, "application/octet-stream",
+                            "attachment; filename=\"" + quote(name) + "\"");
+                    return out;
+                }
+
+                @Override
+                public void endFile(int index, String name, boolean success) throws IOException {
+                    out.write(CRLF);
+                    try {
+                        JSONObject file = new JSONObject();
+                        file.put("index", index);
+                        file.put("name", name);
+                        file.put("success", success);
+                        files.put(file);
+                    } catch (JSONException e) {
+                        throw new IOException("Status of '" + name + "' couldn't be written");
+                    }
+                }
+            });
+            if (!success) {
+                logger.info("#write: Not all streamed files could be decrypted");
+            }
+
+            try {
+                JSONObject status = new JSONObject();
+                status.put("success", success);
+                status.put("files", files);
+
+                writeHeader(out, "application/json", null);
+                out.write(status.toString().getBytes("UTF-8"));
+                out.write(CRLF);
+            } catch (JSONException e) {
+                throw new IOException("Status part couldn't be written");
+            }
+            out.write(("--" + boundary + "--").getBytes("US-ASCII"));
+            out.write(CRLF);
+            out.flush();
+        }
+
+        private void writeHeader(OutputStream out, String contentType, String contentDisposition) throws IOException {
+            StringBuilder header = new StringBuilder();
+            header.append("--").append(boundary).append("\r\n");
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+            if (contentDisposition != null) {
+                header.append("Content-Disposition: ").append(contentDisposition).append("\r\n");
+            }
+            header.append("\r\n");
+            out.write(header.toString().getBytes("UTF-8"));
+        }
+
+        private static String quote(String name) {
+            return name.replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\r", "").replace("\n", "");
+        }
+    }
+}
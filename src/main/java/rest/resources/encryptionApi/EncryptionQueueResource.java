@@ -0,0 +1,21 @@
+package rest.resources.encryptionApi;
+
+import integration.crypto.EncryptionJobExecutor;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Metrics of the encryption queue: queue depth, active, completed and
+ * rejected jobs and the time that jobs waited for a worker.
+ */
+public class EncryptionQueueResource extends ServerResource {
+
+    @Get
+    public JSONObject getMetrics() throws JSONException {
+        JSONObject result = EncryptionJobExecutor.getInstance().getMetrics();
+        result.put("success", true);
+        return result;
+    }
+}
@@ -6,12 +6,14 @@ import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import integration.crypto.EncryptionJobExecutor;
 import integration.crypto.Encryptor;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.restlet.Request;
+import org.restlet.data.Status;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Delete;
 import org.restlet.resource.Get;
@@ -24,12 +26,14 @@ import trabe.lw14.policy.Lw14PolicyAbstractNode;
 
 import java.io.*;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 public class EncryptionResource extends ServerResource {
 
     private static String REDUCED_MANIFEST = null;
+    private static final int TOO_MANY_REQUESTS = 429;
 
-    private static String getReducedManifest() throws IOException {
+    static String getReducedManifest() throws IOException {
         if (REDUCED_MANIFEST == null) {
             InputStream is = Thread.currentThread()
                     .getContextClassLoader()
@@ -84,21 +88,7 @@ public class EncryptionResource extends ServerResource {
             return result;
         }
 
-        AbePublicKey pub = storage.getMSK().getPublicKey();
-        Exception failed = null;
-        JSONArray filesObj = input.getJSONArray("files");
-        for (int i = 0; i < filesObj.length() && failed == null; i++) {
-            JSONObject file = filesObj.getJSONObject(i);
-            if (file.has("policy")) {
-                try {
-                    String postfixPolicy = trabe.policy.PolicyParsing.parsePolicy(file.getString("policy"));
-                    Lw14PolicyAbstractNode.parsePolicy(postfixPolicy, pub);
-                } catch (trabe.policyparser.ParseException e) {
-                    failed = e;
-                }
-            }
-        }
-
+        Exception failed = checkPolicies(input.getJSONArray("files"));
         if (failed != null) {
             result.put(successStr, false);
             result.put(msgStr, "There was a policy error: " + failed.getMessage());
@@ -106,12 +96,85 @@ public class EncryptionResource extends ServerResource {
         }
 
 
-        new Encryptor(input, cid).start();
+        if (!submit(this, new Encryptor(input, cid), input, result)) {
+            return result;
+        }
 
         result.put(successStr, true);
+        result.put("status", EncryptionJobExecutor.STATUS_QUEUED);
         return result;
     }
 
+    /**
+     * Queue the encryption with the priority of the manifest. If the queue
+     * is full, the response gets the status 429 (Too Many Requests).
+     * @param resource     Resource of the request
+     * @param encryptor    Encryptor of the container
+     * @param input        Manifest
+     * @param result       Receives the error if the encryption wasn't queued
+     * @return  Whether the encryption was queued
+     * @throws JSONException
+     */
+    static boolean submit(ServerResource resource, Encryptor encryptor, JSONObject input, JSONObject result)
+            throws JSONException
+    {
+        try {
+            if (!EncryptionJobExecutor.getInstance().submit(encryptor, input.optInt("priority", 0))) {
+                result.put("success", false);
+                result.put("msg", "Container with this ID already exists (try PUT request to change an existing container)");
+                return false;
+            }
+        } catch (RejectedExecutionException e) {
+            rejectTooManyJobs(resource, result);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Answer with 429 (Too Many Requests) if the encryption queue is full.
+     * @param resource    Resource of the request
+     * @param result      Receives the error
+     * @return  Whether a job can be queued at the moment
+     * @throws JSONException
+     */
+    static boolean checkCapacity(ServerResource resource, JSONObject result) throws JSONException {
+        if (EncryptionJobExecutor.getInstance().hasCapacity()) {
+            return true;
+        }
+        rejectTooManyJobs(resource, result);
+        return false;
+    }
+
+    private static void rejectTooManyJobs(ServerResource resource, JSONObject result) throws JSONException {
+        resource.getResponse().setStatus(Status.valueOf(TOO_MANY_REQUESTS));
+        result.put("success", false);
+        result.put("msg", "Too many encryption jobs, try again later");
+    }
+
+    /**
+     * Parse the policies of all files of the manifest.
+     * @param filesObj    Files of the manifest
+     * @return  First policy error or <code>null</code>
+     * @throws JSONException
+     * @throws IOException if the master key couldn't be read
+     */
+    static Exception checkPolicies(JSONArray filesObj) throws JSONException, IOException {
+        AbePublicKey pub = Storage.getInstance().getMSK().getPublicKey();
+        for (int i = 0; i < filesObj.length(); i++) {
+            JSONObject file = filesObj.getJSONObject(i);
+            if (file.has("policy")) {
+                try {
+                    String postfixPolicy = trabe.policy.PolicyParsing.parsePolicy(file.getString("policy"));
+                    Lw14PolicyAbstractNode.parsePolicy(postfixPolicy, pub);
+                } catch (trabe.policyparser.ParseException e) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
     @Get
     public JSONObject getFileInfo() throws JSONException, IOException {
         final Request req = getRequest();
@@ -0,0 +1,276 @@
+package rest.resources.encryptionApi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fge.jackson.JsonLoader;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import integration.crypto.EncryptionJobExecutor;
+import integration.crypto.Encryptor;
+import integration.io.ContainerIO;
+import integration.io.MultipartReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.Request;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+import rest.ServerConfigDefaults;
+import rest.Storage;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encrypts files which are uploaded with the request instead of being read
+ * from server-side paths. The body is a <code>multipart/form-data</code> (or
+ * any other <code>multipart</code>) request, also with chunked transfer
+ * encoding. The first part is named <code>manifest</code> and contains the
+ * reduced manifest. The <code>path</code> of every file in the manifest is
+ * the name of the part with the file content. The parts are read as a
+ * stream with a fixed buffer and are only kept on disk until the container
+ * is built, because the container builder works on files.
+ *
+ * <p>Nothing is spooled if the encryption queue is full (429) and an upload
+ * is aborted as soon as its files exceed
+ * {@link ServerConfigDefaults#UPLOAD_MAX_SIZE} (413).</p>
+ */
+public class EncryptionUploadResource extends ServerResource {
+    private static final Logger logger = Logger.getLogger(EncryptionUploadResource.class);
+
+    private static final String MANIFEST_PART = "manifest";
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Post
+    public JSONObject upload(Representation entity) throws JSONException, IOException {
+        final Request req = getRequest();
+        final String successStr = "success";
+        final String msgStr = "msg";
+
+        int cid = Integer.parseInt(""+req.getAttributes().get("containerId"));
+
+        JSONObject result = new JSONObject();
+
+        if (entity == null || entity.getMediaType() == null
+                || !MediaType.MULTIPART_ALL.includes(entity.getMediaType())) {
+            result.put(successStr, false);
+            result.put(msgStr, "Upload has to be a multipart request");
+            return result;
+        }
+        String boundary = entity.getMediaType().getParameters().getFirstValue("boundary");
+        if (boundary == null || boundary.length() == 0) {
+            result.put(successStr, false);
+            result.put(msgStr, "Multipart boundary is missing");
+            return result;
+        }
+
+        if (containerExists(cid)) {
+            result.put(successStr, false);
+            result.put(msgStr, "Container with this ID already exists (try PUT request to change an existing container)");
+            return result;
+        }
+
+        // don't spool an upload that would be rejected afterwards
+        if (!EncryptionResource.checkCapacity(this, result)) {
+            return result;
+        }
+
+        long maxSize = ServerConfigDefaults.UPLOAD_MAX_SIZE * 1024L * 1024L;
+        if (maxSize > 0 && entity.getSize() > maxSize + MAX_MANIFEST_SIZE) {
+            return rejectTooLarge(result);
+        }
+
+        File spool = null;
+        try {
+            MultipartReader reader = new MultipartReader(entity.getStream(), boundary);
+
+            MultipartReader.Part part = reader.next();
+            if (part == null || !MANIFEST_PART.equals(part.getName())) {
+                result.put(successStr, false);
+                result.put(msgStr, "The first part has to be the manifest");
+                return result;
+            }
+            String requestContent = readManifest(part.getInputStream());
+
+            // input validation of the partial manifest
+            try {
+                JsonNode manifestSchemaNode = JsonLoader.fromString(EncryptionResource.getReducedManifest());
+                final JsonSchemaFactory factory = JsonSchemaFactory.byDefault();
+                JsonSchema manifestSchema = factory.getJsonSchema(manifestSchemaNode);
+                if (requestContent == null || !manifestSchema.validInstance(JsonLoader.fromString(requestContent))) {
+                    throw new Exception("Failed validation");
+                }
+            } catch (Exception e) {
+                result.put(successStr, false);
+                result.put(msgStr, "Invalid reduced manifest");
+                return result;
+            }
+
+            JSONObject input = new JSONObject(requestContent);
+            JSONArray files = input.getJSONArray("files");
+
+            // part name -> file of the manifest
+            Map<String, JSONObject> expectedParts = new LinkedHashMap<String, JSONObject>();
+            for (int i = 0; i < files.length(); i++) {
+                JSONObject file = files.getJSONObject(i);
+                Object partName = file.get("path");
+                if (!(partName instanceof String)) {
+                    result.put(successStr, false);
+                    result.put(msgStr, "Every file has to reference a single part by its name");
+                    return result;
+                }
+                if (MANIFEST_PART.equals(partName) || expectedParts.put((String) partName, file) != null) {
+                    result.put(successStr, false);
+                    result.put(msgStr, "Part name '" + partName + "' is not unique");
+                    return result;
+                }
+            }
+
+            Exception failed = EncryptionResource.checkPolicies(files);
+            if (failed != null) {
+                result.put(successStr, false);
+                result.put(msgStr, "There was a policy error: " + failed.getMessage());
+                return result;
+            }
+
+            spool = createSpool();
+            long remaining = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+            int received = 0;
+            while ((part = reader.next()) != null) {
+                JSONObject file = expectedParts.remove(part.getName());
+                if (file == null) {
+                    result.put(successStr, false);
+                    result.put(msgStr, "Unexpected or repeated part '" + part.getName() + "'");
+                    return result;
+                }
+
+                // every file gets its own directory, so the original names can be kept
+                File directory = new File(spool, "" + received++);
+                if (!directory.mkdir()) {
+                    throw new IOException("Couldn't create " + directory);
+                }
+                File target = new File(directory, fileName(part));
+                remaining -= copy(part.getInputStream(), target, remaining);
+                file.put("path", target.getAbsolutePath());
+            }
+
+            if (!expectedParts.isEmpty()) {
+                result.put(successStr, false);
+                result.put(msgStr, "Missing parts: " + expectedParts.keySet());
+                return result;
+            }
+
+            if (!EncryptionResource.submit(this, new Encryptor(input, cid).setInputSpool(spool), input, result)) {
+                return result;
+            }
+            spool = null; // deleted by the encryptor
+
+            result.put(successStr, true);
+            result.put("status", EncryptionJobExecutor.STATUS_QUEUED);
+            return result;
+        } catch (UploadTooLargeException e) {
+            logger.warn("#upload: Upload for container " + cid + " exceeds " + ServerConfigDefaults.UPLOAD_MAX_SIZE + " MB");
+            return rejectTooLarge(result);
+        } catch (IOException e) {
+            logger.warn("#upload: Upload for container " + cid + " failed", e);
+            result.put(successStr, false);
+            result.put(msgStr, "Upload couldn't be read: " + e.getMessage());
+            return result;
+        } finally {
+            if (spool != null) {
+                FileUtils.deleteQuietly(spool);
+            }
+        }
+    }
+
+    private JSONObject rejectTooLarge(JSONObject result) throws JSONException {
+        getResponse().setStatus(Status.CLIENT_ERROR_REQUEST_ENTITY_TOO_LARGE);
+        result.put("success", false);
+        result.put("msg", "Upload exceeds the limit of " + ServerConfigDefaults.UPLOAD_MAX_SIZE + " MB");
+        return result;
+    }
+
+    private static boolean containerExists(int cid) {
+        return Storage.getInstance().getByQuery("select * from Container where cid = " + cid).size() != 0;
+    }
+
+    /**
+     * @return  Manifest or <code>null</code> if it is too large
+     */
+    private static String readManifest(InputStream in) throws IOException {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (manifest.size() + read > MAX_MANIFEST_SIZE) {
+                return null;
+            }
+            manifest.write(buffer, 0, read);
+        }
+        return manifest.toString("UTF-8");
+    }
+
+    /**
+     * Name of the file in the container: the uploaded file name without any
+     * directories or the part name.
+     */
+    private static String fileName(MultipartReader.Part part) {
+        String name = part.getFilename();
+        if (name == null || name.length() == 0) {
+            name = part.getName();
+        }
+        name = FilenameUtils.getName(name);
+        if (name == null || name.length() == 0 || name.equals(".") || name.equals("..")) {
+            name = "file";
+        }
+        return name;
+    }
+
+    private static File createSpool() throws IOException {
+        File root = new File(ServerConfigDefaults.UPLOAD_SPOOL_PATH);
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IOException("Couldn't create the upload spool " + root);
+        }
+        File spool = File.createTempFile("upload", "", root);
+        if (!spool.delete() || !spool.mkdir()) {
+            throw new IOException("Couldn't create " + spool);
+        }
+        return spool;
+    }
+
+    /**
+     * @param in           Content of the part
+     * @param target       File to write
+     * @param remaining    Number of bytes the upload may still use
+     * @return  Number of written bytes
+     * @throws UploadTooLargeException if the part is larger than <code>remaining</code>
+     */
+    private static long copy(InputStream in, File target, long remaining) throws IOException {
+        long written = 0;
+        OutputStream out = ContainerIO.openOutput(target);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                written += read;
+                if (written > remaining) {
+                    throw new UploadTooLargeException();
+                }
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+
+    private static class UploadTooLargeException extends IOException {
+    }
+}
@@ -17,6 +17,7 @@ import org.restlet.resource.Get;
 import org.restlet.resource.Put;
 import org.restlet.resource.ServerResource;
 import integration.engine.JobQueue;
+import rest.PrivateKeyCache;
 import trabe.*;
 import trabe.lw14.Lw14PrivateKeyComponent;
 import trabe.policyparser.ParseException;
@@ -93,10 +94,9 @@ public class UserAttributesResource extends ServerResource {
             return result;
         }
         if (user.containsField("privatekey")) {
-            byte[] pkBytes = (byte[])user.field("privatekey");
             AbePrivateKey oKey = null;
             try {
-                oKey = AbePrivateKey.readFromByteArray(pkBytes);
+                oKey = PrivateKeyCache.getInstance().get(uid, user);
             } catch (IOException e) {
                 e.printStackTrace();
 
@@ -104,7 +104,7 @@ public class UserAttributesResource extends ServerResource {
                 result.put(success, false);
                 return result;
             }
-            Lw14PrivateKeyComponent comp = oKey.getComponent(attribute);
+            Lw14PrivateKeyComponent comp = oKey == null ? null : oKey.getComponent(attribute);
             if (comp != null) {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 AbeOutputStream os = new AbeOutputStream(baos, msk.getPublicKey());
@@ -254,6 +254,7 @@ public class UserAttributesResource extends ServerResource {
             user.save();
 
             storage.db.commit();
+            PrivateKeyCache.getInstance().invalidate(uid);
         } catch(ParseException e) {
             result.put(success, false);
             e.printStackTrace();
@@ -363,6 +364,7 @@ public class UserAttributesResource extends ServerResource {
         }
 
         storage.db.commit();
+        PrivateKeyCache.getInstance().invalidate(uid);
 
         result.put(success, true);
         return result;
@@ -11,6 +11,7 @@ import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
 import trabe.AbePrivateKey;
 import trabe.lw14.Lw14PrivateKeyComponent;
+import rest.PrivateKeyCache;
 import rest.Storage;
 
 import java.io.IOException;
@@ -45,13 +46,13 @@ public class UserReadResource extends ServerResource {
         byte[] privateKeyBytes = (byte[])user.field(privateKeyStr);
         AbePrivateKey privateKeyObj = null;
         try {
-            privateKeyObj = AbePrivateKey.readFromByteArray(privateKeyBytes);
+            privateKeyObj = PrivateKeyCache.getInstance().get(uid, user);
         } catch (IOException e) {
             result.put(success, false);
             return result;
         }
         JSONArray attributes = new JSONArray();
-        List<Lw14PrivateKeyComponent> componentList = privateKeyObj.getComponents();
+        List<Lw14PrivateKeyComponent> componentList = privateKeyObj == null ? null : privateKeyObj.getComponents();
         if (componentList != null) {
             for (Lw14PrivateKeyComponent component : componentList) {
                 attributes.put(component.attribute);
@@ -93,6 +94,7 @@ public class UserReadResource extends ServerResource {
 
         ODocument user = users.get(0);
         user.delete();
+        PrivateKeyCache.getInstance().invalidate(uid);
 
         result.put(exist, true);
         result.put(success, true);
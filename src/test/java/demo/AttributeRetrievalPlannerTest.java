@@ -0,0 +1,146 @@
+package demo;
+
+import integration.crypto.AttributeRetrievalPlanner;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plans of the {@link AttributeRetrievalPlanner} and a comparison of the
+ * number of lookups and lookup rounds with the sequential retrieval (try the
+ * missing policy attributes one after another until the policy is satisfied)
+ * for wide OR and threshold policies.
+ */
+public class AttributeRetrievalPlannerTest {
+    private static final int LOOKUP_LATENCY = 300; // ms of a single external lookup
+
+    @Test
+    public void testPlans() {
+        AttributeRetrievalPlanner or = AttributeRetrievalPlanner.fromPostfix("a b c 1of3");
+        assertEquals(set(), or.plan(set("b"), set()));
+        assertEquals(set("a"), or.plan(set(), set()));
+        assertEquals(set("b"), or.plan(set(), set("a")));
+        assertNull(or.plan(set(), set("a", "b", "c")));
+
+        AttributeRetrievalPlanner and = AttributeRetrievalPlanner.fromPostfix("a b c 3of3");
+        assertEquals(set("a", "c"), and.plan(set("b"), set()));
+        assertNull(and.plan(set("b"), set("c")));
+
+        // prefer the branch that is nearly satisfied
+        AttributeRetrievalPlanner nested = AttributeRetrievalPlanner.fromPostfix("a b c 3of3 d e 2of2 1of2");
+        assertEquals(set("e"), nested.plan(set("d"), set()));
+        assertEquals(set("a", "b", "c"), nested.plan(set(), set("e")));
+
+        AttributeRetrievalPlanner threshold = AttributeRetrievalPlanner.fromPostfix("a b c d 2of4");
+        assertEquals(set("c"), threshold.plan(set("b"), set("a")));
+        assertTrue(threshold.isSatisfiedBy(set("b", "c")));
+        assertFalse(threshold.isSatisfiedBy(set("d")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() {
+        AttributeRetrievalPlanner.fromPostfix("a b 2of3");
+    }
+
+    @Test
+    public void benchmark() {
+        Random random = new Random(42);
+        String[] policies = new String[] {
+                orPolicy(20),
+                thresholdPolicy(3, 10),
+                thresholdPolicy(5, 20),
+                "a b c 3of3 d e 2of2 f g h i 2of4 1of3",
+                thresholdPolicy(10, 10)
+        };
+        for (String policy : policies) {
+            AttributeRetrievalPlanner planner = AttributeRetrievalPlanner.fromPostfix(policy);
+            List<String> attributes = new ArrayList<String>(planner.getAttributes());
+
+            for (double availability : new double[] { 1.0, 0.5 }) {
+                int runs = 1000;
+                long sequentialLookups = 0, plannedLookups = 0, plannedRounds = 0;
+                int sequentialSatisfied = 0, plannedSatisfied = 0;
+                long start = System.nanoTime();
+                for (int run = 0; run < runs; run++) {
+                    Set<String> held = new HashSet<String>();
+                    Set<String> available = new HashSet<String>();
+                    for (String attribute : attributes) {
+                        double r = random.nextDouble();
+                        if (r < 0.1) {
+                            held.add(attribute);
+                        } else if (r < 0.1 + 0.9 * availability) {
+                            available.add(attribute);
+                        }
+                    }
+
+                    // sequential
+                    Set<String> key = new HashSet<String>(held);
+                    for (String attribute : attributes) {
+                        if (planner.isSatisfiedBy(key)) {
+                            break;
+                        }
+                        if (!key.contains(attribute)) {
+                            sequentialLookups++;
+                            if (available.contains(attribute)) {
+                                key.add(attribute);
+                            }
+                        }
+                    }
+                    if (planner.isSatisfiedBy(key)) {
+                        sequentialSatisfied++;
+                    }
+
+                    // planned, every plan is looked up in parallel
+                    key = new HashSet<String>(held);
+                    Set<String> unavailable = new HashSet<String>();
+                    Set<String> plan;
+                    while ((plan = planner.plan(key, unavailable)) != null && !plan.isEmpty()) {
+                        plannedRounds++;
+                        plannedLookups += plan.size();
+                        for (String attribute : plan) {
+                            if (available.contains(attribute)) {
+                                key.add(attribute);
+                            } else {
+                                unavailable.add(attribute);
+                            }
+                        }
+                    }
+                    if (planner.isSatisfiedBy(key)) {
+                        plannedSatisfied++;
+                    }
+                }
+                long planningTime = System.nanoTime() - start;
+                assertEquals(sequentialSatisfied, plannedSatisfied);
+
+                System.out.println(String.format("%-40s availability %.1f: sequential %.2f lookups (~%d ms), " +
+                                "planned %.2f lookups in %.2f rounds (~%d ms); %.1f us per run",
+                        abbreviate(policy), availability,
+                        sequentialLookups / (double) runs, sequentialLookups * LOOKUP_LATENCY / runs,
+                        plannedLookups / (double) runs, plannedRounds / (double) runs,
+                        plannedRounds * LOOKUP_LATENCY / runs, planningTime / 1000.0 / runs));
+            }
+        }
+    }
+
+    private static String orPolicy(int n) {
+        return thresholdPolicy(1, n);
+    }
+
+    private static String thresholdPolicy(int k, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("attr").append(i).append(' ');
+        }
+        return sb.append(k).append("of").append(n).toString();
+    }
+
+    private static String abbreviate(String policy) {
+        return policy.length() > 40 ? "..." + policy.substring(policy.length() - 37) : policy;
+    }
+
+    private static Set<String> set(String... attributes) {
+        return new HashSet<String>(Arrays.asList(attributes));
+    }
+}
@@ -0,0 +1,168 @@
+package demo;
+
+import integration.external.Bencode;
+import integration.external.Bep44Node;
+import integration.external.JkadSubsystem;
+import net.i2p.crypto.eddsa.KeyPairGenerator;
+import net.i2p.crypto.eddsa.spec.EdDSAGenParameterSpec;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rest.ServerConfigDefaults;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores and retrieves mutable items (BEP 44) through a small DHT of
+ * {@link Bep44Node}s on the loopback interface.
+ */
+public class Bep44LoopbackTest {
+    private static final int BASE_PORT = 18100;
+    private static final int NODES = 12;
+    private static final int ITEMS = 32;
+
+    private static Bep44Node[] nodes = new Bep44Node[NODES];
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        for (int i = 0; i < NODES; i++) {
+            nodes[i] = new Bep44Node("127.0.0.1", BASE_PORT + i, 3, 500);
+            nodes[i].start();
+        }
+        InetSocketAddress first = new InetSocketAddress("127.0.0.1", BASE_PORT);
+        for (int i = 1; i < NODES; i++) {
+            assertTrue(nodes[i].bootstrap(first));
+        }
+
+        KeyPairGenerator keyPairGenerator = new KeyPairGenerator();
+        keyPairGenerator.initialize(
+                new EdDSAGenParameterSpec(ServerConfigDefaults.EDDSA_SPECIFICATION_STRING),
+                new SecureRandom()
+        );
+        keyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        for (Bep44Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void testPushGet() throws Exception {
+        JkadSubsystem writer = new JkadSubsystem(nodes[1], keyPair.getPrivate());
+        JkadSubsystem reader = new JkadSubsystem(nodes[NODES - 1], keyPair.getPrivate());
+
+        Random r = new SecureRandom();
+        byte[][] locations = new byte[ITEMS][];
+        byte[][] values = new byte[ITEMS][];
+        for (int i = 0; i < ITEMS; i++) {
+            locations[i] = new byte[20];
+            values[i] = new byte[100];
+            r.nextBytes(locations[i]);
+            r.nextBytes(values[i]);
+        }
+
+        long start = System.currentTimeMillis();
+        assertTrue(writer.pushBulkData(locations, values));
+        long pushed = System.currentTimeMillis();
+        byte[][] result = reader.getBulkData(locations);
+        long end = System.currentTimeMillis();
+
+        assertNotNull(result);
+        for (int i = 0; i < ITEMS; i++) {
+            assertTrue(Arrays.equals(values[i], result[i]));
+        }
+        System.out.println(ITEMS + " items over " + NODES + " nodes: push " + (pushed - start) +
+                " ms, get " + (end - pushed) + " ms");
+
+        // newer values replace older ones
+        values[0] = new byte[] { 1, 2, 3 };
+        Thread.sleep(2);
+        assertTrue(writer.pushBulkData(new byte[][] { locations[0] }, new byte[][] { values[0] }));
+        assertTrue(Arrays.equals(values[0], reader.getBulkData(new byte[][] { locations[0] })[0]));
+    }
+
+    @Test
+    public void testThreshold() throws Exception {
+        JkadSubsystem jkad = new JkadSubsystem(nodes[2], keyPair.getPrivate());
+
+        byte[][] locations = new byte[4][20];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i][0] = (byte) (i + 1);
+        }
+        assertTrue(jkad.pushBulkData(new byte[][] { locations[0], locations[1] },
+                new byte[][] { new byte[] { 10 }, new byte[] { 11 } }));
+
+        byte[][] result = jkad.getBulkData(locations, 1);
+        assertNotNull(result);
+        int found = 0;
+        for (byte[] value : result) {
+            if (value != null) {
+                found++;
+            }
+        }
+        assertTrue(found >= 1);
+    }
+
+    @Test
+    public void testRepublish() throws Exception {
+        JkadSubsystem jkad = new JkadSubsystem(nodes[3], keyPair.getPrivate());
+
+        byte[][] locations = new byte[2][20];
+        locations[0][0] = 20;
+        locations[1][0] = 21;
+        assertTrue(jkad.pushBulkData(locations, new byte[][] { new byte[] { 1 }, new byte[] { 2 } }));
+        // pushing a location again replaces its item instead of adding one
+        Thread.sleep(2);
+        assertTrue(jkad.pushBulkData(new byte[][] { locations[0] }, new byte[][] { new byte[] { 3 } }));
+
+        assertEquals(2, jkad.republish());
+        assertTrue(Arrays.equals(new byte[] { 3 }, jkad.getBulkData(new byte[][] { locations[0] })[0]));
+        assertTrue(JkadSubsystem.REPUBLISH_INTERVAL < Bep44Node.ITEM_TTL);
+    }
+
+    @Test
+    public void testMalformedPackets() throws Exception {
+        byte[] nested = new byte[60000];
+        Arrays.fill(nested, (byte) 'l');
+        try {
+            Bencode.decode(nested);
+            fail("nesting wasn't limited");
+        } catch (IOException e) {
+            // expected
+        }
+
+        InetSocketAddress first = new InetSocketAddress("127.0.0.1", BASE_PORT);
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.send(new DatagramPacket(nested, nested.length, first));
+        } finally {
+            socket.close();
+        }
+        // the receiver of the node is still alive
+        assertTrue(nodes[5].bootstrap(first));
+    }
+
+    @Test
+    public void testLostReply() throws Exception {
+        // nobody listens on this port, so the query times out
+        assertFalse(nodes[4].bootstrap(new InetSocketAddress("127.0.0.1", BASE_PORT + NODES)));
+        assertEquals(0, nodes[4].getPendingQueries());
+    }
+}
@@ -0,0 +1,164 @@
+package demo;
+
+import integration.envelope.ChunkedEnvelope;
+import integration.envelope.ChunkedEnvelopeOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through the chunked envelope and the behaviour on modified
+ * or truncated entries.
+ */
+public class ChunkedEnvelopeTest {
+    private static final int CHUNK = 1024;
+    private static final int HEADER = 51;
+    private static final int SEALED_CHUNK = CHUNK + 16;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        int[] sizes = { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 37 * CHUNK + 11 };
+        for (int size : sizes) {
+            byte[] data = random(size, size);
+            byte[] sealed = seal(data);
+
+            int chunks = Math.max(1, (size + CHUNK - 1) / CHUNK);
+            if (size > 0 && size % CHUNK == 0) {
+                assertEquals("size " + size, HEADER + chunks * SEALED_CHUNK, sealed.length);
+            }
+
+            // write in odd pieces to cross the header and chunk boundaries
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(out);
+            for (int off = 0; off < sealed.length; off += 333) {
+                open.write(sealed, off, Math.min(333, sealed.length - off));
+            }
+            open.finish();
+            assertTrue(open.isEnvelope());
+            assertArrayEquals("size " + size, data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testLegacyPassthrough() throws Exception {
+        byte[][] entries = { new byte[0], "SNET".getBytes("UTF-8"), "short".getBytes("UTF-8"), random(5000, 7) };
+        for (byte[] entry : entries) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(out);
+            open.write(entry);
+            open.close();
+            assertFalse(open.isEnvelope());
+            assertArrayEquals(entry, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testTamperedChunk() throws Exception {
+        byte[] data = random(10 * CHUNK, 3);
+        for (int tampered : new int[] { 0, 4, 9 }) {
+            byte[] sealed = seal(data);
+            sealed[HEADER + tampered * SEALED_CHUNK + 5] ^= 1;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                open(sealed, out);
+                fail("chunk " + tampered + " wasn't detected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Chunk " + tampered));
+            }
+            // only the chunks before the modified one are released
+            assertArrayEquals(Arrays.copyOf(data, tampered * CHUNK), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testTruncatedAndExtended() throws Exception {
+        byte[] data = random(4 * CHUNK + 100, 5);
+        byte[] sealed = seal(data);
+
+        // drop the last chunk: the new last chunk wasn't sealed as the last one
+        byte[] truncated = Arrays.copyOf(sealed, HEADER + 4 * SEALED_CHUNK);
+        assertFails(truncated);
+
+        // cut within a chunk
+        assertFails(Arrays.copyOf(sealed, sealed.length - 20));
+        assertFails(Arrays.copyOf(sealed, HEADER + 3));
+
+        // append a chunk of another entry
+        byte[] other = seal(random(CHUNK, 6));
+        byte[] extended = Arrays.copyOf(sealed, sealed.length + SEALED_CHUNK);
+        System.arraycopy(other, HEADER, extended, sealed.length, SEALED_CHUNK);
+        assertFails(extended);
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        int chunkSize = 64 * 1024;
+        byte[] data = random(64 * 1024 * 1024, 9);
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream(data.length + data.length / 1000 + 1024);
+        ChunkedEnvelope.seal(new ByteArrayInputStream(data), sealed, chunkSize);
+        System.out.println(String.format("seal %8.1f MB/s", mbPerSecond(data.length, start)));
+
+        start = System.nanoTime();
+        CountingOutputStream count = new CountingOutputStream();
+        ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(count);
+        open.write(sealed.toByteArray());
+        open.finish();
+        System.out.println(String.format("open %8.1f MB/s", mbPerSecond(data.length, start)));
+        assertEquals(data.length, count.count);
+    }
+
+    private static byte[] seal(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedEnvelope.seal(new ByteArrayInputStream(data), out, CHUNK);
+        return out.toByteArray();
+    }
+
+    private static void open(byte[] sealed, OutputStream out) throws IOException {
+        ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(out);
+        open.write(sealed);
+        open.finish();
+    }
+
+    private static void assertFails(byte[] sealed) {
+        try {
+            open(sealed, new ByteArrayOutputStream());
+            fail("modification wasn't detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static double mbPerSecond(long bytes, long start) {
+        return bytes / 1048576.0 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package demo;
+
+import integration.external.CoalescingStorage;
+import integration.external.ExternalKeyDistributionStorage;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many concurrent readers of the same shares cause a single backend read.
+ */
+public class CoalescingStorageTest {
+    private static final int READERS = 50;
+
+    private static class SlowBackend extends ExternalKeyDistributionStorage {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile byte value = 1;
+
+        @Override
+        public byte[][] getBulkData(byte[][] locations) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[][] result = new byte[locations.length][];
+            for (int i = 0; i < locations.length; i++) {
+                result[i] = new byte[] { value };
+            }
+            return result;
+        }
+
+        @Override
+        public boolean pushBulkData(byte[][] locations, byte[][] data) {
+            value = data[0][0];
+            return true;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return "Slow";
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        SlowBackend backend = new SlowBackend();
+        final CoalescingStorage storage = new CoalescingStorage(backend, 60000);
+        final byte[][] locations = new byte[][] { new byte[] { 1 }, new byte[] { 2 } };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(READERS);
+        final AtomicInteger correct = new AtomicInteger();
+        for (int i = 0; i < READERS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        byte[][] result = storage.getBulkData(locations);
+                        if (result[1][0] == 1) {
+                            correct.incrementAndGet();
+                        }
+                        result[1] = null; // must not affect other readers
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(READERS, correct.get());
+        assertEquals(1, backend.reads.get());
+        System.out.println(READERS + " concurrent readers, " + backend.reads.get() + " backend read(s)");
+
+        // cached
+        assertEquals(1, storage.getBulkData(locations)[1][0]);
+        assertEquals(1, backend.reads.get());
+
+        // a push invalidates the cached result
+        storage.pushBulkData(new byte[][] { locations[0] }, new byte[][] { new byte[] { 2 } });
+        assertEquals(2, storage.getBulkData(locations)[0][0]);
+        assertEquals(2, backend.reads.get());
+    }
+}
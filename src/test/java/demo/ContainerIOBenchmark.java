@@ -0,0 +1,243 @@
+package demo;
+
+import integration.io.ChannelOutputStream;
+import integration.io.MappedFileInputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the plain file streams with the NIO path for container I/O by
+ * throughput and system calls (read from <code>/proc/self/io</code> where
+ * available). The container size in MB is set with
+ * <code>-Dbenchmark.containerSize=4096</code> for multi-GB runs; the default
+ * is small enough for the normal test run, but still spans several mapped
+ * windows.
+ */
+public class ContainerIOBenchmark {
+    private static final int CHUNK = 8 * 1024; // write/read size of the container code
+    private static final long SIZE = Long.getLong("benchmark.containerSize", 160) * 1024 * 1024;
+
+    private static File streamFile;
+    private static File channelFile;
+    private static File copyFile;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        streamFile = File.createTempFile("containerio-stream", ".bin");
+        channelFile = File.createTempFile("containerio-channel", ".bin");
+        copyFile = File.createTempFile("containerio-copy", ".bin");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        streamFile.delete();
+        channelFile.delete();
+        copyFile.delete();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        // write
+        IoCounters counters = IoCounters.read();
+        long start = System.nanoTime();
+        write(new FileOutputStream(streamFile));
+        report("write FileOutputStream", start, counters);
+
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        write(new ChannelOutputStream(channelFile));
+        report("write ChannelOutputStream", start, counters);
+
+        assertEquals(SIZE, streamFile.length());
+        assertEquals(SIZE, channelFile.length());
+
+        // sequential read
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        long streamCrc = read(new FileInputStream(streamFile), false);
+        report("read FileInputStream", start, counters);
+
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        long mappedCrc = read(new MappedFileInputStream(channelFile), false);
+        report("read MappedFileInputStream", start, counters);
+        assertEquals(streamCrc, mappedCrc);
+
+        // read every other chunk and skip the rest like entries that aren't selected
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        streamCrc = read(new FileInputStream(streamFile), true);
+        report("skip FileInputStream", start, counters);
+
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        mappedCrc = read(new MappedFileInputStream(channelFile), true);
+        report("skip MappedFileInputStream", start, counters);
+        assertEquals(streamCrc, mappedCrc);
+
+        // passthrough of a region
+        long offset = SIZE / 4;
+        long length = SIZE / 2;
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        InputStream in = new FileInputStream(streamFile);
+        OutputStream out = new FileOutputStream(copyFile);
+        try {
+            assertEquals(offset, in.skip(offset));
+            byte[] buffer = new byte[CHUNK];
+            long left = length;
+            while (left > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                out.write(buffer, 0, read);
+                left -= read;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        report("copy region streams", length, start, counters);
+
+        counters = IoCounters.read();
+        start = System.nanoTime();
+        FileInputStream source = new FileInputStream(channelFile);
+        ChannelOutputStream target = new ChannelOutputStream(copyFile);
+        try {
+            FileChannel channel = source.getChannel();
+            target.transferFrom(channel, offset, length);
+        } finally {
+            source.close();
+            target.close();
+        }
+        report("copy region transferTo", length, start, counters);
+        assertEquals(length, copyFile.length());
+    }
+
+    @Test
+    public void testMappedStreamPositioning() throws Exception {
+        File file = File.createTempFile("containerio-small", ".bin");
+        try {
+            byte[] data = new byte[100000];
+            new Random(3).nextBytes(data);
+            OutputStream out = new ChannelOutputStream(file, 4096);
+            out.write(data, 0, 10);
+            out.write(data[10]);
+            out.write(data, 11, data.length - 11);
+            out.close();
+
+            MappedFileInputStream in = new MappedFileInputStream(file);
+            try {
+                assertEquals(data[0] & 0xff, in.read());
+                assertEquals(1000, in.skip(1000));
+                in.mark(0);
+                byte[] b = new byte[500];
+                assertEquals(500, in.read(b));
+                assertEquals(data[1001], b[0]);
+                in.reset();
+                assertEquals(1001, in.getPosition());
+                in.seek(data.length - 2);
+                assertEquals(2, in.read(b));
+                assertEquals(data[data.length - 1], b[1]);
+                assertEquals(-1, in.read());
+                assertEquals(0, in.skip(10));
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(OutputStream out) throws IOException {
+        Random random = new Random(1);
+        byte[] chunk = new byte[CHUNK];
+        random.nextBytes(chunk);
+        try {
+            for (long written = 0; written < SIZE; written += CHUNK) {
+                chunk[0] = (byte) written;
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long read(InputStream in, boolean skip) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHUNK];
+        try {
+            boolean even = true;
+            while (true) {
+                if (skip && !even) {
+                    if (in.skip(CHUNK) <= 0) {
+                        break;
+                    }
+                } else {
+                    int read = in.read(chunk);
+                    if (read < 0) {
+                        break;
+                    }
+                    crc.update(chunk, 0, read);
+                }
+                even = !even;
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void report(String name, long start, IoCounters before) {
+        report(name, SIZE, start, before);
+    }
+
+    private static void report(String name, long bytes, long start, IoCounters before) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        IoCounters after = IoCounters.read();
+        String syscalls = before == null || after == null ? "n/a" :
+                String.format("%d reads, %d writes", after.syscr - before.syscr, after.syscw - before.syscw);
+        System.out.println(String.format("%-28s %8.1f MB/s  %s",
+                name, bytes / 1048576.0 / seconds, syscalls));
+    }
+
+    /**
+     * Read and write system calls of this process.
+     */
+    private static class IoCounters {
+        long syscr;
+        long syscw;
+
+        static IoCounters read() {
+            File proc = new File("/proc/self/io");
+            if (!proc.canRead()) {
+                return null;
+            }
+            IoCounters counters = new IoCounters();
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(proc));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("syscr:")) {
+                            counters.syscr = Long.parseLong(line.substring(6).trim());
+                        } else if (line.startsWith("syscw:")) {
+                            counters.syscw = Long.parseLong(line.substring(6).trim());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return counters;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package demo;
+
+import integration.crypto.DynamicAttributeCache;
+import org.junit.Test;
+import rest.ServerConfigDefaults;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Negative entries, invalidation by the job queue, eviction and concurrent
+ * use of the {@link DynamicAttributeCache}.
+ */
+public class DynamicAttributeCacheTest {
+
+    @Test
+    public void testNegativeEntries() {
+        DynamicAttributeCache cache = new DynamicAttributeCache(100);
+        String alice = DynamicAttributeCache.userKey(new byte[32]);
+        String bob = DynamicAttributeCache.userKey(new byte[] { 1 });
+        assertFalse(alice.equals(bob));
+
+        assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(alice, "a"));
+        cache.put(alice, "a", null, cache.getGeneration());
+        assertEquals(DynamicAttributeCache.State.UNAVAILABLE, cache.getState(alice, "a"));
+        assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(bob, "a"));
+        assertNull(cache.getComponent(alice, "a"));
+
+        cache.invalidate(alice, "a");
+        assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(alice, "a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testLookupOverlappingInvalidation() {
+        DynamicAttributeCache cache = new DynamicAttributeCache(100);
+        String user = DynamicAttributeCache.userKey(new byte[32]);
+
+        long generation = cache.getGeneration();
+        // the job queue pushes the attribute while the lookup is running
+        cache.invalidate(user, "a");
+        cache.put(user, "a", null, generation);
+        assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(user, "a"));
+
+        cache.put(user, "b", null, cache.getGeneration());
+        cache.put(user, "c", null, cache.getGeneration());
+        cache.invalidateUser(user);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNegativeTtlAndEviction() throws InterruptedException {
+        int ttl = ServerConfigDefaults.ATTRIBUTE_NEGATIVE_CACHE_TTL;
+        ServerConfigDefaults.ATTRIBUTE_NEGATIVE_CACHE_TTL = 0;
+        try {
+            DynamicAttributeCache cache = new DynamicAttributeCache(100);
+            String user = DynamicAttributeCache.userKey(new byte[32]);
+            cache.put(user, "a", null, cache.getGeneration());
+            Thread.sleep(5);
+            assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(user, "a"));
+        } finally {
+            ServerConfigDefaults.ATTRIBUTE_NEGATIVE_CACHE_TTL = ttl;
+        }
+
+        DynamicAttributeCache cache = new DynamicAttributeCache(10);
+        String user = DynamicAttributeCache.userKey(new byte[32]);
+        for (int i = 0; i < 20; i++) {
+            cache.put(user, "attr" + i, null, cache.getGeneration());
+        }
+        assertEquals(10, cache.size());
+        assertEquals(DynamicAttributeCache.State.UNKNOWN, cache.getState(user, "attr0"));
+        assertEquals(DynamicAttributeCache.State.UNAVAILABLE, cache.getState(user, "attr19"));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final DynamicAttributeCache cache = new DynamicAttributeCache(100);
+        final String user = DynamicAttributeCache.userKey(new byte[32]);
+        final byte[] component = { 1, 2, 3, 4 };
+        cache.put(user, "a", component, cache.getGeneration());
+        // the cache keeps its own copy
+        component[0] = 9;
+
+        // two requests take the cached component at the same time and change
+        // their instance, which must not affect the other one
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean shared = new AtomicBoolean();
+        Thread[] requests = new Thread[2];
+        for (int r = 0; r < requests.length; r++) {
+            final byte value = (byte) (r + 10);
+            requests[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        byte[] own = cache.getComponent(user, "a");
+                        if (!Arrays.equals(new byte[] { 1, 2, 3, 4 }, own)) {
+                            shared.set(true);
+                        }
+                        Arrays.fill(own, value);
+                    }
+                }
+            });
+            requests[r].start();
+        }
+        start.countDown();
+        for (Thread request : requests) {
+            request.join();
+        }
+        assertFalse(shared.get());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, cache.getComponent(user, "a"));
+    }
+}
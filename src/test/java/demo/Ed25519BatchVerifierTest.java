@@ -0,0 +1,158 @@
+package demo;
+
+import integration.crypto.Ed25519BatchVerifier;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.KeyPairGenerator;
+import net.i2p.crypto.eddsa.spec.EdDSAGenParameterSpec;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rest.ServerConfigDefaults;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Correctness of the batch verification of share signatures and a
+ * microbenchmark against verifying every share on its own.
+ */
+public class Ed25519BatchVerifierTest {
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        KeyPairGenerator keyPairGenerator = new KeyPairGenerator();
+        keyPairGenerator.initialize(
+                new EdDSAGenParameterSpec(ServerConfigDefaults.EDDSA_SPECIFICATION_STRING),
+                new SecureRandom());
+        keyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testValidBatch() throws Exception {
+        byte[][] messages = shareMessages(20, 1);
+        byte[][] signatures = sign(messages);
+
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier((EdDSAPublicKey) keyPair.getPublic());
+        for (int i = 0; i < messages.length; i++) {
+            verifier.add(messages[i], signatures[i]);
+        }
+        boolean[] valid = verifier.verify();
+        for (boolean v : valid) {
+            assertTrue(v);
+        }
+        assertEquals(0, verifier.getBatchFailures());
+        assertEquals(0, verifier.size());
+    }
+
+    @Test
+    public void testBadSignaturesAreIdentified() throws Exception {
+        byte[][] messages = shareMessages(20, 2);
+        byte[][] signatures = sign(messages);
+        signatures[3][40] ^= 1;           // S
+        messages[11][7] ^= 1;             // share
+        signatures[17][0] ^= 1;           // R
+
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier((EdDSAPublicKey) keyPair.getPublic());
+        for (int i = 0; i < messages.length; i++) {
+            verifier.add(messages[i], signatures[i]);
+        }
+        boolean[] valid = verifier.verify();
+        for (int i = 0; i < valid.length; i++) {
+            assertEquals("signature " + i, i != 3 && i != 11 && i != 17, valid[i]);
+        }
+        assertEquals(1, verifier.getBatchFailures());
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        EdDSAPublicKey pk = (EdDSAPublicKey) keyPair.getPublic();
+        Signature engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        Ed25519BatchVerifier verifier = new Ed25519BatchVerifier(pk);
+
+        for (int n : new int[] { 4, 16, 64, 256 }) {
+            byte[][] messages = shareMessages(n, n);
+            byte[][] signatures = sign(messages);
+            int rounds = Math.max(5, 1024 / n);
+
+            // warm up
+            loop(engine, pk, messages, signatures);
+            batch(verifier, messages, signatures);
+
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                assertEquals(n, loop(engine, pk, messages, signatures));
+            }
+            long loopTime = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                assertEquals(n, batch(verifier, messages, signatures));
+            }
+            long batchTime = (System.nanoTime() - start) / rounds;
+
+            System.out.println(String.format("%3d shares: per-share loop %.2f ms, batch %.2f ms (%.2fx)",
+                    n, loopTime / 1e6, batchTime / 1e6, loopTime / (double) batchTime));
+        }
+    }
+
+    private static int loop(Signature engine, EdDSAPublicKey pk, byte[][] messages, byte[][] signatures) throws Exception {
+        int valid = 0;
+        for (int i = 0; i < messages.length; i++) {
+            engine.initVerify(pk);
+            engine.update(messages[i]);
+            if (engine.verify(signatures[i])) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    private static int batch(Ed25519BatchVerifier verifier, byte[][] messages, byte[][] signatures) {
+        for (int i = 0; i < messages.length; i++) {
+            verifier.add(messages[i], signatures[i]);
+        }
+        int valid = 0;
+        for (boolean v : verifier.verify()) {
+            if (v) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @return  Messages laid out like the signed part of a share (type, index, share)
+     */
+    private static byte[][] shareMessages(int n, long seed) {
+        Random random = new Random(seed);
+        byte[][] messages = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            byte[] share = new byte[33];
+            random.nextBytes(share);
+            messages[i] = ByteBuffer.allocate(5 + share.length)
+                    .put((byte) 1)
+                    .putInt(i + 1)
+                    .put(share)
+                    .array();
+        }
+        return messages;
+    }
+
+    private static byte[][] sign(byte[][] messages) throws Exception {
+        Signature engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+        byte[][] signatures = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            engine.initSign(keyPair.getPrivate());
+            engine.update(messages[i]);
+            signatures[i] = engine.sign();
+        }
+        return signatures;
+    }
+}
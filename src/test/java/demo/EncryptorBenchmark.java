@@ -0,0 +1,138 @@
+package demo;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import integration.crypto.Encryptor;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rest.ServerConfigDefaults;
+import rest.Storage;
+import trabe.Cpabe;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the whole {@link Encryptor} (preparation, ABE key encapsulation
+ * and AES encryption by the container builder, bookkeeping in an in-memory
+ * database) for 1, 10 and 100-file manifests: plain files, and compressed
+ * and sealed files with a sequential and a parallel preparation. The plain
+ * run is the part of the container builder, which stays sequential. The
+ * file size in KB is set with <code>-Dbenchmark.fileSize=4096</code>.
+ */
+public class EncryptorBenchmark {
+    private static final int FILE_SIZE = Integer.getInteger("benchmark.fileSize", 1024) * 1024;
+    private static final int[] MANIFEST_SIZES = { 1, 10, 100 };
+    private static final String POLICY = "attr1 or attr2";
+
+    private static File directory;
+    private static List<File> files = new ArrayList<File>();
+    private static int containerId = 1;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        directory = File.createTempFile("encryptor", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        ServerConfigDefaults.DB_USE_MEMORY = true;
+        ServerConfigDefaults.ENTRY_STAGING_PATH = new File(directory, "staging").getPath();
+
+        Storage storage = Storage.getInstance();
+        if (storage.getMSK() == null) {
+            storage.setMSK(Cpabe.setup(2));
+        }
+
+        for (int i = 0; i < MANIFEST_SIZES[MANIFEST_SIZES.length - 1]; i++) {
+            File file = new File(directory, "file" + i + ".log");
+            writeLog(file, i);
+            files.add(file);
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        System.out.println(String.format("%d processors, %d KB per file", Runtime.getRuntime().availableProcessors(),
+                FILE_SIZE / 1024));
+        int threads = ServerConfigDefaults.ENTRY_PREPARATION_THREADS;
+        try {
+            // warm up, so the first manifest isn't measured with cold code
+            encrypt(files.subList(0, 10), false, 1);
+            encrypt(files.subList(0, 10), true, 0);
+
+            for (int size : MANIFEST_SIZES) {
+                List<File> manifest = files.subList(0, size);
+                double plain = encrypt(manifest, false, 1);
+                double sequential = encrypt(manifest, true, 1);
+                double parallel = encrypt(manifest, true, 0);
+                System.out.println(String.format("%3d files: plain %8.1f ms, prepared sequential %8.1f ms, "
+                        + "prepared parallel %8.1f ms (%.1fx)", size, plain, sequential, parallel, sequential / parallel));
+            }
+        } finally {
+            ServerConfigDefaults.ENTRY_PREPARATION_THREADS = threads;
+        }
+    }
+
+    /**
+     * @param prepared    Compress and seal the files
+     * @param threads     Preparation threads (0 = number of processors)
+     * @return  Time until the container was built in ms
+     */
+    private static double encrypt(List<File> manifest, boolean prepared, int threads) throws Exception {
+        ServerConfigDefaults.ENTRY_PREPARATION_THREADS = threads;
+        File outfile = new File(directory, "container" + containerId);
+
+        JSONArray manifestFiles = new JSONArray();
+        for (File file : manifest) {
+            JSONObject manifestFile = new JSONObject();
+            manifestFile.put("path", file.getPath());
+            manifestFile.put("policy", POLICY);
+            manifestFile.put("compress", prepared);
+            manifestFiles.put(manifestFile);
+        }
+        JSONObject json = new JSONObject();
+        json.put("files", manifestFiles);
+        json.put("outfile", outfile.getPath());
+        json.put("chunkedEntries", prepared);
+
+        int cid = containerId++;
+        long start = System.nanoTime();
+        new Encryptor(json, cid).run();
+        double time = (System.nanoTime() - start) / 1e6;
+
+        List<ODocument> containers = Storage.getInstance().getByQuery("select * from Container where cid = " + cid);
+        assertEquals(1, containers.size());
+        String status = containers.get(0).field("status");
+        assertEquals("success", status);
+        assertTrue(outfile.delete());
+        return time;
+    }
+
+    private static void writeLog(File file, int seed) throws IOException {
+        Random random = new Random(seed);
+        String[] levels = { "INFO", "DEBUG", "WARN" };
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            long written = 0;
+            while (written < FILE_SIZE) {
+                String line = "2016-03-" + (10 + random.nextInt(20)) + " " + levels[random.nextInt(3)]
+                        + " [EncryptionJob-" + random.nextInt(8) + "] #enc: adding file "
+                        + Long.toHexString(random.nextLong()) + " with policy: 'att1 att2 1of2'\n";
+                out.write(line);
+                written += line.length();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
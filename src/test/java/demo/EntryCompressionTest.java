@@ -0,0 +1,164 @@
+package demo;
+
+import integration.envelope.ChunkedEnvelope;
+import integration.envelope.ChunkedEnvelopeOutputStream;
+import integration.envelope.CompressedEntryOutputStream;
+import integration.envelope.EntryCompression;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compression of entries before the encryption: the heuristic, streaming
+ * decompression and the combination with the chunked envelope.
+ */
+public class EntryCompressionTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] log = log(20000);
+
+        long start = System.nanoTime();
+        byte[] compressed = compress(log);
+        double compressTime = (System.nanoTime() - start) / 1e6;
+
+        // write in small pieces to cross the header and buffer boundaries
+        start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(out);
+        for (int off = 0; off < compressed.length; off += 5) {
+            decompress.write(compressed, off, Math.min(5, compressed.length - off));
+        }
+        decompress.finish();
+        double decompressTime = (System.nanoTime() - start) / 1e6;
+
+        assertTrue(decompress.isCompressed());
+        assertArrayEquals(log, out.toByteArray());
+        System.out.println(String.format("log %d -> %d bytes (%.1fx), compress %.1f ms, decompress %.1f ms",
+                log.length, compressed.length, (double) log.length / compressed.length, compressTime, decompressTime));
+        assertTrue(compressed.length * 3 < log.length);
+    }
+
+    @Test
+    public void testWithEnvelope() throws Exception {
+        byte[] log = log(5000);
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        ChunkedEnvelope.seal(EntryCompression.compress(new ByteArrayInputStream(log), 6), sealed, 1024);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(out);
+        ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(decompress);
+        open.write(sealed.toByteArray());
+        open.finish();
+        decompress.finish();
+        assertArrayEquals(log, out.toByteArray());
+    }
+
+    @Test
+    public void testHeuristic() throws Exception {
+        assertTrue(isCompressible(log(1000)));
+        assertFalse(isCompressible(random(100000)));
+        assertFalse(isCompressible("tiny".getBytes("UTF-8")));
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzip);
+        out.write(log(1000));
+        out.close();
+        assertFalse(isCompressible(gzip.toByteArray()));
+
+        // already compressed entries aren't compressed twice
+        assertFalse(isCompressible(compress(log(1000))));
+    }
+
+    @Test
+    public void testPlainPassthrough() throws Exception {
+        byte[][] entries = { new byte[0], "SNETD".getBytes("UTF-8"), "SNETDFL2 plain".getBytes("UTF-8"), log(100) };
+        for (byte[] entry : entries) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(out);
+            for (byte b : entry) {
+                decompress.write(b);
+            }
+            decompress.finish();
+            assertFalse(decompress.isCompressed());
+            assertArrayEquals(entry, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        byte[] compressed = compress(log(1000));
+
+        assertFails(Arrays.copyOf(compressed, compressed.length - 1));
+        assertFails(Arrays.copyOf(compressed, compressed.length + 1));
+
+        // the zlib checksum covers the content
+        byte[] modified = compressed.clone();
+        modified[modified.length - 2] ^= 1;
+        assertFails(modified);
+    }
+
+    private static boolean isCompressible(byte[] content) throws IOException {
+        File file = File.createTempFile("compression", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            return EntryCompression.isCompressible(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        InputStream in = EntryCompression.compress(new ByteArrayInputStream(data), 6);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertFails(byte[] compressed) {
+        try {
+            CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(new ByteArrayOutputStream());
+            decompress.write(compressed);
+            decompress.finish();
+            fail("corruption wasn't detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] log(int lines) throws UnsupportedEncodingException {
+        Random random = new Random(1);
+        String[] levels = { "INFO", "DEBUG", "WARN" };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("2016-03-").append(10 + i % 20).append(' ').append(levels[random.nextInt(3)])
+                    .append(" [Decryptor-").append(random.nextInt(8)).append("] #dec: file ")
+                    .append(random.nextInt(100000)).append(" with policy: 'att1 att2 1of2'\n");
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(2).nextBytes(data);
+        return data;
+    }
+}
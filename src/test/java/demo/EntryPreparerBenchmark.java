@@ -0,0 +1,214 @@
+package demo;
+
+import integration.envelope.ChunkedEnvelopeOutputStream;
+import integration.envelope.CompressedEntryOutputStream;
+import integration.envelope.EntryPreparer;
+import integration.envelope.PreparedEntry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sequential and the parallel preparation (compression and
+ * chunked envelope) of the files of 1, 10 and 100-file manifests, taken in
+ * manifest order like the container builder does. The file size in KB is
+ * set with <code>-Dbenchmark.fileSize=4096</code>.
+ */
+public class EntryPreparerBenchmark {
+    private static final int FILE_SIZE = Integer.getInteger("benchmark.fileSize", 1024) * 1024;
+    private static final int[] MANIFEST_SIZES = { 1, 10, 100 };
+
+    private static File directory;
+    private static List<File> files = new ArrayList<File>();
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        directory = File.createTempFile("entrypreparer", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        for (int i = 0; i < MANIFEST_SIZES[MANIFEST_SIZES.length - 1]; i++) {
+            File file = new File(directory, "file" + i + ".log");
+            writeLog(file, i);
+            files.add(file);
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        System.out.println(String.format("%d processors, %d KB per file", Runtime.getRuntime().availableProcessors(),
+                FILE_SIZE / 1024));
+        // warm up, so the first manifest isn't measured with cold code
+        prepare(files.subList(0, 10), false);
+        prepare(files.subList(0, 10), true);
+
+        for (int size : MANIFEST_SIZES) {
+            List<File> manifest = files.subList(0, size);
+            double sequential = prepare(manifest, false);
+            double parallel = prepare(manifest, true);
+            System.out.println(String.format("%3d files: sequential %8.1f ms, parallel %8.1f ms (%.1fx)",
+                    size, sequential, parallel, sequential / parallel));
+        }
+    }
+
+    @Test
+    public void testOrderAndContent() throws Exception {
+        List<File> manifest = files.subList(0, 10);
+        EntryPreparer preparer = new EntryPreparer(6, 64 * 1024, true);
+        try {
+            for (int i = 0; i < manifest.size(); i++) {
+                preparer.submit(i, manifest.get(i), true, true);
+            }
+            // a file that wasn't submitted stays as it is
+            File other = new File(directory, "other");
+            assertEquals(other, preparer.get(manifest.size(), other));
+
+            for (int i = 0; i < manifest.size(); i++) {
+                File prepared = preparer.get(i, manifest.get(i));
+                assertEquals(PreparedEntry.name(manifest.get(i).getName()), prepared.getName());
+                assertTrue(prepared.length() < manifest.get(i).length());
+
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(content);
+                ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(decompress);
+                copy(prepared, open);
+                open.finish();
+                decompress.finish();
+
+                ByteArrayOutputStream original = new ByteArrayOutputStream();
+                copy(manifest.get(i), original);
+                assertArrayEquals(original.toByteArray(), content.toByteArray());
+            }
+        } finally {
+            preparer.close();
+        }
+    }
+
+    @Test
+    public void testCloseDeletesFiles() throws Exception {
+        EntryPreparer preparer = new EntryPreparer(6, 64 * 1024, true);
+        preparer.submit(0, files.get(0), true, false);
+        File prepared = preparer.get(0, files.get(0));
+        assertTrue(prepared.exists());
+        preparer.close();
+        assertFalse(prepared.exists());
+        assertFalse(prepared.getParentFile().exists());
+        assertTrue(files.get(0).exists());
+    }
+
+    @Test
+    public void testMagicPrefixedFiles() throws Exception {
+        // plain files which start like a compressed or sealed entry
+        String[] contents = { "SNETDFL1", "SNETDFL1 plain text", "SNETCAE1", "SNETCAE1 plain text" };
+        List<File> manifest = new ArrayList<File>();
+        for (int i = 0; i < contents.length; i++) {
+            File file = new File(directory, "magic" + i);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(contents[i].getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            manifest.add(file);
+        }
+        try {
+            boolean[][] options = { { false, false }, { true, false }, { false, true }, { true, true } };
+            for (boolean[] option : options) {
+                EntryPreparer preparer = new EntryPreparer(6, 64 * 1024, true);
+                try {
+                    for (int i = 0; i < manifest.size(); i++) {
+                        preparer.submit(i, manifest.get(i), option[0], option[1]);
+                    }
+                    for (int i = 0; i < manifest.size(); i++) {
+                        File prepared = preparer.get(i, manifest.get(i));
+                        // too small to be compressed, so only sealed files are prepared
+                        assertEquals(option[1], PreparedEntry.isPrepared(prepared.getName()));
+                        assertEquals(option[1], !prepared.equals(manifest.get(i)));
+
+                        // like the decryption, which only opens prepared entries
+                        ByteArrayOutputStream content = new ByteArrayOutputStream();
+                        if (PreparedEntry.isPrepared(prepared.getName())) {
+                            CompressedEntryOutputStream decompress = new CompressedEntryOutputStream(content);
+                            ChunkedEnvelopeOutputStream open = new ChunkedEnvelopeOutputStream(decompress);
+                            copy(prepared, open);
+                            open.finish();
+                            decompress.finish();
+                        } else {
+                            copy(prepared, content);
+                        }
+                        assertEquals(contents[i], content.toString("UTF-8"));
+                    }
+                } finally {
+                    preparer.close();
+                }
+            }
+        } finally {
+            for (File file : manifest) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return  Time until the last file was taken in ms
+     */
+    private static double prepare(List<File> manifest, boolean parallel) throws IOException {
+        long start = System.nanoTime();
+        EntryPreparer preparer = new EntryPreparer(6, 64 * 1024, parallel);
+        try {
+            for (int i = 0; i < manifest.size(); i++) {
+                preparer.submit(i, manifest.get(i), true, true);
+            }
+            for (int i = 0; i < manifest.size(); i++) {
+                assertNotNull(preparer.get(i, manifest.get(i)));
+            }
+            return (System.nanoTime() - start) / 1e6;
+        } finally {
+            preparer.close();
+        }
+    }
+
+    private static void writeLog(File file, int seed) throws IOException {
+        Random random = new Random(seed);
+        String[] levels = { "INFO", "DEBUG", "WARN" };
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            long written = 0;
+            while (written < FILE_SIZE) {
+                String line = "2016-03-" + (10 + random.nextInt(20)) + " " + levels[random.nextInt(3)]
+                        + " [EncryptionJob-" + random.nextInt(8) + "] #enc: adding file "
+                        + Long.toHexString(random.nextLong()) + " with policy: 'att1 att2 1of2'\n";
+                out.write(line);
+                written += line.length();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
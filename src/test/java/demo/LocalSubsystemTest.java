@@ -0,0 +1,133 @@
+package demo;
+
+import integration.external.LocalSubsystem;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery, expiry and throughput of {@link LocalSubsystem}.
+ */
+public class LocalSubsystemTest {
+    private File directory;
+
+    @Before
+    public void setup() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        directory = File.createTempFile("localKeyStorage", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        byte[][] locations = randomArray(100, 20);
+        byte[][] values = randomArray(100, 64);
+
+        LocalSubsystem local = new LocalSubsystem(directory, 1024 * 1024, 60000, false);
+        assertTrue(local.pushBulkData(locations, values));
+        local.close();
+
+        // simulate a torn write of the last record
+        File log = new File(directory, "ekds.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        long lastRecord = 8 + 99 * (36 + 64);
+        raf.seek(lastRecord + 36 + 10);
+        raf.write(~values[99][10]);
+        raf.close();
+
+        local = new LocalSubsystem(directory, 1024 * 1024, 60000, false);
+        byte[][] result = local.getBulkData(locations);
+        for (int i = 0; i < 99; i++) {
+            assertTrue(Arrays.equals(values[i], result[i]));
+        }
+        assertNull(result[99]);
+
+        // the log continues after the last valid record
+        assertTrue(local.pushBulkData(new byte[][] { locations[99] }, new byte[][] { values[99] }));
+        local.close();
+        local = new LocalSubsystem(directory, 1024 * 1024, 60000, false);
+        assertTrue(Arrays.equals(values[99], local.getBulkData(new byte[][] { locations[99] })[0]));
+        local.close();
+    }
+
+    @Test
+    public void testExpiryAndCompaction() throws Exception {
+        byte[][] locations = randomArray(1000, 20);
+        byte[][] values = randomArray(1000, 100);
+
+        // log only fits a few rounds, so pushing triggers compactions
+        LocalSubsystem local = new LocalSubsystem(directory, 512 * 1024, 60000, false);
+        for (int round = 0; round < 20; round++) {
+            values[0] = new byte[] { (byte) round };
+            assertTrue(local.pushBulkData(locations, values));
+        }
+        byte[][] result = local.getBulkData(locations);
+        assertArrayEquals(new byte[] { 19 }, result[0]);
+        for (int i = 1; i < locations.length; i++) {
+            assertTrue(Arrays.equals(values[i], result[i]));
+        }
+        local.close();
+
+        LocalSubsystem expiring = new LocalSubsystem(directory, 512 * 1024, 1, false);
+        assertTrue(expiring.pushBulkData(new byte[][] { locations[0] }, new byte[][] { values[1] }));
+        Thread.sleep(5);
+        assertNull(expiring.getBulkData(new byte[][] { locations[0] })[0]);
+        expiring.compact();
+        assertNull(expiring.getBulkData(new byte[][] { locations[0] })[0]);
+        expiring.close();
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        int items = 200000;
+        int bulk = 100;
+        byte[][] locations = randomArray(items, 20);
+        byte[][] values = randomArray(items, 100);
+
+        LocalSubsystem local = new LocalSubsystem(directory, 64 * 1024 * 1024, 60000, false);
+        long start = System.nanoTime();
+        for (int i = 0; i < items; i += bulk) {
+            assertTrue(local.pushBulkData(Arrays.copyOfRange(locations, i, i + bulk), Arrays.copyOfRange(values, i, i + bulk)));
+        }
+        long pushed = System.nanoTime();
+        for (int i = 0; i < items; i += bulk) {
+            byte[][] result = local.getBulkData(Arrays.copyOfRange(locations, i, i + bulk));
+            assertTrue(Arrays.equals(values[i], result[0]));
+        }
+        long end = System.nanoTime();
+        local.close();
+
+        System.out.println("Local storage: " + (long) (items / ((pushed - start) / 1e9)) + " puts/s, " +
+                (long) (items / ((end - pushed) / 1e9)) + " gets/s");
+    }
+
+    private static byte[][] randomArray(int n, int length) {
+        Random r = new SecureRandom();
+        byte[][] result = new byte[n][length];
+        for (byte[] b : result) {
+            r.nextBytes(b);
+        }
+        return result;
+    }
+}
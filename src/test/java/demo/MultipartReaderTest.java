@@ -0,0 +1,119 @@
+package demo;
+
+import integration.io.MultipartReader;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of streamed multipart bodies, including parts that are larger
+ * than the buffer of the reader and bodies that arrive in small pieces.
+ */
+public class MultipartReaderTest {
+    private static final String BOUNDARY = "----upload7MA4YWxkTrZu0gW";
+
+    @Test
+    public void testParts() throws Exception {
+        byte[] large = new byte[1000 * 1000];
+        new Random(1).nextBytes(large);
+        // a near-boundary inside of the content must not end the part
+        byte[] nearBoundary = ("x\r\n--" + BOUNDARY.substring(0, 10) + "y").getBytes("US-ASCII");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("preamble\r\n".getBytes("US-ASCII"));
+        part(body, "form-data; name=\"manifest\"", "{\"files\":[]}".getBytes("UTF-8"));
+        part(body, "form-data; name=\"file1\"; filename=\"a \\\"b\\\".bin\"", large);
+        part(body, "form-data; name=\"file2\"; filename=\"empty\"", new byte[0]);
+        part(body, "form-data; name=\"file3\"", nearBoundary);
+        body.write(("--" + BOUNDARY + "--\r\nepilogue").getBytes("US-ASCII"));
+
+        MultipartReader reader = new MultipartReader(new TrickleInputStream(body.toByteArray()), BOUNDARY);
+
+        MultipartReader.Part part = reader.next();
+        assertEquals("manifest", part.getName());
+        assertNull(part.getFilename());
+        assertEquals("{\"files\":[]}", IOUtils.toString(part.getInputStream(), "UTF-8"));
+
+        part = reader.next();
+        assertEquals("file1", part.getName());
+        assertEquals("a \"b\".bin", part.getFilename());
+        assertEquals("application/octet-stream", part.getContentType());
+        assertArrayEquals(large, IOUtils.toByteArray(part.getInputStream()));
+
+        part = reader.next();
+        assertEquals("empty", part.getFilename());
+        assertEquals(0, IOUtils.toByteArray(part.getInputStream()).length);
+
+        // not consumed, skipped by next()
+        part = reader.next();
+        assertEquals("file3", part.getName());
+
+        assertNull(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testSkippedPartContent() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "form-data; name=\"a\"", new byte[200 * 1000]);
+        part(body, "form-data; name=\"b\"", "b".getBytes("US-ASCII"));
+        body.write(("--" + BOUNDARY + "--").getBytes("US-ASCII"));
+
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body.toByteArray()), BOUNDARY);
+        assertEquals("a", reader.next().getName());
+        MultipartReader.Part part = reader.next();
+        assertEquals("b", part.getName());
+        assertEquals("b", IOUtils.toString(part.getInputStream(), "US-ASCII"));
+        assertNull(reader.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedBody() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "form-data; name=\"a\"", new byte[100]);
+        byte[] truncated = body.toByteArray();
+
+        MultipartReader reader = new MultipartReader(
+                new ByteArrayInputStream(truncated, 0, truncated.length - 10), BOUNDARY);
+        IOUtils.toByteArray(reader.next().getInputStream());
+        reader.next();
+    }
+
+    private static void part(ByteArrayOutputStream body, String disposition, byte[] content) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: " + disposition + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n").getBytes("UTF-8"));
+        body.write(content);
+        body.write("\r\n".getBytes("US-ASCII"));
+    }
+
+    /**
+     * Returns at most a few bytes per read like a slow network connection.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final Random random = new Random(2);
+
+        TrickleInputStream(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, 1 + random.nextInt(7000)));
+        }
+    }
+}
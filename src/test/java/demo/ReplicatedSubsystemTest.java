@@ -0,0 +1,121 @@
+package demo;
+
+import integration.external.ExternalKeyDistributionStorage;
+import integration.external.ReplicatedSubsystem;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hedged reads of {@link ReplicatedSubsystem} over a slow and a fast
+ * in-memory backend, and its behaviour with a failed backend.
+ */
+public class ReplicatedSubsystemTest {
+
+    private static class DelayedBackend extends ExternalKeyDistributionStorage {
+        private final ConcurrentHashMap<String, byte[]> items = new ConcurrentHashMap<String, byte[]>();
+        private final String name;
+        volatile long delay;
+        volatile boolean down;
+
+        DelayedBackend(String name, long delay) {
+            this.name = name;
+            this.delay = delay;
+        }
+
+        @Override
+        public byte[][] getBulkData(byte[][] locations) {
+            if (down) {
+                return null;
+            }
+            sleep();
+            byte[][] result = new byte[locations.length][];
+            for (int i = 0; i < locations.length; i++) {
+                result[i] = items.get(Arrays.toString(locations[i]));
+            }
+            return result;
+        }
+
+        @Override
+        public boolean pushBulkData(byte[][] locations, byte[][] data) {
+            if (down) {
+                return false;
+            }
+            for (int i = 0; i < locations.length; i++) {
+                items.put(Arrays.toString(locations[i]), data[i]);
+            }
+            return true;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return name;
+        }
+
+        private void sleep() {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+        DelayedBackend fast = new DelayedBackend("fast", 5);
+        DelayedBackend slow = new DelayedBackend("slow", 5);
+        ReplicatedSubsystem replicated = new ReplicatedSubsystem(
+                Arrays.<ExternalKeyDistributionStorage>asList(slow, fast), 95);
+
+        byte[][] locations = new byte[][] { new byte[20], new byte[] { 1 } };
+        byte[][] values = new byte[][] { new byte[] { 1 }, new byte[] { 2 } };
+        assertTrue(replicated.pushBulkData(locations, values));
+
+        // measure both backends
+        for (int i = 0; i < 20; i++) {
+            assertTrue(Arrays.deepEquals(values, replicated.getBulkData(locations)));
+        }
+
+        // "slow" becomes slow, the hedged request to "fast" answers first
+        slow.delay = 2000;
+        long start = System.currentTimeMillis();
+        assertTrue(Arrays.deepEquals(values, replicated.getBulkData(locations)));
+        long hedged = System.currentTimeMillis() - start;
+        System.out.println("hedged read: " + hedged + " ms");
+        assertTrue(hedged < 1000);
+
+        // later reads are not held up by "slow" either
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            replicated.getBulkData(locations);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testFailedBackend() throws Exception {
+        DelayedBackend healthy = new DelayedBackend("healthy", 20);
+        DelayedBackend failed = new DelayedBackend("failed", 0);
+        failed.down = true;
+        ReplicatedSubsystem replicated = new ReplicatedSubsystem(
+                Arrays.<ExternalKeyDistributionStorage>asList(failed, healthy), 95, 1);
+
+        byte[][] locations = new byte[][] { new byte[20] };
+        byte[][] values = new byte[][] { new byte[] { 1 } };
+        // one backend suffices for the write quorum
+        assertTrue(replicated.pushBulkData(locations, values));
+        assertFalse(new ReplicatedSubsystem(
+                Arrays.<ExternalKeyDistributionStorage>asList(failed, healthy), 95).pushBulkData(locations, values));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(Arrays.deepEquals(values, replicated.getBulkData(locations)));
+        }
+        // the failed backend answered fast, but isn't ranked first
+        assertTrue(replicated.getReadLatency(failed).percentile(50)
+                > replicated.getReadLatency(healthy).percentile(50));
+    }
+}
@@ -0,0 +1,216 @@
+package demo;
+
+import integration.external.ShexStandInServer;
+import integration.external.ShexSubsystem;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.restlet.Component;
+import rest.ServerConfigDefaults;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the Shex transport modes (Base64 text, binary and batch) by bytes
+ * on the wire and allocated bytes per bulk call. The requests go through a
+ * counting TCP proxy in front of a local {@link ShexStandInServer}.
+ */
+public class ShexTransportBenchmark {
+    private static final int SERVER_PORT = 5081;
+    private static final int PROXY_PORT = 5082;
+
+    private static final int SHARES = 16;
+    private static final int SHARE_LENGTH = 100;
+    private static final int ROUNDS = 20;
+
+    private static Component server;
+    private static CountingProxy proxy;
+
+    // global configuration that is changed by the benchmark
+    private static String shexUri;
+    private static boolean shexBatch;
+    private static boolean shexBinary;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        shexUri = ServerConfigDefaults.SHEX_URI;
+        shexBatch = ServerConfigDefaults.SHEX_BATCH;
+        shexBinary = ServerConfigDefaults.SHEX_BINARY;
+
+        Logger.getRootLogger().setLevel(Level.WARN);
+        server = ShexStandInServer.start(SERVER_PORT);
+        proxy = new CountingProxy(PROXY_PORT, SERVER_PORT);
+        proxy.start();
+        ServerConfigDefaults.SHEX_URI = "http://127.0.0.1:" + PROXY_PORT + "/";
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        try {
+            proxy.close();
+            server.stop();
+        } finally {
+            ServerConfigDefaults.SHEX_URI = shexUri;
+            ServerConfigDefaults.SHEX_BATCH = shexBatch;
+            ServerConfigDefaults.SHEX_BINARY = shexBinary;
+        }
+    }
+
+    @Test
+    public void testBase64() throws Exception {
+        run("base64", false, false);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        run("binary", false, true);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        run("batch", true, true);
+    }
+
+    private void run(String mode, boolean batch, boolean binary) throws Exception {
+        ServerConfigDefaults.SHEX_BATCH = batch;
+        ServerConfigDefaults.SHEX_BINARY = binary;
+        ShexStandInServer.clear();
+
+        Random r = new SecureRandom();
+        byte[][] locations = new byte[SHARES][];
+        byte[][] values = new byte[SHARES][];
+        for (int i = 0; i < SHARES; i++) {
+            locations[i] = new byte[20];
+            values[i] = new byte[SHARE_LENGTH];
+            r.nextBytes(locations[i]);
+            r.nextBytes(values[i]);
+        }
+
+        ShexSubsystem shex = new ShexSubsystem();
+
+        // warm up (includes capability negotiation)
+        assertTrue(shex.pushBulkData(locations, values));
+        shex.getBulkData(locations);
+
+        proxy.reset();
+        long allocatedBefore = allocatedBytes();
+        long start = System.currentTimeMillis();
+        for (int round = 0; round < ROUNDS; round++) {
+            assertTrue(shex.pushBulkData(locations, values));
+            byte[][] result = shex.getBulkData(locations);
+            for (int i = 0; i < SHARES; i++) {
+                assertTrue(Arrays.equals(values[i], result[i]));
+            }
+        }
+        long end = System.currentTimeMillis();
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        // every round does two bulk calls
+        int calls = ROUNDS * 2;
+        System.out.println(mode + ": " + SHARES + " shares of " + SHARE_LENGTH + " bytes; per bulk call: " +
+                (proxy.getUpstream() / calls) + " bytes sent, " +
+                (proxy.getDownstream() / calls) + " bytes received, " +
+                (allocated < 0 ? "n/a" : "" + (allocated / calls)) + " bytes allocated, " +
+                ((end - start) / (double) calls) + " ms");
+    }
+
+    /**
+     * @return  Bytes allocated by the current thread or a negative number if
+     *          the JVM doesn't provide that information
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Forwards TCP connections to a local port and counts the bytes in both
+     * directions.
+     */
+    private static class CountingProxy extends Thread {
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final AtomicLong upstream = new AtomicLong();
+        private final AtomicLong downstream = new AtomicLong();
+
+        CountingProxy(int port, int targetPort) throws IOException {
+            this.serverSocket = new ServerSocket(port);
+            this.targetPort = targetPort;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket target = new Socket("127.0.0.1", targetPort);
+                    pipe(client.getInputStream(), target.getOutputStream(), upstream, target);
+                    pipe(target.getInputStream(), client.getOutputStream(), downstream, client);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void pipe(final InputStream in, final OutputStream out, final AtomicLong counter, final Socket closeOnEnd) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            counter.addAndGet(read);
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // connection closed
+                    } finally {
+                        try {
+                            closeOnEnd.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void reset() {
+            upstream.set(0);
+            downstream.set(0);
+        }
+
+        long getUpstream() {
+            return upstream.get();
+        }
+
+        long getDownstream() {
+            return downstream.get();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
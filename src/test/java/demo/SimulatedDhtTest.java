@@ -0,0 +1,153 @@
+package demo;
+
+import integration.external.simulation.SimulatedDhtSubsystem;
+import integration.external.simulation.SimulationParameters;
+import integration.external.simulation.VirtualClock;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rest.ServerConfigDefaults;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reproducibility of the simulated DHT and availability of shares for
+ * different refresh intervals and replication factors.
+ */
+public class SimulatedDhtTest {
+    private static final int ITEMS = 50;
+
+    @BeforeClass
+    public static void setup() {
+        Logger.getRootLogger().setLevel(Level.WARN);
+    }
+
+    @Test
+    public void testDeterministic() {
+        String first = run(parameters(20, 42), 4);
+        String second = run(parameters(20, 42), 4);
+        assertEquals(first, second);
+        assertFalse(first.equals(run(parameters(20, 43), 4)));
+    }
+
+    @Test
+    public void testExpiry() {
+        SimulationParameters p = parameters(20, 7);
+        p.meanSession = 0; // no churn
+        p.loss = 0;
+        SimulatedDhtSubsystem dht = new SimulatedDhtSubsystem(p, new VirtualClock());
+
+        byte[][] locations = randomArray(ITEMS, 20, 1);
+        byte[][] values = randomArray(ITEMS, 100, 2);
+        assertTrue(dht.pushBulkData(locations, values));
+        assertTrue(Arrays.deepEquals(values, dht.getBulkData(locations)));
+
+        dht.getClock().advance(p.expiry);
+        byte[][] result = dht.getBulkData(locations);
+        for (byte[] value : result) {
+            assertNull(value);
+        }
+    }
+
+    @Test
+    public void testRefreshIntervals() {
+        for (int replication : new int[] { 5, 10, 20 }) {
+            for (int refreshHours : new int[] { 1, 4, 8 }) {
+                SimulationParameters p = parameters(replication, 1);
+                SimulatedDhtSubsystem dht = new SimulatedDhtSubsystem(p, new VirtualClock());
+                byte[][] locations = randomArray(ITEMS, 20, 1);
+                byte[][] values = randomArray(ITEMS, 100, 2);
+
+                int available = 0;
+                int reads = 0;
+                long refreshed = -1;
+                // read every 15 minutes for one day
+                for (long t = 0; t < 24 * 60 * 60 * 1000L; t += 15 * 60 * 1000L) {
+                    dht.getClock().advance(t - dht.getClock().now());
+                    if (refreshed < 0 || t - refreshed >= refreshHours * 60 * 60 * 1000L) {
+                        dht.pushBulkData(locations, values);
+                        refreshed = t;
+                    }
+                    for (byte[] value : dht.getBulkData(locations)) {
+                        if (value != null) {
+                            available++;
+                        }
+                        reads++;
+                    }
+                }
+                System.out.println("replication " + replication + ", refresh every " + refreshHours + "h: " +
+                        (100.0 * available / reads) + "% available; " + dht.getStatistics());
+            }
+        }
+    }
+
+    @Test
+    public void testWallTimeClock() throws Exception {
+        VirtualClock clock = new VirtualClock(0, true);
+        Thread.sleep(50);
+        assertTrue(clock.now() >= 50);
+
+        // simulated durations move it ahead of the wall time, but never back
+        long ahead = clock.advance(60 * 60 * 1000L);
+        Thread.sleep(10);
+        assertEquals(ahead, clock.now());
+
+        VirtualClock simulated = new VirtualClock();
+        Thread.sleep(10);
+        assertEquals(0, simulated.now());
+    }
+
+    @Test
+    public void testParametersFromConfig() {
+        int alpha = ServerConfigDefaults.SIM_ALPHA;
+        int timeout = ServerConfigDefaults.SIM_TIMEOUT;
+        try {
+            ServerConfigDefaults.SIM_ALPHA = 5;
+            ServerConfigDefaults.SIM_TIMEOUT = 1500;
+            SimulationParameters p = SimulationParameters.fromConfig();
+            assertEquals(5, p.alpha);
+            assertEquals(1500, p.timeout);
+        } finally {
+            ServerConfigDefaults.SIM_ALPHA = alpha;
+            ServerConfigDefaults.SIM_TIMEOUT = timeout;
+        }
+    }
+
+    private static String run(SimulationParameters p, int rounds) {
+        SimulatedDhtSubsystem dht = new SimulatedDhtSubsystem(p, new VirtualClock());
+        byte[][] locations = randomArray(ITEMS, 20, 1);
+        byte[][] values = randomArray(ITEMS, 100, 2);
+        StringBuilder sb = new StringBuilder();
+        for (int round = 0; round < rounds; round++) {
+            dht.pushBulkData(locations, values);
+            dht.getClock().advance(60 * 60 * 1000L);
+            byte[][] result = dht.getBulkData(locations, ITEMS / 2);
+            for (byte[] value : result) {
+                sb.append(value == null ? '0' : '1');
+            }
+            sb.append(' ').append(dht.getStatistics()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static SimulationParameters parameters(int replication, long seed) {
+        SimulationParameters p = new SimulationParameters();
+        p.nodes = 500;
+        p.replication = replication;
+        p.seed = seed;
+        return p;
+    }
+
+    private static byte[][] randomArray(int n, int length, long seed) {
+        Random r = new Random(seed);
+        byte[][] result = new byte[n][length];
+        for (byte[] b : result) {
+            r.nextBytes(b);
+        }
+        return result;
+    }
+}
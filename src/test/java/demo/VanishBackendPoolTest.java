@@ -0,0 +1,157 @@
+package demo;
+
+import edu.washington.cs.vanish.internal.VanishException;
+import edu.washington.cs.vanish.internal.backend.VanishBackendInterface;
+import integration.external.VanishBackendPool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link VanishBackendPool} with fake backends, whose connection
+ * can be switched off and whose initialization can be made slow.
+ */
+public class VanishBackendPoolTest {
+    private volatile boolean networkUp;
+    private volatile long initDelayMillis;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger initCalls = new AtomicInteger();
+
+    private final VanishBackendPool.BackendFactory factory = new VanishBackendPool.BackendFactory() {
+        @Override
+        public VanishBackendInterface create() {
+            created.incrementAndGet();
+            return (VanishBackendInterface) Proxy.newProxyInstance(VanishBackendInterface.class.getClassLoader(),
+                    new Class<?>[] { VanishBackendInterface.class }, new FakeBackend());
+        }
+    };
+
+    @Before
+    public void setup() {
+        networkUp = true;
+        initDelayMillis = 0;
+        created.set(0);
+        initCalls.set(0);
+    }
+
+    @Test
+    public void testReleaseDoesNotReinitialize() throws Exception {
+        VanishBackendPool pool = new VanishBackendPool(factory, 2);
+        assertEquals(2, initCalls.get());
+
+        VanishBackendInterface backend = pool.acquire(100);
+        assertNotNull(backend);
+
+        // a slow network must not block the thread which returns the failed backend
+        networkUp = false;
+        initDelayMillis = 2000;
+        long start = System.currentTimeMillis();
+        pool.release(backend, true);
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(3, created.get());
+        assertEquals(2, initCalls.get());
+        assertEquals(2, pool.getIdle());
+    }
+
+    @Test
+    public void testLazyInitialization() throws Exception {
+        VanishBackendPool pool = new VanishBackendPool(factory, 1);
+        VanishBackendInterface backend = pool.acquire(100);
+        pool.release(backend, true);
+        assertEquals(1, initCalls.get());
+
+        // the replacement can't be initialized while the network is down
+        networkUp = false;
+        assertNull(pool.acquire(100));
+        assertEquals(1, pool.getIdle());
+
+        networkUp = true;
+        backend = pool.acquire(100);
+        assertNotNull(backend);
+        assertTrue(backend.isInitialized());
+        pool.release(backend, false);
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void testAlive() throws Exception {
+        networkUp = false;
+        VanishBackendPool pool = new VanishBackendPool(factory, 2);
+        assertFalse(pool.alive());
+
+        // the health check initializes a backend as soon as the network is back
+        networkUp = true;
+        assertTrue(pool.alive());
+        assertEquals(2, pool.getIdle());
+    }
+
+    @Test
+    public void testAcquireTimeout() throws Exception {
+        VanishBackendPool pool = new VanishBackendPool(factory, 1);
+        VanishBackendInterface backend = pool.acquire(100);
+        assertNotNull(backend);
+
+        long start = System.currentTimeMillis();
+        assertNull(pool.acquire(200));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+
+        pool.release(backend, false);
+        assertSame(backend, pool.acquire(100));
+    }
+
+    /**
+     * Answers the lifecycle methods of {@link VanishBackendInterface}, all
+     * other methods return default values.
+     */
+    private class FakeBackend implements InvocationHandler {
+        private boolean initialized;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("init")) {
+                initCalls.incrementAndGet();
+                Thread.sleep(initDelayMillis);
+                if (!networkUp) {
+                    throw new VanishException("Connection refused", new IOException("Connection refused"));
+                }
+                initialized = true;
+                return null;
+            }
+            if (name.equals("isInitialized")) {
+                return initialized;
+            }
+            if (name.equals("stop")) {
+                initialized = false;
+                return null;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "FakeBackend";
+            }
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type.isPrimitive() && type != void.class) {
+                return 0;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package demo;
+
+import integration.external.ExternalKeyDistributionStorage;
+import integration.external.WriteBehindStorage;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalescing and ordering of {@link WriteBehindStorage}.
+ */
+public class WriteBehindStorageTest {
+
+    private static class CountingBackend extends ExternalKeyDistributionStorage {
+        final Map<String, byte[]> items = new HashMap<String, byte[]>();
+        int pushes = 0;
+        int pushedItems = 0;
+        boolean fail = false;
+
+        @Override
+        public synchronized byte[][] getBulkData(byte[][] locations) {
+            byte[][] result = new byte[locations.length][];
+            for (int i = 0; i < locations.length; i++) {
+                result[i] = items.get(Arrays.toString(locations[i]));
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized boolean pushBulkData(byte[][] locations, byte[][] data) {
+            if (fail) {
+                return false;
+            }
+            pushes++;
+            pushedItems += locations.length;
+            for (int i = 0; i < locations.length; i++) {
+                items.put(Arrays.toString(locations[i]), data[i]);
+            }
+            return true;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return "Counting";
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        CountingBackend backend = new CountingBackend();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 60000, 2, 3);
+
+        byte[][] locations = new byte[][] { new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 } };
+        for (int round = 1; round <= 10; round++) {
+            byte[] refresh = new byte[] { 1, (byte) round };
+            assertTrue(storage.pushBulkData(locations, new byte[][] { refresh, refresh, refresh }));
+        }
+
+        // read-your-writes before anything was flushed
+        assertEquals(0, backend.pushes);
+        assertArrayEquals(new byte[] { 1, 10 }, storage.getBulkData(locations)[2]);
+
+        storage.flush();
+        assertEquals(3, backend.pushedItems);
+        assertEquals(2, backend.pushes); // batches of two
+        assertArrayEquals(new byte[] { 1, 10 }, backend.getBulkData(locations)[0]);
+        assertEquals(30, storage.getReceived());
+        assertEquals(3, storage.getWritten());
+    }
+
+    @Test
+    public void testDeletionWins() throws Exception {
+        CountingBackend backend = new CountingBackend();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 60000, 100, 3);
+
+        byte[][] location = new byte[][] { new byte[] { 7 } };
+        storage.pushBulkData(location, new byte[][] { new byte[] { 1, 1 } }); // refresh
+        assertTrue(storage.pushBulkData(location, new byte[][] { new byte[] { 0, 9 } })); // deletion
+        // the deletion is written right away and replaces the queued refresh
+        assertEquals(1, backend.pushedItems);
+        storage.pushBulkData(location, new byte[][] { new byte[] { 1, 2 } }); // refresh after deletion
+
+        assertArrayEquals(new byte[] { 0, 9 }, storage.getBulkData(location)[0]);
+        storage.flush();
+        assertArrayEquals(new byte[] { 0, 9 }, backend.getBulkData(location)[0]);
+        assertEquals(1, backend.pushedItems);
+
+        // a later window starts fresh
+        storage.pushBulkData(location, new byte[][] { new byte[] { 1, 3 } });
+        storage.flush();
+        assertArrayEquals(new byte[] { 1, 3 }, backend.getBulkData(location)[0]);
+    }
+
+    @Test
+    public void testFailedDeletion() throws Exception {
+        CountingBackend backend = new CountingBackend();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 60000, 100, 3);
+
+        // the caller has to learn that the deletion wasn't written, so it can retry
+        backend.fail = true;
+        byte[][] location = new byte[][] { new byte[] { 8 } };
+        assertFalse(storage.pushBulkData(location, new byte[][] { new byte[] { 0, 1 } }));
+        assertNull(storage.getBulkData(location)[0]);
+
+        backend.fail = false;
+        assertTrue(storage.pushBulkData(location, new byte[][] { new byte[] { 0, 1 } }));
+        assertArrayEquals(new byte[] { 0, 1 }, backend.getBulkData(location)[0]);
+        assertEquals(1, storage.getWritten());
+    }
+}